@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * The {@code JSONModelProcessor} generates a {@code JSONBinder} for each class marked with
+ * {@code JSONModel}. The binder reads a JSON object from a {@code JSONTokenizer} and fills the
+ * fields of the class marked with {@code JSONField}, so no reflection is needed at runtime.
+ *
+ * <p>
+ *     This processor does not depend on the library, as the library is an Android archive. The
+ *     annotations are found by name, and the generated code refers to the library classes by
+ *     name. Problems with a model class are reported as compile errors against the element at
+ *     fault.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public class JSONModelProcessor extends AbstractProcessor {
+
+    private static final String READERS_PACKAGE =
+            "uk.org.rivernile.android.fetchutils.fetchers.readers";
+    private static final String JSON_MODEL = READERS_PACKAGE + ".JSONModel";
+    private static final String JSON_FIELD = READERS_PACKAGE + ".JSONField";
+    private static final String JSON_BINDER = READERS_PACKAGE + ".JSONBinder";
+    private static final String JSON_BINDERS = READERS_PACKAGE + ".JSONBinders";
+    private static final String JSON_TOKENIZER = READERS_PACKAGE + ".JSONTokenizer";
+
+    private static final String BINDER_SUFFIX = "JSONBinder";
+
+    private static final Map<TypeKind, String> PRIMITIVE_READS = new HashMap<>();
+    private static final Map<String, String> BOXED_BINDERS = new HashMap<>();
+
+    static {
+        PRIMITIVE_READS.put(TypeKind.BOOLEAN, "tokenizer.nextBoolean()");
+        PRIMITIVE_READS.put(TypeKind.INT, "tokenizer.nextInt()");
+        PRIMITIVE_READS.put(TypeKind.LONG, "tokenizer.nextLong()");
+        PRIMITIVE_READS.put(TypeKind.FLOAT, "(float) tokenizer.nextDouble()");
+        PRIMITIVE_READS.put(TypeKind.DOUBLE, "tokenizer.nextDouble()");
+
+        BOXED_BINDERS.put("java.lang.String", JSON_BINDERS + ".STRING");
+        BOXED_BINDERS.put("java.lang.Boolean", JSON_BINDERS + ".BOOLEAN");
+        BOXED_BINDERS.put("java.lang.Integer", JSON_BINDERS + ".INTEGER");
+        BOXED_BINDERS.put("java.lang.Long", JSON_BINDERS + ".LONG");
+        BOXED_BINDERS.put("java.lang.Float", JSON_BINDERS + ".FLOAT");
+        BOXED_BINDERS.put("java.lang.Double", JSON_BINDERS + ".DOUBLE");
+    }
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(final ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(JSON_MODEL, JSON_FIELD));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations,
+            final RoundEnvironment roundEnv) {
+        final TypeElement modelAnnotation = elements.getTypeElement(JSON_MODEL);
+        final TypeElement fieldAnnotation = elements.getTypeElement(JSON_FIELD);
+
+        if (modelAnnotation == null || fieldAnnotation == null) {
+            return false;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(fieldAnnotation)) {
+            if (!isModel(element.getEnclosingElement())) {
+                error(element, "@JSONField may only be used on fields declared in a class marked "
+                        + "with @JSONModel.");
+            }
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(modelAnnotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@JSONModel may only be used on classes.");
+            } else {
+                generateBinder((TypeElement) element);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check a model class and generate its binder. Nothing is generated when there are problems,
+     * which are reported as errors.
+     *
+     * @param model The model class.
+     */
+    private void generateBinder(final TypeElement model) {
+        if (!checkModel(model)) {
+            return;
+        }
+
+        final LinkedHashMap<String, VariableElement> fields = new LinkedHashMap<>();
+        final List<String> assignments = new ArrayList<>();
+        final List<String> listBinders = new ArrayList<>();
+        boolean valid = true;
+
+        for (VariableElement field : ElementFilter.fieldsIn(model.getEnclosedElements())) {
+            final AnnotationMirror annotation = getAnnotation(field, JSON_FIELD);
+
+            if (annotation == null) {
+                continue;
+            }
+
+            final Set<Modifier> modifiers = field.getModifiers();
+
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) ||
+                    modifiers.contains(Modifier.STATIC)) {
+                error(field, "Fields marked with @JSONField must not be private, final or "
+                        + "static.");
+                valid = false;
+                continue;
+            }
+
+            String name = getAnnotationValue(annotation);
+
+            if (name.isEmpty()) {
+                name = field.getSimpleName().toString();
+            }
+
+            if (fields.containsKey(name)) {
+                error(field, "The JSON name \"" + name + "\" is already used by the field "
+                        + fields.get(name).getSimpleName() + '.');
+                valid = false;
+                continue;
+            }
+
+            final String read = readExpression(field, field.asType(), listBinders);
+
+            if (read == null) {
+                valid = false;
+                continue;
+            }
+
+            fields.put(name, field);
+            assignments.add("object." + field.getSimpleName() + " = " + read + ';');
+        }
+
+        if (valid) {
+            writeBinder(model, new ArrayList<>(fields.keySet()), assignments, listBinders);
+        }
+    }
+
+    /**
+     * Check that a binder can be generated for a model class.
+     *
+     * @param model The model class.
+     * @return {@code true} if the model class is valid, {@code false} if not.
+     */
+    private boolean checkModel(final TypeElement model) {
+        final Set<Modifier> modifiers = model.getModifiers();
+
+        if (modifiers.contains(Modifier.ABSTRACT)) {
+            error(model, "Classes marked with @JSONModel must not be abstract.");
+            return false;
+        }
+
+        if (!model.getTypeParameters().isEmpty()) {
+            error(model, "Classes marked with @JSONModel must not be generic.");
+            return false;
+        }
+
+        Element element = model;
+
+        while (element.getKind().isClass() || element.getKind().isInterface()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                error(model, "Classes marked with @JSONModel, and the classes they are nested "
+                        + "in, must not be private.");
+                return false;
+            }
+
+            if (element.getEnclosingElement().getKind() != ElementKind.PACKAGE &&
+                    !element.getModifiers().contains(Modifier.STATIC)) {
+                error(model, "Nested classes marked with @JSONModel must be static.");
+                return false;
+            }
+
+            element = element.getEnclosingElement();
+        }
+
+        for (ExecutableElement constructor :
+                ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() &&
+                    !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+
+        error(model, "Classes marked with @JSONModel must have a constructor with no arguments "
+                + "which is not private.");
+        return false;
+    }
+
+    /**
+     * Get the expression which reads a value of the given type from {@code tokenizer}.
+     *
+     * @param field The field being read, for error reports.
+     * @param type The type of the value.
+     * @param listBinders The declarations of the {@link List} binders held in static fields of
+     *                    the generated binder. Binders needed by the expression are added to
+     *                    this.
+     * @return The expression, or {@code null} if the type is not supported.
+     */
+    private String readExpression(final VariableElement field, final TypeMirror type,
+            final List<String> listBinders) {
+        if (type.getKind().isPrimitive()) {
+            final String read = PRIMITIVE_READS.get(type.getKind());
+
+            if (read == null) {
+                error(field, "The type " + type + " is not supported by @JSONField.");
+            }
+
+            return read;
+        }
+
+        final String binder = binderExpression(field, type);
+
+        if (binder == null) {
+            return null;
+        } else if (isList(type)) {
+            final String binderField = "BINDER_" + (listBinders.size() + 1);
+            listBinders.add(JSON_BINDER + '<' + type + "> " + binderField + " = " + binder);
+            return binderField + ".read(tokenizer)";
+        } else {
+            return binder + ".read(tokenizer)";
+        }
+    }
+
+    /**
+     * Get the expression for a {@code JSONBinder} of the given non-primitive type.
+     *
+     * @param field The field being read, for error reports.
+     * @param type The type of the value.
+     * @return The expression, or {@code null} if the type is not supported.
+     */
+    private String binderExpression(final VariableElement field, final TypeMirror type) {
+        if (type.getKind() == TypeKind.DECLARED) {
+            final DeclaredType declaredType = (DeclaredType) type;
+            final TypeElement element = (TypeElement) declaredType.asElement();
+            final String boxed = BOXED_BINDERS.get(element.getQualifiedName().toString());
+
+            if (boxed != null) {
+                return boxed;
+            } else if (isModel(element)) {
+                return getBinderQualifiedName(element) + ".INSTANCE";
+            } else if (isList(type) && declaredType.getTypeArguments().size() == 1) {
+                final String elementBinder =
+                        binderExpression(field, declaredType.getTypeArguments().get(0));
+                return elementBinder != null ? JSON_BINDERS + ".listOf(" + elementBinder + ')'
+                        : null;
+            }
+        }
+
+        error(field, "The type " + type + " is not supported by @JSONField.");
+        return null;
+    }
+
+    /**
+     * Write the source of a binder.
+     *
+     * @param model The model class.
+     * @param names The JSON names of the fields, in the same order as {@code assignments}.
+     * @param assignments The statements which read each field.
+     * @param listBinders The declarations of the {@link List} binders to hold in static fields.
+     */
+    private void writeBinder(final TypeElement model, final List<String> names,
+            final List<String> assignments, final List<String> listBinders) {
+        final PackageElement pkg = elements.getPackageOf(model);
+        final String binderName = getBinderSimpleName(model);
+        final String modelName = model.getQualifiedName().toString();
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append("// Generated by ").append(getClass().getSimpleName())
+                .append(". Do not edit.\n");
+
+        if (!pkg.isUnnamed()) {
+            sb.append("package ").append(pkg.getQualifiedName()).append(";\n");
+        }
+
+        sb.append('\n')
+                .append("public final class ").append(binderName).append(" implements ")
+                .append(JSON_BINDER).append('<').append(modelName).append("> {\n\n")
+                .append("    public static final ").append(binderName).append(" INSTANCE = new ")
+                .append(binderName).append("();\n\n")
+                .append("    private static final String[] NAMES = {");
+
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(i > 0 ? ", " : " ").append('"').append(escape(names.get(i))).append('"');
+        }
+
+        sb.append(" };\n");
+
+        for (int i = 0; i < listBinders.size(); i++) {
+            sb.append("    private static final ").append(listBinders.get(i)).append(";\n");
+        }
+
+        sb.append('\n')
+                .append("    private ").append(binderName).append("() {\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public ").append(modelName).append(" read(final ")
+                .append(JSON_TOKENIZER).append(" tokenizer)\n")
+                .append("            throws java.io.IOException {\n")
+                .append("        if (").append(JSON_BINDERS).append(".readNull(tokenizer)) {\n")
+                .append("            return null;\n")
+                .append("        }\n\n")
+                .append("        final ").append(modelName).append(" object = new ")
+                .append(modelName).append("();\n")
+                .append("        tokenizer.beginObject();\n\n")
+                .append("        while (tokenizer.hasNext()) {\n")
+                .append("            switch (tokenizer.selectName(NAMES)) {\n");
+
+        for (int i = 0; i < assignments.size(); i++) {
+            sb.append("                case ").append(i).append(":\n")
+                    .append("                    ").append(assignments.get(i)).append('\n')
+                    .append("                    break;\n");
+        }
+
+        sb.append("                default:\n")
+                .append("                    tokenizer.skipValue();\n")
+                .append("                    break;\n")
+                .append("            }\n")
+                .append("        }\n\n")
+                .append("        tokenizer.endObject();\n\n")
+                .append("        return object;\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try {
+            final JavaFileObject file = processingEnv.getFiler()
+                    .createSourceFile(getBinderQualifiedName(model), model);
+            final Writer writer = file.openWriter();
+
+            try {
+                writer.write(sb.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(model, "Unable to write the binder: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Is the element a class marked with {@code JSONModel}?
+     *
+     * @param element The element.
+     * @return {@code true} if it is, {@code false} if not.
+     */
+    private boolean isModel(final Element element) {
+        return element != null && element.getKind() == ElementKind.CLASS &&
+                getAnnotation(element, JSON_MODEL) != null;
+    }
+
+    /**
+     * Is the type a {@link List}?
+     *
+     * @param type The type.
+     * @return {@code true} if it is, {@code false} if not.
+     */
+    private boolean isList(final TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED &&
+                ((TypeElement) types.asElement(type)).getQualifiedName()
+                        .contentEquals(List.class.getName());
+    }
+
+    /**
+     * Get the simple name of the binder of a model class. The names of enclosing classes are
+     * included, separated by {@code _}.
+     *
+     * @param model The model class.
+     * @return The simple name of the binder.
+     */
+    private static String getBinderSimpleName(final TypeElement model) {
+        final StringBuilder sb = new StringBuilder(model.getSimpleName());
+        Element element = model.getEnclosingElement();
+
+        while (element.getKind() != ElementKind.PACKAGE) {
+            sb.insert(0, '_').insert(0, element.getSimpleName());
+            element = element.getEnclosingElement();
+        }
+
+        return sb.append(BINDER_SUFFIX).toString();
+    }
+
+    /**
+     * Get the qualified name of the binder of a model class.
+     *
+     * @param model The model class.
+     * @return The qualified name of the binder.
+     */
+    private String getBinderQualifiedName(final TypeElement model) {
+        final PackageElement pkg = elements.getPackageOf(model);
+        final String simpleName = getBinderSimpleName(model);
+
+        return pkg.isUnnamed() ? simpleName : pkg.getQualifiedName() + "." + simpleName;
+    }
+
+    /**
+     * Get the annotation with the given name from an element.
+     *
+     * @param element The element.
+     * @param annotationName The qualified name of the annotation.
+     * @return The annotation, or {@code null} if the element does not have it.
+     */
+    private static AnnotationMirror getAnnotation(final Element element,
+            final String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            final TypeElement type = (TypeElement) annotation.getAnnotationType().asElement();
+
+            if (type.getQualifiedName().contentEquals(annotationName)) {
+                return annotation;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the {@code value} of an annotation, or an empty {@link String} if it is not set.
+     *
+     * @param annotation The annotation.
+     * @return The {@code value} of the annotation.
+     */
+    private static String getAnnotationValue(final AnnotationMirror annotation) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                annotation.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value")) {
+                return String.valueOf(entry.getValue().getValue());
+            }
+        }
+
+        return "";
+    }
+
+    /**
+     * Escape a {@link String} for use in a Java string literal.
+     *
+     * @param s The {@link String} to escape.
+     * @return The escaped {@link String}.
+     */
+    private static String escape(final String s) {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Report an error against an element.
+     *
+     * @param element The element at fault.
+     * @param message The description of the problem.
+     */
+    private void error(final Element element, final String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
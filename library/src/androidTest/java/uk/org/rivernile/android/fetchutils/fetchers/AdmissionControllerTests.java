@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link AdmissionController}.
+ *
+ * @author Niall Scott
+ */
+public class AdmissionControllerTests extends TestCase {
+
+    private static final String HOST = "http://example.com:80";
+
+    /**
+     * Test that building an {@link AdmissionController} with a concurrency limit of {@code 0}
+     * throws an {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithZeroMaxConcurrentPerHost() {
+        try {
+            new AdmissionController.Builder().setMaxConcurrentPerHost(0).build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxConcurrentPerHost is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the default values used when not set externally are as expected.
+     */
+    public void testDefaultValues() {
+        final AdmissionController admission = new AdmissionController.Builder().build();
+
+        assertEquals(6, admission.getMaxConcurrentPerHost());
+        assertEquals(0.0, admission.getRequestsPerSecond());
+        assertEquals(5, admission.getBurstSize());
+        assertEquals(64, admission.getMaxQueueLength());
+        assertEquals(30000, admission.getQueueTimeout());
+        assertEquals(0, admission.getQueueDepth());
+        assertEquals(0, admission.getAdmittedCount());
+    }
+
+    /**
+     * Test that requests within the concurrency limit are admitted without waiting, and that
+     * each host has its own limit.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testAdmitsWithinLimit() throws IOException {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(2)
+                .build();
+        admission.acquire(HOST, null);
+        admission.acquire(HOST, null);
+        admission.acquire("http://other.com:80", null);
+
+        assertEquals(2, admission.getActiveCount(HOST));
+        assertEquals(3, admission.getAdmittedCount());
+        assertEquals(0, admission.getQueuedCount());
+
+        admission.release(HOST);
+
+        assertEquals(1, admission.getActiveCount(HOST));
+    }
+
+    /**
+     * Test that a request over the concurrency limit fails once the queue timeout has passed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testQueueTimeout() throws IOException {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(1)
+                .setQueueTimeout(50)
+                .build();
+        admission.acquire(HOST, null);
+
+        try {
+            admission.acquire(HOST, null);
+        } catch (AdmissionRejectedException e) {
+            assertEquals(1, admission.getRejectedCount());
+            assertEquals(0, admission.getQueueDepth());
+            assertEquals(1, admission.getPeakQueueDepth());
+            return;
+        }
+
+        fail("The slot was not released, so an AdmissionRejectedException should be thrown.");
+    }
+
+    /**
+     * Test that a request fails straight away when the queue for its host is full.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testQueueFull() throws IOException {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(1)
+                .setMaxQueueLength(0)
+                .build();
+        admission.acquire(HOST, null);
+        final long start = System.nanoTime();
+
+        try {
+            admission.acquire(HOST, null);
+        } catch (AdmissionRejectedException e) {
+            assertTrue(System.nanoTime() - start < 1000000000L);
+            assertEquals(1, admission.getRejectedCount());
+            return;
+        }
+
+        fail("The queue is full, so an AdmissionRejectedException should be thrown.");
+    }
+
+    /**
+     * Test that a queued request is admitted when a slot is released, and that its wait is
+     * recorded.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testQueuedRequestIsAdmittedOnRelease() throws Exception {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(1)
+                .build();
+        final IOException[] error = new IOException[1];
+        admission.acquire(HOST, null);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    admission.acquire(HOST, null);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+
+        while (admission.getQueueDepth(HOST) == 0) {
+            Thread.sleep(5);
+        }
+
+        Thread.sleep(50);
+        admission.release(HOST);
+        thread.join();
+
+        assertNull(error[0]);
+        assertEquals(1, admission.getQueuedCount());
+        assertEquals(0, admission.getQueueDepth(HOST));
+        assertTrue(admission.getMaxWaitTime() >= 50);
+    }
+
+    /**
+     * Test that a queued request leaves the queue with a {@link FetchCancelledException} when its
+     * {@link FetchCancellationSignal} is cancelled, without taking a slot and without leaving its
+     * thread interrupted.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testQueuedRequestIsCancelled() throws Exception {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(1)
+                .build();
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        final IOException[] error = new IOException[1];
+        final boolean[] interrupted = new boolean[1];
+        admission.acquire(HOST, null);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    admission.acquire(HOST, signal);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+
+        while (admission.getQueueDepth(HOST) == 0) {
+            Thread.sleep(5);
+        }
+
+        signal.cancel();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(error[0] instanceof FetchCancelledException);
+        assertFalse(interrupted[0]);
+        assertEquals(0, admission.getQueueDepth(HOST));
+        assertEquals(1, admission.getActiveCount(HOST));
+    }
+
+    /**
+     * Test that requests beyond the burst size are spaced out by the rate limit.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRateLimit() throws IOException {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setRequestsPerSecond(20)
+                .setBurstSize(2)
+                .build();
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < 4; i++) {
+            admission.acquire(HOST, null);
+            admission.release(HOST);
+        }
+
+        // The 2 requests after the burst each wait for about 50 milliseconds.
+        assertTrue(System.nanoTime() - start >= 90000000L);
+        assertEquals(2, admission.getQueuedCount());
+    }
+
+    /**
+     * Test that a request fails straight away when the wait for a token would be longer than the
+     * queue timeout.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRateLimitLongerThanTimeout() throws IOException {
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setRequestsPerSecond(0.1)
+                .setBurstSize(1)
+                .setQueueTimeout(100)
+                .build();
+        admission.acquire(HOST, null);
+        admission.release(HOST);
+
+        try {
+            admission.acquire(HOST, null);
+        } catch (AdmissionRejectedException e) {
+            // The slot must have been given back.
+            assertEquals(0, admission.getActiveCount(HOST));
+            return;
+        }
+
+        fail("The next token is 10 seconds away, so an AdmissionRejectedException should be " +
+                "thrown.");
+    }
+
+    /**
+     * Test that the limits of a host are forgotten once it has no requests in progress and its
+     * token bucket has refilled, so hosts which are no longer used are not held forever.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testIdleHostsAreForgotten() throws Exception {
+        final AdmissionController unlimited = new AdmissionController.Builder().build();
+        unlimited.acquire(HOST, null);
+        unlimited.acquire("http://other.com:80", null);
+        unlimited.release(HOST);
+
+        assertEquals(1, unlimited.getHostCount());
+
+        unlimited.release("http://other.com:80");
+
+        assertEquals(0, unlimited.getHostCount());
+
+        final AdmissionController limited = new AdmissionController.Builder()
+                .setRequestsPerSecond(100)
+                .setBurstSize(1)
+                .build();
+        limited.acquire(HOST, null);
+        limited.release(HOST);
+
+        // The token bucket of the host is still refilling, so its limits are kept.
+        assertEquals(1, limited.getHostCount());
+
+        Thread.sleep(50);
+        limited.acquire("http://other.com:80", null);
+
+        assertEquals(1, limited.getHostCount());
+        assertEquals(1, limited.getActiveCount("http://other.com:80"));
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.test.InstrumentationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.rivernile.android.fetchutils.fetchers.nio.LoopbackHttpServer;
+import uk.org.rivernile.android.fetchutils.fetchers.readers.StringFetcherStreamReader;
+
+/**
+ * Tests for {@link BatchFetch} and
+ * {@link FetcherFactory#fetchAll(android.content.Context, java.util.Map, int, int,
+ * BatchFetch.Listener)}.
+ *
+ * @author Niall Scott
+ */
+public class BatchFetchTests extends InstrumentationTestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "BatchFetchTests");
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        final File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+        directory = null;
+    }
+
+    /**
+     * Test that an {@link IllegalArgumentException} is thrown when {@code maxParallel} is
+     * {@code 0}.
+     */
+    public void testFetchAllWithZeroMaxParallel() {
+        try {
+            FetcherFactory.fetchAll(getInstrumentation().getContext(),
+                    Collections.<Uri, StringFetcherStreamReader>emptyMap(), 0, 1, null);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxParallel is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that an {@link IllegalArgumentException} is thrown when {@code maxPerHost} is
+     * {@code 0}.
+     */
+    public void testFetchAllWithZeroMaxPerHost() {
+        try {
+            FetcherFactory.fetchAll(getInstrumentation().getContext(),
+                    Collections.<Uri, StringFetcherStreamReader>emptyMap(), 1, 0, null);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxPerHost is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that {@link BatchFetch#take()} returns {@code null} straight away for an empty batch.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testEmptyBatch() throws Exception {
+        final BatchFetch<StringFetcherStreamReader> batch = FetcherFactory.fetchAll(
+                getInstrumentation().getContext(),
+                Collections.<Uri, StringFetcherStreamReader>emptyMap(), 2, 2, null);
+
+        assertEquals(0, batch.getItemCount());
+        assertNull(batch.take());
+    }
+
+    /**
+     * Test that every item in a batch completes, that each reader is given the data for its own
+     * {@link Uri}, and that the {@link BatchFetch.Listener} is told of each item.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testAllItemsComplete() throws Exception {
+        final LinkedHashMap<Uri, StringFetcherStreamReader> requests = new LinkedHashMap<>();
+
+        for (int i = 0; i < 6; i++) {
+            requests.put(writeFile("file" + i, "Data " + i), new StringFetcherStreamReader());
+        }
+
+        final CountDownLatch latch = new CountDownLatch(6);
+        final BatchFetch<StringFetcherStreamReader> batch = FetcherFactory.fetchAll(
+                getInstrumentation().getContext(), requests, 2, 2,
+                new BatchFetch.Listener<StringFetcherStreamReader>() {
+                    @Override
+                    public void onItemComplete(
+                            @NonNull final BatchFetch.Item<StringFetcherStreamReader> item) {
+                        latch.countDown();
+                    }
+                });
+
+        for (int i = 0; i < 6; i++) {
+            final BatchFetch.Item<StringFetcherStreamReader> item = batch.take();
+            assertNotNull(item);
+            assertFalse(item.getResult().isError());
+            assertSame(requests.get(item.getUri()), item.getResult().getSuccess());
+
+            final String path = item.getUri().getPath();
+            final String index = path.substring(path.length() - 1);
+            assertEquals("Data " + index, item.getResult().getSuccess().getData());
+        }
+
+        assertNull(batch.take());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, batch.getRunningCount());
+    }
+
+    /**
+     * Test that a {@link Uri} which has no {@link Fetcher} completes with an {@link IOException},
+     * and that it does not affect the other items in the batch.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testUnsupportedUriCompletesWithError() throws Exception {
+        final LinkedHashMap<Uri, StringFetcherStreamReader> requests = new LinkedHashMap<>();
+        final Uri unsupported = Uri.parse("ftp://example.com/data.txt");
+        final Uri supported = writeFile("file", "Hello world");
+        requests.put(unsupported, new StringFetcherStreamReader());
+        requests.put(supported, new StringFetcherStreamReader());
+
+        final BatchFetch<StringFetcherStreamReader> batch = FetcherFactory.fetchAll(
+                getInstrumentation().getContext(), requests, 1, 1, null);
+        final AtomicInteger errors = new AtomicInteger();
+        BatchFetch.Item<StringFetcherStreamReader> item;
+
+        while ((item = batch.take()) != null) {
+            if (item.getUri().equals(unsupported)) {
+                assertTrue(item.getResult().isError());
+                errors.incrementAndGet();
+            } else {
+                assertEquals("Hello world", item.getResult().getSuccess().getData());
+            }
+        }
+
+        assertEquals(1, errors.get());
+    }
+
+    /**
+     * Test that a missing file completes with an {@link IOException}.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testMissingFileCompletesWithError() throws Exception {
+        final Uri uri = Uri.fromFile(new File(directory, "missing"));
+        final BatchFetch<StringFetcherStreamReader> batch = FetcherFactory.fetchAll(
+                getInstrumentation().getContext(),
+                Collections.singletonMap(uri, new StringFetcherStreamReader()), 1, 1, null);
+        final BatchFetch.Item<StringFetcherStreamReader> item = batch.take();
+
+        assertNotNull(item);
+        assertTrue(item.getResult().isError());
+        assertNull(batch.take());
+    }
+
+    /**
+     * Test that cancelling a batch stops its running HTTP fetch, and that each item completes
+     * with a {@link FetchCancelledException}, the running one only once it has stopped.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCancelStopsRunningFetches() throws Exception {
+        final LoopbackHttpServer server = new LoopbackHttpServer();
+
+        try {
+            final LinkedHashMap<Uri, StringFetcherStreamReader> requests = new LinkedHashMap<>();
+            requests.put(Uri.parse(server.getUrl("/slow?ms=5000").toString()),
+                    new StringFetcherStreamReader());
+            requests.put(Uri.parse(server.getUrl("/hello").toString()),
+                    new StringFetcherStreamReader());
+
+            final long start = System.nanoTime();
+            final BatchFetch<StringFetcherStreamReader> batch = FetcherFactory.fetchAll(
+                    getInstrumentation().getContext(), requests, 1, 1, null);
+
+            while (server.getRequests().isEmpty()) {
+                Thread.sleep(5);
+            }
+
+            batch.cancel();
+            BatchFetch.Item<StringFetcherStreamReader> item;
+            int count = 0;
+
+            while ((item = batch.take()) != null) {
+                assertTrue(item.getResult().getError() instanceof FetchCancelledException);
+                count++;
+            }
+
+            assertEquals(2, count);
+            assertEquals(0, batch.getRunningCount());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Write a file to the test directory.
+     *
+     * @param name The name of the file.
+     * @param data The contents of the file.
+     * @return The {@link Uri} of the file.
+     * @throws IOException When there was a problem writing the file.
+     */
+    private Uri writeFile(final String name, final String data) throws IOException {
+        final File file = new File(directory, name);
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        return Uri.fromFile(file);
+    }
+}
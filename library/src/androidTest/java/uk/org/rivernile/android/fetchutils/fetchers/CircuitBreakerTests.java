@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ *
+ * @author Niall Scott
+ */
+public class CircuitBreakerTests extends TestCase {
+
+    private static final String HOST = "http://example.com:80";
+
+    /**
+     * Test that building a {@link CircuitBreaker} with a minimum number of calls greater than the
+     * window size throws an {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithMinimumCallsGreaterThanWindow() {
+        try {
+            new CircuitBreaker.Builder()
+                    .setWindowSize(5)
+                    .setMinimumCalls(6)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The minimumCalls is greater than the windowSize, so an IllegalArgumentException " +
+                "should be thrown.");
+    }
+
+    /**
+     * Test that building a {@link CircuitBreaker} with a failure rate threshold of {@code 0}
+     * throws an {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithZeroFailureRateThreshold() {
+        try {
+            new CircuitBreaker.Builder().setFailureRateThreshold(0).build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The failureRateThreshold is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the default values used when not set externally are as expected.
+     */
+    public void testDefaultValues() {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder().build();
+
+        assertEquals(20, breaker.getWindowSize());
+        assertEquals(10, breaker.getMinimumCalls());
+        assertEquals(0.5, breaker.getFailureRateThreshold());
+        assertEquals(1.0, breaker.getSlowCallRateThreshold());
+        assertEquals(10000, breaker.getSlowCallDuration());
+        assertEquals(30000, breaker.getOpenDuration());
+        assertEquals(3, breaker.getHalfOpenCalls());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertEquals(-1.0, breaker.getFailureRate(HOST));
+        assertEquals(0, breaker.getRejectedCount());
+    }
+
+    /**
+     * Test that the circuit does not open until the minimum number of calls have been made.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testCircuitStaysClosedBelowMinimumCalls() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setMinimumCalls(4)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire(HOST).onResponse(500);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertEquals(1.0, breaker.getFailureRate(HOST));
+    }
+
+    /**
+     * Test that the circuit opens when the failure rate reaches the threshold, and that requests
+     * are then refused.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testCircuitOpensOnFailureRate() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setMinimumCalls(4)
+                .build();
+        breaker.acquire(HOST).onResponse(200);
+        breaker.acquire(HOST).onResponse(200);
+        breaker.acquire(HOST).onFailure(new IOException());
+        breaker.acquire(HOST).onResponse(503);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+
+        try {
+            breaker.acquire(HOST);
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(1, breaker.getRejectedCount());
+            // Other hosts are not affected.
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("http://other.com:80"));
+            return;
+        }
+
+        fail("The circuit is open, so a CircuitBreakerOpenException should be thrown.");
+    }
+
+    /**
+     * Test that the circuit opens when the slow call rate reaches the threshold.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCircuitOpensOnSlowCallRate() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(2)
+                .setMinimumCalls(2)
+                .setSlowCallDuration(20)
+                .build();
+        final CircuitBreaker.Permit first = breaker.acquire(HOST);
+        final CircuitBreaker.Permit second = breaker.acquire(HOST);
+        Thread.sleep(50);
+        first.onResponse(200);
+        second.onResponse(200);
+
+        assertEquals(1.0, breaker.getSlowCallRate(HOST));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+    }
+
+    /**
+     * Test that the oldest outcomes drop out of the rolling window.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRollingWindow() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(4)
+                .setMinimumCalls(4)
+                .build();
+        breaker.acquire(HOST).onResponse(500);
+
+        for (int i = 0; i < 4; i++) {
+            breaker.acquire(HOST).onResponse(200);
+        }
+
+        assertEquals(4, breaker.getCallCount(HOST));
+        assertEquals(0.0, breaker.getFailureRate(HOST));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+
+    /**
+     * Test that a half-open circuit allows a limited number of trial requests, and closes when
+     * they succeed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testHalfOpenClosesAfterSuccessfulTrials() throws IOException {
+        final CircuitBreaker breaker = openedBreaker();
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+        final CircuitBreaker.Permit first = breaker.acquire(HOST);
+        final CircuitBreaker.Permit second = breaker.acquire(HOST);
+
+        try {
+            breaker.acquire(HOST);
+            fail("All trial requests are in flight, so a CircuitBreakerOpenException should be " +
+                    "thrown.");
+        } catch (CircuitBreakerOpenException e) {
+            // This is expected.
+        }
+
+        first.onResponse(200);
+        second.onResponse(204);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertEquals(0, breaker.getCallCount(HOST));
+    }
+
+    /**
+     * Test that a half-open circuit opens again when a trial request fails.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testHalfOpenReopensAfterFailedTrial() throws IOException {
+        final CircuitBreaker breaker = openedBreaker();
+        final CircuitBreaker.Permit first = breaker.acquire(HOST);
+        final CircuitBreaker.Permit second = breaker.acquire(HOST);
+        first.onResponse(200);
+        second.release();
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+    }
+
+    /**
+     * Test that an interrupted trial request gives its slot back, without being counted.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testInterruptedTrialIsNotCounted() throws IOException {
+        final CircuitBreaker breaker = openedBreaker();
+        breaker.acquire(HOST).onFailure(new InterruptedIOException());
+        breaker.acquire(HOST).onResponse(200);
+        breaker.acquire(HOST).onResponse(200);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+
+    /**
+     * Test that outcomes of requests allowed before the circuit opened are ignored.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testStaleOutcomesAreIgnored() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .setOpenDuration(60000)
+                .build();
+        final CircuitBreaker.Permit stale = breaker.acquire(HOST);
+        breaker.acquire(HOST).onResponse(500);
+        stale.onResponse(200);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+
+        breaker.reset();
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+
+    /**
+     * Create a {@link CircuitBreaker} with an open duration of {@code 0} and open its circuit for
+     * {@link #HOST}, so that it is half-open straight away and allows {@code 2} trial requests.
+     *
+     * @return The {@link CircuitBreaker}.
+     * @throws IOException This should not happen in this test.
+     */
+    private static CircuitBreaker openedBreaker() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .setOpenDuration(0)
+                .setHalfOpenCalls(2)
+                .build();
+        breaker.acquire(HOST).onResponse(500);
+
+        return breaker;
+    }
+
+    /**
+     * Test that checking whether a request would be allowed refuses it when the circuit is open,
+     * but does not take a trial request when it is half-open.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testCheckAllowed() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .build();
+        breaker.checkAllowed(HOST);
+        breaker.acquire(HOST).onResponse(500);
+
+        try {
+            breaker.checkAllowed(HOST);
+            fail("The circuit is open, so a CircuitBreakerOpenException should be thrown.");
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(1, breaker.getRejectedCount());
+        }
+
+        final CircuitBreaker halfOpen = openedBreaker();
+        halfOpen.checkAllowed(HOST);
+        halfOpen.checkAllowed(HOST);
+        halfOpen.checkAllowed(HOST);
+        halfOpen.acquire(HOST);
+        halfOpen.acquire(HOST);
+        assertEquals(0, halfOpen.getRejectedCount());
+    }
+
+    /**
+     * Test that a response noted with {@link CircuitBreaker.Permit#onHeaders(int)} is recorded
+     * when the permit is released, or when the caller fails, but that a failure of the connection
+     * while reading the body is recorded instead.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testOutcomeAfterHeaders() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(10)
+                .build();
+        CircuitBreaker.Permit permit = breaker.acquire(HOST);
+        permit.onHeaders(200);
+        permit.release();
+        assertEquals(1, breaker.getCallCount(HOST));
+        assertEquals(0.0, breaker.getFailureRate(HOST));
+
+        permit = breaker.acquire(HOST);
+        permit.onHeaders(200);
+        permit.onCallerFailure();
+        permit.release();
+        assertEquals(2, breaker.getCallCount(HOST));
+        assertEquals(0.0, breaker.getFailureRate(HOST));
+
+        permit = breaker.acquire(HOST);
+        permit.onHeaders(200);
+        permit.onFailure(new IOException());
+        permit.release();
+        assertEquals(3, breaker.getCallCount(HOST));
+        assertEquals(1.0 / 3, breaker.getFailureRate(HOST), 0.0001);
+    }
+
+    /**
+     * Test that a call which fails because of the caller before the response is received is not
+     * counted.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testCallerFailureBeforeResponseIsNotCounted() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .build();
+        final CircuitBreaker.Permit permit = breaker.acquire(HOST);
+        permit.onCallerFailure();
+        permit.release();
+
+        assertEquals(0, breaker.getCallCount(HOST));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Tests for {@link ConnectionPool}.
+ *
+ * @author Niall Scott
+ */
+public class ConnectionPoolTests extends TestCase {
+
+    private static final String KEY = "http://example.com:80";
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the maximum number
+     * of idle connections per host is negative.
+     */
+    public void testConstructorWithNegativeMaxIdle() {
+        try {
+            new ConnectionPool(-1, 1000);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The max idle connections is negative, so an IllegalArgumentException should be " +
+                "thrown.");
+    }
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the keep-alive
+     * duration is {@code 0}.
+     */
+    public void testConstructorWithZeroKeepAlive() {
+        try {
+            new ConnectionPool(5, 0);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The keep-alive duration is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that acquiring from an empty pool is a miss, and acquiring after a release is a hit.
+     */
+    public void testAcquireAfterRelease() {
+        final ConnectionPool pool = new ConnectionPool(5, 60000);
+
+        assertFalse(pool.acquire(KEY));
+        assertTrue(pool.release(KEY));
+        assertEquals(1, pool.getIdleConnectionCount(KEY));
+        assertTrue(pool.acquire(KEY));
+        assertEquals(0, pool.getIdleConnectionCount(KEY));
+        assertEquals(1, pool.getEstimatedHitCount());
+        assertEquals(1, pool.getEstimatedMissCount());
+    }
+
+    /**
+     * Test that the pool does not keep more idle connections per host than its maximum, and that
+     * hosts are bounded independently.
+     */
+    public void testReleaseIsBoundedPerHost() {
+        final ConnectionPool pool = new ConnectionPool(2, 60000);
+
+        assertTrue(pool.release(KEY));
+        assertTrue(pool.release(KEY));
+        assertFalse(pool.release(KEY));
+        assertTrue(pool.release("https://example.com:443"));
+        assertEquals(2, pool.getIdleConnectionCount(KEY));
+        assertEquals(3, pool.getIdleConnectionCount());
+    }
+
+    /**
+     * Test that a pool with a maximum of {@code 0} idle connections never keeps connections alive.
+     */
+    public void testReleaseWithZeroMaxIdle() {
+        final ConnectionPool pool = new ConnectionPool(0, 60000);
+
+        assertFalse(pool.release(KEY));
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    /**
+     * Test that idle connections are evicted once the keep-alive duration has elapsed.
+     *
+     * @throws InterruptedException If the test is interrupted while sleeping.
+     */
+    public void testIdleConnectionsExpire() throws InterruptedException {
+        final ConnectionPool pool = new ConnectionPool(5, 10);
+
+        assertTrue(pool.release(KEY));
+        Thread.sleep(50);
+        assertEquals(0, pool.getIdleConnectionCount(KEY));
+        assertFalse(pool.acquire(KEY));
+    }
+
+    /**
+     * Test that {@link ConnectionPool#evictAll()} removes all idle connections.
+     */
+    public void testEvictAll() {
+        final ConnectionPool pool = new ConnectionPool(5, 60000);
+
+        pool.release(KEY);
+        pool.release("https://example.com:443");
+        pool.evictAll();
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    /**
+     * Test that the key includes the default port when none is specified, and that the scheme and
+     * host are treated case insensitively.
+     *
+     * @throws MalformedURLException This should not happen in this test.
+     */
+    public void testGetKey() throws MalformedURLException {
+        assertEquals(KEY, ConnectionPool.getKey(new URL("http://example.com/path")));
+        assertEquals(KEY, ConnectionPool.getKey(new URL("HTTP://EXAMPLE.com:80/")));
+        assertEquals("https://example.com:8443",
+                ConnectionPool.getKey(new URL("https://example.com:8443/")));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link DiskResponseCache}.
+ *
+ * @author Niall Scott
+ */
+public class DiskResponseCacheTests extends InstrumentationTestCase {
+
+    private static final String URL = "http://example.com/data.json";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "DiskResponseCacheTests");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        deleteDirectory();
+        directory = null;
+    }
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the maximum size
+     * is {@code 0}.
+     */
+    public void testConstructorWithZeroMaxSize() {
+        try {
+            new DiskResponseCache(directory, 0);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxSize is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that getting an entry from an empty cache returns {@code null}.
+     */
+    public void testGetWithEmptyCache() {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+
+        assertNull(cache.get(URL));
+        assertEquals(1, cache.getRequestCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that a body which has been read to the end is committed to the cache, along with its
+     * validators.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBodyIsCommittedWhenFullyRead() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+        readFully(cache.wrapForWriting(URL,
+                createMetadata("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT"),
+                new ByteArrayInputStream("Hello world".getBytes("UTF-8"))));
+
+        final DiskResponseCache.Snapshot snapshot = cache.get(URL);
+        assertNotNull(snapshot);
+
+        try {
+            assertEquals("\"abc\"", snapshot.getETag());
+            assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", snapshot.getLastModified());
+            assertEquals(11, snapshot.getLength());
+            assertEquals("Hello world", readFully(snapshot.getBody()));
+        } finally {
+            snapshot.close();
+        }
+
+        assertEquals(11, cache.getSize());
+        assertEquals(1, cache.getWriteCount());
+    }
+
+    /**
+     * Test that a body which is closed before it has been read to the end is not committed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBodyIsNotCommittedWhenPartiallyRead() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+        final InputStream in = cache.wrapForWriting(URL, createMetadata("\"abc\"", null),
+                new ByteArrayInputStream("Hello world".getBytes("UTF-8")));
+        in.read(new byte[4]);
+        in.close();
+
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that a response without any validators is not written to the cache.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testResponseWithoutValidatorsIsNotCached() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+        final InputStream source = new ByteArrayInputStream("Hello world".getBytes("UTF-8"));
+
+        assertSame(source, cache.wrapForWriting(URL, createMetadata(null, null), source));
+    }
+
+    /**
+     * Test that the least recently used entries are evicted when the cache exceeds its maximum
+     * size.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 20);
+        put(cache, "http://example.com/a", "0123456789");
+        put(cache, "http://example.com/b", "0123456789");
+
+        // Access a so that b becomes the least recently used.
+        cache.get("http://example.com/a").close();
+        put(cache, "http://example.com/c", "0123456789");
+
+        assertNull(cache.get("http://example.com/b"));
+        assertNotNull(cache.get("http://example.com/a"));
+        assertNotNull(cache.get("http://example.com/c"));
+        assertEquals(20, cache.getSize());
+    }
+
+    /**
+     * Test that a body larger than the whole cache is not stored.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBodyLargerThanCacheIsNotStored() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 5);
+        put(cache, URL, "0123456789");
+
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that entries are read back from disk by a new instance of the cache.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testEntriesArePersisted() throws IOException {
+        put(new DiskResponseCache(directory, 1024), URL, "Hello world");
+
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+        final DiskResponseCache.Snapshot snapshot = cache.get(URL);
+        assertNotNull(snapshot);
+
+        try {
+            assertEquals("\"etag\"", snapshot.getETag());
+            assertNull(snapshot.getLastModified());
+            assertEquals("Hello world", readFully(snapshot.getBody()));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Test that {@link DiskResponseCache#remove(String)} and
+     * {@link DiskResponseCache#evictAll()} remove entries.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRemoveAndEvictAll() throws IOException {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1024);
+        put(cache, "http://example.com/a", "0123456789");
+        put(cache, "http://example.com/b", "0123456789");
+
+        cache.remove("http://example.com/a");
+        assertNull(cache.get("http://example.com/a"));
+        assertEquals(10, cache.getSize());
+
+        cache.evictAll();
+        assertNull(cache.get("http://example.com/b"));
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that after a {@code 304 Not Modified} response, the cached body is described as the
+     * stored {@code 200 OK} response, with its headers updated from the new response, and that
+     * this survives a new instance of the cache.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRevalidatedResponseMetadata() throws IOException {
+        final Map<String, List<String>> headers = new HashMap<>();
+        headers.put("ETag", Collections.singletonList("\"abc\""));
+        headers.put("Content-Type", Collections.singletonList("text/plain; charset=ISO-8859-1"));
+        headers.put("Content-Length", Collections.singletonList("11"));
+        headers.put("Cache-Control", Collections.singletonList("max-age=60"));
+        readFully(new DiskResponseCache(directory, 1024).wrapForWriting(URL,
+                new ResponseMetadata(200, "OK", URL, headers, 0, 0),
+                new ByteArrayInputStream("Hello world".getBytes("UTF-8"))));
+
+        final Map<String, List<String>> notModified = new HashMap<>();
+        notModified.put(null, Collections.singletonList("HTTP/1.1 304 Not Modified"));
+        notModified.put("cache-control", Collections.singletonList("max-age=120"));
+        notModified.put("Content-Length", Collections.singletonList("0"));
+        final DiskResponseCache.Snapshot snapshot =
+                new DiskResponseCache(directory, 1024).get(URL);
+        assertNotNull(snapshot);
+
+        try {
+            final ResponseMetadata metadata = snapshot.getResponseMetadata(notModified, 1, 2);
+            assertEquals(200, metadata.getResponseCode());
+            assertEquals("OK", metadata.getResponseMessage());
+            assertEquals(URL, metadata.getUrl());
+            assertEquals("ISO-8859-1", metadata.getCharset(null));
+            assertEquals(11, metadata.getContentLength());
+            assertEquals("max-age=120", metadata.getHeader("Cache-Control"));
+            assertEquals(1, metadata.getRequestTime());
+            assertEquals(2, metadata.getResponseTime());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Create the {@link ResponseMetadata} of a {@code 200 OK} response with the given validators.
+     *
+     * @param etag The {@code ETag} header, or {@code null} if it should not be present.
+     * @param lastModified The {@code Last-Modified} header, or {@code null} if it should not be
+     *                     present.
+     * @return The {@link ResponseMetadata}.
+     */
+    private static ResponseMetadata createMetadata(final String etag, final String lastModified) {
+        final Map<String, List<String>> headers = new HashMap<>();
+
+        if (etag != null) {
+            headers.put("ETag", Collections.singletonList(etag));
+        }
+
+        if (lastModified != null) {
+            headers.put("Last-Modified", Collections.singletonList(lastModified));
+        }
+
+        return new ResponseMetadata(200, "OK", URL, headers, 0, 0);
+    }
+
+    /**
+     * Write a body in to the cache.
+     *
+     * @param cache The cache to write to.
+     * @param url The URL of the entry.
+     * @param body The body of the entry.
+     * @throws IOException When there was a problem writing the body.
+     */
+    private static void put(final DiskResponseCache cache, final String url, final String body)
+            throws IOException {
+        readFully(cache.wrapForWriting(url, createMetadata("\"etag\"", null),
+                new ByteArrayInputStream(body.getBytes("UTF-8"))));
+    }
+
+    /**
+     * Read an {@link InputStream} to the end, then close it.
+     *
+     * @param in The {@link InputStream} to read.
+     * @return The data which was read, as a {@link String}.
+     * @throws IOException When there was a problem reading the stream.
+     */
+    private static String readFully(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final byte[] buf = new byte[4];
+        int len;
+
+        try {
+            while ((len = in.read(buf)) != -1) {
+                sb.append(new String(buf, 0, len, "UTF-8"));
+            }
+        } finally {
+            in.close();
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Delete the cache directory and its contents.
+     */
+    private void deleteDirectory() {
+        final File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link FetchCancellationSignal}.
+ *
+ * @author Niall Scott
+ */
+public class FetchCancellationSignalTests extends TestCase {
+
+    /**
+     * Test that cancelling calls each listener once, even when cancelled more than once.
+     */
+    public void testCancelCallsListenersOnce() {
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        final int[] count = new int[1];
+        assertTrue(signal.addOnCancelListener(new FetchCancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                count[0]++;
+            }
+        }));
+
+        assertFalse(signal.isCancelled());
+        signal.cancel();
+        signal.cancel();
+
+        assertTrue(signal.isCancelled());
+        assertEquals(1, count[0]);
+    }
+
+    /**
+     * Test that a removed listener is not called.
+     */
+    public void testRemovedListenerIsNotCalled() {
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        final FetchCancellationSignal.OnCancelListener listener =
+                new FetchCancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        fail("The listener was removed, so it should not be called.");
+                    }
+                };
+        signal.addOnCancelListener(listener);
+        signal.removeOnCancelListener(listener);
+
+        signal.cancel();
+    }
+
+    /**
+     * Test that a listener cannot be added once the signal has been cancelled.
+     */
+    public void testAddListenerAfterCancel() {
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        signal.cancel();
+
+        assertFalse(signal.addOnCancelListener(new FetchCancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                fail("The signal was already cancelled, so the listener should not be called.");
+            }
+        }));
+    }
+
+    /**
+     * Test that {@link FetchCancellationSignal#throwIfCancelled()} only throws once the signal
+     * has been cancelled.
+     *
+     * @throws FetchCancelledException This should not happen before the signal is cancelled.
+     */
+    public void testThrowIfCancelled() throws FetchCancelledException {
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        signal.throwIfCancelled();
+        signal.cancel();
+
+        try {
+            signal.throwIfCancelled();
+        } catch (FetchCancelledException e) {
+            return;
+        }
+
+        fail("The signal was cancelled, so a FetchCancelledException should be thrown.");
+    }
+
+    /**
+     * Test that sleeping returns early with a {@link FetchCancelledException} when the signal is
+     * cancelled from another thread.
+     *
+     * @throws InterruptedException This should not happen in this test.
+     */
+    public void testSleepReturnsEarlyOnCancel() throws InterruptedException {
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        final Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Cancel straight away.
+                }
+
+                signal.cancel();
+            }
+        });
+        final long start = System.nanoTime();
+        canceller.start();
+
+        try {
+            signal.sleep(10000);
+            fail("The signal was cancelled, so a FetchCancelledException should be thrown.");
+        } catch (FetchCancelledException e) {
+            assertTrue(System.nanoTime() - start < 5000000000L);
+        } finally {
+            canceller.join();
+        }
+    }
+}
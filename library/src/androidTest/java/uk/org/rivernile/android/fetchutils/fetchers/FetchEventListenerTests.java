@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.org.rivernile.android.fetchutils.fetchers.nio.LoopbackHttpServer;
+import uk.org.rivernile.android.fetchutils.fetchers.readers.StringFetcherStreamReader;
+
+/**
+ * Tests for {@link FetchEventListener}, checking the events a {@link HttpFetcher} reports to it.
+ *
+ * @author Niall Scott
+ */
+public class FetchEventListenerTests extends InstrumentationTestCase {
+
+    private LoopbackHttpServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new LoopbackHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        server.stop();
+        server = null;
+    }
+
+    /**
+     * Test that the events of a successful fetch are called once each, in order, with increasing
+     * timestamps.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testEventsAreCalledInOrder() throws Exception {
+        final String url = server.getUrl("/hello").toString();
+        final RecordingListener listener = new RecordingListener();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        createBuilder(url)
+                .setEventListener(listener)
+                .build()
+                .executeFetcher(reader);
+
+        assertEquals("Hello world", reader.getData());
+        assertEquals(Arrays.asList(
+                "start " + url,
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "firstByte " + url + " 200",
+                "complete " + url + " 11"), listener.events);
+        listener.assertTimesIncrease();
+    }
+
+    /**
+     * Test that the connection events are called for each redirect hop, and that the body is
+     * reported as coming from the final URL.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testConnectionEventsAreCalledForEachRedirectHop() throws Exception {
+        final String url = server.getUrl("/redirect?to=/hello").toString();
+        final String finalUrl = server.getUrl("/hello").toString();
+        final RecordingListener listener = new RecordingListener();
+        createBuilder(url)
+                .setEventListener(listener)
+                .build()
+                .executeFetcher(new StringFetcherStreamReader());
+
+        assertEquals(Arrays.asList(
+                "start " + url,
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "firstByte " + url + " 302",
+                "acquired " + finalUrl,
+                "sent " + finalUrl + " 0",
+                "firstByte " + finalUrl + " 200",
+                "complete " + finalUrl + " 11"), listener.events);
+        listener.assertTimesIncrease();
+    }
+
+    /**
+     * Test that the connectivity and connection events are called for each attempt when the
+     * request is retried, and that the fetch only completes once.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testEventsAreCalledForEachAttempt() throws Exception {
+        final String url = server.getUrl("/flaky?times=2&code=503").toString();
+        final RecordingListener listener = new RecordingListener();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        createBuilder(url)
+                .setRetryPolicy(new RetryPolicy.Builder()
+                        .setMaxAttempts(3)
+                        .setBaseDelay(0)
+                        .build())
+                .setEventListener(listener)
+                .build()
+                .executeFetcher(reader);
+
+        assertEquals("Hello world", reader.getData());
+        assertEquals(Arrays.asList(
+                "start " + url,
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "firstByte " + url + " 503",
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "firstByte " + url + " 503",
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "firstByte " + url + " 200",
+                "complete " + url + " 11"), listener.events);
+        listener.assertTimesIncrease();
+    }
+
+    /**
+     * Test that a fetch which fails calls {@link FetchEventListener#onFetchFailed(HttpFetcher,
+     * String, IOException, long)} with the error that is thrown, and does not call
+     * {@link FetchEventListener#onBodyComplete(HttpFetcher, String, long, long)}.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testFailedFetchCallsOnFetchFailed() throws Exception {
+        final String url = server.getUrl("/status?code=200&ms=2000").toString();
+        final RecordingListener listener = new RecordingListener();
+
+        try {
+            createBuilder(url)
+                    .setReadTimeout(200)
+                    .setEventListener(listener)
+                    .build()
+                    .executeFetcher(new StringFetcherStreamReader());
+            fail("The response is slower than the read timeout, so a SocketTimeoutException " +
+                    "should be thrown.");
+        } catch (SocketTimeoutException e) {
+            assertSame(e, listener.error);
+        }
+
+        assertEquals(Arrays.asList(
+                "start " + url,
+                "connectivity true",
+                "acquired " + url,
+                "sent " + url + " 0",
+                "failed " + url), listener.events);
+        listener.assertTimesIncrease();
+    }
+
+    /**
+     * Test that when a listener is set on both the {@link HttpFetcherClient} and the
+     * {@link HttpFetcher}, both are told about every event.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testClientAndFetcherListenersAreBothCalled() throws Exception {
+        final String url = server.getUrl("/hello").toString();
+        final RecordingListener clientListener = new RecordingListener();
+        final RecordingListener fetcherListener = new RecordingListener();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setEventListener(clientListener)
+                .build();
+        createBuilder(url)
+                .setClient(client)
+                .setEventListener(fetcherListener)
+                .build()
+                .executeFetcher(new StringFetcherStreamReader());
+
+        assertEquals(6, fetcherListener.events.size());
+        assertEquals(fetcherListener.events, clientListener.events);
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for the given URL.
+     *
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createBuilder(final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url);
+    }
+
+    /**
+     * A {@link FetchEventListener} which records each event it is told about as a
+     * {@link String}, along with its timestamp.
+     */
+    private static class RecordingListener extends FetchEventListener {
+
+        private final List<String> events = new ArrayList<String>();
+        private final List<Long> times = new ArrayList<Long>();
+        private IOException error;
+
+        @Override
+        public void onFetchStart(final HttpFetcher fetcher, final String url,
+                final long timeNanos) {
+            record("start " + url, timeNanos);
+        }
+
+        @Override
+        public void onConnectivityChecked(final HttpFetcher fetcher, final boolean connected,
+                final long timeNanos) {
+            record("connectivity " + connected, timeNanos);
+        }
+
+        @Override
+        public void onConnectionAcquired(final HttpFetcher fetcher, final String url,
+                final long timeNanos) {
+            record("acquired " + url, timeNanos);
+        }
+
+        @Override
+        public void onRequestSent(final HttpFetcher fetcher, final String url,
+                final long bodyBytes, final long timeNanos) {
+            record("sent " + url + ' ' + bodyBytes, timeNanos);
+        }
+
+        @Override
+        public void onFirstByte(final HttpFetcher fetcher, final String url,
+                final int responseCode, final long timeNanos) {
+            record("firstByte " + url + ' ' + responseCode, timeNanos);
+        }
+
+        @Override
+        public void onBodyComplete(final HttpFetcher fetcher, final String finalUrl,
+                final long bodyBytes, final long timeNanos) {
+            record("complete " + finalUrl + ' ' + bodyBytes, timeNanos);
+        }
+
+        @Override
+        public void onFetchFailed(final HttpFetcher fetcher, final String finalUrl,
+                final IOException error, final long timeNanos) {
+            this.error = error;
+            record("failed " + finalUrl, timeNanos);
+        }
+
+        /**
+         * Record an event.
+         *
+         * @param event The description of the event.
+         * @param timeNanos The time of the event.
+         */
+        private void record(final String event, final long timeNanos) {
+            events.add(event);
+            times.add(timeNanos);
+        }
+
+        /**
+         * Assert that no event has an earlier timestamp than the event before it.
+         */
+        private void assertTimesIncrease() {
+            for (int i = 1; i < times.size(); i++) {
+                assertTrue(times.get(i) >= times.get(i - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.rivernile.android.fetchutils.fetchers.readers.StringFetcherStreamReader;
+
+/**
+ * Tests for {@link FetchScheduler}.
+ *
+ * @author Niall Scott
+ */
+public class FetchSchedulerTests extends TestCase {
+
+    private FetchScheduler scheduler;
+    private List<String> order;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        order = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+
+        order = null;
+    }
+
+    /**
+     * Test that the {@link FetchScheduler.Builder} throws an {@link IllegalArgumentException}
+     * when a concurrency limit is {@code 0}.
+     */
+    public void testBuilderWithZeroMaxConcurrent() {
+        try {
+            new FetchScheduler.Builder()
+                    .setMaxConcurrent(FetchScheduler.Priority.PREFETCH, 0)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxConcurrent is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the {@link Future} yields the reader once the fetch has completed.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testSubmitSuccess() throws Exception {
+        scheduler = new FetchScheduler.Builder().build();
+        final Future<StringFetcherStreamReader> future = scheduler.submit(
+                new OrderFetcher("a", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.USER_VISIBLE);
+
+        assertEquals("a", future.get(5, TimeUnit.SECONDS).getData());
+        assertEquals(1, scheduler.getStartedCount(FetchScheduler.Priority.USER_VISIBLE));
+    }
+
+    /**
+     * Test that waiting submissions of a higher priority start before those of a lower
+     * priority, even when they were submitted later.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testHigherPriorityStartsFirst() throws Exception {
+        scheduler = new FetchScheduler.Builder()
+                .setThreadCount(1)
+                .build();
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(new OrderFetcher("blocker", release), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.BACKGROUND);
+        final Future<StringFetcherStreamReader> background = scheduler.submit(
+                new OrderFetcher("background", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.BACKGROUND);
+        final Future<StringFetcherStreamReader> prefetch = scheduler.submit(
+                new OrderFetcher("prefetch", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.PREFETCH);
+        final Future<StringFetcherStreamReader> user = scheduler.submit(
+                new OrderFetcher("user", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.USER_VISIBLE);
+        assertEquals(3, scheduler.getQueueDepth());
+
+        release.countDown();
+        user.get(5, TimeUnit.SECONDS);
+        prefetch.get(5, TimeUnit.SECONDS);
+        background.get(5, TimeUnit.SECONDS);
+
+        assertEquals("[blocker, user, prefetch, background]", order.toString());
+    }
+
+    /**
+     * Test that a lower priority is held back while a higher priority has a fetch in progress,
+     * even though there is a free thread.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testLowerPriorityIsDeferred() throws Exception {
+        scheduler = new FetchScheduler.Builder()
+                .setThreadCount(2)
+                .build();
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(new OrderFetcher("user", release), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.USER_VISIBLE);
+        final Future<StringFetcherStreamReader> background = scheduler.submit(
+                new OrderFetcher("background", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.BACKGROUND);
+
+        assertEquals(1, scheduler.getQueueDepth(FetchScheduler.Priority.BACKGROUND));
+
+        release.countDown();
+        background.get(5, TimeUnit.SECONDS);
+
+        assertEquals("[user, background]", order.toString());
+    }
+
+    /**
+     * Test that a lower priority only waits for a free thread when deferral is disabled.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testLowerPriorityWithoutDeferral() throws Exception {
+        scheduler = new FetchScheduler.Builder()
+                .setThreadCount(2)
+                .setDeferLowerPriorities(false)
+                .build();
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(new OrderFetcher("user", release), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.USER_VISIBLE);
+        scheduler.submit(new OrderFetcher("background", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.BACKGROUND).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, scheduler.getActiveCount(FetchScheduler.Priority.USER_VISIBLE));
+        release.countDown();
+
+        assertEquals("[user, background]", order.toString());
+    }
+
+    /**
+     * Test that a paused priority does not start its submissions until it is resumed.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testPauseAndResume() throws Exception {
+        scheduler = new FetchScheduler.Builder().build();
+        scheduler.pause(FetchScheduler.Priority.BACKGROUND);
+        final Future<StringFetcherStreamReader> background = scheduler.submit(
+                new OrderFetcher("background", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.BACKGROUND);
+        scheduler.submit(new OrderFetcher("prefetch", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.PREFETCH).get(5, TimeUnit.SECONDS);
+
+        assertTrue(scheduler.isPaused(FetchScheduler.Priority.BACKGROUND));
+        assertFalse(background.isDone());
+        assertEquals(1, scheduler.getQueueDepth(FetchScheduler.Priority.BACKGROUND));
+
+        scheduler.resume(FetchScheduler.Priority.BACKGROUND);
+        background.get(5, TimeUnit.SECONDS);
+
+        assertEquals("[prefetch, background]", order.toString());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    /**
+     * Test that a submission is rejected when the queue is full, and that cancelling a waiting
+     * submission removes it from the queue.
+     */
+    public void testQueueFullAndCancel() {
+        scheduler = new FetchScheduler.Builder()
+                .setMaxQueueLength(1)
+                .build();
+        scheduler.pause(FetchScheduler.Priority.PREFETCH);
+        final Future<StringFetcherStreamReader> first = scheduler.submit(
+                new OrderFetcher("first", null), new StringFetcherStreamReader(),
+                FetchScheduler.Priority.PREFETCH);
+
+        try {
+            scheduler.submit(new OrderFetcher("second", null), new StringFetcherStreamReader(),
+                    FetchScheduler.Priority.PREFETCH);
+            fail("The queue is full, so a RejectedExecutionException should be thrown.");
+        } catch (RejectedExecutionException e) {
+            // This is expected.
+        }
+
+        first.cancel(false);
+
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    /**
+     * A {@link Fetcher} which records the order it ran in and gives its name to the reader. It
+     * optionally waits for a {@link CountDownLatch} before finishing.
+     */
+    private class OrderFetcher implements Fetcher {
+
+        private final String name;
+        private final CountDownLatch release;
+
+        /**
+         * Create a new {@code OrderFetcher}.
+         *
+         * @param name The name to record and give to the reader.
+         * @param release A {@link CountDownLatch} to wait for, or {@code null} to not wait.
+         */
+        private OrderFetcher(final String name, final CountDownLatch release) {
+            this.name = name;
+            this.release = release;
+        }
+
+        @Override
+        public void executeFetcher(@NonNull final FetcherStreamReader reader) throws IOException {
+            order.add(name);
+
+            if (release != null) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            reader.readInputStream(new ByteArrayInputStream(name.getBytes("UTF-8")));
+        }
+    }
+}
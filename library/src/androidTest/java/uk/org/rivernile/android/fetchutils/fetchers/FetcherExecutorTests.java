@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.org.rivernile.android.fetchutils.fetchers.readers.StringFetcherStreamReader;
+
+/**
+ * Tests for {@link FetcherExecutor}.
+ *
+ * @author Niall Scott
+ */
+public class FetcherExecutorTests extends TestCase {
+
+    private FetcherExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        executor = new FetcherExecutor(2, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the thread count
+     * is {@code 0}.
+     */
+    public void testConstructorWithZeroThreads() {
+        try {
+            new FetcherExecutor(0, 8);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The threadCount is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the queue
+     * capacity is {@code 0}.
+     */
+    public void testConstructorWithZeroQueueCapacity() {
+        try {
+            new FetcherExecutor(2, 0);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The queueCapacity is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the {@link Future} yields the reader once a successful fetch has completed.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testSubmitSuccess() throws Exception {
+        final Future<StringFetcherStreamReader> future =
+                executor.submit(new StringFetcher("Hello world"), new StringFetcherStreamReader());
+
+        assertEquals("Hello world", future.get(5, TimeUnit.SECONDS).getData());
+    }
+
+    /**
+     * Test that the {@link Future} throws an {@link ExecutionException} wrapping the
+     * {@link IOException} of a failed fetch.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testSubmitFailure() throws Exception {
+        final Future<StringFetcherStreamReader> future =
+                executor.submit(new StringFetcher(null), new StringFetcherStreamReader());
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectivityUnavailableException);
+            return;
+        }
+
+        fail("The fetch failed, so an ExecutionException should be thrown.");
+    }
+
+    /**
+     * Test that the callback is told of a successful fetch.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCallbackSuccess() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> data = new AtomicReference<>();
+
+        executor.submit(new StringFetcher("Hello world"), new StringFetcherStreamReader(),
+                new FetcherCallback<StringFetcherStreamReader>() {
+                    @Override
+                    public void onFetchSuccess(@NonNull final StringFetcherStreamReader reader) {
+                        data.set(reader.getData());
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFetchFailure(@NonNull final IOException error) {
+                        latch.countDown();
+                    }
+                });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("Hello world", data.get());
+    }
+
+    /**
+     * Test that the callback is told of a failed fetch.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCallbackFailure() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<IOException> error = new AtomicReference<>();
+
+        executor.submit(new StringFetcher(null), new StringFetcherStreamReader(),
+                new FetcherCallback<StringFetcherStreamReader>() {
+                    @Override
+                    public void onFetchSuccess(@NonNull final StringFetcherStreamReader reader) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFetchFailure(@NonNull final IOException e) {
+                        error.set(e);
+                        latch.countDown();
+                    }
+                });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof ConnectivityUnavailableException);
+    }
+
+    /**
+     * Test that {@link Future#get()} on a cancelled {@link Future} does not return until the
+     * running {@link Fetcher} has stopped using its reader, and that the callback is not told.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCancelWaitsForRunningFetch() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> outcome = new AtomicReference<>();
+        final Future<StringFetcherStreamReader> future = executor.submit(new Fetcher() {
+            @Override
+            public void executeFetcher(@NonNull final FetcherStreamReader reader) {
+                started.countDown();
+
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // The fetch carries on, as a blocking socket read would.
+                    }
+                }
+            }
+        }, new StringFetcherStreamReader(), new FetcherCallback<StringFetcherStreamReader>() {
+            @Override
+            public void onFetchSuccess(@NonNull final StringFetcherStreamReader reader) {
+                outcome.set("success");
+            }
+
+            @Override
+            public void onFetchFailure(@NonNull final IOException error) {
+                outcome.set("failure");
+            }
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("The fetch is still running, so a TimeoutException should be thrown.");
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+
+        release.countDown();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The Future was cancelled, so a CancellationException should be thrown.");
+        } catch (CancellationException e) {
+            // Expected.
+        }
+
+        executor.shutdown();
+        assertNull(outcome.get());
+    }
+
+    /**
+     * Test that a cancelled {@link Future} whose fetch never started does not wait.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCancelBeforeStartDoesNotWait() throws Exception {
+        final FetcherExecutor single = new FetcherExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        single.submit(new Fetcher() {
+            @Override
+            public void executeFetcher(@NonNull final FetcherStreamReader reader) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Finish straight away.
+                }
+            }
+        }, new StringFetcherStreamReader());
+        final Future<StringFetcherStreamReader> queued =
+                single.submit(new StringFetcher("Hello world"), new StringFetcherStreamReader());
+
+        assertTrue(queued.cancel(false));
+
+        try {
+            queued.get(100, TimeUnit.MILLISECONDS);
+            fail("The Future was cancelled, so a CancellationException should be thrown.");
+        } catch (CancellationException e) {
+            // Expected.
+        } finally {
+            release.countDown();
+            single.shutdown();
+        }
+    }
+
+    /**
+     * A {@link Fetcher} which gives a fixed {@link String} to the reader, or throws a
+     * {@link ConnectivityUnavailableException} if the {@link String} is {@code null}.
+     */
+    private static class StringFetcher implements Fetcher {
+
+        private final String data;
+
+        /**
+         * Create a new {@code StringFetcher}.
+         *
+         * @param data The data to give to the reader, or {@code null} to fail.
+         */
+        private StringFetcher(final String data) {
+            this.data = data;
+        }
+
+        @Override
+        public void executeFetcher(@NonNull final FetcherStreamReader reader) throws IOException {
+            if (data == null) {
+                throw new ConnectivityUnavailableException();
+            }
+
+            reader.readInputStream(new ByteArrayInputStream(data.getBytes("UTF-8")));
+        }
+    }
+}
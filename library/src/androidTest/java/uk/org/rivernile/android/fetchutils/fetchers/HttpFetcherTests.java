@@ -16,10 +16,29 @@
 
 package uk.org.rivernile.android.fetchutils.fetchers;
 
+import android.support.annotation.NonNull;
 import android.test.InstrumentationTestCase;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.rivernile.android.fetchutils.fetchers.nio.LoopbackHttpServer;
+import uk.org.rivernile.android.fetchutils.fetchers.readers.ResumableFileWriterFetcherStreamReader;
+import uk.org.rivernile.android.fetchutils.fetchers.readers.SegmentedFileWriterFetcherStreamReader;
+import uk.org.rivernile.android.fetchutils.fetchers.readers.StringFetcherStreamReader;
+import uk.org.rivernile.android.fetchutils.fetchers.writers.FileFetcherStreamWriter;
+import uk.org.rivernile.android.fetchutils.fetchers.writers.GeneratorFetcherStreamWriter;
 
 /**
  * Tests for {@link HttpFetcher}.
@@ -28,6 +47,23 @@ import java.util.Map;
  */
 public class HttpFetcherTests extends InstrumentationTestCase {
 
+    private LoopbackHttpServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new LoopbackHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        server.stop();
+        server = null;
+    }
+
     /**
      * Test that attempting to build a {@link HttpFetcher} with a {@code null} URL throws an
      * {@link IllegalArgumentException}.
@@ -64,6 +100,45 @@ public class HttpFetcherTests extends InstrumentationTestCase {
         fail("The URL is set as empty, so an IllegalArgumentException should be thrown.");
     }
 
+    /**
+     * Test that attempting to build a {@link HttpFetcher} with a segment count of {@code 0}
+     * throws an {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithZeroSegmentCount() {
+        final HttpFetcher.Builder builder =
+                new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                        .setUrl("http://example.com/")
+                        .setSegmentCount(0);
+
+        try {
+            builder.build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The segment count is set as 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that attempting to build a {@link HttpFetcher} with a request body for a {@code GET}
+     * request throws an {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithRequestBodyForGet() {
+        final HttpFetcher.Builder builder =
+                new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                        .setUrl("http://example.com/")
+                        .setRequestBody(new FileFetcherStreamWriter("/data/upload", null));
+
+        try {
+            builder.build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("A request body is set for a GET request, so an IllegalArgumentException should be " +
+                "thrown.");
+    }
+
     /**
      * Test that the default values used when not set externally are as expected.
      */
@@ -74,14 +149,28 @@ public class HttpFetcherTests extends InstrumentationTestCase {
 
         assertFalse(fetcher.hasRun());
         assertEquals("http://example.com/", fetcher.getUrl());
+        assertNull(fetcher.getClient());
         assertNull(fetcher.getProxy());
         assertTrue(fetcher.isAllowHostRedirects());
         assertTrue(fetcher.isFollowRedirects());
         assertEquals("GET", fetcher.getRequestMethod());
         assertEquals(0, fetcher.getConnectTimeout());
+        assertEquals(-1, fetcher.getChunkLength());
+        assertEquals(-1, fetcher.getFixedContentLength());
+        assertTrue(fetcher.isDoInput());
+        assertFalse(fetcher.isDoOutput());
         assertEquals(0, fetcher.getModifiedSince());
         assertEquals(0, fetcher.getReadTimeout());
         assertTrue(fetcher.isUseCaches());
+        assertFalse(fetcher.isUseMemoryCache());
+        assertEquals(-1, fetcher.getMemoryCacheMaxAge());
+        assertFalse(fetcher.isCoalesceRequests());
+        assertEquals(1, fetcher.getSegmentCount());
+        assertEquals(1048576, fetcher.getMinSegmentSize());
+        assertNull(fetcher.getRetryPolicy());
+        assertEquals(0, fetcher.getAttemptCount());
+        assertNull(fetcher.getRequestBody());
+        assertNull(fetcher.getEventListener());
         assertNull(fetcher.getCustomHeaders());
         assertEquals("random", fetcher.getCustomHeader("any", "random"));
     }
@@ -90,30 +179,60 @@ public class HttpFetcherTests extends InstrumentationTestCase {
      * Test that the builder behaves correctly when non-default values are used.
      */
     public void testBuilderWithNonDefaultValues() {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder().build();
+        final RetryPolicy retryPolicy = new RetryPolicy.Builder().build();
+        final FetcherStreamWriter requestBody = new FileFetcherStreamWriter("/data/upload",
+                "text/plain");
+        final FetchEventListener eventListener = new FetchEventListener() { };
         final HttpFetcher fetcher = new HttpFetcher.Builder(getInstrumentation().getTargetContext())
                 .setUrl("http://example.com/")
+                .setClient(client)
                 .setProxy(Proxy.NO_PROXY)
                 .setAllowHostRedirects(false)
                 .setFollowRedirects(false)
                 .setRequestMethod("POST")
                 .setConnectTimeout(1000)
+                .setChunkedStreamingMode(4096)
+                .setFixedLengthStreamingMode(1024)
+                .setDoInput(false)
                 .setIfModifiedSince(123456789)
                 .setReadTimeout(500)
                 .setUseCaches(false)
+                .setUseMemoryCache(true)
+                .setMemoryCacheMaxAge(60000)
+                .setCoalesceRequests(true)
+                .setSegmentCount(4)
+                .setMinSegmentSize(65536)
+                .setRetryPolicy(retryPolicy)
+                .setRequestBody(requestBody)
+                .setEventListener(eventListener)
                 .setCustomHeader("key", "value")
                 .setCustomHeader("key2", "value2")
                 .build();
 
         assertFalse(fetcher.hasRun());
         assertEquals("http://example.com/", fetcher.getUrl());
+        assertSame(client, fetcher.getClient());
         assertSame(Proxy.NO_PROXY, fetcher.getProxy());
         assertFalse(fetcher.isAllowHostRedirects());
         assertFalse(fetcher.isFollowRedirects());
         assertEquals("POST", fetcher.getRequestMethod());
         assertEquals(1000, fetcher.getConnectTimeout());
+        assertEquals(4096, fetcher.getChunkLength());
+        assertEquals(1024, fetcher.getFixedContentLength());
+        assertFalse(fetcher.isDoInput());
+        assertTrue(fetcher.isDoOutput());
         assertEquals(123456789, fetcher.getModifiedSince());
         assertEquals(500, fetcher.getReadTimeout());
         assertFalse(fetcher.isUseCaches());
+        assertTrue(fetcher.isUseMemoryCache());
+        assertEquals(60000, fetcher.getMemoryCacheMaxAge());
+        assertTrue(fetcher.isCoalesceRequests());
+        assertEquals(4, fetcher.getSegmentCount());
+        assertEquals(65536, fetcher.getMinSegmentSize());
+        assertSame(retryPolicy, fetcher.getRetryPolicy());
+        assertSame(requestBody, fetcher.getRequestBody());
+        assertSame(eventListener, fetcher.getEventListener());
 
         // Test custom headers.
         final Map<String, String> customHeaders = fetcher.getCustomHeaders();
@@ -125,4 +244,1063 @@ public class HttpFetcherTests extends InstrumentationTestCase {
         assertEquals("value", fetcher.getCustomHeader("key", "random"));
         assertEquals("value2", fetcher.getCustomHeader("key2", "random2"));
     }
+
+    /**
+     * Test that a {@code 503} followed by a {@code 200} is retried to success, with the body of
+     * the {@code 200} given to the reader once, and a token taken from the {@link RetryBudget}
+     * for the retry.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testRetrySucceedsAfterServiceUnavailable() throws Exception {
+        final RetryBudget budget = new RetryBudget(0.5, 3);
+        final RetryPolicy retryPolicy = new RetryPolicy.Builder()
+                .setMaxAttempts(3)
+                .setBaseDelay(0)
+                .build();
+        final int[] readCount = new int[1];
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader() {
+            @Override
+            public void readInputStream(@NonNull final InputStream stream) throws IOException {
+                readCount[0]++;
+                super.readInputStream(stream);
+            }
+        };
+        final HttpFetcher fetcher = new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(server.getUrl("/flaky?times=1&code=503").toString())
+                .setClient(new HttpFetcherClient.Builder()
+                        .setRetryBudget(budget)
+                        .build())
+                .setRetryPolicy(retryPolicy)
+                .build();
+        fetcher.executeFetcher(reader);
+
+        assertEquals("Hello world", reader.getData());
+        assertEquals(1, readCount[0]);
+        assertEquals(200, fetcher.getResponseCode());
+        assertEquals(2, fetcher.getAttemptCount());
+        assertEquals(2, server.getRequests().size());
+        assertEquals(1, retryPolicy.getRetryCount());
+        assertEquals(1, retryPolicy.getRetrySuccessCount());
+        // The request deposited half a token in to a full budget, and the retry took one.
+        assertEquals(2.0, budget.getTokens(), 0.0001);
+        assertEquals(0, budget.getRejectedCount());
+    }
+
+    /**
+     * Test that when the leader of a coalesced request receives a {@code 503} which it retries,
+     * a waiting request without a {@link RetryPolicy} fails with a plain {@link IOException},
+     * rather than the retry being handed to it.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCoalescedRetryResponseFailsWaiterWithoutPolicy() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setRetryBudget(null)
+                .build();
+        final String url = server.getUrl("/status?code=503&ms=500").toString();
+        final HttpFetcher leader = createCoalescingBuilder(client, url)
+                .setRetryPolicy(new RetryPolicy.Builder()
+                        .setMaxAttempts(2)
+                        .setBaseDelay(0)
+                        .build())
+                .build();
+        final FetchThread leaderThread = new FetchThread(leader);
+        leaderThread.start();
+        Thread.sleep(200);
+
+        final HttpFetcher waiter = createCoalescingBuilder(client, url).build();
+
+        try {
+            waiter.executeFetcher(new StringFetcherStreamReader());
+            fail("The coalesced request was retried, so the waiter should fail.");
+        } catch (IOException e) {
+            assertEquals(IOException.class, e.getClass());
+            assertTrue(e.getMessage().contains("503"));
+        }
+
+        leaderThread.join();
+        assertNull(leaderThread.error);
+        assertEquals(2, leader.getAttemptCount());
+        assertEquals(503, leader.getResponseCode());
+    }
+
+    /**
+     * Test that when the leader of a coalesced request receives a {@code 503} which it retries,
+     * a waiting request with a {@link RetryPolicy} retries within its own limit, and ends with the
+     * {@code 503} once its attempts are used up.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCoalescedRetryResponseIsBoundedByWaiterPolicy() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setRetryBudget(null)
+                .build();
+        final RetryPolicy retryPolicy = new RetryPolicy.Builder()
+                .setMaxAttempts(2)
+                .setBaseDelay(0)
+                .build();
+        final String url = server.getUrl("/status?code=503&ms=500").toString();
+        final HttpFetcher leader = createCoalescingBuilder(client, url)
+                .setRetryPolicy(retryPolicy)
+                .build();
+        final FetchThread leaderThread = new FetchThread(leader);
+        leaderThread.start();
+        Thread.sleep(200);
+
+        final HttpFetcher waiter = createCoalescingBuilder(client, url)
+                .setRetryPolicy(retryPolicy)
+                .build();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        waiter.executeFetcher(reader);
+
+        assertEquals(2, waiter.getAttemptCount());
+        assertEquals(503, waiter.getResponseCode());
+        assertEquals("Status 503", reader.getData());
+
+        leaderThread.join();
+        assertNull(leaderThread.error);
+        assertEquals(2, leader.getAttemptCount());
+    }
+
+    /**
+     * Test that a request which arrives while an identical request is in flight is given a replay
+     * of its body, described by the shared {@link ResponseMetadata}, without a transfer of its
+     * own.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCoalescedRequestSharesBody() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder().build();
+        final String url = server.getUrl("/slow?ms=500").toString();
+        final FetchThread leaderThread = new FetchThread(
+                createCoalescingBuilder(client, url).build());
+        leaderThread.start();
+        Thread.sleep(200);
+
+        final HttpFetcher waiter = createCoalescingBuilder(client, url).build();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        waiter.executeFetcher(reader);
+        leaderThread.join();
+
+        assertNull(leaderThread.error);
+        assertEquals("Hello world", reader.getData());
+        assertEquals(200, waiter.getResponseCode());
+        assertEquals(url, waiter.getFinalUrl());
+        assertEquals("11", waiter.getHeaderField("Content-Length"));
+        assertFalse(waiter.isFromMemoryCache());
+        assertEquals(1, client.getRequestCoalescer().getCoalescedCount());
+        assertEquals(1, server.getRequests().size());
+    }
+
+    /**
+     * Test that a body which is too long to hold in memory is not shared, and the waiting request
+     * performs its own transfer instead.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCoalescedLargeBodyIsNotShared() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder().build();
+        final int length = RequestCoalescer.MAX_SHARED_BODY_SIZE + 1;
+        final String url = server.getUrl("/large?n=" + length + "&ms=500").toString();
+        final FetchThread leaderThread = new FetchThread(
+                createCoalescingBuilder(client, url).build());
+        leaderThread.start();
+        Thread.sleep(200);
+
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader("ISO-8859-1");
+        createCoalescingBuilder(client, url).build().executeFetcher(reader);
+        leaderThread.join();
+
+        assertNull(leaderThread.error);
+        assertEquals(length, reader.getData().length());
+        assertEquals(1, client.getRequestCoalescer().getCoalescedCount());
+        assertEquals(2, server.getRequests().size());
+    }
+
+    /**
+     * Test that cancelling the {@link FetchCancellationSignal} while the body is being read stops
+     * the transfer, and the fetch throws a {@link FetchCancelledException}.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCancelStopsTransferInProgress() throws Exception {
+        final int length = 8 * 1024 * 1024;
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        final CountDownLatch bodyStarted = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final long[] bytesRead = new long[1];
+        final IOException[] error = new IOException[1];
+        final HttpFetcher fetcher = new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(server.getUrl("/large?n=" + length).toString())
+                .setCancellationSignal(signal)
+                .build();
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetcher.executeFetcher(new FetcherStreamReader() {
+                        @Override
+                        public void readInputStream(final InputStream stream)
+                                throws IOException {
+                            final byte[] buffer = new byte[8192];
+                            int len;
+
+                            while ((len = stream.read(buffer)) != -1) {
+                                bytesRead[0] += len;
+
+                                if (bodyStarted.getCount() > 0) {
+                                    bodyStarted.countDown();
+
+                                    try {
+                                        cancelled.await();
+                                    } catch (InterruptedException e) {
+                                        throw new IOException(e.getMessage());
+                                    }
+                                }
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+
+        assertTrue(bodyStarted.await(5, TimeUnit.SECONDS));
+        signal.cancel();
+        cancelled.countDown();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(error[0] instanceof FetchCancelledException);
+        assertTrue(bytesRead[0] < length);
+    }
+
+    /**
+     * Test that concurrent requests for the same URL which follow redirects differently are not
+     * coalesced, as they could get different responses.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testRequestsWithDifferentSettingsAreNotCoalesced() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder().build();
+        final String url = server.getUrl("/slow?ms=500").toString();
+        final FetchThread first = new FetchThread(createCoalescingBuilder(client, url).build());
+        first.start();
+        Thread.sleep(200);
+
+        createCoalescingBuilder(client, url)
+                .setFollowRedirects(false)
+                .build()
+                .executeFetcher(new StringFetcherStreamReader());
+        first.join();
+
+        assertNull(first.error);
+        assertEquals(2, client.getRequestCoalescer().getExecutedCount());
+        assertEquals(0, client.getRequestCoalescer().getCoalescedCount());
+        assertEquals(2, server.getRequests().size());
+    }
+
+    /**
+     * Test that credential headers are not sent after a redirect to another host, but other
+     * custom headers are.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCredentialsAreNotSentToAnotherHost() throws Exception {
+        final String location = server.getUrl("localhost", "/hello").toString();
+        final HttpFetcher fetcher = createCredentialsBuilder(
+                server.getUrl("/redirect?to=" + location).toString()).build();
+        fetcher.executeFetcher(new StringFetcherStreamReader());
+
+        assertEquals(1, fetcher.getRedirectCount());
+        final List<LoopbackHttpServer.Request> requests = server.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals("Basic secret", requests.get(0).getHeader("Authorization"));
+        assertEquals("session=1", requests.get(0).getHeader("Cookie"));
+        assertEquals("Basic proxy", requests.get(0).getHeader("Proxy-Authorization"));
+        assertEquals("/hello", requests.get(1).getPath());
+        assertNull(requests.get(1).getHeader("Authorization"));
+        assertNull(requests.get(1).getHeader("Cookie"));
+        assertNull(requests.get(1).getHeader("Proxy-Authorization"));
+        assertEquals("value", requests.get(1).getHeader("X-Custom"));
+    }
+
+    /**
+     * Test that credential headers are still sent after a redirect to the same host.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCredentialsAreSentToSameHost() throws Exception {
+        final HttpFetcher fetcher = createCredentialsBuilder(
+                server.getUrl("/redirect?to=/hello").toString()).build();
+        fetcher.executeFetcher(new StringFetcherStreamReader());
+
+        final List<LoopbackHttpServer.Request> requests = server.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals("/hello", requests.get(1).getPath());
+        assertEquals("Basic secret", requests.get(1).getHeader("Authorization"));
+        assertEquals("session=1", requests.get(1).getHeader("Cookie"));
+    }
+
+    /**
+     * Test that the body is decoded with the default charset of the
+     * {@link StringFetcherStreamReader} when the charset given by the response is not supported
+     * or not legal, rather than the fetch failing.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testUnsupportedResponseCharsetFallsBackToDefault() throws Exception {
+        for (String name : new String[] { "x-no-such-charset", "bad%20name" }) {
+            final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(server.getUrl("/charset?name=" + name).toString())
+                    .build()
+                    .executeFetcher(reader);
+
+            assertEquals("Caf\u00e9", reader.getData());
+        }
+    }
+
+    /**
+     * Test that a {@code 301} and a {@code 308} are remembered by the {@link RedirectCache}, so
+     * that the next fetch of the same URL goes straight to the new location without requesting
+     * the first hop again.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCachedPermanentRedirectSkipsFirstHop() throws Exception {
+        final RedirectCache redirectCache = new RedirectCache(8);
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setRedirectCache(redirectCache)
+                .build();
+
+        for (int code : new int[] { 301, 308 }) {
+            final String url = server.getUrl("/moved?code=" + code + "&to=/hello").toString();
+            final int requestsBefore = server.getRequests().size();
+
+            for (int i = 0; i < 2; i++) {
+                final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+                final HttpFetcher fetcher =
+                        new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                                .setUrl(url)
+                                .setClient(client)
+                                .build();
+                fetcher.executeFetcher(reader);
+
+                assertEquals("Hello world", reader.getData());
+                assertEquals(server.getUrl("/hello").toString(), fetcher.getFinalUrl());
+            }
+
+            final List<LoopbackHttpServer.Request> requests = server.getRequests();
+            // The first fetch requests both hops, the second only the new location.
+            assertEquals(requestsBefore + 3, requests.size());
+            assertTrue(requests.get(requestsBefore).getPath().startsWith("/moved?"));
+            assertEquals("/hello", requests.get(requestsBefore + 1).getPath());
+            assertEquals("/hello", requests.get(requestsBefore + 2).getPath());
+        }
+
+        assertEquals(2, redirectCache.size());
+        assertEquals(2, redirectCache.getHitCount());
+    }
+
+    /**
+     * Test that when host redirects are not allowed, a redirect to another host is refused with a
+     * {@link UrlMismatchException} before the other host is contacted.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCrossHostRedirectIsRefusedBeforeContactingHost() throws Exception {
+        final String location = server.getUrl("localhost", "/hello").toString();
+        final HttpFetcher fetcher = new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(server.getUrl("/redirect?to=" + location).toString())
+                .setAllowHostRedirects(false)
+                .build();
+
+        try {
+            fetcher.executeFetcher(new StringFetcherStreamReader());
+            fail("The redirect is to another host, so a UrlMismatchException should be thrown.");
+        } catch (UrlMismatchException e) {
+            // Expected.
+        }
+
+        final List<LoopbackHttpServer.Request> requests = server.getRequests();
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).getPath().startsWith("/redirect?"));
+    }
+
+    /**
+     * Test that a response taken from the memory cache is given to the reader with the
+     * {@link ResponseMetadata} it was stored with, so its charset is used.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testMemoryCacheHitGivesResponseToReader() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setMemoryCache(new MemoryResponseCache(1024))
+                .build();
+        final String url = server.getUrl("/etag").toString();
+        createMemoryCacheBuilder(client, url).build()
+                .executeFetcher(new StringFetcherStreamReader());
+
+        final HttpFetcher fetcher = createMemoryCacheBuilder(client, url).build();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        fetcher.executeFetcher(reader);
+
+        assertTrue(fetcher.isFromMemoryCache());
+        assertEquals("Caf\u00e9", reader.getData());
+        assertEquals(200, fetcher.getResponseMetadata().getResponseCode());
+        assertEquals("ISO-8859-1", fetcher.getResponseMetadata().getCharset(null));
+        assertEquals(1, server.getRequests().size());
+    }
+
+    /**
+     * Test that the response getters of a fetch answered from the memory cache describe the
+     * stored response, as they did for the fetch which stored it.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testGettersAfterMemoryCacheHit() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setMemoryCache(new MemoryResponseCache(1024))
+                .build();
+        final String url = server.getUrl("/etag").toString();
+        final HttpFetcher network = createMemoryCacheBuilder(client, url).build();
+        network.executeFetcher(new StringFetcherStreamReader());
+        final HttpFetcher cached = createMemoryCacheBuilder(client, url).build();
+        cached.executeFetcher(new StringFetcherStreamReader());
+
+        assertFalse(network.isFromMemoryCache());
+        assertTrue(cached.isFromMemoryCache());
+        assertEquals(200, cached.getResponseCode());
+        assertEquals(network.getContentType(), cached.getContentType());
+        assertEquals(network.getContentLength(), cached.getContentLength());
+        assertEquals(network.getContentEncoding(), cached.getContentEncoding());
+        assertEquals(network.getFinalUrl(), cached.getFinalUrl());
+        assertEquals("\"v1\"", cached.getHeaderField("ETag"));
+        assertEquals(network.getHeaderFields().get("ETag"),
+                cached.getHeaderFields().get("ETag"));
+        assertEquals(4, cached.getHeaderFieldInt("Content-Length", -1));
+        assertEquals(network.getDate(), cached.getDate());
+        assertEquals(network.getLastModified(), cached.getLastModified());
+        assertEquals(network.getExpiration(), cached.getExpiration());
+        assertNull(cached.getHeaderFieldKey(0));
+        assertEquals("HTTP/1.1 200 OK", cached.getHeaderField(0));
+        assertNotNull(cached.getHeaderFieldKey(1));
+        assertNull(cached.getHeaderField(100));
+    }
+
+    /**
+     * Test that requests for the same URL with different custom headers do not share memory
+     * cache entries.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testMemoryCacheIsKeyedOnHeaders() throws Exception {
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setMemoryCache(new MemoryResponseCache(1024))
+                .build();
+        final String url = server.getUrl("/vary").toString();
+        final String[] variants = { "a", "b", "a" };
+
+        for (String variant : variants) {
+            final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+            createMemoryCacheBuilder(client, url)
+                    .setCustomHeader("X-Variant", variant)
+                    .build()
+                    .executeFetcher(reader);
+            assertEquals(variant, reader.getData());
+        }
+
+        assertEquals(2, server.getRequests().size());
+    }
+
+    /**
+     * Test that when the disk cache is revalidated with a {@code 304 Not Modified} response, the
+     * fetch is described as the stored {@code 200 OK} response.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testDiskCacheRevalidationReportsStoredResponse() throws Exception {
+        final DiskResponseCache diskCache = createDiskCache();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setDiskCache(diskCache)
+                .build();
+        final String url = server.getUrl("/etag").toString();
+        createDiskCacheBuilder(client, url).build()
+                .executeFetcher(new StringFetcherStreamReader());
+
+        final HttpFetcher fetcher = createDiskCacheBuilder(client, url).build();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+        fetcher.executeFetcher(reader);
+
+        assertEquals(1, diskCache.getHitCount());
+        assertEquals("\"v1\"", server.getRequests().get(1).getHeader("If-None-Match"));
+        assertEquals("Caf\u00e9", reader.getData());
+        assertEquals(200, fetcher.getResponseCode());
+        assertEquals("text/plain; charset=ISO-8859-1", fetcher.getContentType());
+        assertEquals(200, fetcher.getResponseMetadata().getResponseCode());
+        assertEquals(4, fetcher.getResponseMetadata().getContentLength());
+    }
+
+    /**
+     * Test that requests for the same URL with different custom headers do not share disk cache
+     * entries.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testDiskCacheIsKeyedOnHeaders() throws Exception {
+        final DiskResponseCache diskCache = createDiskCache();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setDiskCache(diskCache)
+                .build();
+        final String url = server.getUrl("/vary").toString();
+        final String[] variants = { "a", "b", "a" };
+
+        for (String variant : variants) {
+            final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+            createDiskCacheBuilder(client, url)
+                    .setCustomHeader("X-Variant", variant)
+                    .build()
+                    .executeFetcher(reader);
+            assertEquals(variant, reader.getData());
+        }
+
+        final List<LoopbackHttpServer.Request> requests = server.getRequests();
+        assertNull(requests.get(1).getHeader("If-None-Match"));
+        assertEquals("\"a\"", requests.get(2).getHeader("If-None-Match"));
+        assertEquals(1, diskCache.getHitCount());
+    }
+
+    /**
+     * Create an empty {@link DiskResponseCache} in the cache directory of the target context.
+     *
+     * @return The {@link DiskResponseCache}.
+     */
+    private DiskResponseCache createDiskCache() {
+        final DiskResponseCache diskCache = new DiskResponseCache(new File(
+                getInstrumentation().getTargetContext().getCacheDir(), "HttpFetcherTests"),
+                1024 * 1024);
+        diskCache.evictAll();
+
+        return diskCache;
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for a request which uses the disk cache of the given
+     * client.
+     *
+     * @param client The {@link HttpFetcherClient} to use.
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createDiskCacheBuilder(final HttpFetcherClient client,
+            final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url)
+                .setClient(client);
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for a request which uses the memory cache of the given
+     * client.
+     *
+     * @param client The {@link HttpFetcherClient} to use.
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createMemoryCacheBuilder(final HttpFetcherClient client,
+            final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url)
+                .setClient(client)
+                .setUseMemoryCache(true)
+                .setMemoryCacheMaxAge(60000);
+    }
+
+    /**
+     * Test that a partial download is resumed with a {@code Range} request, and that the
+     * {@code 206} response is appended to the partial data to make the whole body.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testResumableFetchAppendsPartialContent() throws Exception {
+        final ResumableFileWriterFetcherStreamReader reader = createPartialDownload(4);
+        final FileOutputStream out = new FileOutputStream(reader.getFile());
+
+        try {
+            out.write(new byte[] { 0, 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+
+        final HttpFetcher fetcher = createResumableBuilder(server.getUrl("/range?n=10").toString())
+                .build();
+        fetcher.executeFetcher(reader);
+
+        assertEquals(206, fetcher.getResponseCode());
+        assertEquals("bytes 4-9/10", fetcher.getHeaderField("Content-Range"));
+
+        final LoopbackHttpServer.Request request = server.getRequests().get(0);
+        assertEquals("bytes=4-", request.getHeader("Range"));
+        assertEquals("\"v1\"", request.getHeader("If-Range"));
+
+        final byte[] data = new byte[(int) reader.getFile().length()];
+        final FileInputStream in = new FileInputStream(reader.getFile());
+
+        try {
+            assertEquals(data.length, in.read(data));
+        } finally {
+            in.close();
+        }
+
+        assertEquals(10, data.length);
+
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i, data[i]);
+        }
+    }
+
+    /**
+     * Test that a resumable fetch fails with the response code when the server does not respond
+     * with the body, and that the partial data is kept for a later attempt.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testResumableFetchFailsOnErrorResponse() throws Exception {
+        final ResumableFileWriterFetcherStreamReader reader = createPartialDownload(4);
+
+        try {
+            createResumableBuilder(server.getUrl("/status?code=404").toString()).build()
+                    .executeFetcher(reader);
+            fail("The server responded with 404, so an UnexpectedResponseCodeException should " +
+                    "be thrown.");
+        } catch (UnexpectedResponseCodeException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+
+        assertEquals(4, reader.getResumeOffset());
+        assertEquals("\"v1\"", reader.getResumeValidator());
+    }
+
+    /**
+     * Test that when the range asked for can not be satisfied, the fetch fails and the partial
+     * data and its validator are discarded, so the next fetch downloads the whole body.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testResumableFetchDiscardsPartialDataWhenRangeNotSatisfiable() throws Exception {
+        final ResumableFileWriterFetcherStreamReader reader = createPartialDownload(20);
+        final String url = server.getUrl("/range?n=10").toString();
+
+        try {
+            createResumableBuilder(url).build().executeFetcher(reader);
+            fail("The range can not be satisfied, so an UnexpectedResponseCodeException should " +
+                    "be thrown.");
+        } catch (UnexpectedResponseCodeException e) {
+            assertEquals(416, e.getResponseCode());
+        }
+
+        assertFalse(reader.getFile().exists());
+        assertFalse(reader.getValidatorFile().exists());
+
+        createResumableBuilder(url).build().executeFetcher(reader);
+        assertEquals(10, reader.getFile().length());
+        assertNull(server.getRequests().get(1).getHeader("Range"));
+    }
+
+    /**
+     * Create a {@link ResumableFileWriterFetcherStreamReader} which holds a partial download with
+     * the validator of {@code /range}.
+     *
+     * @param length The length of the partial download.
+     * @return The {@link ResumableFileWriterFetcherStreamReader}.
+     * @throws IOException When the partial download could not be written.
+     */
+    private ResumableFileWriterFetcherStreamReader createPartialDownload(final int length)
+            throws IOException {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(new File(
+                        getInstrumentation().getTargetContext().getCacheDir(),
+                        "HttpFetcherTests.partial"));
+        reader.prepareForResponse(false, "\"v1\"");
+        final FileOutputStream out = new FileOutputStream(reader.getFile());
+
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+
+        return reader;
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for a resumable request.
+     *
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createResumableBuilder(final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url);
+    }
+
+    /**
+     * Test that a request to a host whose circuit is open fails straight away, rather than first
+     * waiting to be admitted.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testOpenCircuitIsCheckedBeforeAdmission() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .build();
+        final AdmissionController admission = new AdmissionController.Builder()
+                .setMaxConcurrentPerHost(1)
+                .setQueueTimeout(5000)
+                .build();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setCircuitBreaker(breaker)
+                .setAdmissionController(admission)
+                .build();
+        final URL url = server.getUrl("/hello");
+        final String key = ConnectionPool.getKey(url);
+        breaker.acquire(key).onResponse(500);
+        // Take the only slot, so that an admitted request would have to wait.
+        admission.acquire(key, null);
+        final long start = System.nanoTime();
+
+        try {
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(url.toString())
+                    .setClient(client)
+                    .build()
+                    .executeFetcher(new StringFetcherStreamReader());
+            fail("The circuit is open, so a CircuitBreakerOpenException should be thrown.");
+        } catch (CircuitBreakerOpenException e) {
+            assertTrue(System.nanoTime() - start < 1000000000L);
+            assertEquals(0, admission.getQueuedCount());
+            assertEquals(0, admission.getRejectedCount());
+        }
+    }
+
+    /**
+     * Test that a request body of known length is sent with a fixed {@code Content-Length}, and
+     * that the server receives exactly its bytes.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testPostBodyWithFixedLength() throws Exception {
+        final byte[] body = createRequestBody();
+        final File file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "HttpFetcherTests.upload");
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        try {
+            final StringFetcherStreamReader reader = new StringFetcherStreamReader("ISO-8859-1");
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(server.getUrl("/echo").toString())
+                    .setRequestMethod("POST")
+                    .setRequestBody(new FileFetcherStreamWriter(file,
+                            "application/octet-stream"))
+                    .build()
+                    .executeFetcher(reader);
+
+            final LoopbackHttpServer.Request request = server.getRequests().get(0);
+            assertEquals("POST", request.getMethod());
+            assertEquals(String.valueOf(body.length), request.getHeader("Content-Length"));
+            assertNull(request.getHeader("Transfer-Encoding"));
+            assertEquals("application/octet-stream", request.getHeader("Content-Type"));
+            assertEquals(new String(body, "ISO-8859-1"), reader.getData());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a request body of unknown length is sent in chunks, and that the server receives
+     * exactly its bytes once the chunks are joined.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testPostBodyChunked() throws Exception {
+        final byte[] body = createRequestBody();
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader("ISO-8859-1");
+        new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(server.getUrl("/echo").toString())
+                .setRequestMethod("POST")
+                .setChunkedStreamingMode(64)
+                .setRequestBody(new GeneratorFetcherStreamWriter("application/octet-stream",
+                        true) {
+                    @Override
+                    protected void generate(@NonNull final OutputStream stream)
+                            throws IOException {
+                        // Written in uneven pieces, so they do not line up with the chunks.
+                        for (int i = 0; i < body.length; i += 100) {
+                            stream.write(body, i, Math.min(100, body.length - i));
+                        }
+                    }
+                })
+                .build()
+                .executeFetcher(reader);
+
+        final LoopbackHttpServer.Request request = server.getRequests().get(0);
+        assertEquals("POST", request.getMethod());
+        assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+        assertNull(request.getHeader("Content-Length"));
+        assertEquals(new String(body, "ISO-8859-1"), reader.getData());
+    }
+
+    /**
+     * Create a request body which holds every byte value.
+     *
+     * @return The request body.
+     */
+    private static byte[] createRequestBody() {
+        final byte[] body = new byte[1000];
+
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+
+        return body;
+    }
+
+    /**
+     * Test that a {@link FetcherStreamReader} which fails to read a good response does not count
+     * against the host in the {@link CircuitBreaker}.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testReaderFailureLeavesCircuitClosed() throws Exception {
+        final CircuitBreaker breaker = createStrictBreaker();
+        final URL url = server.getUrl("/hello");
+        final IOException error = new IOException("The reader failed.");
+
+        try {
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(url.toString())
+                    .setClient(new HttpFetcherClient.Builder()
+                            .setCircuitBreaker(breaker)
+                            .build())
+                    .build()
+                    .executeFetcher(new FetcherStreamReader() {
+                        @Override
+                        public void readInputStream(final InputStream stream)
+                                throws IOException {
+                            stream.read();
+                            throw error;
+                        }
+                    });
+            fail("The reader failed, so its IOException should be thrown.");
+        } catch (IOException e) {
+            assertSame(error, e);
+        }
+
+        final String key = ConnectionPool.getKey(url);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(key));
+        assertEquals(0.0, breaker.getFailureRate(key));
+    }
+
+    /**
+     * Test that a {@link FetcherStreamWriter} which fails to write the request body, and a
+     * redirect refused because it goes to another host, do not count against the host in the
+     * {@link CircuitBreaker}, as no response was received from it.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCallerAndPolicyFailuresLeaveCircuitClosed() throws Exception {
+        final CircuitBreaker breaker = createStrictBreaker();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setCircuitBreaker(breaker)
+                .build();
+        final URL url = server.getUrl("/echo");
+
+        try {
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(url.toString())
+                    .setClient(client)
+                    .setRequestMethod("POST")
+                    .setRequestBody(new FetcherStreamWriter() {
+                        @Override
+                        public String getContentType() {
+                            return "application/octet-stream";
+                        }
+
+                        @Override
+                        public long getContentLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public boolean isRepeatable() {
+                            return false;
+                        }
+
+                        @Override
+                        public void writeOutputStream(final OutputStream stream)
+                                throws IOException {
+                            stream.write(1);
+                            throw new IOException("The writer failed.");
+                        }
+                    })
+                    .build()
+                    .executeFetcher(new StringFetcherStreamReader());
+            fail("The writer failed, so its IOException should be thrown.");
+        } catch (IOException e) {
+            assertEquals("The writer failed.", e.getMessage());
+        }
+
+        try {
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(server.getUrl("/redirect?to=" +
+                            server.getUrl("localhost", "/hello")).toString())
+                    .setClient(client)
+                    .setAllowHostRedirects(false)
+                    .build()
+                    .executeFetcher(new StringFetcherStreamReader());
+            fail("The redirect is to another host, so a UrlMismatchException should be thrown.");
+        } catch (UrlMismatchException e) {
+            // Expected.
+        }
+
+        final String key = ConnectionPool.getKey(url);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(key));
+        assertEquals(0, breaker.getCallCount(key));
+    }
+
+    /**
+     * Create a {@link CircuitBreaker} which opens after a single failure.
+     *
+     * @return The {@link CircuitBreaker}.
+     */
+    private static CircuitBreaker createStrictBreaker() {
+        return new CircuitBreaker.Builder()
+                .setWindowSize(1)
+                .setMinimumCalls(1)
+                .setOpenDuration(60000)
+                .build();
+    }
+
+    /**
+     * Test that each segment of a segmented fetch is counted by the {@link CircuitBreaker} and
+     * reports its own events, as the probe request does.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testSegmentsAreCountedAndReportEvents() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder()
+                .setWindowSize(10)
+                .build();
+        final HttpFetcherClient client = new HttpFetcherClient.Builder()
+                .setCircuitBreaker(breaker)
+                .build();
+        final List<Integer> responseCodes = new ArrayList<Integer>();
+        final FetchEventListener listener = new FetchEventListener() {
+            @Override
+            public void onFirstByte(final HttpFetcher fetcher, final String url,
+                    final int responseCode, final long timeNanos) {
+                synchronized (responseCodes) {
+                    responseCodes.add(responseCode);
+                }
+            }
+        };
+        final URL url = server.getUrl("/range?n=4096");
+        final File file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "HttpFetcherTests.segmented");
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+
+        try {
+            new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                    .setUrl(url.toString())
+                    .setClient(client)
+                    .setSegmentCount(4)
+                    .setMinSegmentSize(1024)
+                    .setEventListener(listener)
+                    .build()
+                    .executeFetcher(reader);
+
+            assertEquals(4096, file.length());
+            assertEquals(5, breaker.getCallCount(ConnectionPool.getKey(url)));
+            assertEquals(5, responseCodes.size());
+            assertEquals(200, (int) responseCodes.get(0));
+
+            for (int i = 1; i < responseCodes.size(); i++) {
+                assertEquals(206, (int) responseCodes.get(i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for a request which sets credential headers and one
+     * other custom header.
+     *
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createCredentialsBuilder(final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url)
+                .setCustomHeader("authorization", "Basic secret")
+                .setCustomHeader("Cookie", "session=1")
+                .setCustomHeader("Proxy-Authorization", "Basic proxy")
+                .setCustomHeader("X-Custom", "value");
+    }
+
+    /**
+     * Create a {@link HttpFetcher.Builder} for a request which is coalesced through the given
+     * client.
+     *
+     * @param client The {@link HttpFetcherClient} to use.
+     * @param url The URL to request.
+     * @return The {@link HttpFetcher.Builder}.
+     */
+    private HttpFetcher.Builder createCoalescingBuilder(final HttpFetcherClient client,
+            final String url) {
+        return new HttpFetcher.Builder(getInstrumentation().getTargetContext())
+                .setUrl(url)
+                .setClient(client)
+                .setCoalesceRequests(true);
+    }
+
+    /**
+     * A {@link Thread} which runs a {@link HttpFetcher} and records how it failed, if it did.
+     */
+    private static class FetchThread extends Thread {
+
+        private final HttpFetcher fetcher;
+        private volatile IOException error;
+
+        /**
+         * Create a new {@code FetchThread}.
+         *
+         * @param fetcher The {@link HttpFetcher} to run.
+         */
+        private FetchThread(final HttpFetcher fetcher) {
+            this.fetcher = fetcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                fetcher.executeFetcher(new StringFetcherStreamReader());
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+/**
+ * Tests for {@link MemoryResponseCache}.
+ *
+ * @author Niall Scott
+ */
+public class MemoryResponseCacheTests extends TestCase {
+
+    private static final String URL = "http://example.com/data.json";
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the maximum size
+     * is {@code 0}.
+     */
+    public void testConstructorWithZeroMaxSize() {
+        try {
+            new MemoryResponseCache(0);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxSize is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that a fresh entry is returned, and that the hit and miss counters are updated.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testGetFreshEntry() throws IOException {
+        final MemoryResponseCache cache = new MemoryResponseCache(1024);
+
+        assertNull(cache.get(URL));
+        cache.put(URL, "Hello world".getBytes("UTF-8"), 60000);
+        assertEquals("Hello world", readFully(cache.get(URL)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(11, cache.getSize());
+    }
+
+    /**
+     * Test that a stale entry is not returned, and is removed from the cache.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testGetStaleEntry() throws Exception {
+        final MemoryResponseCache cache = new MemoryResponseCache(1024);
+        cache.put(URL, "Hello world".getBytes("UTF-8"), 10);
+        Thread.sleep(50);
+
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * Test that a body without a freshness lifetime is not stored.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testPutWithZeroMaxAge() throws IOException {
+        final MemoryResponseCache cache = new MemoryResponseCache(1024);
+        cache.put(URL, "Hello world".getBytes("UTF-8"), 0);
+
+        assertNull(cache.get(URL));
+        assertEquals(0, cache.getPutCount());
+    }
+
+    /**
+     * Test that the least recently used entries are evicted when the cache exceeds its maximum
+     * size.
+     */
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        final MemoryResponseCache cache = new MemoryResponseCache(40);
+        cache.put("http://example.com/a", new byte[10], 60000);
+        cache.put("http://example.com/b", new byte[10], 60000);
+        cache.put("http://example.com/c", new byte[10], 60000);
+        cache.put("http://example.com/d", new byte[10], 60000);
+
+        // Access a so that b becomes the least recently used.
+        assertNotNull(cache.get("http://example.com/a"));
+        cache.put("http://example.com/e", new byte[10], 60000);
+
+        assertNull(cache.get("http://example.com/b"));
+        assertNotNull(cache.get("http://example.com/a"));
+        assertEquals(40, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * Test that a body larger than a quarter of the cache is not stored.
+     */
+    public void testPutWithOversizedBody() {
+        final MemoryResponseCache cache = new MemoryResponseCache(40);
+        cache.put(URL, new byte[11], 60000);
+
+        assertNull(cache.get(URL));
+    }
+
+    /**
+     * Test that a wrapped body is only put in to the cache once it has been read to the end.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testWrappedBodyIsPutWhenFullyRead() throws IOException {
+        final MemoryResponseCache cache = new MemoryResponseCache(1024);
+        final InputStream in = cache.wrapForWriting(URL, null, 60000,
+                new ByteArrayInputStream("Hello world".getBytes("UTF-8")));
+        in.read(new byte[4]);
+        assertNull(cache.get(URL));
+
+        readFully(in);
+        assertEquals("Hello world", readFully(cache.get(URL)));
+    }
+
+    /**
+     * Test that the {@link ResponseMetadata} is stored with a wrapped body, and that bodies put
+     * without it have none.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testMetadataIsStoredWithBody() throws IOException {
+        final MemoryResponseCache cache = new MemoryResponseCache(1024);
+        final ResponseMetadata metadata = new ResponseMetadata(200, "OK", URL,
+                Collections.singletonMap("Content-Type",
+                        Collections.singletonList("text/plain; charset=ISO-8859-1")), 0, 0);
+        readFully(cache.wrapForWriting(URL, metadata, 60000,
+                new ByteArrayInputStream("Hello world".getBytes("UTF-8"))));
+
+        final MemoryResponseCache.CachedResponse response = cache.getResponse(URL);
+        assertEquals("Hello world", readFully(response.getBody()));
+        assertSame(metadata, response.getMetadata());
+
+        cache.put(URL, "Hello world".getBytes("UTF-8"), 60000);
+        assertNull(cache.getResponse(URL).getMetadata());
+    }
+
+    /**
+     * Test parsing the {@code Cache-Control} header.
+     */
+    public void testParseMaxAge() {
+        assertEquals(0, MemoryResponseCache.parseMaxAge(null));
+        assertEquals(0, MemoryResponseCache.parseMaxAge("public"));
+        assertEquals(60000, MemoryResponseCache.parseMaxAge("public, max-age=60"));
+        assertEquals(60000, MemoryResponseCache.parseMaxAge("Max-Age=\"60\""));
+        assertEquals(0, MemoryResponseCache.parseMaxAge("max-age=60, no-cache"));
+        assertEquals(0, MemoryResponseCache.parseMaxAge("no-store"));
+        assertEquals(0, MemoryResponseCache.parseMaxAge("max-age=abc"));
+    }
+
+    /**
+     * Read an {@link InputStream} to the end.
+     *
+     * @param in The {@link InputStream} to read.
+     * @return The data which was read, as a {@link String}.
+     * @throws IOException When there was a problem reading the stream.
+     */
+    private static String readFully(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final byte[] buf = new byte[4];
+        int len;
+
+        while ((len = in.read(buf)) != -1) {
+            sb.append(new String(buf, 0, len, "UTF-8"));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests for {@link NetworkStateMonitor}.
+ *
+ * @author Niall Scott
+ */
+public class NetworkStateMonitorTests extends InstrumentationTestCase {
+
+    /**
+     * Test that the same instance is returned each time.
+     */
+    public void testGetInstanceReturnsSameInstance() {
+        final NetworkStateMonitor monitor =
+                NetworkStateMonitor.getInstance(getInstrumentation().getTargetContext());
+
+        assertSame(monitor, NetworkStateMonitor.getInstance(getInstrumentation().getContext()));
+    }
+
+    /**
+     * Test that the getters of the monitor agree with its {@link NetworkStateMonitor.NetworkState},
+     * and that the device is assumed to be connected when the state cannot be queried.
+     */
+    public void testGettersMatchState() {
+        final NetworkStateMonitor monitor =
+                NetworkStateMonitor.getInstance(getInstrumentation().getTargetContext());
+        final NetworkStateMonitor.NetworkState state = monitor.getState();
+
+        assertEquals(state.isConnected(), monitor.isConnected());
+        assertEquals(state.getNetworkType(), monitor.getNetworkType());
+        assertEquals(state.isMetered(), monitor.isMetered());
+
+        if (!monitor.hasPermission()) {
+            assertTrue(monitor.isConnected());
+            assertEquals(NetworkStateMonitor.TYPE_NONE, monitor.getNetworkType());
+        }
+    }
+
+    /**
+     * Test that {@link NetworkStateMonitor.NetworkState}s with the same values are equal.
+     */
+    public void testNetworkStateEquality() {
+        final NetworkStateMonitor.NetworkState state =
+                new NetworkStateMonitor.NetworkState(true, 1, false, false);
+
+        assertEquals(state, new NetworkStateMonitor.NetworkState(true, 1, false, false));
+        assertEquals(state.hashCode(),
+                new NetworkStateMonitor.NetworkState(true, 1, false, false).hashCode());
+        assertFalse(state.equals(new NetworkStateMonitor.NetworkState(true, 1, true, false)));
+        assertFalse(state.equals(new NetworkStateMonitor.NetworkState(false, -1, false, false)));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Tests for {@link Preconnector}.
+ *
+ * @author Niall Scott
+ */
+public class PreconnectorTests extends TestCase {
+
+    private HttpFetcherClient client;
+    private Preconnector preconnector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        client = new HttpFetcherClient.Builder().build();
+        preconnector = client.getPreconnector();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        client = null;
+        preconnector = null;
+    }
+
+    /**
+     * Test that an invalid URL throws an {@link IllegalArgumentException}.
+     */
+    public void testPreconnectWithInvalidUrl() {
+        try {
+            preconnector.preconnect("not a url");
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The URL is not valid, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that a hint is skipped when the host already has an idle connection in the pool.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testPreconnectSkippedWhenIdleConnectionExists() throws IOException {
+        final URL url = new URL("http://127.0.0.1:1/");
+        client.getConnectionPool().release(ConnectionPool.getKey(url));
+
+        assertFalse(preconnector.preconnectNow(url));
+        assertEquals(1, preconnector.getSkippedCount());
+        assertEquals(0, preconnector.getPreconnectCount());
+    }
+
+    /**
+     * Test that a host which cannot be connected to is counted as a failure.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testPreconnectFailure() throws IOException {
+        try {
+            preconnector.preconnectNow(new URL("http://127.0.0.1:1/"));
+            fail("Nothing is listening on the port, so an IOException should be thrown.");
+        } catch (IOException e) {
+            // This is expected.
+        }
+
+        assertEquals(1, preconnector.getFailedCount());
+        assertEquals(0, preconnector.getPreconnectCount());
+    }
+
+    /**
+     * Test that acquiring a connection to a host which was not warmed up is not counted.
+     */
+    public void testAcquireWithoutPreconnect() {
+        preconnector.onConnectionAcquired("http://127.0.0.1:1", true);
+
+        assertEquals(0, preconnector.getEstimatedUsedCount());
+        assertEquals(0, preconnector.getEstimatedExpiredCount());
+        assertEquals(0, preconnector.getEstimatedSavedTime());
+    }
+}
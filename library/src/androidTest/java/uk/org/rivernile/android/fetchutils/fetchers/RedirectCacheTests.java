@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RedirectCache}.
+ *
+ * @author Niall Scott
+ */
+public class RedirectCacheTests extends TestCase {
+
+    /**
+     * Test that the constructor throws an {@link IllegalArgumentException} when the maximum size
+     * is less than {@code 1}.
+     */
+    public void testConstructorWithInvalidMaxSize() {
+        try {
+            new RedirectCache(0);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxSize is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that a remembered redirect is resolved and counted as a hit, and an unknown URL is
+     * counted as a miss.
+     */
+    public void testResolveCountsHitsAndMisses() {
+        final RedirectCache cache = new RedirectCache(4);
+        cache.put("http://a/", "http://b/");
+
+        assertEquals("http://b/", cache.resolve("http://a/"));
+        assertNull(cache.resolve("http://c/"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Test that a chain of remembered redirects is resolved to its final location.
+     */
+    public void testResolveFollowsChain() {
+        final RedirectCache cache = new RedirectCache(4);
+        cache.put("http://a/", "http://b/");
+        cache.put("http://b/", "http://c/");
+
+        assertEquals("http://c/", cache.resolve("http://a/"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Test that a loop of remembered redirects does not cause resolving to loop forever.
+     */
+    public void testResolveWithLoop() {
+        final RedirectCache cache = new RedirectCache(4);
+        cache.put("http://a/", "http://b/");
+        cache.put("http://b/", "http://a/");
+
+        assertNotNull(cache.resolve("http://a/"));
+    }
+
+    /**
+     * Test that the least recently used redirect is evicted when the maximum size is exceeded.
+     */
+    public void testLeastRecentlyUsedIsEvicted() {
+        final RedirectCache cache = new RedirectCache(2);
+        cache.put("http://a/", "http://x/");
+        cache.put("http://b/", "http://x/");
+        cache.resolve("http://a/");
+        cache.put("http://c/", "http://x/");
+
+        assertEquals(2, cache.size());
+        assertEquals("http://x/", cache.resolve("http://a/"));
+        assertNull(cache.resolve("http://b/"));
+        assertEquals("http://x/", cache.resolve("http://c/"));
+    }
+
+    /**
+     * Test that {@link RedirectCache#remove(String)} and {@link RedirectCache#evictAll()} forget
+     * redirects.
+     */
+    public void testRemoveAndEvictAll() {
+        final RedirectCache cache = new RedirectCache(4);
+        cache.put("http://a/", "http://x/");
+        cache.put("http://b/", "http://x/");
+        cache.remove("http://a/");
+
+        assertNull(cache.resolve("http://a/"));
+        assertEquals(1, cache.size());
+
+        cache.evictAll();
+
+        assertEquals(0, cache.size());
+    }
+}
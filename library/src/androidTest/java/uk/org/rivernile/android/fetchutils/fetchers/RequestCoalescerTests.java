@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests for {@link RequestCoalescer}.
+ *
+ * @author Niall Scott
+ */
+public class RequestCoalescerTests extends TestCase {
+
+    private static final String KEY = "GET http://example.com/";
+
+    /**
+     * Test that the first request for a key is the leader, and an identical request which arrives
+     * while it is in flight is not.
+     */
+    public void testSecondRequestIsCoalesced() {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        final RequestCoalescer.Call follower = coalescer.begin(KEY);
+
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+        assertEquals(1, coalescer.getExecutedCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+        assertEquals(1, coalescer.getInFlightCount());
+    }
+
+    /**
+     * Test that requests with different keys are not coalesced.
+     */
+    public void testDifferentKeysAreNotCoalesced() {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+
+        assertTrue(coalescer.begin(KEY).isLeader());
+        assertTrue(coalescer.begin("HEAD http://example.com/").isLeader());
+        assertEquals(2, coalescer.getExecutedCount());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    /**
+     * Test that a waiting request receives the body of the leader once it completes, and that a
+     * new request after completion becomes a leader again.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testFollowerReceivesLeaderBody() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        final RequestCoalescer.Call follower = coalescer.begin(KEY);
+        final byte[] body = new byte[] { 1, 2, 3 };
+        final ResponseMetadata metadata = new ResponseMetadata(200, "OK", "http://example.com/",
+                new HashMap<String, List<String>>(), 0, 0);
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.complete(leader, body, metadata);
+            }
+        });
+        thread.start();
+
+        assertTrue(follower.await(null));
+        thread.join();
+
+        assertSame(body, follower.getBody());
+        assertSame(metadata, follower.getMetadata());
+        assertEquals(0, coalescer.getInFlightCount());
+        assertTrue(coalescer.begin(KEY).isLeader());
+    }
+
+    /**
+     * Test that each waiting request throws its own exception, caused by the exception of the
+     * leader, when it fails.
+     */
+    public void testFollowerReceivesLeaderError() {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        final RequestCoalescer.Call first = coalescer.begin(KEY);
+        final RequestCoalescer.Call second = coalescer.begin(KEY);
+        final IOException error = new ConnectivityUnavailableException();
+        coalescer.fail(leader, error);
+        IOException firstError = null;
+
+        try {
+            first.await(null);
+            fail("The leader failed, so the follower should throw an exception.");
+        } catch (IOException e) {
+            assertSame(error, e.getCause());
+            firstError = e;
+        }
+
+        try {
+            second.await(null);
+            fail("The leader failed, so the follower should throw an exception.");
+        } catch (IOException e) {
+            assertSame(error, e.getCause());
+            assertNotSame(firstError, e);
+        }
+    }
+
+    /**
+     * Test that a waiting request is told to perform its own request when the leader abandons
+     * the transfer.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testFollowerIsReleasedWhenAbandoned() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        final RequestCoalescer.Call follower = coalescer.begin(KEY);
+        coalescer.abandon(leader);
+
+        assertFalse(follower.await(null));
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    /**
+     * Test that cancelling a waiting request wakes it with a {@link FetchCancelledException}
+     * while the leader is still in flight, and that the leader no longer counts it as waiting.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testCancelWakesWaitingRequest() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        final RequestCoalescer.Call follower = coalescer.begin(KEY);
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Cancel straight away.
+                }
+
+                signal.cancel();
+            }
+        });
+        thread.start();
+
+        try {
+            follower.await(signal);
+            fail("The waiting request was cancelled, so a FetchCancelledException should be " +
+                    "thrown.");
+        } catch (FetchCancelledException e) {
+            // Expected.
+        }
+
+        thread.join();
+        coalescer.leave(follower);
+
+        assertFalse(coalescer.startBody(leader));
+    }
+
+    /**
+     * Test that once the body of the leader has started, new requests can not join it, and that
+     * finishing it does not affect the transfer of a new leader for the same key.
+     */
+    public void testStartBodyStopsJoining() {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestCoalescer.Call alone = coalescer.begin(KEY);
+
+        assertFalse(coalescer.startBody(alone));
+
+        final RequestCoalescer.Call leader = coalescer.begin(KEY);
+        assertTrue(leader.isLeader());
+        assertFalse(coalescer.begin(KEY).isLeader());
+        coalescer.abandon(alone);
+
+        assertEquals(1, coalescer.getInFlightCount());
+        assertTrue(coalescer.startBody(leader));
+        assertEquals(0, coalescer.getInFlightCount());
+        assertTrue(coalescer.begin(KEY).isLeader());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link ResponseMetadata}.
+ *
+ * @author Niall Scott
+ */
+public class ResponseMetadataTests extends TestCase {
+
+    /**
+     * Test that headers are found without regard to case, that the last value of a repeated
+     * header is returned, and that the status line is not treated as a header.
+     */
+    public void testHeaders() {
+        final HashMap<String, List<String>> headers = new HashMap<>();
+        headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+        headers.put("X-Thing", Arrays.asList("a", "b"));
+        final ResponseMetadata metadata = create(headers);
+
+        assertEquals("b", metadata.getHeader("x-thing"));
+        assertEquals(Arrays.asList("a", "b"), metadata.getHeaders("X-THING"));
+        assertNull(metadata.getHeader("Missing"));
+        assertTrue(metadata.getHeaders("Missing").isEmpty());
+        assertEquals(1, metadata.getHeaders().size());
+    }
+
+    /**
+     * Test that the headers are copied, so later changes to the source do not affect the
+     * snapshot.
+     */
+    public void testHeadersAreCopied() {
+        final HashMap<String, List<String>> headers = new HashMap<>();
+        headers.put("X-Thing", Collections.singletonList("a"));
+        final ResponseMetadata metadata = create(headers);
+        headers.put("X-Other", Collections.singletonList("b"));
+
+        assertNull(metadata.getHeader("X-Other"));
+
+        try {
+            metadata.getHeaders().put("X-Other", Collections.singletonList("b"));
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+
+        fail("The headers should not be modifiable.");
+    }
+
+    /**
+     * Test that the {@code Content-Length} is parsed, and {@code -1} is returned when it is
+     * missing or invalid.
+     */
+    public void testContentLength() {
+        assertEquals(5000000000L, create(header("Content-Length", "5000000000"))
+                .getContentLength());
+        assertEquals(-1, create(header("Content-Length", "abc")).getContentLength());
+        assertEquals(-1, create(new HashMap<String, List<String>>()).getContentLength());
+    }
+
+    /**
+     * Test that the MIME type and charset are taken from the {@code Content-Type}.
+     */
+    public void testContentType() {
+        final ResponseMetadata metadata =
+                create(header("content-type", "Text/HTML; charset=\"ISO-8859-1\""));
+
+        assertEquals("text/html", metadata.getMimeType());
+        assertEquals("ISO-8859-1", metadata.getCharset("UTF-8"));
+        assertEquals("UTF-8", create(header("Content-Type", "application/json"))
+                .getCharset("UTF-8"));
+        assertNull(create(new HashMap<String, List<String>>()).getMimeType());
+    }
+
+    /**
+     * Test that date headers are parsed.
+     */
+    public void testDates() {
+        final ResponseMetadata metadata =
+                create(header("Last-Modified", "Thu, 01 Jan 1970 00:00:10 GMT"));
+
+        assertEquals(10000, metadata.getLastModified());
+        assertEquals(-1, metadata.getHeaderDate("Expires", -1));
+        assertEquals(-1, create(header("Expires", "soon")).getHeaderDate("Expires", -1));
+    }
+
+    /**
+     * Create a {@link ResponseMetadata} with the given headers.
+     *
+     * @param headers The response headers.
+     * @return A new {@link ResponseMetadata}.
+     */
+    private static ResponseMetadata create(final Map<String, List<String>> headers) {
+        return new ResponseMetadata(200, "OK", "http://example.com/", headers, 1000000,
+                3000000);
+    }
+
+    /**
+     * Create a {@link Map} of headers holding a single header.
+     *
+     * @param name The name of the header.
+     * @param value The value of the header.
+     * @return The {@link Map} of headers.
+     */
+    private static Map<String, List<String>> header(final String name, final String value) {
+        final HashMap<String, List<String>> headers = new HashMap<>();
+        headers.put(name, Collections.singletonList(value));
+
+        return headers;
+    }
+}
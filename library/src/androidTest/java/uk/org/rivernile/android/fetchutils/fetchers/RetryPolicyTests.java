@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Tests for {@link RetryPolicy} and {@link RetryBudget}.
+ *
+ * @author Niall Scott
+ */
+public class RetryPolicyTests extends TestCase {
+
+    /**
+     * Test that building a {@link RetryPolicy} with {@code 0} maximum attempts throws an
+     * {@link IllegalArgumentException}.
+     */
+    public void testBuilderWithZeroMaxAttempts() {
+        try {
+            new RetryPolicy.Builder().setMaxAttempts(0).build();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The maxAttempts is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the default values used when not set externally are as expected.
+     */
+    public void testDefaultValues() {
+        final RetryPolicy policy = new RetryPolicy.Builder().build();
+
+        assertEquals(3, policy.getMaxAttempts());
+        assertEquals(500, policy.getBaseDelay());
+        assertEquals(30000, policy.getMaxDelay());
+        assertFalse(policy.isRetryNonIdempotent());
+        assertTrue(policy.isHonourRetryAfter());
+        assertEquals(0, policy.getAttemptCount());
+        assertEquals(0, policy.getRetryCount());
+        assertEquals(0, policy.getRetrySuccessCount());
+    }
+
+    /**
+     * Test that only idempotent methods are retried by default.
+     */
+    public void testIdempotentMethods() {
+        final RetryPolicy policy = new RetryPolicy.Builder().build();
+
+        assertTrue(policy.isRetryableMethod(null));
+        assertTrue(policy.isRetryableMethod("GET"));
+        assertTrue(policy.isRetryableMethod("head"));
+        assertTrue(policy.isRetryableMethod("PUT"));
+        assertTrue(policy.isRetryableMethod("DELETE"));
+        assertFalse(policy.isRetryableMethod("POST"));
+        assertFalse(policy.isRetryableMethod("PATCH"));
+
+        assertTrue(new RetryPolicy.Builder()
+                .setRetryNonIdempotent(true)
+                .build()
+                .isRetryableMethod("POST"));
+    }
+
+    /**
+     * Test that failures which would happen again straight away are not retried.
+     */
+    public void testRetryableExceptions() {
+        final RetryPolicy policy = new RetryPolicy.Builder().build();
+
+        assertTrue(policy.isRetryableException(new IOException()));
+        assertTrue(policy.isRetryableException(new SocketTimeoutException()));
+        assertFalse(policy.isRetryableException(new InterruptedIOException()));
+        assertFalse(policy.isRetryableException(new ConnectivityUnavailableException()));
+        assertFalse(policy.isRetryableException(new UrlMismatchException()));
+        assertFalse(policy.isRetryableException(new CircuitBreakerOpenException()));
+        assertFalse(policy.isRetryableException(new AdmissionRejectedException()));
+    }
+
+    /**
+     * Test that the backoff delay is always between {@code 0} and the exponential ceiling, capped
+     * at the maximum delay.
+     */
+    public void testBackoffDelayIsWithinBounds() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .setBaseDelay(100)
+                .setMaxDelay(1000)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.getBackoffDelay(1);
+            assertTrue(first >= 0 && first <= 100);
+
+            final long third = policy.getBackoffDelay(3);
+            assertTrue(third >= 0 && third <= 400);
+
+            final long large = policy.getBackoffDelay(40);
+            assertTrue(large >= 0 && large <= 1000);
+        }
+    }
+
+    /**
+     * Test that the attempt counters are updated.
+     */
+    public void testCounters() {
+        final RetryPolicy policy = new RetryPolicy.Builder().build();
+        policy.onAttempt(1);
+        policy.onAttempt(2);
+        policy.onRetrySucceeded();
+
+        assertEquals(2, policy.getAttemptCount());
+        assertEquals(1, policy.getRetryCount());
+        assertEquals(1, policy.getRetrySuccessCount());
+    }
+
+    /**
+     * Test that constructing a {@link RetryBudget} with a ratio of {@code 0} throws an
+     * {@link IllegalArgumentException}.
+     */
+    public void testBudgetWithZeroRatio() {
+        try {
+            new RetryBudget(0, 10);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The retryRatio is 0, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that a {@link RetryBudget} refuses retries once it has run out, and is refilled by
+     * requests.
+     */
+    public void testBudgetRunsOutAndRefills() {
+        final RetryBudget budget = new RetryBudget(0.5, 2);
+
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        assertEquals(1, budget.getRejectedCount());
+
+        budget.onRequest();
+        assertFalse(budget.tryAcquire());
+        budget.onRequest();
+        assertTrue(budget.tryAcquire());
+    }
+
+    /**
+     * Test that a {@link RetryBudget} does not hold more than its maximum number of tokens.
+     */
+    public void testBudgetIsCapped() {
+        final RetryBudget budget = new RetryBudget(1, 2);
+
+        for (int i = 0; i < 10; i++) {
+            budget.onRequest();
+        }
+
+        assertEquals(2.0, budget.getTokens(), 0.0001);
+    }
+}
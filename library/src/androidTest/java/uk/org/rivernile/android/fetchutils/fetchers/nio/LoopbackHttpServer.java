@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, for testing {@link NioHttpEngine} and
+ * {@link uk.org.rivernile.android.fetchutils.fetchers.HttpFetcher}. Each accepted socket is served
+ * on its own thread, and is kept alive until the client closes it. Every request is recorded, so
+ * that tests can check the headers which were sent.
+ *
+ * <p>
+ *     The following paths are served;
+ * </p>
+ *
+ * <ul>
+ *     <li>{@code /hello} - {@code Hello world} with a {@code Content-Length}.</li>
+ *     <li>{@code /chunked} - {@code Hello world} with chunked transfer encoding.</li>
+ *     <li>{@code /large?n=&ms=} - {@code n} bytes with a {@code Content-Length}, sent after
+ *         waiting {@code ms} milliseconds. {@code ms} is optional.</li>
+ *     <li>{@code /slow?ms=} - {@code Hello world}, sent after waiting {@code ms} milliseconds.
+ *     </li>
+ *     <li>{@code /echo} - the request body, which may be fixed length or chunked.</li>
+ *     <li>{@code /close} - {@code Hello world}, after which the socket is closed without saying
+ *         so in the response, as a server closing an idle socket would.</li>
+ *     <li>{@code /status?code=&ms=} - the status {@code code} with the body {@code Status code},
+ *         sent after waiting {@code ms} milliseconds. {@code ms} is optional.</li>
+ *     <li>{@code /flaky?times=&code=} - the status {@code code} for the first {@code times}
+ *         requests for the same path, then {@code Hello world}.</li>
+ *     <li>{@code /redirect?to=} - a {@code 302} to {@code to}, which may be a path or a whole
+ *         URL.</li>
+ *     <li>{@code /moved?code=&to=} - a permanent redirect with the status {@code code} to
+ *         {@code to}, which must be the last parameter as it may have a query of its own.</li>
+ *     <li>{@code /etag} - {@code Caf\u00e9} in {@code ISO-8859-1}, with an {@code ETag}. A
+ *         request with a matching {@code If-None-Match} gets a {@code 304}.</li>
+ *     <li>{@code /charset?name=} - {@code Caf\u00e9} in {@code UTF-8}, with {@code name} given
+ *         as the {@code charset} of the {@code Content-Type}.</li>
+ *     <li>{@code /vary} - the value of the {@code X-Variant} request header, with
+ *         {@code Vary: X-Variant} and an {@code ETag} for each variant.</li>
+ *     <li>{@code /range?n=} - {@code n} bytes, as {@code /large} does, with a strong
+ *         {@code ETag}. A {@code Range} request gets a {@code 206}, or a {@code 416} when it
+ *         starts at or beyond the end of the body.</li>
+ *     <li>Anything else - a {@code 404} with the body {@code Not found}.</li>
+ * </ul>
+ *
+ * @author Niall Scott
+ */
+public class LoopbackHttpServer {
+
+    private static final String ETAG = "\"v1\"";
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final ArrayList<Request> requests = new ArrayList<>();
+    private final HashMap<String, Integer> flakyCounts = new HashMap<>();
+
+    private volatile boolean stopped;
+    private int acceptCount;
+
+    /**
+     * Create and start a new {@code LoopbackHttpServer} on an ephemeral port.
+     *
+     * @throws IOException When the server socket could not be opened.
+     */
+    public LoopbackHttpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 512, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LoopbackHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Get a {@link URL} for the given path on this server.
+     *
+     * @param path The path, starting with {@code /}.
+     * @return A {@link URL} for the given path on this server.
+     * @throws IOException When the {@link URL} is malformed.
+     */
+    public URL getUrl(final String path) throws IOException {
+        return getUrl("127.0.0.1", path);
+    }
+
+    /**
+     * Get a {@link URL} for the given path on this server, using the given host name. This allows
+     * the same server to be reached as different hosts, such as {@code 127.0.0.1} and
+     * {@code localhost}.
+     *
+     * @param host The host name, which must resolve to the loopback interface.
+     * @param path The path, starting with {@code /}.
+     * @return A {@link URL} for the given path on this server.
+     * @throws IOException When the {@link URL} is malformed.
+     */
+    public URL getUrl(final String host, final String path) throws IOException {
+        return new URL("http://" + host + ':' + serverSocket.getLocalPort() + path);
+    }
+
+    /**
+     * Get the number of sockets which have been accepted.
+     *
+     * @return The number of sockets which have been accepted.
+     */
+    public synchronized int getAcceptCount() {
+        return acceptCount;
+    }
+
+    /**
+     * Get the requests which have been received, in the order they were received.
+     *
+     * @return A copy of the requests which have been received.
+     */
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Stop the server. Sockets which are being served are closed by their client.
+     */
+    public void stop() {
+        stopped = true;
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing to do here.
+        }
+    }
+
+    /**
+     * Accept sockets until the server is stopped.
+     */
+    private void acceptLoop() {
+        while (!stopped) {
+            final Socket socket;
+
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            synchronized (this) {
+                acceptCount++;
+            }
+
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LoopbackHttpServer socket");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Serve requests on a socket until the client closes it.
+     *
+     * @param socket The socket to serve.
+     */
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            String requestLine;
+
+            while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+                final String[] parts = requestLine.split(" ");
+                final Request request = new Request(parts[0], parts[1]);
+                long contentLength = -1;
+                boolean chunked = false;
+                String line;
+
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    final int colon = line.indexOf(':');
+                    final String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    final String value = line.substring(colon + 1).trim();
+                    request.headers.put(name, value);
+
+                    if ("content-length".equals(name)) {
+                        contentLength = Long.parseLong(value);
+                    } else if ("transfer-encoding".equals(name)) {
+                        chunked = "chunked".equalsIgnoreCase(value);
+                    }
+                }
+
+                final byte[] requestBody = chunked ? readChunked(in)
+                        : readFixed(in, Math.max(0, contentLength));
+                final String path = request.path;
+
+                synchronized (this) {
+                    requests.add(request);
+                }
+
+                respond(out, request, requestBody);
+
+                if ("/close".equals(path)) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client has gone away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do here.
+            }
+        }
+    }
+
+    /**
+     * Write the response for a request.
+     *
+     * @param out Where to write the response.
+     * @param request The request.
+     * @param requestBody The body of the request.
+     * @throws IOException When there was a problem writing the response.
+     * @throws InterruptedException When the thread was interrupted while waiting.
+     */
+    private void respond(final OutputStream out, final Request request, final byte[] requestBody)
+            throws IOException, InterruptedException {
+        final String path = request.path;
+
+        if ("/hello".equals(path) || "/close".equals(path)) {
+            writeFixed(out, 200, "OK", "Hello world".getBytes("UTF-8"));
+        } else if ("/chunked".equals(path)) {
+            out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "6\r\nHello \r\n5\r\nworld\r\n0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+        } else if (path.startsWith("/large?n=")) {
+            final String ms = getParameter(path, "ms");
+
+            if (ms != null) {
+                Thread.sleep(Long.parseLong(ms));
+            }
+
+            final byte[] body = new byte[Integer.parseInt(getParameter(path, "n"))];
+
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) i;
+            }
+
+            writeFixed(out, 200, "OK", body);
+        } else if (path.startsWith("/slow?ms=")) {
+            Thread.sleep(Long.parseLong(path.substring(9)));
+            writeFixed(out, 200, "OK", "Hello world".getBytes("UTF-8"));
+        } else if ("/echo".equals(path)) {
+            writeFixed(out, 200, "OK", requestBody);
+        } else if (path.startsWith("/status?")) {
+            final String ms = getParameter(path, "ms");
+
+            if (ms != null) {
+                Thread.sleep(Long.parseLong(ms));
+            }
+
+            final String code = getParameter(path, "code");
+            writeFixed(out, Integer.parseInt(code), "Status",
+                    ("Status " + code).getBytes("UTF-8"));
+        } else if (path.startsWith("/flaky?")) {
+            final int count;
+
+            synchronized (this) {
+                final Integer previous = flakyCounts.get(path);
+                count = previous != null ? previous + 1 : 1;
+                flakyCounts.put(path, count);
+            }
+
+            if (count <= Integer.parseInt(getParameter(path, "times"))) {
+                final String code = getParameter(path, "code");
+                writeFixed(out, Integer.parseInt(code), "Status",
+                        ("Status " + code).getBytes("UTF-8"));
+            } else {
+                writeFixed(out, 200, "OK", "Hello world".getBytes("UTF-8"));
+            }
+        } else if (path.startsWith("/redirect?to=")) {
+            writeResponse(out, request, 302, "Found", "Location: " + path.substring(13) + "\r\n",
+                    new byte[0]);
+        } else if (path.startsWith("/moved?")) {
+            writeResponse(out, request, Integer.parseInt(getParameter(path, "code")), "Moved",
+                    "Location: " + path.substring(path.indexOf("&to=") + 4) + "\r\n",
+                    new byte[0]);
+        } else if ("/etag".equals(path)) {
+            if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + ETAG + "\r\n\r\n")
+                        .getBytes("US-ASCII"));
+                out.flush();
+            } else {
+                writeResponse(out, request, 200, "OK", "ETag: " + ETAG +
+                        "\r\nContent-Type: text/plain; charset=ISO-8859-1\r\n",
+                        "Caf\u00e9".getBytes("ISO-8859-1"));
+            }
+        } else if (path.startsWith("/charset?")) {
+            writeResponse(out, request, 200, "OK", "Content-Type: text/plain; charset=" +
+                    getParameter(path, "name") + "\r\n", "Caf\u00e9".getBytes("UTF-8"));
+        } else if ("/vary".equals(path)) {
+            final String variant = request.getHeader("X-Variant");
+            final String etag = "\"" + variant + '"';
+
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + etag +
+                        "\r\nVary: X-Variant\r\n\r\n").getBytes("US-ASCII"));
+                out.flush();
+            } else {
+                writeResponse(out, request, 200, "OK", "ETag: " + etag +
+                        "\r\nVary: X-Variant\r\nCache-Control: max-age=60\r\n",
+                        String.valueOf(variant).getBytes("UTF-8"));
+            }
+        } else if (path.startsWith("/range?n=")) {
+            respondRange(out, request, Integer.parseInt(getParameter(path, "n")));
+        } else {
+            writeFixed(out, 404, "Not Found", "Not found".getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Write the response for {@code /range}, honouring a {@code Range} header of the form
+     * {@code bytes=start-} or {@code bytes=start-end}.
+     *
+     * @param out Where to write the response.
+     * @param request The request.
+     * @param length The length of the whole body.
+     * @throws IOException When there was a problem writing the response.
+     */
+    private static void respondRange(final OutputStream out, final Request request,
+            final int length) throws IOException {
+        final byte[] body = new byte[length];
+
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+
+        final String range = request.getHeader("Range");
+        final String ifRange = request.getHeader("If-Range");
+
+        if (range == null || (ifRange != null && !ETAG.equals(ifRange))) {
+            writeResponse(out, request, 200, "OK", "ETag: " + ETAG +
+                    "\r\nAccept-Ranges: bytes\r\n", body);
+            return;
+        }
+
+        final String spec = range.substring(range.indexOf('=') + 1);
+        final int dash = spec.indexOf('-');
+        final int start = Integer.parseInt(spec.substring(0, dash));
+        final int end = dash == spec.length() - 1 ? length - 1
+                : Math.min(length - 1, Integer.parseInt(spec.substring(dash + 1)));
+
+        if (start >= length) {
+            writeResponse(out, request, 416, "Range Not Satisfiable",
+                    "Content-Range: bytes */" + length + "\r\n", new byte[0]);
+            return;
+        }
+
+        final byte[] part = new byte[end - start + 1];
+        System.arraycopy(body, start, part, 0, part.length);
+        writeResponse(out, request, 206, "Partial Content", "ETag: " + ETAG +
+                "\r\nAccept-Ranges: bytes\r\nContent-Range: bytes " + start + '-' + end + '/' +
+                length + "\r\n", part);
+    }
+
+    /**
+     * Write a response with a {@code Content-Length} and extra headers. The body is not written
+     * for a {@code HEAD} request.
+     *
+     * @param out Where to write the response.
+     * @param request The request.
+     * @param code The status code.
+     * @param message The reason phrase.
+     * @param headers Extra headers, each ending with {@code CRLF}.
+     * @param body The response body.
+     * @throws IOException When there was a problem writing the response.
+     */
+    private static void writeResponse(final OutputStream out, final Request request,
+            final int code, final String message, final String headers, final byte[] body)
+            throws IOException {
+        out.write(("HTTP/1.1 " + code + ' ' + message + "\r\nContent-Length: " + body.length +
+                "\r\n" + headers + "\r\n").getBytes("US-ASCII"));
+
+        if (!"HEAD".equals(request.method)) {
+            out.write(body);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Get a parameter from the query of a path.
+     *
+     * @param path The path, including the query.
+     * @param name The name of the parameter.
+     * @return The value of the parameter, or {@code null} if it is not in the query.
+     */
+    private static String getParameter(final String path, final String name) {
+        final int query = path.indexOf('?');
+
+        if (query == -1) {
+            return null;
+        }
+
+        for (String parameter : path.substring(query + 1).split("&")) {
+            if (parameter.startsWith(name + '=')) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Write a response with a {@code Content-Length}.
+     *
+     * @param out Where to write the response.
+     * @param code The status code.
+     * @param message The reason phrase.
+     * @param body The response body.
+     * @throws IOException When there was a problem writing the response.
+     */
+    private static void writeFixed(final OutputStream out, final int code, final String message,
+            final byte[] body) throws IOException {
+        out.write(("HTTP/1.1 " + code + ' ' + message + "\r\nContent-Length: " + body.length
+                + "\r\nContent-Type: text/plain\r\n\r\n").getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Read a line terminated by {@code CRLF}, without the terminator.
+     *
+     * @param in Where to read from.
+     * @return The line, or {@code null} if the stream ended first.
+     * @throws IOException When there was a problem reading.
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1)
+                        : sb.toString();
+            }
+
+            sb.append((char) c);
+        }
+
+        return null;
+    }
+
+    /**
+     * Read exactly the given number of bytes.
+     *
+     * @param in Where to read from.
+     * @param length The number of bytes to read.
+     * @return The bytes which were read.
+     * @throws IOException When there was a problem reading, or the stream ended early.
+     */
+    private static byte[] readFixed(final InputStream in, final long length) throws IOException {
+        final byte[] data = new byte[(int) length];
+        int offset = 0;
+
+        while (offset < data.length) {
+            final int read = in.read(data, offset, data.length - offset);
+
+            if (read == -1) {
+                throw new IOException("The request body ended early.");
+            }
+
+            offset += read;
+        }
+
+        return data;
+    }
+
+    /**
+     * Read a chunked request body.
+     *
+     * @param in Where to read from.
+     * @return The decoded body.
+     * @throws IOException When there was a problem reading, or the body was malformed.
+     */
+    private static byte[] readChunked(final InputStream in) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        while (true) {
+            final String sizeLine = readLine(in);
+
+            if (sizeLine == null) {
+                throw new IOException("The request body ended early.");
+            }
+
+            final int size = Integer.parseInt(sizeLine.trim(), 16);
+
+            if (size == 0) {
+                String line;
+
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    // Skip any trailers.
+                }
+
+                return body.toByteArray();
+            }
+
+            body.write(readFixed(in, size));
+            readLine(in);
+        }
+    }
+
+    /**
+     * A request which was received by the server.
+     */
+    public static class Request {
+
+        private final String method;
+        private final String path;
+        private final HashMap<String, String> headers = new HashMap<>();
+
+        /**
+         * Create a new {@code Request}.
+         *
+         * @param method The request method.
+         * @param path The path of the request, including the query.
+         */
+        private Request(final String method, final String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        /**
+         * Get the request method.
+         *
+         * @return The request method.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Get the path of the request, including the query.
+         *
+         * @return The path of the request.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the value of a request header.
+         *
+         * @param name The name of the header, which is not case sensitive.
+         * @return The value of the header, or {@code null} if it was not sent.
+         */
+        public String getHeader(final String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+}
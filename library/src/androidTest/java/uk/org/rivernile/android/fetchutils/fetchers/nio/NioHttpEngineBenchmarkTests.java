@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.rivernile.android.fetchutils.fetchers.HttpTransport;
+import uk.org.rivernile.android.fetchutils.fetchers.PlatformHttpTransport;
+
+/**
+ * A benchmark of {@link NioHttpEngine} against the {@link PlatformHttpTransport}, run against a
+ * {@link LoopbackHttpServer}. Each round starts a number of concurrent fetches which all wait on
+ * a slow response at once, then reads their bodies. The timings of both transports are written
+ * to the log under the tag {@code NioHttpEngineBenchmark}, to be compared by hand. Only the
+ * correctness of the fetches is asserted, as timings on a test device vary too much.
+ *
+ * @author Niall Scott
+ */
+public class NioHttpEngineBenchmarkTests extends TestCase {
+
+    private static final String LOG_TAG = "NioHttpEngineBenchmark";
+    private static final int CONCURRENT_FETCHES = 100;
+    private static final int ROUNDS = 3;
+
+    private LoopbackHttpServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new LoopbackHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        server.stop();
+        server = null;
+    }
+
+    /**
+     * Benchmark both transports with responses which are delayed by the server, so that many
+     * requests are waiting on the network at once.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testBenchmarkSlowResponses() throws Exception {
+        benchmark("/slow?ms=100");
+    }
+
+    /**
+     * Benchmark both transports with large response bodies, which exercise the body buffer.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testBenchmarkLargeResponses() throws Exception {
+        benchmark("/large?n=262144");
+    }
+
+    /**
+     * Run the rounds of the benchmark for both transports, and log the results.
+     *
+     * @param path The path to fetch.
+     * @throws Exception When there was a problem running the benchmark.
+     */
+    private void benchmark(final String path) throws Exception {
+        final NioHttpEngine engine = new NioHttpEngine(CONCURRENT_FETCHES, 300000);
+
+        try {
+            // The first round of each transport warms up the sockets and is not counted.
+            runRound(new PlatformHttpTransport(), path);
+            runRound(engine, path);
+            long platformTime = 0;
+            long nioTime = 0;
+
+            for (int i = 0; i < ROUNDS; i++) {
+                platformTime += runRound(new PlatformHttpTransport(), path);
+                nioTime += runRound(engine, path);
+            }
+
+            Log.i(LOG_TAG, path + ": " + CONCURRENT_FETCHES + " concurrent fetches, average of "
+                    + ROUNDS + " rounds. Platform: " + (platformTime / ROUNDS) + "ms, NIO: "
+                    + (nioTime / ROUNDS) + "ms (" + engine.getConnectCount() + " sockets opened, "
+                    + engine.getReuseCount() + " reused).");
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Run one round of concurrent fetches with a transport.
+     *
+     * @param transport The {@link HttpTransport} to fetch with.
+     * @param path The path to fetch.
+     * @return The time taken for all fetches to complete, in milliseconds.
+     * @throws Exception When there was a problem running the round.
+     */
+    private long runRound(final HttpTransport transport, final String path) throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(CONCURRENT_FETCHES);
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < CONCURRENT_FETCHES; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        final HttpURLConnection conn = transport.openConnection(
+                                server.getUrl(path), null);
+
+                        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK ||
+                                NioHttpEngineTests.read(conn.getInputStream()).length() == 0) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long start = System.nanoTime();
+        startLatch.countDown();
+        doneLatch.await();
+        final long time = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(0, failures.get());
+
+        return time;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.rivernile.android.fetchutils.fetchers.HttpTransport;
+
+/**
+ * Tests for {@link NioHttpEngine}.
+ *
+ * @author Niall Scott
+ */
+public class NioHttpEngineTests extends TestCase {
+
+    private LoopbackHttpServer server;
+    private NioHttpEngine engine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new LoopbackHttpServer();
+        engine = new NioHttpEngine(5, 300000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        engine.shutdown();
+        server.stop();
+        engine = null;
+        server = null;
+    }
+
+    /**
+     * Test that a response with a {@code Content-Length} is read correctly.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testGetWithContentLength() throws IOException {
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/hello"), null);
+
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("OK", conn.getResponseMessage());
+        assertEquals("text/plain", conn.getHeaderField("content-type"));
+        assertEquals(11, conn.getContentLength());
+        assertEquals("Hello world", read(conn.getInputStream()));
+    }
+
+    /**
+     * Test that a chunked response is decoded.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testGetChunked() throws IOException {
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/chunked"), null);
+
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("Hello world", read(conn.getInputStream()));
+    }
+
+    /**
+     * Test that a body much larger than the body buffer is delivered intact, with the engine
+     * pausing the socket while the reader catches up.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testLargeBody() throws IOException {
+        final int length = engine.getBodyBufferSize() * 8 + 123;
+        final HttpURLConnection conn = engine.openConnection(
+                server.getUrl("/large?n=" + length), null);
+        final InputStream in = conn.getInputStream();
+        final byte[] buffer = new byte[1000];
+        int total = 0;
+        int read;
+
+        try {
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    assertEquals((byte) (total + i), buffer[i]);
+                }
+
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        assertEquals(length, total);
+    }
+
+    /**
+     * Test that a socket is reused for a second request to the same host once the first
+     * response has been fully read.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testKeepAliveReuse() throws Exception {
+        assertEquals("Hello world", read(engine.openConnection(server.getUrl("/hello"), null)
+                .getInputStream()));
+        waitForIdle(1);
+        assertEquals("Hello world", read(engine.openConnection(server.getUrl("/chunked"), null)
+                .getInputStream()));
+
+        assertEquals(1, engine.getConnectCount());
+        assertEquals(1, engine.getReuseCount());
+        assertEquals(1, server.getAcceptCount());
+    }
+
+    /**
+     * Test that a request succeeds when the idle socket it would reuse has been closed by the
+     * server.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testIdleSocketClosedByServer() throws IOException {
+        assertEquals("Hello world", read(engine.openConnection(server.getUrl("/close"), null)
+                .getInputStream()));
+        assertEquals("Hello world", read(engine.openConnection(server.getUrl("/hello"), null)
+                .getInputStream()));
+
+        assertEquals(2, engine.getConnectCount());
+        assertEquals(2, server.getAcceptCount());
+    }
+
+    /**
+     * Test that a fixed length request body is sent.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testPostFixedLength() throws IOException {
+        final byte[] body = "name=value".getBytes("UTF-8");
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/echo"), null);
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        final OutputStream out = conn.getOutputStream();
+        out.write(body);
+        out.close();
+
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("name=value", read(conn.getInputStream()));
+    }
+
+    /**
+     * Test that a chunked request body larger than the staging buffer is sent.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testPostChunked() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i).append(',');
+        }
+
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/echo"), null);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(0);
+        final OutputStream out = conn.getOutputStream();
+        out.write(sb.toString().getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(sb.toString(), read(conn.getInputStream()));
+    }
+
+    /**
+     * Test that a {@code 404} response throws a {@link FileNotFoundException} from
+     * {@link HttpURLConnection#getInputStream()}, and its body is available from
+     * {@link HttpURLConnection#getErrorStream()}.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testNotFound() throws IOException {
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/missing"), null);
+
+        assertEquals(404, conn.getResponseCode());
+
+        try {
+            conn.getInputStream();
+            fail("The response is a 404, so a FileNotFoundException should be thrown.");
+        } catch (FileNotFoundException e) {
+            // This is expected.
+        }
+
+        assertEquals("Not found", read(conn.getErrorStream()));
+    }
+
+    /**
+     * Test that disconnecting while the response is being waited for aborts the request.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testDisconnectAbortsRequest() throws Exception {
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/slow?ms=5000"),
+                null);
+        conn.connect();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Disconnect now.
+                }
+
+                conn.disconnect();
+            }
+        });
+        final long start = System.currentTimeMillis();
+        thread.start();
+
+        try {
+            conn.getResponseCode();
+            fail("The connection was disconnected, so an IOException should be thrown.");
+        } catch (IOException e) {
+            // This is expected.
+        }
+
+        thread.join();
+        assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+
+    /**
+     * Test that a read timeout is applied while waiting for the response.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testReadTimeout() throws IOException {
+        final HttpURLConnection conn = engine.openConnection(server.getUrl("/slow?ms=5000"),
+                null);
+        conn.setReadTimeout(200);
+
+        try {
+            conn.getResponseCode();
+            fail("The server is too slow, so a SocketTimeoutException should be thrown.");
+        } catch (SocketTimeoutException e) {
+            // This is expected.
+        }
+    }
+
+    /**
+     * Test that many requests waiting on the server at the same time are all served.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testManyConcurrentRequests() throws Exception {
+        final int count = 200;
+        final Thread[] threads = new Thread[count];
+        final AtomicInteger successes = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final HttpURLConnection conn = engine.openConnection(
+                                server.getUrl("/slow?ms=300"), null);
+
+                        if ("Hello world".equals(read(conn.getInputStream()))) {
+                            successes.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // Counted as a failure.
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(count, successes.get());
+        assertTrue(engine.getIdleConnectionCount() <= 5);
+    }
+
+    /**
+     * Test that {@code https} URLs and explicit proxies are given to the fallback transport.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testFallback() throws IOException {
+        final AtomicInteger fallbackCount = new AtomicInteger();
+        final NioHttpEngine fallbackEngine = new NioHttpEngine(5, 300000, new HttpTransport() {
+            @Override
+            public HttpURLConnection openConnection(final URL url, final Proxy proxy)
+                    throws IOException {
+                fallbackCount.incrementAndGet();
+                return (HttpURLConnection) url.openConnection();
+            }
+        });
+
+        fallbackEngine.openConnection(new URL("https://127.0.0.1/"), null);
+        fallbackEngine.openConnection(server.getUrl("/hello"), Proxy.NO_PROXY);
+        assertEquals(1, fallbackCount.get());
+
+        fallbackEngine.shutdown();
+    }
+
+    /**
+     * Test that connecting after the engine has been shut down throws an {@link IOException}.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testConnectAfterShutdown() throws IOException {
+        engine.shutdown();
+        assertTrue(engine.isShutdown());
+
+        try {
+            engine.openConnection(server.getUrl("/hello"), null).connect();
+        } catch (IOException e) {
+            return;
+        }
+
+        fail("The engine has been shut down, so an IOException should be thrown.");
+    }
+
+    /**
+     * Wait for the engine to have the given number of idle connections, as connections are
+     * released by the I/O thread.
+     *
+     * @param count The number of idle connections to wait for.
+     * @throws InterruptedException When the thread was interrupted while waiting.
+     */
+    private void waitForIdle(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 2000;
+
+        while (engine.getIdleConnectionCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Read the whole of an {@link InputStream} as {@code UTF-8}, and close it.
+     *
+     * @param in The {@link InputStream} to read.
+     * @return The contents of the stream.
+     * @throws IOException When there was a problem reading the stream.
+     */
+    static String read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+
+        try {
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.List;
+
+import static uk.org.rivernile.android.fetchutils.fetchers.readers
+        .StreamingJSONFetcherStreamReaderTests.stream;
+
+/**
+ * Tests for {@link BindingJSONFetcherStreamReader}, and the binders generated for
+ * {@link JSONModel} classes.
+ *
+ * @author Niall Scott
+ */
+public class BindingJSONFetcherStreamReaderTests extends TestCase {
+
+    /**
+     * Test that each supported kind of field is filled, renamed fields are matched, and unknown
+     * members are skipped.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBindObject() throws IOException {
+        final BindingJSONFetcherStreamReader<Stop> reader =
+                new BindingJSONFetcherStreamReader<>(
+                        BindingJSONFetcherStreamReaderTests_StopJSONBinder.INSTANCE);
+        reader.readInputStream(stream("{\"stop_code\": 36232, \"name\": \"Princes St\", "
+                + "\"unknown\": {\"a\": [1, 2]}, \"latitude\": 55.95, \"accessible\": true, "
+                + "\"orientation\": null, \"services\": [\"1\", \"22\"], "
+                + "\"grid\": [[1, 2], [3]], \"departures\": [{\"service\": \"22\", "
+                + "\"minutes\": 4, \"live\": true}, null]}"));
+
+        final Stop stop = reader.getResult();
+        assertEquals(36232, stop.code);
+        assertEquals("Princes St", stop.name);
+        assertEquals(55.95, stop.latitude);
+        assertTrue(stop.accessible);
+        assertNull(stop.orientation);
+        assertEquals("22", stop.services.get(1));
+        assertEquals(3, (int) stop.grid.get(1).get(0));
+        assertEquals(2, stop.departures.size());
+        assertEquals("22", stop.departures.get(0).service);
+        assertEquals(4L, stop.departures.get(0).minutes);
+        assertTrue(stop.departures.get(0).live);
+        assertNull(stop.departures.get(1));
+    }
+
+    /**
+     * Test that a root array is bound with {@link JSONBinders#listOf(JSONBinder)}.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBindRootArray() throws IOException {
+        final BindingJSONFetcherStreamReader<List<Departure>> reader =
+                new BindingJSONFetcherStreamReader<>(JSONBinders.listOf(
+                        BindingJSONFetcherStreamReaderTests_DepartureJSONBinder.INSTANCE));
+        reader.readInputStream(stream("[{\"service\": \"4\"}, {\"minutes\": 12}]"));
+
+        final List<Departure> departures = reader.getResult();
+        assertEquals(2, departures.size());
+        assertEquals("4", departures.get(0).service);
+        assertEquals(12L, departures.get(1).minutes);
+        assertNull(departures.get(1).service);
+    }
+
+    /**
+     * Test that a {@link MalformedJSONException} is thrown when the document does not have the
+     * expected structure, and no result is kept.
+     */
+    public void testWrongStructure() {
+        final BindingJSONFetcherStreamReader<Stop> reader =
+                new BindingJSONFetcherStreamReader<>(
+                        BindingJSONFetcherStreamReaderTests_StopJSONBinder.INSTANCE);
+
+        try {
+            reader.readInputStream(stream("{\"stop_code\": \"not a number\"}"));
+        } catch (IOException e) {
+            assertTrue(e instanceof MalformedJSONException);
+            assertNull(reader.getResult());
+            return;
+        }
+
+        fail("The stop code is not a number, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * Test that a {@link MalformedJSONException} is thrown when there is more than one value in
+     * the document.
+     */
+    public void testTrailingValue() {
+        final BindingJSONFetcherStreamReader<Departure> reader =
+                new BindingJSONFetcherStreamReader<>(
+                        BindingJSONFetcherStreamReaderTests_DepartureJSONBinder.INSTANCE);
+
+        try {
+            reader.readInputStream(stream("{} {}"));
+        } catch (IOException e) {
+            return;
+        }
+
+        fail("There is a trailing value, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * A model of a stop, holding each supported kind of field.
+     */
+    @JSONModel
+    static class Stop {
+
+        @JSONField("stop_code") int code;
+        @JSONField String name;
+        @JSONField double latitude;
+        @JSONField boolean accessible;
+        @JSONField Integer orientation;
+        @JSONField List<String> services;
+        @JSONField List<List<Integer>> grid;
+        @JSONField List<Departure> departures;
+        String notBound;
+    }
+
+    /**
+     * A model of a departure.
+     */
+    @JSONModel
+    static class Departure {
+
+        @JSONField String service;
+        @JSONField long minutes;
+        @JSONField Boolean live;
+    }
+}
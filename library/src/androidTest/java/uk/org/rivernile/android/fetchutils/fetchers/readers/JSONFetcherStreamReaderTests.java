@@ -20,6 +20,9 @@ import junit.framework.TestCase;
 
 import org.json.JSONException;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
 /**
  * Tests for {@link JSONFetcherStreamReader}.
  * 
@@ -68,4 +71,61 @@ public class JSONFetcherStreamReaderTests extends TestCase {
         
         fail("The data is null, so attempting to get a JSONArray should yield a JSONException.");
     }
-}
\ No newline at end of file
+    
+    /**
+     * Test that a {@link JSONException} is thrown when the data is {@code null}.
+     */
+    public void testGetLazyJSONObjectWithNullData() {
+        try {
+            reader.getLazyJSONObject();
+        } catch (JSONException e) {
+            return;
+        }
+        
+        fail("The data is null, so attempting to get a LazyJSONObject should yield a "
+                + "JSONException.");
+    }
+    
+    /**
+     * Test that the parsed documents are kept, so the same instances are returned each time.
+     * 
+     * @throws Exception This should not happen in this test.
+     */
+    public void testParsedDocumentsAreMemoised() throws Exception {
+        reader.readInputStream(new ByteArrayInputStream("{\"a\": 1}".getBytes("UTF-8")));
+        
+        assertSame(reader.getJSONObject(), reader.getJSONObject());
+        assertSame(reader.getLazyJSONObject(), reader.getLazyJSONObject());
+    }
+    
+    /**
+     * Test that reading another stream discards the parsed documents.
+     * 
+     * @throws Exception This should not happen in this test.
+     */
+    public void testReadingAgainDiscardsParsedDocuments() throws Exception {
+        reader.readInputStream(new ByteArrayInputStream("[1]".getBytes("UTF-8")));
+        assertEquals(1, reader.getJSONArray().length());
+        
+        reader.readInputStream(new ByteArrayInputStream("[1, 2]".getBytes("UTF-8")));
+        assertEquals(2, reader.getJSONArray().length());
+    }
+    
+    /**
+     * Test that a failed parse is not kept, so it is attempted again.
+     * 
+     * @throws IOException This should not happen in this test.
+     */
+    public void testFailedParseIsNotMemoised() throws IOException {
+        reader.readInputStream(new ByteArrayInputStream("[1]".getBytes("UTF-8")));
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                reader.getLazyJSONObject();
+                fail("The data is an array, so a JSONException should be thrown.");
+            } catch (JSONException e) {
+                // This is expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+import static uk.org.rivernile.android.fetchutils.fetchers.readers
+        .StreamingJSONFetcherStreamReaderTests.stream;
+
+/**
+ * Tests for {@link JSONPathFetcherStreamReader}.
+ *
+ * @author Niall Scott
+ */
+public class JSONPathFetcherStreamReaderTests extends TestCase {
+
+    private static final String DOCUMENT = "{\"version\": 2, \"services\": ["
+            + "{\"name\": \"1\", \"departures\": [{\"time\": \"10:00\"}, {\"time\": \"10:30\"}]},"
+            + "{\"name\": \"2\", \"departures\": []},"
+            + "{\"name\": \"3\", \"departures\": [{\"time\": \"11:00\"}], \"extra\": [1, 2]}]}";
+
+    /**
+     * Test that wildcards and indices select the expected values, in document order.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testWildcardsAndIndices() throws IOException {
+        final JSONPathFetcherStreamReader reader = new JSONPathFetcherStreamReader(
+                "services[*].departures[0].time", "$.services[*].name", "services[1].name",
+                "version", "missing.value");
+        reader.readInputStream(stream(DOCUMENT));
+
+        final List<Object> times = reader.getValues("services[*].departures[0].time");
+        assertEquals(2, times.size());
+        assertEquals("10:00", times.get(0));
+        assertEquals("11:00", times.get(1));
+        assertEquals(3, reader.getValues("$.services[*].name").size());
+        assertEquals("2", reader.getValue("services[1].name"));
+        assertEquals(2, reader.getValue("version"));
+        assertNull(reader.getValue("missing.value"));
+    }
+
+    /**
+     * Test that a path which ends where another carries on gets the whole value, and the other
+     * path still gets its values.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testOverlappingPaths() throws Exception {
+        final JSONPathFetcherStreamReader reader = new JSONPathFetcherStreamReader(
+                "services[2]", "services[*].extra[*]", "services.*");
+        reader.readInputStream(stream(DOCUMENT));
+
+        assertEquals("3", ((JSONObject) reader.getValue("services[2]")).getString("name"));
+        assertEquals(2, reader.getValues("services[*].extra[*]").size());
+        assertEquals(2, reader.getValues("services[*].extra[*]").get(1));
+        assertTrue(reader.getValues("services.*").isEmpty());
+    }
+
+    /**
+     * Test that a selected value may be an array, and that reading again discards the values
+     * from the last document.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testReadingAgainDiscardsValues() throws IOException {
+        final JSONPathFetcherStreamReader reader =
+                new JSONPathFetcherStreamReader("services[0].departures");
+        reader.readInputStream(stream(DOCUMENT));
+        assertEquals(2, ((JSONArray) reader.getValue("services[0].departures")).length());
+
+        reader.readInputStream(stream("{\"services\": {}}"));
+        assertNull(reader.getValue("services[0].departures"));
+    }
+
+    /**
+     * Test that a {@link MalformedJSONException} is thrown for a document which is not valid,
+     * even where it is not selected.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testMalformedDocument() throws IOException {
+        final JSONPathFetcherStreamReader reader = new JSONPathFetcherStreamReader("a");
+
+        try {
+            reader.readInputStream(stream("{\"a\": 1, \"b\": [1 2]}"));
+        } catch (MalformedJSONException e) {
+            return;
+        }
+
+        fail("The document is not valid, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * Test that an {@link IllegalArgumentException} is thrown for paths which are not valid.
+     */
+    public void testInvalidPaths() {
+        final String[] paths = { "$", "a..b", "a[x]", "a[1", "a[-1]", "a]b[0" };
+
+        for (String path : paths) {
+            try {
+                new JSONPathFetcherStreamReader(path);
+                fail("The path " + path + " is not valid, so an IllegalArgumentException "
+                        + "should be thrown.");
+            } catch (IllegalArgumentException e) {
+                // This is expected.
+            }
+        }
+    }
+
+    /**
+     * Test that an {@link IllegalArgumentException} is thrown when asking for a path which was
+     * not given.
+     */
+    public void testGetValuesForUnknownPath() {
+        try {
+            new JSONPathFetcherStreamReader("a").getValues("b");
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The path was not given, so an IllegalArgumentException should be thrown.");
+    }
+}
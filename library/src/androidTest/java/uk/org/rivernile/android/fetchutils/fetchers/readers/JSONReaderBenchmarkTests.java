@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A benchmark of the JSON readers, run against a generated list of stops of a few megabytes.
+ * For each reader, every stop is visited and one of its fields is read, or the whole document is
+ * filled in to model objects. The average time taken and the peak heap growth while reading are
+ * written to the log under the tag {@code JSONReaderBenchmark}, to be compared by hand. The peak
+ * heap growth is sampled, so it is an approximation. Only the correctness of the readers is
+ * asserted, as timings on a test device vary too much.
+ *
+ * @author Niall Scott
+ */
+public class JSONReaderBenchmarkTests extends TestCase {
+
+    private static final String LOG_TAG = "JSONReaderBenchmark";
+    private static final int STOP_COUNT = 20000;
+    private static final int ROUNDS = 5;
+
+    private static byte[] document;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        if (document == null) {
+            document = createDocument();
+        }
+    }
+
+    /**
+     * Benchmark {@link JSONFetcherStreamReader}, which builds the whole tree, against
+     * {@link StreamingJSONFetcherStreamReader}, which builds one record at a time.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testBenchmarkTreeAgainstStreaming() throws Exception {
+        final Benchmark tree = new Benchmark("JSONFetcherStreamReader") {
+            @Override
+            long run() throws Exception {
+                final JSONFetcherStreamReader reader = new JSONFetcherStreamReader();
+                reader.readInputStream(new ByteArrayInputStream(document));
+                final JSONArray stops = reader.getJSONObject().getJSONArray("stops");
+                long sum = 0;
+
+                for (int i = 0, len = stops.length(); i < len; i++) {
+                    sum += stops.getJSONObject(i).getInt("code");
+                }
+
+                return sum;
+            }
+        };
+        final Benchmark streaming = new Benchmark("StreamingJSONFetcherStreamReader") {
+            @Override
+            long run() throws Exception {
+                final long[] sum = new long[1];
+                new StreamingJSONFetcherStreamReader(
+                        new StreamingJSONFetcherStreamReader.RecordHandler("stops") {
+                            @Override
+                            public void onRecord(final int index, final Object record)
+                                    throws IOException {
+                                try {
+                                    sum[0] += ((JSONObject) record).getInt("code");
+                                } catch (JSONException e) {
+                                    throw new IOException(e.getMessage());
+                                }
+                            }
+                        }).readInputStream(new ByteArrayInputStream(document));
+
+                return sum[0];
+            }
+        };
+
+        final long expected = (long) STOP_COUNT * (STOP_COUNT - 1) / 2;
+        assertEquals(expected, tree.measure());
+        assertEquals(expected, streaming.measure());
+    }
+
+    /**
+     * Benchmark mapping the tree from {@link JSONFetcherStreamReader} on to model objects, against
+     * filling the same model objects straight from the stream with
+     * {@link BindingJSONFetcherStreamReader} and the binders generated for them.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testBenchmarkTreeMappingAgainstBinding() throws Exception {
+        final Benchmark treeMapping = new Benchmark("JSONFetcherStreamReader mapped to models") {
+            @Override
+            long run() throws Exception {
+                final JSONFetcherStreamReader reader = new JSONFetcherStreamReader();
+                reader.readInputStream(new ByteArrayInputStream(document));
+
+                return checksum(mapStopList(reader.getJSONObject()));
+            }
+        };
+        final Benchmark binding = new Benchmark("BindingJSONFetcherStreamReader") {
+            @Override
+            long run() throws Exception {
+                final BindingJSONFetcherStreamReader<StopList> reader =
+                        new BindingJSONFetcherStreamReader<>(
+                                JSONReaderBenchmarkTests_StopListJSONBinder.INSTANCE);
+                reader.readInputStream(new ByteArrayInputStream(document));
+
+                return checksum(reader.getResult());
+            }
+        };
+
+        final long expected = treeMapping.measure();
+        assertEquals(expected, binding.measure());
+    }
+
+    /**
+     * Create the document of stops, encoded as {@code UTF-8}.
+     *
+     * @return The document.
+     * @throws IOException When the document could not be encoded.
+     */
+    static byte[] createDocument() throws IOException {
+        final StringBuilder sb = new StringBuilder("{\"version\": 42, \"stops\": [");
+
+        for (int i = 0; i < STOP_COUNT; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+
+            sb.append("{\"code\": ").append(i)
+                    .append(", \"name\": \"Stop number ").append(i)
+                    .append(" on Princes Street, opposite the gardens\"")
+                    .append(", \"latitude\": ").append(55.95 + i / 1000000.0)
+                    .append(", \"longitude\": ").append(-3.19 - i / 1000000.0)
+                    .append(", \"orientation\": ").append(i % 8)
+                    .append(", \"locality\": \"Edinburgh\"")
+                    .append(", \"services\": [\"1\", \"4\", \"22\", \"X25\", \"N26\"]")
+                    .append(", \"departures\": [{\"service\": \"4\", \"time\": \"12:0")
+                    .append(i % 10).append("\", \"live\": true}, {\"service\": \"22\", ")
+                    .append("\"time\": \"12:1").append(i % 10).append("\", \"live\": false}]}");
+        }
+
+        return sb.append("]}").toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Map the root of the document on to a {@link StopList}, in the way that application code
+     * maps a tree on to its models.
+     *
+     * @param root The root of the document.
+     * @return The {@link StopList}.
+     * @throws JSONException When the tree does not have the expected structure.
+     */
+    private static StopList mapStopList(final JSONObject root) throws JSONException {
+        final StopList stopList = new StopList();
+        stopList.version = root.getInt("version");
+        final JSONArray stops = root.getJSONArray("stops");
+        final int stopCount = stops.length();
+        stopList.stops = new ArrayList<>(stopCount);
+
+        for (int i = 0; i < stopCount; i++) {
+            final JSONObject jsonStop = stops.getJSONObject(i);
+            final Stop stop = new Stop();
+            stop.code = jsonStop.getInt("code");
+            stop.name = jsonStop.getString("name");
+            stop.latitude = jsonStop.getDouble("latitude");
+            stop.longitude = jsonStop.getDouble("longitude");
+            stop.orientation = jsonStop.getInt("orientation");
+            stop.locality = jsonStop.getString("locality");
+
+            final JSONArray services = jsonStop.getJSONArray("services");
+            final int serviceCount = services.length();
+            stop.services = new ArrayList<>(serviceCount);
+
+            for (int j = 0; j < serviceCount; j++) {
+                stop.services.add(services.getString(j));
+            }
+
+            final JSONArray departures = jsonStop.getJSONArray("departures");
+            final int departureCount = departures.length();
+            stop.departures = new ArrayList<>(departureCount);
+
+            for (int j = 0; j < departureCount; j++) {
+                final JSONObject jsonDeparture = departures.getJSONObject(j);
+                final Departure departure = new Departure();
+                departure.service = jsonDeparture.getString("service");
+                departure.time = jsonDeparture.getString("time");
+                departure.live = jsonDeparture.getBoolean("live");
+                stop.departures.add(departure);
+            }
+
+            stopList.stops.add(stop);
+        }
+
+        return stopList;
+    }
+
+    /**
+     * Work out a checksum of a {@link StopList}, which touches every stop and departure.
+     *
+     * @param stopList The {@link StopList}.
+     * @return The checksum.
+     */
+    private static long checksum(final StopList stopList) {
+        long sum = stopList.version;
+
+        for (Stop stop : stopList.stops) {
+            sum += stop.code + stop.orientation + stop.services.size();
+
+            for (Departure departure : stop.departures) {
+                sum += departure.live ? departure.time.length() : 1;
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * The model of the root of the document.
+     */
+    @JSONModel
+    static class StopList {
+
+        @JSONField int version;
+        @JSONField List<Stop> stops;
+    }
+
+    /**
+     * The model of a stop.
+     */
+    @JSONModel
+    static class Stop {
+
+        @JSONField int code;
+        @JSONField String name;
+        @JSONField double latitude;
+        @JSONField double longitude;
+        @JSONField int orientation;
+        @JSONField String locality;
+        @JSONField List<String> services;
+        @JSONField List<Departure> departures;
+    }
+
+    /**
+     * The model of a departure from a stop.
+     */
+    @JSONModel
+    static class Departure {
+
+        @JSONField String service;
+        @JSONField String time;
+        @JSONField boolean live;
+    }
+
+    /**
+     * A reader under benchmark.
+     */
+    abstract static class Benchmark {
+
+        private final String name;
+
+        /**
+         * Create a new {@code Benchmark}.
+         *
+         * @param name The name of the reader, for the log.
+         */
+        Benchmark(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Read the document once.
+         *
+         * @return A checksum of what was read, to compare between readers.
+         * @throws Exception When there was a problem reading the document.
+         */
+        abstract long run() throws Exception;
+
+        /**
+         * Run the reader once to warm up, then a number of rounds while measuring the time taken
+         * and the peak heap growth, and log the results.
+         *
+         * @return The checksum of the last round.
+         * @throws Exception When there was a problem reading the document.
+         */
+        long measure() throws Exception {
+            run();
+            long result = 0;
+            long totalTime = 0;
+            long peakHeap = 0;
+
+            for (int i = 0; i < ROUNDS; i++) {
+                final Runtime runtime = Runtime.getRuntime();
+                System.gc();
+                final long baseline = runtime.totalMemory() - runtime.freeMemory();
+                final HeapSampler sampler = new HeapSampler();
+                sampler.start();
+                final long start = System.nanoTime();
+
+                try {
+                    result = run();
+                } finally {
+                    totalTime += System.nanoTime() - start;
+                    sampler.finish();
+                }
+
+                peakHeap = Math.max(peakHeap, sampler.peak - baseline);
+            }
+
+            Log.i(LOG_TAG, name + ": " + document.length / 1024 + " KB document, average "
+                    + (totalTime / ROUNDS / 1000000) + "ms, peak heap growth "
+                    + (peakHeap / 1024) + " KB.");
+
+            return result;
+        }
+    }
+
+    /**
+     * A {@link Thread} which samples the used heap until it is finished, keeping the peak.
+     */
+    private static class HeapSampler extends Thread {
+
+        private volatile boolean finished;
+        private volatile long peak;
+
+        @Override
+        public void run() {
+            final Runtime runtime = Runtime.getRuntime();
+
+            while (!finished) {
+                peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop sampling, and wait for the sampler to finish.
+         *
+         * @throws InterruptedException When the thread was interrupted while waiting.
+         */
+        void finish() throws InterruptedException {
+            finished = true;
+            join();
+        }
+    }
+}
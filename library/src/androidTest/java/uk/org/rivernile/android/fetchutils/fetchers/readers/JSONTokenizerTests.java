@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Tests for {@link JSONTokenizer}.
+ *
+ * @author Niall Scott
+ */
+public class JSONTokenizerTests extends TestCase {
+
+    /**
+     * Test that each kind of value in an object is read.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testReadObject() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer(
+                "{\"s\": \"text\", \"i\": -42, \"d\": 1.5e2, \"t\": true, \"f\": false, "
+                        + "\"n\": null, \"l\": 12345678901}");
+
+        tokenizer.beginObject();
+        assertEquals("s", tokenizer.nextName());
+        assertEquals("text", tokenizer.nextString());
+        assertEquals("i", tokenizer.nextName());
+        assertEquals(-42, tokenizer.nextInt());
+        assertEquals("d", tokenizer.nextName());
+        assertEquals(150.0, tokenizer.nextDouble());
+        assertEquals("t", tokenizer.nextName());
+        assertTrue(tokenizer.nextBoolean());
+        assertEquals("f", tokenizer.nextName());
+        assertFalse(tokenizer.nextBoolean());
+        assertEquals("n", tokenizer.nextName());
+        tokenizer.nextNull();
+        assertEquals("l", tokenizer.nextName());
+        assertEquals(12345678901L, tokenizer.nextLong());
+        assertFalse(tokenizer.hasNext());
+        tokenizer.endObject();
+        assertEquals(JSONToken.END_DOCUMENT, tokenizer.peek());
+    }
+
+    /**
+     * Test that nested arrays are read, including empty ones.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testReadNestedArrays() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer("[[], [1, [2]], {}]");
+
+        tokenizer.beginArray();
+        tokenizer.beginArray();
+        assertFalse(tokenizer.hasNext());
+        tokenizer.endArray();
+        tokenizer.beginArray();
+        assertEquals(1, tokenizer.nextInt());
+        tokenizer.beginArray();
+        assertEquals(2, tokenizer.nextInt());
+        tokenizer.endArray();
+        tokenizer.endArray();
+        tokenizer.beginObject();
+        tokenizer.endObject();
+        tokenizer.endArray();
+        assertEquals(JSONToken.END_DOCUMENT, tokenizer.peek());
+    }
+
+    /**
+     * Test that escape sequences in strings are decoded.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testEscapes() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer(
+                "[\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u20AC\"]");
+
+        tokenizer.beginArray();
+        assertEquals("a\"b\\c/d\n\t\u00e9\u20ac", tokenizer.nextString());
+        tokenizer.endArray();
+    }
+
+    /**
+     * Test that strings and numbers which are longer than the buffer of the tokenizer, and
+     * tokens which are split across reads, are read correctly.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testTokensAcrossReads() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + i % 26));
+
+            if (i % 5000 == 0) {
+                sb.append("\\n");
+            }
+        }
+
+        final String json = "{\"long\": \"" + sb + "\", \"number\": 123456789}";
+        final JSONTokenizer tokenizer = new JSONTokenizer(new TrickleReader(json));
+
+        tokenizer.beginObject();
+        assertEquals("long", tokenizer.nextName());
+        assertEquals(sb.toString().replace("\\n", "\n"), tokenizer.nextString());
+        assertEquals("number", tokenizer.nextName());
+        assertEquals(123456789, tokenizer.nextInt());
+        tokenizer.endObject();
+    }
+
+    /**
+     * Test that names are found by {@link JSONTokenizer#selectName(String[])}, including names
+     * with escapes and names split across reads.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testSelectName() throws IOException {
+        final String[] names = { "time", "route" };
+        final JSONTokenizer tokenizer = new JSONTokenizer(new TrickleReader(
+                "{\"destination\": 1, \"route\": 2, \"t\\u0069me\": 3, \"routes\": 4}"));
+
+        tokenizer.beginObject();
+        assertEquals(-1, tokenizer.selectName(names));
+        tokenizer.skipValue();
+        assertEquals(1, tokenizer.selectName(names));
+        assertEquals("$.route", tokenizer.getPath());
+        assertEquals(2, tokenizer.nextInt());
+        assertEquals(0, tokenizer.selectName(names));
+        assertEquals(3, tokenizer.nextInt());
+        assertEquals(-1, tokenizer.selectName(names));
+        tokenizer.skipValue();
+        tokenizer.endObject();
+    }
+
+    /**
+     * Test that skipped values, including whole sub-trees and names, are passed over.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testSkipValue() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer(
+                "{\"a\": {\"b\": [1, \"x\\\"]\", {\"c\": null}]}, \"d\": true, \"e\": 5}");
+
+        tokenizer.beginObject();
+        assertEquals("a", tokenizer.nextName());
+        tokenizer.skipValue();
+        tokenizer.skipValue();
+        assertEquals("e", tokenizer.nextName());
+        assertEquals(5, tokenizer.nextInt());
+        tokenizer.endObject();
+    }
+
+    /**
+     * Test that {@link JSONTokenizer#readValue()} builds the same types as {@code org.json}.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testReadValue() throws Exception {
+        final JSONTokenizer tokenizer = tokenizer(
+                "{\"name\": \"Stop\", \"code\": 7, \"big\": 9876543210, \"lat\": 55.9, "
+                        + "\"services\": [\"1\", \"2\"], \"open\": true, \"note\": null}");
+        final JSONObject object = (JSONObject) tokenizer.readValue();
+
+        assertEquals("Stop", object.getString("name"));
+        assertEquals(Integer.valueOf(7), object.get("code"));
+        assertEquals(Long.valueOf(9876543210L), object.get("big"));
+        assertEquals(Double.valueOf(55.9), object.get("lat"));
+        final JSONArray services = object.getJSONArray("services");
+        assertEquals(2, services.length());
+        assertEquals("2", services.getString(1));
+        assertEquals(Boolean.TRUE, object.get("open"));
+        assertEquals(JSONObject.NULL, object.get("note"));
+        assertEquals(JSONToken.END_DOCUMENT, tokenizer.peek());
+    }
+
+    /**
+     * Test that the path points at the current position in the document.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testGetPath() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer("{\"services\": [{\"name\": \"1\"}, "
+                + "{\"name\": \"2\"}]}");
+
+        assertEquals("$", tokenizer.getPath());
+        tokenizer.beginObject();
+        tokenizer.nextName();
+        tokenizer.beginArray();
+        tokenizer.skipValue();
+        tokenizer.beginObject();
+        tokenizer.nextName();
+        assertEquals("$.services[1].name", tokenizer.getPath());
+    }
+
+    /**
+     * Test that malformed documents throw a {@link MalformedJSONException}.
+     */
+    public void testMalformedDocuments() {
+        final String[] documents = {
+                "", "{", "{\"a\" 1}", "{\"a\": 1,}", "[1 2]", "[\"unterminated]", "{a: 1}",
+                "[tru]", "[nul]", "[\"\\x\"]", "[1] [2]", "[-]"
+        };
+
+        for (String document : documents) {
+            try {
+                final JSONTokenizer tokenizer = tokenizer(document);
+                tokenizer.readValue();
+                tokenizer.peek();
+                fail("The document " + document + " is malformed, so a MalformedJSONException "
+                        + "should be thrown.");
+            } catch (MalformedJSONException e) {
+                // This is expected.
+            } catch (IOException e) {
+                fail("A MalformedJSONException should be thrown, but was " + e);
+            }
+        }
+    }
+
+    /**
+     * Test that asking for the wrong kind of token throws a {@link MalformedJSONException}
+     * which includes the path.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testUnexpectedToken() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer("{\"stops\": {}}");
+        tokenizer.beginObject();
+        tokenizer.nextName();
+
+        try {
+            tokenizer.beginArray();
+        } catch (MalformedJSONException e) {
+            assertTrue(e.getMessage().contains("$.stops"));
+            return;
+        }
+
+        fail("The value is an object, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * Test that a number with a fraction is not silently truncated when read as a {@code long}.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testNextLongWithFraction() throws IOException {
+        final JSONTokenizer tokenizer = tokenizer("[1.0, 1.5]");
+        tokenizer.beginArray();
+        assertEquals(1L, tokenizer.nextLong());
+
+        try {
+            tokenizer.nextLong();
+        } catch (MalformedJSONException e) {
+            return;
+        }
+
+        fail("1.5 is not a long, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * Create a {@link JSONTokenizer} over the given document.
+     *
+     * @param json The document.
+     * @return A {@link JSONTokenizer} over the given document.
+     */
+    private static JSONTokenizer tokenizer(final String json) {
+        return new JSONTokenizer(new StringReader(json));
+    }
+
+    /**
+     * A {@link Reader} which gives out at most 7 characters per read, to test tokens which are
+     * split across reads.
+     */
+    private static class TrickleReader extends StringReader {
+
+        /**
+         * Create a new {@code TrickleReader}.
+         *
+         * @param s The text to read.
+         */
+        TrickleReader(final String s) {
+            super(s);
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 7));
+        }
+    }
+}
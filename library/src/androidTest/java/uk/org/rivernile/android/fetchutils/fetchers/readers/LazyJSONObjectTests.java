@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+import java.util.Iterator;
+
+/**
+ * Tests for {@link LazyJSONObject}.
+ *
+ * @author Niall Scott
+ */
+public class LazyJSONObjectTests extends TestCase {
+
+    /**
+     * Test that each kind of member is read, and that the members keep their document order.
+     *
+     * @throws JSONException This should not happen in this test.
+     */
+    public void testReadMembers() throws JSONException {
+        final LazyJSONObject object = new LazyJSONObject(
+                "{\"s\": \"text\", \"i\": -42, \"d\": 1.5, \"t\": true, \"n\": null, "
+                        + "\"o\": {\"a\": [1, 2]}, \"arr\": [\"x\"]}");
+
+        assertEquals(7, object.length());
+        assertEquals("text", object.getString("s"));
+        assertEquals(-42, object.getInt("i"));
+        assertEquals(1.5, object.getDouble("d"));
+        assertTrue(object.getBoolean("t"));
+        assertTrue(object.isNull("n"));
+        assertTrue(object.isNull("missing"));
+        assertEquals(2, object.getJSONObject("o").getJSONArray("a").getInt(1));
+        assertEquals("x", object.getJSONArray("arr").getString(0));
+
+        final Iterator<String> keys = object.keys();
+        assertEquals("s", keys.next());
+        assertEquals("i", keys.next());
+    }
+
+    /**
+     * Test that members beyond the size of the tokenizer buffer are found at the correct offset.
+     *
+     * @throws JSONException This should not happen in this test.
+     */
+    public void testMembersAfterLargeValue() throws JSONException {
+        final StringBuilder sb = new StringBuilder("{\"big\": \"");
+
+        for (int i = 0; i < 20000; i++) {
+            sb.append('a');
+        }
+
+        sb.append("\", \"last\": 7}");
+        final LazyJSONObject object = new LazyJSONObject(sb.toString());
+
+        assertEquals(20000, object.getString("big").length());
+        assertEquals(7, object.getInt("last"));
+    }
+
+    /**
+     * Test that a parsed value is kept, so the same instance is returned each time.
+     *
+     * @throws JSONException This should not happen in this test.
+     */
+    public void testValuesAreMemoised() throws JSONException {
+        final LazyJSONObject object = new LazyJSONObject("{\"o\": {}}");
+
+        assertSame(object.getJSONObject("o"), object.getJSONObject("o"));
+    }
+
+    /**
+     * Test that a {@link JSONException} is thrown for a member which does not exist.
+     *
+     * @throws JSONException This should not happen when creating the object.
+     */
+    public void testGetMissingMember() throws JSONException {
+        final LazyJSONObject object = new LazyJSONObject("{}");
+
+        try {
+            object.get("missing");
+        } catch (JSONException e) {
+            return;
+        }
+
+        fail("The member does not exist, so a JSONException should be thrown.");
+    }
+
+    /**
+     * Test that a {@link JSONException} is thrown when the document is not valid.
+     */
+    public void testInvalidDocument() {
+        try {
+            new LazyJSONObject("{\"a\": [1, }");
+        } catch (JSONException e) {
+            return;
+        }
+
+        fail("The document is not valid, so a JSONException should be thrown.");
+    }
+}
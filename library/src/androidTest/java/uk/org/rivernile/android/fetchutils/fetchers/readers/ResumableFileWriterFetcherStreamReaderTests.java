@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests for {@link ResumableFileWriterFetcherStreamReader}.
+ *
+ * @author Niall Scott
+ */
+public class ResumableFileWriterFetcherStreamReaderTests extends InstrumentationTestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "ResumableFileWriterFetcherStreamReaderTests");
+        file.delete();
+        new File(file.getPath() + ".validator").delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        file.delete();
+        new File(file.getPath() + ".validator").delete();
+        file = null;
+    }
+
+    /**
+     * Test that there is nothing to resume when the file does not exist.
+     */
+    public void testNothingToResumeWhenFileDoesNotExist() {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(file);
+
+        assertEquals(0, reader.getResumeOffset());
+        assertNull(reader.getResumeValidator());
+        assertFalse(reader.isResumable());
+    }
+
+    /**
+     * Test that a body which is read to the end leaves a complete file and nothing to resume.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testCompleteBodyLeavesNothingToResume() throws IOException {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(file);
+        reader.prepareForResponse(false, "\"v1\"");
+        reader.readInputStream(new ByteArrayInputStream("Hello world".getBytes("UTF-8")));
+
+        assertEquals("Hello world", readFile());
+        assertFalse(reader.getValidatorFile().exists());
+        assertEquals(0, reader.getResumeOffset());
+    }
+
+    /**
+     * Test that a body which fails part way through leaves a partial file which can be resumed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testInterruptedBodyCanBeResumed() throws IOException {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(file);
+        reader.prepareForResponse(false, "\"v1\"");
+
+        try {
+            reader.readInputStream(new FailingInputStream("Hello ".getBytes("UTF-8")));
+            fail("The stream failed, so an IOException should be thrown.");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        assertEquals("Hello ", readFile());
+        assertEquals(6, reader.getResumeOffset());
+        assertEquals("\"v1\"", reader.getResumeValidator());
+        assertTrue(reader.isResumable());
+
+        reader.prepareForResponse(true, "\"v1\"");
+        reader.readInputStream(new ByteArrayInputStream("world".getBytes("UTF-8")));
+
+        assertEquals("Hello world", readFile());
+        assertFalse(reader.isResumable());
+    }
+
+    /**
+     * Test that the partial file is discarded when the whole body is sent instead of the
+     * remainder.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testWholeBodyReplacesPartialFile() throws IOException {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(file);
+        reader.prepareForResponse(false, "\"v1\"");
+
+        try {
+            reader.readInputStream(new FailingInputStream("Stale".getBytes("UTF-8")));
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        reader.prepareForResponse(false, "\"v2\"");
+        reader.readInputStream(new ByteArrayInputStream("Hello world".getBytes("UTF-8")));
+
+        assertEquals("Hello world", readFile());
+    }
+
+    /**
+     * Test that a body without a validator cannot be resumed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testBodyWithoutValidatorCannotBeResumed() throws IOException {
+        final ResumableFileWriterFetcherStreamReader reader =
+                new ResumableFileWriterFetcherStreamReader(file);
+        reader.prepareForResponse(false, null);
+
+        try {
+            reader.readInputStream(new FailingInputStream("Hello ".getBytes("UTF-8")));
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        assertEquals(0, reader.getResumeOffset());
+        assertNull(reader.getResumeValidator());
+    }
+
+    /**
+     * Read the contents of the test file.
+     *
+     * @return The contents of the test file.
+     * @throws IOException When there was a problem reading the file.
+     */
+    private String readFile() throws IOException {
+        final InputStream in = new FileInputStream(file);
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+
+        try {
+            reader.readInputStream(in);
+        } finally {
+            in.close();
+        }
+
+        return reader.getData();
+    }
+
+    /**
+     * This {@link InputStream} gives the supplied bytes, then fails as if the connection had
+     * dropped.
+     */
+    private static class FailingInputStream extends InputStream {
+
+        private final ByteArrayInputStream in;
+
+        /**
+         * Create a new {@code FailingInputStream}.
+         *
+         * @param data The bytes to give before failing.
+         */
+        private FailingInputStream(final byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+
+            if (b == -1) {
+                throw new IOException("The connection dropped.");
+            }
+
+            return b;
+        }
+    }
+}
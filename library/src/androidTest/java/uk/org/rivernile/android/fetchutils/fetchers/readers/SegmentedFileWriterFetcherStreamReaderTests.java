@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests for {@link SegmentedFileWriterFetcherStreamReader}.
+ *
+ * @author Niall Scott
+ */
+public class SegmentedFileWriterFetcherStreamReaderTests extends InstrumentationTestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "SegmentedFileWriterFetcherStreamReaderTests");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        file.delete();
+        file = null;
+    }
+
+    /**
+     * Test that segments given out of order are written to their own offsets.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testSegmentsOutOfOrder() throws IOException {
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+        reader.prepareForSegments(11);
+        reader.readSegment(6, 5, stream("world"));
+        reader.readSegment(0, 6, stream("Hello "));
+        reader.finishSegments(true);
+
+        assertEquals("Hello world", readFile());
+    }
+
+    /**
+     * Test that segments given from different threads at the same time are all written.
+     *
+     * @throws Exception This should not happen in this test.
+     */
+    public void testConcurrentSegments() throws Exception {
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+        final String[] parts = { "aaaa", "bbbb", "cccc", "dddd" };
+        final Thread[] threads = new Thread[parts.length];
+        final IOException[] errors = new IOException[parts.length];
+        reader.prepareForSegments(16);
+
+        for (int i = 0; i < parts.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reader.readSegment(index * 4, 4, stream(parts[index]));
+                    } catch (IOException e) {
+                        errors[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+
+        reader.finishSegments(true);
+
+        assertEquals("aaaabbbbccccdddd", readFile());
+    }
+
+    /**
+     * Test that the file is deleted when a segment has failed.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testFileIsDeletedWhenSegmentsFail() throws IOException {
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+        reader.prepareForSegments(11);
+        reader.readSegment(0, 6, stream("Hello "));
+        reader.finishSegments(false);
+
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Test that a segment given before {@code prepareForSegments()} has been called throws an
+     * {@link IOException}.
+     */
+    public void testSegmentBeforePrepare() {
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+
+        try {
+            reader.readSegment(0, 5, stream("Hello"));
+        } catch (IOException e) {
+            return;
+        }
+
+        fail("prepareForSegments() was not called, so an IOException should be thrown.");
+    }
+
+    /**
+     * Test that a body which is not fetched in segments overwrites the file.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testWholeBodyOverwritesFile() throws IOException {
+        final SegmentedFileWriterFetcherStreamReader reader =
+                new SegmentedFileWriterFetcherStreamReader(file);
+        reader.readInputStream(stream("Old data which is longer"));
+        reader.readInputStream(stream("Hello world"));
+
+        assertEquals("Hello world", readFile());
+    }
+
+    /**
+     * Create an {@link InputStream} over the given {@link String}.
+     *
+     * @param data The data of the stream.
+     * @return An {@link InputStream} over the given {@link String}.
+     */
+    private static InputStream stream(final String data) {
+        try {
+            return new ByteArrayInputStream(data.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Read the contents of the test file.
+     *
+     * @return The contents of the test file.
+     * @throws IOException When there was a problem reading the file.
+     */
+    private String readFile() throws IOException {
+        final InputStream in = new FileInputStream(file);
+        final StringFetcherStreamReader reader = new StringFetcherStreamReader();
+
+        try {
+            reader.readInputStream(in);
+        } finally {
+            in.close();
+        }
+
+        return reader.getData();
+    }
+}
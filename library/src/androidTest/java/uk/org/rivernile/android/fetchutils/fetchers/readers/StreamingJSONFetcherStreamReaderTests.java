@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link StreamingJSONFetcherStreamReader}.
+ *
+ * @author Niall Scott
+ */
+public class StreamingJSONFetcherStreamReaderTests extends TestCase {
+
+    /**
+     * Test that the records of an array held by a member of the root object are given to the
+     * {@link StreamingJSONFetcherStreamReader.RecordHandler} in order, and other members are
+     * skipped.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRecordsInNamedArray() throws IOException {
+        final ArrayList<String> names = new ArrayList<>();
+        final StreamingJSONFetcherStreamReader.RecordHandler handler =
+                new StreamingJSONFetcherStreamReader.RecordHandler("stops") {
+            @Override
+            public void onRecord(final int index, final Object record) throws IOException {
+                try {
+                    names.add(index + ":" + ((JSONObject) record).getString("name"));
+                } catch (JSONException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+
+        new StreamingJSONFetcherStreamReader(handler).readInputStream(stream(
+                "{\"version\": 3, \"meta\": {\"a\": [1, 2]}, \"stops\": "
+                        + "[{\"name\": \"Caf\u00e9\"}, {\"name\": \"Bridge\"}], \"end\": true}"));
+
+        assertEquals(2, handler.getRecordCount());
+        assertEquals("0:Caf\u00e9", names.get(0));
+        assertEquals("1:Bridge", names.get(1));
+    }
+
+    /**
+     * Test that the records of a root array are given to the
+     * {@link StreamingJSONFetcherStreamReader.RecordHandler}.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testRecordsInRootArray() throws IOException {
+        final ArrayList<Object> records = new ArrayList<>();
+        final StreamingJSONFetcherStreamReader.RecordHandler handler =
+                new StreamingJSONFetcherStreamReader.RecordHandler(null) {
+            @Override
+            public void onRecord(final int index, final Object record) {
+                records.add(record);
+            }
+        };
+
+        new StreamingJSONFetcherStreamReader(handler).readInputStream(stream("[1, \"two\", null]"));
+
+        assertEquals(3, records.size());
+        assertEquals(1, records.get(0));
+        assertEquals("two", records.get(1));
+        assertEquals(JSONObject.NULL, records.get(2));
+    }
+
+    /**
+     * Test that a truncated document fails with a {@link MalformedJSONException} after the
+     * complete records have been given out.
+     */
+    public void testTruncatedDocument() {
+        final ArrayList<Object> records = new ArrayList<>();
+        final StreamingJSONFetcherStreamReader reader = new StreamingJSONFetcherStreamReader(
+                new StreamingJSONFetcherStreamReader.RecordHandler(null) {
+                    @Override
+                    public void onRecord(final int index, final Object record) {
+                        records.add(record);
+                    }
+                });
+
+        try {
+            reader.readInputStream(stream("[{\"a\": 1}, {\"a\": 2}, {\"a\""));
+        } catch (MalformedJSONException e) {
+            assertEquals(2, records.size());
+            return;
+        } catch (IOException e) {
+            fail("A MalformedJSONException should be thrown, but was " + e);
+        }
+
+        fail("The document is truncated, so a MalformedJSONException should be thrown.");
+    }
+
+    /**
+     * Create an {@link InputStream} over the given {@link String}, encoded as {@code UTF-8}.
+     *
+     * @param data The data of the stream.
+     * @return An {@link InputStream} over the given {@link String}.
+     */
+    static InputStream stream(final String data) {
+        try {
+            return new ByteArrayInputStream(data.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -18,6 +18,8 @@ package uk.org.rivernile.android.fetchutils.fetchers.readers;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+
 /**
  * Tests for {@link StringFetcherStreamReader}.
  * 
@@ -54,4 +56,22 @@ public class StringFetcherStreamReaderTests extends TestCase {
     public void testToStringReturnsNullByDefault() {
         assertNull(reader.toString());
     }
+    
+    /**
+     * Test that the data is decoded as {@code UTF-8} by default, and that the default charset
+     * can be changed.
+     * 
+     * @throws Exception This should not happen in this test.
+     */
+    public void testDefaultCharset() throws Exception {
+        final byte[] bytes = "Caf\u00e9".getBytes("UTF-8");
+        reader.readInputStream(new ByteArrayInputStream(bytes));
+        assertEquals("Caf\u00e9", reader.getData());
+        
+        final StringFetcherStreamReader latin1Reader =
+                new StringFetcherStreamReader("ISO-8859-1");
+        latin1Reader.readInputStream(new ByteArrayInputStream(bytes));
+        assertEquals("ISO-8859-1", latin1Reader.getDefaultCharset());
+        assertEquals(new String(bytes, "ISO-8859-1"), latin1Reader.getData());
+    }
 }
\ No newline at end of file
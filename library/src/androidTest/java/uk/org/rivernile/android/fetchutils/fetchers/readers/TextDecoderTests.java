@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Tests for {@link TextDecoder}.
+ *
+ * @author Niall Scott
+ */
+public class TextDecoderTests extends TestCase {
+
+    private static final String TEXT = "Caf\u00e9 \u20ac5 \ud83d\ude8c to Princes St";
+
+    /**
+     * Test that {@code UTF-8} text with one, two, three and four byte sequences is decoded,
+     * whether or not the expected length is known, and when it is wrong.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeUtf8() throws IOException {
+        final byte[] bytes = TEXT.getBytes("UTF-8");
+
+        assertEquals(TEXT, TextDecoder.decode(new ByteArrayInputStream(bytes), "UTF-8", -1));
+        assertEquals(TEXT, TextDecoder.decode(new ByteArrayInputStream(bytes), "utf8",
+                bytes.length));
+        assertEquals(TEXT, TextDecoder.decode(new ByteArrayInputStream(bytes), "UTF-8", 3));
+        assertEquals("", TextDecoder.decode(new ByteArrayInputStream(new byte[0]), "UTF-8", 0));
+    }
+
+    /**
+     * Test that a very large expected length, as a server could give, does not size the output
+     * up front.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeWithHugeExpectedLength() throws IOException {
+        final byte[] bytes = TEXT.getBytes("UTF-8");
+
+        assertEquals("", TextDecoder.decode(new ByteArrayInputStream(new byte[0]), "UTF-8",
+                Integer.MAX_VALUE));
+        assertEquals(TEXT, TextDecoder.decode(new ByteArrayInputStream(bytes), "UTF-8",
+                Long.MAX_VALUE));
+    }
+
+    /**
+     * Test that {@code UTF-8} sequences which are split between reads are decoded, and that
+     * long text grows the output.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeUtf8AcrossReads() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            sb.append(TEXT);
+        }
+
+        final String text = sb.toString();
+        assertEquals(text, TextDecoder.decode(new TrickleInputStream(text.getBytes("UTF-8")),
+                "UTF-8", -1));
+    }
+
+    /**
+     * Test that invalid {@code UTF-8} is replaced as the Unicode Standard recommends, with one
+     * {@code U+FFFD} for the longest valid start of a sequence, or for each byte which can not
+     * start one.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeInvalidUtf8() throws IOException {
+        final byte[][] inputs = {
+                { 'a', (byte) 0x80, 'b' },
+                { 'a', (byte) 0xe2, (byte) 0x82, 'b' },
+                { (byte) 0xc0, (byte) 0x80 },
+                { (byte) 0xe0, (byte) 0x80, 'b' },
+                { (byte) 0xed, (byte) 0xa0, (byte) 0x80 },
+                { (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80 },
+                { (byte) 0xf8, (byte) 0x88 },
+                { 'a', (byte) 0xe2, (byte) 0x82 },
+                { 'a', (byte) 0xf0, (byte) 0x9f, 'b' }
+        };
+        final String[] expected = {
+                "a\ufffdb",
+                "a\ufffdb",
+                "\ufffd\ufffd",
+                "\ufffd\ufffdb",
+                "\ufffd\ufffd\ufffd",
+                "\ufffd\ufffd\ufffd\ufffd",
+                "\ufffd\ufffd",
+                "a\ufffd",
+                "a\ufffdb"
+        };
+
+        for (int i = 0; i < inputs.length; i++) {
+            assertEquals(expected[i],
+                    TextDecoder.decode(new ByteArrayInputStream(inputs[i]), "UTF-8", -1));
+        }
+    }
+
+    /**
+     * Test that single byte charsets are decoded, with bytes outside of {@code US-ASCII}
+     * replaced.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeSingleByteCharsets() throws IOException {
+        final byte[] bytes = { 'C', 'a', 'f', (byte) 0xe9 };
+
+        assertEquals("Caf\u00e9", TextDecoder.decode(new ByteArrayInputStream(bytes),
+                "ISO-8859-1", 4));
+        assertEquals("Caf\ufffd", TextDecoder.decode(new ByteArrayInputStream(bytes),
+                "US-ASCII", -1));
+    }
+
+    /**
+     * Test that other charsets are decoded by the platform.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testDecodeOtherCharset() throws IOException {
+        assertEquals(TEXT, TextDecoder.decode(new ByteArrayInputStream(
+                TEXT.getBytes("UTF-16")), "UTF-16", -1));
+    }
+
+    /**
+     * Test that an {@link UnsupportedEncodingException} is thrown for an unknown charset.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testUnsupportedCharset() throws IOException {
+        try {
+            TextDecoder.decode(new ByteArrayInputStream(new byte[0]), "not-a-charset", -1);
+        } catch (UnsupportedEncodingException e) {
+            return;
+        }
+
+        fail("The charset is not known, so an UnsupportedEncodingException should be thrown.");
+    }
+
+    /**
+     * An {@link InputStream} which gives out at most 7 bytes per read, to test sequences which
+     * are split across reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+
+        /**
+         * Create a new {@code TrickleInputStream}.
+         *
+         * @param bytes The bytes to read.
+         */
+        TrickleInputStream(final byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+}
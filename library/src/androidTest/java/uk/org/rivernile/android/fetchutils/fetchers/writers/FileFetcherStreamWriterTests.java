@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.writers;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link FileFetcherStreamWriter} and {@link GeneratorFetcherStreamWriter}.
+ *
+ * @author Niall Scott
+ */
+public class FileFetcherStreamWriterTests extends InstrumentationTestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "FileFetcherStreamWriterTests");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        file.delete();
+        file = null;
+    }
+
+    /**
+     * Test that creating a {@link FileFetcherStreamWriter} with an empty path throws an
+     * {@link IllegalArgumentException}.
+     */
+    public void testConstructorWithEmptyPath() {
+        try {
+            new FileFetcherStreamWriter("", null);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        fail("The filePath is empty, so an IllegalArgumentException should be thrown.");
+    }
+
+    /**
+     * Test that the contents of the file are written, and that its length is known.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testWritesFile() throws IOException {
+        final byte[] data = new byte[20000];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        final OutputStream fileOut = new FileOutputStream(file);
+
+        try {
+            fileOut.write(data);
+        } finally {
+            fileOut.close();
+        }
+
+        final FileFetcherStreamWriter writer = new FileFetcherStreamWriter(file,
+                "application/octet-stream");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeOutputStream(out);
+
+        assertEquals(20000, writer.getContentLength());
+        assertEquals("application/octet-stream", writer.getContentType());
+        assertTrue(writer.isRepeatable());
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    /**
+     * Test that a file which does not exist has an unknown length and fails to be written.
+     */
+    public void testMissingFile() {
+        final FileFetcherStreamWriter writer = new FileFetcherStreamWriter(file, null);
+
+        assertEquals(-1, writer.getContentLength());
+
+        try {
+            writer.writeOutputStream(new ByteArrayOutputStream());
+        } catch (IOException e) {
+            return;
+        }
+
+        fail("The file does not exist, so an IOException should be thrown.");
+    }
+
+    /**
+     * Test that a {@link GeneratorFetcherStreamWriter} writes what it generates, and that its
+     * length is unknown unless it is given.
+     *
+     * @throws IOException This should not happen in this test.
+     */
+    public void testGenerator() throws IOException {
+        final GeneratorFetcherStreamWriter writer =
+                new GeneratorFetcherStreamWriter("text/plain", false) {
+            @Override
+            protected void generate(final OutputStream stream) throws IOException {
+                for (int i = 0; i < 3; i++) {
+                    stream.write(("line " + i + '\n').getBytes("UTF-8"));
+                }
+            }
+        };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeOutputStream(out);
+
+        assertEquals(-1, writer.getContentLength());
+        assertFalse(writer.isRepeatable());
+        assertEquals("line 0\nline 1\nline 2\n", out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@code AdmissionController} limits the requests made to each host through a
+ * {@link HttpFetcherClient}. It is owned by the client and is shared between all
+ * {@link HttpFetcher}s which use that client. Each host, as given by
+ * {@link ConnectionPool#getKey(URL)}, has its own limits.
+ *
+ * <p>
+ *     Two limits are applied before a connection is opened;
+ * </p>
+ *
+ * <ul>
+ *     <li>A concurrency limit. Only so many requests to a host may be in progress at once. A
+ *         request holds its slot until its response body has been read and its connection has
+ *         been released.</li>
+ *     <li>A rate limit, as a token bucket. Tokens are added at the given number of requests per
+ *         second, up to the burst size, and each request takes one. This smooths out bursts so
+ *         that a server which throttles its clients is not pushed over its limit.</li>
+ * </ul>
+ *
+ * <p>
+ *     Requests which cannot be admitted straight away wait in a queue, and are admitted in the
+ *     order they arrived. When the queue for a host is full, or a request has waited for longer
+ *     than the queue timeout, the request fails with an {@link AdmissionRejectedException}. A
+ *     waiting request whose {@link FetchCancellationSignal} is cancelled leaves the queue with a
+ *     {@link FetchCancelledException}.
+ * </p>
+ *
+ * <p>
+ *     The limits of a host are only held while it has requests in progress or waiting, or while
+ *     its token bucket is refilling, so that a client which talks to many hosts over its lifetime
+ *     does not hold on to all of them.
+ * </p>
+ *
+ * <p>
+ *     The queue depth and the time spent waiting can be inspected, to help with choosing the
+ *     limits. This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient.Builder#setAdmissionController(AdmissionController)
+ */
+public class AdmissionController {
+
+    private final int maxConcurrentPerHost;
+    private final double requestsPerSecond;
+    private final int burstSize;
+    private final int maxQueueLength;
+    private final long queueTimeout;
+    private final HashMap<String, Host> hosts = new HashMap<>();
+
+    private int queueDepth;
+    private int peakQueueDepth;
+    private long admittedCount;
+    private long queuedCount;
+    private long rejectedCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * Construct an {@code AdmissionController} from a {@link Builder}. This constructor is
+     * private - it should be called by {@link Builder#build()}.
+     *
+     * @param builder The instance of the {@link Builder} to construct from.
+     */
+    private AdmissionController(@NonNull final Builder builder) {
+        maxConcurrentPerHost = builder.maxConcurrentPerHost;
+        requestsPerSecond = builder.requestsPerSecond;
+        burstSize = builder.burstSize;
+        maxQueueLength = builder.maxQueueLength;
+        queueTimeout = builder.queueTimeout;
+    }
+
+    /**
+     * Get the maximum number of requests to a single host which may be in progress at once.
+     *
+     * @return The maximum number of concurrent requests per host.
+     * @see Builder#setMaxConcurrentPerHost(int)
+     */
+    public int getMaxConcurrentPerHost() {
+        return maxConcurrentPerHost;
+    }
+
+    /**
+     * Get the number of requests per second allowed to each host.
+     *
+     * @return The number of requests per second, or {@code 0} if the rate is not limited.
+     * @see Builder#setRequestsPerSecond(double)
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Get the number of requests which may be made to a host in a burst before the rate limit
+     * applies.
+     *
+     * @return The burst size.
+     * @see Builder#setBurstSize(int)
+     */
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    /**
+     * Get the maximum number of requests which may wait in the queue for a single host.
+     *
+     * @return The maximum queue length per host.
+     * @see Builder#setMaxQueueLength(int)
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * Get the maximum time, in milliseconds, that a request may wait in the queue.
+     *
+     * @return The queue timeout, in milliseconds.
+     * @see Builder#setQueueTimeout(long)
+     */
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * Get the number of requests waiting in the queues of all hosts.
+     *
+     * @return The number of waiting requests.
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the number of requests waiting in the queue for the given host.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The number of waiting requests for the host.
+     */
+    public synchronized int getQueueDepth(@NonNull final String key) {
+        final Host host = hosts.get(key);
+
+        return host != null ? host.queueDepth : 0;
+    }
+
+    /**
+     * Get the number of hosts whose limits are currently held.
+     *
+     * @return The number of hosts whose limits are held.
+     */
+    synchronized int getHostCount() {
+        return hosts.size();
+    }
+
+    /**
+     * Get the greatest number of requests which have been waiting in the queues of all hosts at
+     * once.
+     *
+     * @return The peak queue depth.
+     */
+    public synchronized int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    /**
+     * Get the number of requests to the given host which are currently in progress.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The number of requests in progress for the host.
+     */
+    public synchronized int getActiveCount(@NonNull final String key) {
+        final Host host = hosts.get(key);
+
+        return host != null ? maxConcurrentPerHost - host.semaphore.availablePermits() : 0;
+    }
+
+    /**
+     * Get the number of requests which have been admitted, whether or not they had to wait.
+     *
+     * @return The number of admitted requests.
+     */
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    /**
+     * Get the number of admitted requests which had to wait in a queue.
+     *
+     * @return The number of requests which were queued.
+     */
+    public synchronized long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Get the number of requests which were refused because a queue was full or the queue
+     * timeout passed.
+     *
+     * @return The number of refused requests.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Get the average time that admitted requests waited before being admitted, including those
+     * which did not wait.
+     *
+     * @return The average wait time, in milliseconds.
+     */
+    public synchronized double getAverageWaitTime() {
+        return admittedCount > 0 ? totalWaitNanos / 1000000.0 / admittedCount : 0;
+    }
+
+    /**
+     * Get the longest time that an admitted request waited before being admitted.
+     *
+     * @return The longest wait time, in milliseconds.
+     */
+    public synchronized long getMaxWaitTime() {
+        return maxWaitNanos / 1000000L;
+    }
+
+    /**
+     * Wait until a request to the given host may be made. This is called before a connection is
+     * opened. If this returns normally, {@link #release(String)} must be called once the request
+     * has finished.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @param signal The {@link FetchCancellationSignal} of the request, or {@code null} if it can
+     *               not be cancelled.
+     * @throws AdmissionRejectedException When the queue for the host is full, or the queue
+     *                                    timeout passed before the request could be admitted.
+     * @throws FetchCancelledException When {@code signal} was cancelled before the request could
+     *                                 be admitted.
+     * @throws InterruptedIOException When the calling thread was interrupted while waiting.
+     */
+    void acquire(@NonNull final String key, @Nullable final FetchCancellationSignal signal)
+            throws IOException {
+        final WaitInterrupter interrupter = signal != null ? new WaitInterrupter() : null;
+
+        if (interrupter != null && !signal.addOnCancelListener(interrupter)) {
+            throw new FetchCancelledException();
+        }
+
+        try {
+            waitForAdmission(key);
+        } catch (InterruptedIOException e) {
+            if (interrupter != null && interrupter.stop()) {
+                throw new FetchCancelledException();
+            }
+
+            throw e;
+        } finally {
+            if (interrupter != null) {
+                interrupter.stop();
+                signal.removeOnCancelListener(interrupter);
+            }
+        }
+    }
+
+    /**
+     * Wait until a request to the given host may be made, for {@link #acquire(String,
+     * FetchCancellationSignal)}.
+     *
+     * @param key The key of the host.
+     * @throws AdmissionRejectedException When the queue for the host is full, or the queue
+     *                                    timeout passed before the request could be admitted.
+     * @throws InterruptedIOException When the calling thread was interrupted while waiting.
+     */
+    private void waitForAdmission(@NonNull final String key) throws IOException {
+        final long start = System.nanoTime();
+        final long timeoutNanos = queueTimeout * 1000000L;
+        final Host host = getHost(key);
+        boolean queued = false;
+        boolean hasSlot = false;
+        boolean admitted = false;
+        boolean rejected = false;
+
+        try {
+            // A timed try respects the fairness of the semaphore, unlike the untimed version.
+            hasSlot = host.semaphore.tryAcquire(0, TimeUnit.NANOSECONDS);
+
+            if (!hasSlot) {
+                enqueue(key, host);
+                queued = true;
+                hasSlot = host.semaphore.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+
+                if (!hasSlot) {
+                    throw new AdmissionRejectedException("Timed out waiting for a connection " +
+                            "slot to " + key + '.');
+                }
+            }
+
+            final long delay = host.reserveToken(timeoutNanos - (System.nanoTime() - start));
+
+            if (delay < 0) {
+                throw new AdmissionRejectedException("Timed out waiting for the rate limit of " +
+                        key + '.');
+            } else if (delay > 0) {
+                if (!queued) {
+                    enqueue(key, host);
+                    queued = true;
+                }
+
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+
+            admitted = true;
+        } catch (AdmissionRejectedException e) {
+            rejected = true;
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to be admitted.");
+        } finally {
+            onFinishedWaiting(host, queued, admitted, rejected, System.nanoTime() - start);
+
+            if (hasSlot && !admitted) {
+                host.semaphore.release();
+            }
+
+            if (!admitted) {
+                leaveHost(key, host);
+            }
+        }
+    }
+
+    /**
+     * Release the slot of a request to the given host which has finished.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     */
+    void release(@NonNull final String key) {
+        final Host host;
+
+        synchronized (this) {
+            host = hosts.get(key);
+        }
+
+        if (host != null) {
+            host.semaphore.release();
+            leaveHost(key, host);
+        }
+    }
+
+    /**
+     * Get the {@link Host} for the given key, creating it if it does not exist yet. The request is
+     * counted as a user of the {@link Host} until it is given to
+     * {@link #leaveHost(String, Host)}.
+     *
+     * @param key The key of the host.
+     * @return The {@link Host} for the given key.
+     */
+    @NonNull
+    private synchronized Host getHost(@NonNull final String key) {
+        Host host = hosts.get(key);
+
+        if (host == null) {
+            pruneHosts();
+            host = new Host(maxConcurrentPerHost, burstSize);
+            hosts.put(key, host);
+        }
+
+        host.users++;
+
+        return host;
+    }
+
+    /**
+     * Stop counting a request as a user of the given {@link Host}. If it has no other users and
+     * its token bucket is full, it is forgotten, as a new {@link Host} would have the same
+     * limits.
+     *
+     * @param key The key of the host.
+     * @param host The {@link Host} of the request.
+     */
+    private synchronized void leaveHost(@NonNull final String key, @NonNull final Host host) {
+        host.users--;
+
+        if (host.users == 0 && host.isBucketFull() && hosts.get(key) == host) {
+            hosts.remove(key);
+        }
+    }
+
+    /**
+     * Forget the hosts which have no users and whose token buckets have refilled since their
+     * last request. This must be called while holding the lock on this instance.
+     */
+    private void pruneHosts() {
+        final Iterator<Host> it = hosts.values().iterator();
+
+        while (it.hasNext()) {
+            final Host host = it.next();
+
+            if (host.users == 0 && host.isBucketFull()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Add a request to the queue of the given host.
+     *
+     * @param key The key of the host.
+     * @param host The {@link Host} of the request.
+     * @throws AdmissionRejectedException When the queue for the host is full.
+     */
+    private synchronized void enqueue(@NonNull final String key, @NonNull final Host host)
+            throws AdmissionRejectedException {
+        if (host.queueDepth >= maxQueueLength) {
+            throw new AdmissionRejectedException("The queue for " + key + " is full.");
+        }
+
+        host.queueDepth++;
+        queueDepth++;
+        peakQueueDepth = Math.max(peakQueueDepth, queueDepth);
+    }
+
+    /**
+     * Update the queue and counters once a request has stopped waiting.
+     *
+     * @param host The {@link Host} of the request.
+     * @param queued {@code true} if the request was in the queue, {@code false} if not.
+     * @param admitted {@code true} if the request was admitted, {@code false} if not.
+     * @param rejected {@code true} if the request was refused, {@code false} if not.
+     * @param waitNanos The time the request spent waiting, in nanoseconds.
+     */
+    private synchronized void onFinishedWaiting(@NonNull final Host host, final boolean queued,
+            final boolean admitted, final boolean rejected, final long waitNanos) {
+        if (queued) {
+            host.queueDepth--;
+            queueDepth--;
+        }
+
+        if (admitted) {
+            admittedCount++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+
+            if (queued) {
+                queuedCount++;
+            }
+        } else if (rejected) {
+            rejectedCount++;
+        }
+    }
+
+    /**
+     * This {@link FetchCancellationSignal.OnCancelListener} interrupts the thread which created
+     * it, to wake it from waiting for a slot or a token. The thread is only interrupted while it
+     * is still waiting, and the interrupt is cleared again once it stops.
+     */
+    private static class WaitInterrupter implements FetchCancellationSignal.OnCancelListener {
+
+        private final Thread thread = Thread.currentThread();
+        private boolean waiting = true;
+        private boolean interrupted;
+
+        @Override
+        public synchronized void onCancel() {
+            if (waiting) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Stop interrupting the waiting thread. This must be called on the waiting thread.
+         *
+         * @return {@code true} if the thread was interrupted by this listener, in which case the
+         *         interrupt has been cleared. {@code false} if not.
+         */
+        private synchronized boolean stop() {
+            waiting = false;
+
+            if (!interrupted) {
+                return false;
+            }
+
+            interrupted = false;
+            Thread.interrupted();
+
+            return true;
+        }
+    }
+
+    /**
+     * This holds the limits of a single host.
+     */
+    private class Host {
+
+        private final Semaphore semaphore;
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private int queueDepth;
+        private int users;
+
+        /**
+         * Create a new {@code Host}.
+         *
+         * @param maxConcurrent The maximum number of requests in progress at once.
+         * @param burstSize The number of tokens held at the start.
+         */
+        private Host(final int maxConcurrent, final int burstSize) {
+            semaphore = new Semaphore(maxConcurrent, true);
+            tokens = burstSize;
+        }
+
+        /**
+         * Take a token from the bucket. If there is not a whole token, the token is reserved
+         * from those still to be added, so that requests which are waiting are given tokens in
+         * the order they arrived.
+         *
+         * @param maxWaitNanos The longest time the request may wait for a token, in nanoseconds.
+         * @return The time to wait before the token is available, in nanoseconds, or {@code -1}
+         *         if this is longer than {@code maxWaitNanos}, in which case no token is taken.
+         */
+        private synchronized long reserveToken(final long maxWaitNanos) {
+            if (requestsPerSecond <= 0) {
+                return 0;
+            }
+
+            final long now = System.nanoTime();
+            tokens = Math.min(burstSize, tokens + (now - lastRefill) * requestsPerSecond / 1e9);
+            lastRefill = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+
+            final long wait = (long) Math.ceil((1 - tokens) * 1e9 / requestsPerSecond);
+
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+
+            tokens -= 1;
+            return wait;
+        }
+
+        /**
+         * Has the token bucket refilled to the burst size?
+         *
+         * @return {@code true} if the bucket is full, or the rate is not limited. {@code false}
+         *         if not.
+         */
+        private synchronized boolean isBucketFull() {
+            return requestsPerSecond <= 0 ||
+                    tokens + (System.nanoTime() - lastRefill) * requestsPerSecond / 1e9 >=
+                            burstSize;
+        }
+    }
+
+    /**
+     * This class is used to construct a new {@link AdmissionController}. All fields have
+     * defaults. When building is done, call {@link #build()} to get an instance of
+     * {@link AdmissionController}.
+     */
+    public static class Builder {
+
+        private int maxConcurrentPerHost = 6;
+        private double requestsPerSecond = 0;
+        private int burstSize = 5;
+        private int maxQueueLength = 64;
+        private long queueTimeout = 30000;
+
+        /**
+         * Set the maximum number of requests to a single host which may be in progress at once.
+         *
+         * <p>
+         *     By default, this is set as {@code 6}.
+         * </p>
+         *
+         * @param maxConcurrentPerHost The maximum number of concurrent requests per host. Must be
+         *                             {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxConcurrentPerHost(final int maxConcurrentPerHost) {
+            this.maxConcurrentPerHost = maxConcurrentPerHost;
+            return this;
+        }
+
+        /**
+         * Set the number of requests per second allowed to each host.
+         *
+         * <p>
+         *     By default, this is set as {@code 0}, meaning the rate is not limited.
+         * </p>
+         *
+         * @param requestsPerSecond The number of requests per second, or {@code 0} if the rate
+         *                          should not be limited. Must be {@code 0} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRequestsPerSecond(final double requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Set the number of requests which may be made to a host in a burst before the rate
+         * limit applies. This is the capacity of the token bucket. It has no effect when the rate
+         * is not limited.
+         *
+         * <p>
+         *     By default, this is set as {@code 5}.
+         * </p>
+         *
+         * @param burstSize The burst size. Must be {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setBurstSize(final int burstSize) {
+            this.burstSize = burstSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of requests which may wait in the queue for a single host.
+         * Requests beyond this fail straight away.
+         *
+         * <p>
+         *     By default, this is set as {@code 64}.
+         * </p>
+         *
+         * @param maxQueueLength The maximum queue length per host. Must be {@code 0} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxQueueLength(final int maxQueueLength) {
+            this.maxQueueLength = maxQueueLength;
+            return this;
+        }
+
+        /**
+         * Set the maximum time that a request may wait in the queue before it fails.
+         *
+         * <p>
+         *     By default, this is set as {@code 30000} milliseconds.
+         * </p>
+         *
+         * @param queueTimeoutMillis The queue timeout, in milliseconds. Must be {@code 0} or
+         *                           greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setQueueTimeout(final long queueTimeoutMillis) {
+            queueTimeout = queueTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Create a new instance of {@link AdmissionController} based on the snapshot of data in
+         * this {@code Builder} at the instant this method is called.
+         *
+         * @return A new instance of {@link AdmissionController}.
+         * @throws IllegalArgumentException When any of the values are out of range.
+         */
+        @NonNull
+        public AdmissionController build() {
+            if (maxConcurrentPerHost < 1) {
+                throw new IllegalArgumentException("maxConcurrentPerHost must be 1 or greater.");
+            }
+
+            if (requestsPerSecond < 0) {
+                throw new IllegalArgumentException("requestsPerSecond must be 0 or greater.");
+            }
+
+            if (burstSize < 1) {
+                throw new IllegalArgumentException("burstSize must be 1 or greater.");
+            }
+
+            if (maxQueueLength < 0) {
+                throw new IllegalArgumentException("maxQueueLength must be 0 or greater.");
+            }
+
+            if (queueTimeout < 0) {
+                throw new IllegalArgumentException("queueTimeout must be 0 or greater.");
+            }
+
+            return new AdmissionController(this);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * This {@link Exception} is thrown when the {@link AdmissionController} of a
+ * {@link HttpFetcherClient} refuses a request, because the queue for its host is full or the
+ * request waited in the queue for longer than the queue timeout. No connection will have been
+ * attempted.
+ *
+ * @author Niall Scott
+ * @see AdmissionController
+ */
+public class AdmissionRejectedException extends IOException {
+
+    /**
+     * Constructs a new {@code AdmissionRejectedException} with the default message filled in.
+     */
+    public AdmissionRejectedException() {
+        super("The request was not admitted.");
+    }
+
+    /**
+     * Constructs a new {@code AdmissionRejectedException}, specifying the message.
+     *
+     * @param detailMessage The {@link Exception} message.
+     */
+    public AdmissionRejectedException(@Nullable final String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import uk.org.rivernile.android.fetchutils.loaders.Result;
+
+/**
+ * A {@code BatchFetch} runs a batch of fetches concurrently, with a limit on the total number of
+ * fetches in progress and a limit on the number of fetches in progress to any one host. It is
+ * created and started by
+ * {@link FetcherFactory#fetchAll(Context, Map, int, int, BatchFetch.Listener)}.
+ *
+ * <p>
+ *     Each fetch produces an {@link Item}, holding a {@link Result} which is either the
+ *     {@link FetcherStreamReader} that the data was given to, or the {@link IOException} that the
+ *     fetch failed with. {@link Item}s are made available as each fetch completes, rather than
+ *     once the whole batch has completed. They can be received with {@link #take()}, or by giving
+ *     a {@link Listener}.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @param <R> The type of {@link FetcherStreamReader} used in this batch.
+ * @see FetcherFactory#fetchAll(Context, Map, int, int, BatchFetch.Listener)
+ */
+public class BatchFetch<R extends FetcherStreamReader> {
+
+    private final Context context;
+    private final int maxParallel;
+    private final int maxPerHost;
+    private final Listener<R> listener;
+    private final FetcherExecutor executor;
+    private final LinkedList<Entry<R>> pending = new LinkedList<>();
+    private final ArrayList<Entry<R>> running = new ArrayList<>();
+    private final HashMap<String, Integer> runningPerHost = new HashMap<>();
+    private final LinkedBlockingQueue<Item<R>> completed = new LinkedBlockingQueue<>();
+    private final FetchCancellationSignal cancellationSignal = new FetchCancellationSignal();
+    private final int itemCount;
+
+    private int takenCount;
+    private boolean cancelled;
+
+    /**
+     * Create a new {@code BatchFetch}. This should be called by
+     * {@link FetcherFactory#fetchAll(Context, Map, int, int, BatchFetch.Listener)}.
+     *
+     * @param context A {@link Context} instance.
+     * @param requests The mapping of {@link Uri}s to fetch to the {@link FetcherStreamReader}s
+     *                 their data should be given to.
+     * @param maxParallel The maximum number of fetches in progress at once.
+     * @param maxPerHost The maximum number of fetches in progress to any one host.
+     * @param listener The {@link Listener} to inform as each fetch completes. May be {@code null}.
+     */
+    BatchFetch(@NonNull final Context context, @NonNull final Map<Uri, R> requests,
+            final int maxParallel, final int maxPerHost, @Nullable final Listener<R> listener) {
+        if (maxParallel <= 0) {
+            throw new IllegalArgumentException("maxParallel must be greater than 0.");
+        }
+
+        if (maxPerHost <= 0) {
+            throw new IllegalArgumentException("maxPerHost must be greater than 0.");
+        }
+
+        this.context = context;
+        this.maxParallel = maxParallel;
+        this.maxPerHost = maxPerHost;
+        this.listener = listener;
+        itemCount = requests.size();
+        executor = new FetcherExecutor(maxParallel, Math.max(1, itemCount));
+
+        for (Map.Entry<Uri, R> request : requests.entrySet()) {
+            pending.add(new Entry<>(request.getKey(), request.getValue()));
+        }
+    }
+
+    /**
+     * Start the fetches, up to the limits.
+     */
+    synchronized void start() {
+        dispatch();
+    }
+
+    /**
+     * Get the next completed {@link Item}, blocking until one is available.
+     *
+     * @return The next completed {@link Item}, or {@code null} if all {@link Item}s in this batch
+     *         have already been taken.
+     * @throws InterruptedException When the calling thread was interrupted while waiting.
+     */
+    @Nullable
+    public Item<R> take() throws InterruptedException {
+        synchronized (this) {
+            if (takenCount >= itemCount) {
+                return null;
+            }
+
+            takenCount++;
+        }
+
+        return completed.take();
+    }
+
+    /**
+     * Cancel the fetches which have not yet completed. Fetches which have not started complete
+     * straight away with a {@link FetchCancelledException}. Running HTTP fetches are disconnected,
+     * and complete with a {@link FetchCancelledException} once they have stopped. Running fetches
+     * of files and assets can not be stopped, and complete with their own outcome. The
+     * {@link Item} of a running fetch is only made available once it has stopped using its
+     * {@link FetcherStreamReader}.
+     */
+    public void cancel() {
+        final ArrayList<Entry<R>> toCancel;
+
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            toCancel = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        cancellationSignal.cancel();
+
+        for (Entry<R> entry : toCancel) {
+            finish(entry, new Result<R, IOException>(new FetchCancelledException()));
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * Get the number of {@link Item}s in this batch.
+     *
+     * @return The number of {@link Item}s in this batch.
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Get the number of fetches currently in progress.
+     *
+     * @return The number of fetches currently in progress.
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Get the maximum number of fetches in progress at once.
+     *
+     * @return The maximum number of fetches in progress at once.
+     */
+    public int getMaxParallel() {
+        return maxParallel;
+    }
+
+    /**
+     * Get the maximum number of fetches in progress to any one host.
+     *
+     * @return The maximum number of fetches in progress to any one host.
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Start as many pending fetches as the limits allow. Pending fetches to a host which is at its
+     * limit are skipped over, so that they do not hold up fetches to other hosts. This must be
+     * called while holding the lock on this instance.
+     */
+    private void dispatch() {
+        final Iterator<Entry<R>> it = pending.iterator();
+
+        while (!cancelled && running.size() < maxParallel && it.hasNext()) {
+            final Entry<R> entry = it.next();
+            final Integer hostCount = entry.host != null ? runningPerHost.get(entry.host) : null;
+
+            if (hostCount != null && hostCount >= maxPerHost) {
+                continue;
+            }
+
+            it.remove();
+            final Fetcher fetcher = FetcherFactory.getFetcher(context, entry.uri,
+                    cancellationSignal);
+
+            if (fetcher == null) {
+                finish(entry, new Result<R, IOException>(
+                        new IOException("There is no Fetcher for the Uri: " + entry.uri)));
+                continue;
+            }
+
+            running.add(entry);
+
+            if (entry.host != null) {
+                runningPerHost.put(entry.host, hostCount != null ? hostCount + 1 : 1);
+            }
+
+            executor.submit(fetcher, entry.reader, new EntryCallback(entry));
+        }
+
+        if (pending.isEmpty() && running.isEmpty()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Called when a running fetch has completed.
+     *
+     * @param entry The {@link Entry} which has completed.
+     * @param result The {@link Result} of the fetch.
+     */
+    private void onEntryComplete(@NonNull final Entry<R> entry,
+            @NonNull final Result<R, IOException> result) {
+        synchronized (this) {
+            running.remove(entry);
+
+            if (entry.host != null) {
+                final int hostCount = runningPerHost.get(entry.host) - 1;
+
+                if (hostCount > 0) {
+                    runningPerHost.put(entry.host, hostCount);
+                } else {
+                    runningPerHost.remove(entry.host);
+                }
+            }
+
+            dispatch();
+        }
+
+        finish(entry, result);
+    }
+
+    /**
+     * Make the {@link Item} for a finished {@link Entry} available and inform the
+     * {@link Listener}.
+     *
+     * @param entry The {@link Entry} which has finished.
+     * @param result The {@link Result} of the fetch.
+     */
+    private void finish(@NonNull final Entry<R> entry,
+            @NonNull final Result<R, IOException> result) {
+        final Item<R> item = new Item<>(entry.uri, result);
+        completed.add(item);
+
+        if (listener != null) {
+            listener.onItemComplete(item);
+        }
+    }
+
+    /**
+     * An {@code Item} is the outcome of a single fetch within a batch.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    public static class Item<R extends FetcherStreamReader> {
+
+        private final Uri uri;
+        private final Result<R, IOException> result;
+
+        /**
+         * Create a new {@code Item}.
+         *
+         * @param uri The {@link Uri} that was fetched.
+         * @param result The {@link Result} of the fetch.
+         */
+        private Item(@NonNull final Uri uri, @NonNull final Result<R, IOException> result) {
+            this.uri = uri;
+            this.result = result;
+        }
+
+        /**
+         * Get the {@link Uri} that was fetched.
+         *
+         * @return The {@link Uri} that was fetched.
+         */
+        @NonNull
+        public Uri getUri() {
+            return uri;
+        }
+
+        /**
+         * Get the {@link Result} of the fetch. On success, this holds the
+         * {@link FetcherStreamReader} that the data was given to.
+         *
+         * @return The {@link Result} of the fetch.
+         */
+        @NonNull
+        public Result<R, IOException> getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * A {@code Listener} is informed as each fetch within a batch completes. It is called on the
+     * thread which ran the fetch, or on the thread which called {@link #cancel()}.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    public interface Listener<R extends FetcherStreamReader> {
+
+        /**
+         * This is called when a fetch within the batch has completed.
+         *
+         * @param item The {@link Item} describing the outcome of the fetch.
+         */
+        public void onItemComplete(@NonNull Item<R> item);
+    }
+
+    /**
+     * An {@code Entry} holds the state of a single fetch within the batch.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    private static class Entry<R extends FetcherStreamReader> {
+
+        private final Uri uri;
+        private final R reader;
+        private final String host;
+
+        /**
+         * Create a new {@code Entry}.
+         *
+         * @param uri The {@link Uri} to fetch.
+         * @param reader The {@link FetcherStreamReader} to give the data to.
+         */
+        private Entry(@NonNull final Uri uri, @NonNull final R reader) {
+            this.uri = uri;
+            this.reader = reader;
+
+            final String h = uri.getHost();
+            host = h != null ? h.toLowerCase() : null;
+        }
+    }
+
+    /**
+     * This {@link FetcherCallback} passes the outcome of a fetch back to the {@code BatchFetch}.
+     */
+    private class EntryCallback implements FetcherCallback<R> {
+
+        private final Entry<R> entry;
+
+        /**
+         * Create a new {@code EntryCallback}.
+         *
+         * @param entry The {@link Entry} this callback is for.
+         */
+        private EntryCallback(@NonNull final Entry<R> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void onFetchSuccess(@NonNull final R reader) {
+            onEntryComplete(entry, new Result<R, IOException>(reader));
+        }
+
+        @Override
+        public void onFetchFailure(@NonNull final IOException error) {
+            onEntryComplete(entry, new Result<R, IOException>(error));
+        }
+    }
+}
@@ -0,0 +1,827 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@code CircuitBreaker} stops requests being made to a host which is failing, so that requests
+ * fail straight away rather than each waiting for a timeout, and so that the host is given time
+ * to recover. It is owned by a {@link HttpFetcherClient} and is shared between all
+ * {@link HttpFetcher}s which use that client. Each host, as given by
+ * {@link ConnectionPool#getKey(URL)}, has its own circuit.
+ *
+ * <p>
+ *     A circuit is in one of three states;
+ * </p>
+ *
+ * <ul>
+ *     <li>{@link State#CLOSED}: requests are allowed. The outcomes of the last requests to the
+ *         host are kept in a rolling window. Once the window holds the minimum number of calls,
+ *         the circuit opens if the rate of failed calls, or the rate of slow calls, reaches its
+ *         threshold.</li>
+ *     <li>{@link State#OPEN}: requests fail straight away with a
+ *         {@link CircuitBreakerOpenException}. Once the open duration has passed, the circuit
+ *         becomes half-open.</li>
+ *     <li>{@link State#HALF_OPEN}: a limited number of trial requests are allowed, and any
+ *         others fail with a {@link CircuitBreakerOpenException}. Once the trial requests have
+ *         finished, the circuit closes if their failure and slow call rates are below the
+ *         thresholds, otherwise it opens again.</li>
+ * </ul>
+ *
+ * <p>
+ *     A call has failed when the connection to the host fails while connecting, sending the
+ *     request or receiving the response, including its body, or when the server responds with a
+ *     {@code 5xx} status code. A call is slow when the time taken to receive the response headers
+ *     is at least the slow call duration. Calls which are interrupted by the caller are not
+ *     counted, and nor are failures of the caller's own code, such as a
+ *     {@link FetcherStreamReader} which can not parse the body, or a request which is refused by
+ *     the policy of the {@link HttpFetcher} before it is sent.
+ * </p>
+ *
+ * <p>
+ *     The state and rates of each circuit can be inspected for diagnostics. This class is
+ *     thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient.Builder#setCircuitBreaker(CircuitBreaker)
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states that a circuit can be in.
+     */
+    public enum State {
+        /** Requests are allowed and their outcomes are recorded. */
+        CLOSED,
+        /** Requests fail straight away. */
+        OPEN,
+        /** A limited number of trial requests are allowed. */
+        HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallDuration;
+    private final long openDuration;
+    private final int halfOpenCalls;
+    private final HashMap<String, Circuit> circuits = new HashMap<>();
+
+    private long rejectedCount;
+
+    /**
+     * Construct a {@code CircuitBreaker} from a {@link Builder}. This constructor is private - it
+     * should be called by {@link Builder#build()}.
+     *
+     * @param builder The instance of the {@link Builder} to construct from.
+     */
+    private CircuitBreaker(@NonNull final Builder builder) {
+        windowSize = builder.windowSize;
+        minimumCalls = builder.minimumCalls;
+        failureRateThreshold = builder.failureRateThreshold;
+        slowCallRateThreshold = builder.slowCallRateThreshold;
+        slowCallDuration = builder.slowCallDuration;
+        openDuration = builder.openDuration;
+        halfOpenCalls = builder.halfOpenCalls;
+    }
+
+    /**
+     * Get the current state of the circuit for the given host.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The current state of the circuit. A host which has not been seen is
+     *         {@link State#CLOSED}.
+     */
+    @NonNull
+    public synchronized State getState(@NonNull final String key) {
+        final Circuit circuit = circuits.get(key);
+
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+
+        updateState(circuit, System.nanoTime());
+        return circuit.state;
+    }
+
+    /**
+     * Get the current state of the circuit of every host which has been seen.
+     *
+     * @return A {@link Map} of host keys to the current state of their circuit.
+     */
+    @NonNull
+    public synchronized Map<String, State> getStates() {
+        final long now = System.nanoTime();
+        final HashMap<String, State> states = new HashMap<>(circuits.size());
+
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+            final Circuit circuit = entry.getValue();
+            updateState(circuit, now);
+            states.put(entry.getKey(), circuit.state);
+        }
+
+        return states;
+    }
+
+    /**
+     * Get the number of calls to the given host held in the rolling window.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The number of calls held in the rolling window.
+     */
+    public synchronized int getCallCount(@NonNull final String key) {
+        final Circuit circuit = circuits.get(key);
+
+        return circuit != null ? circuit.count : 0;
+    }
+
+    /**
+     * Get the rate of failed calls to the given host in the rolling window.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The rate of failed calls, between {@code 0} and {@code 1}, or {@code -1} if there
+     *         have been no calls.
+     */
+    public synchronized double getFailureRate(@NonNull final String key) {
+        final Circuit circuit = circuits.get(key);
+
+        return circuit != null && circuit.count > 0
+                ? (double) circuit.failureCount / circuit.count : -1;
+    }
+
+    /**
+     * Get the rate of slow calls to the given host in the rolling window.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return The rate of slow calls, between {@code 0} and {@code 1}, or {@code -1} if there
+     *         have been no calls.
+     */
+    public synchronized double getSlowCallRate(@NonNull final String key) {
+        final Circuit circuit = circuits.get(key);
+
+        return circuit != null && circuit.count > 0
+                ? (double) circuit.slowCount / circuit.count : -1;
+    }
+
+    /**
+     * Get the number of requests, across all hosts, which were refused because their circuit was
+     * open.
+     *
+     * @return The number of refused requests.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Close the circuit of every host and forget the calls made to them. This does not reset the
+     * rejected counter.
+     */
+    public synchronized void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * Get the number of calls held in the rolling window of each host.
+     *
+     * @return The size of the rolling window.
+     * @see Builder#setWindowSize(int)
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Get the minimum number of calls in the rolling window before the rates are checked.
+     *
+     * @return The minimum number of calls.
+     * @see Builder#setMinimumCalls(int)
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Get the rate of failed calls at which the circuit opens.
+     *
+     * @return The failure rate threshold.
+     * @see Builder#setFailureRateThreshold(double)
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Get the rate of slow calls at which the circuit opens.
+     *
+     * @return The slow call rate threshold.
+     * @see Builder#setSlowCallRateThreshold(double)
+     */
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Get the time, in milliseconds, at which a call is counted as slow.
+     *
+     * @return The slow call duration, in milliseconds.
+     * @see Builder#setSlowCallDuration(long)
+     */
+    public long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Get the time, in milliseconds, that a circuit stays open before allowing trial requests.
+     *
+     * @return The open duration, in milliseconds.
+     * @see Builder#setOpenDuration(long)
+     */
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Get the number of trial requests allowed while a circuit is half-open.
+     *
+     * @return The number of trial requests.
+     * @see Builder#setHalfOpenCalls(int)
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Ask for permission to make a request to the given host. This is called before a connection
+     * is attempted. The outcome of the request must be given to the returned {@link Permit}, and
+     * {@link Permit#release()} must always be called once the request has finished.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return A {@link Permit} to record the outcome of the request with.
+     * @throws CircuitBreakerOpenException When the circuit for the host is open, or it is
+     *                                     half-open and all trial requests are in flight.
+     */
+    @NonNull
+    synchronized Permit acquire(@NonNull final String key) throws CircuitBreakerOpenException {
+        final long now = System.nanoTime();
+        Circuit circuit = circuits.get(key);
+
+        if (circuit == null) {
+            circuit = new Circuit(windowSize);
+            circuits.put(key, circuit);
+        }
+
+        updateState(circuit, now);
+        throwIfRejecting(key, circuit);
+
+        if (circuit.state == State.HALF_OPEN) {
+            circuit.trialsIssued++;
+        }
+
+        return new Permit(key, circuit, circuit.generation, now);
+    }
+
+    /**
+     * Check that a request to the given host would be allowed, without asking for permission.
+     * This is called before a request waits to be admitted by an {@link AdmissionController}, so
+     * that a request to a host whose circuit is open fails straight away, rather than first
+     * taking a slot and waiting in the queue. {@link #acquire(String)} must still be called
+     * before the connection is attempted.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @throws CircuitBreakerOpenException When the circuit for the host is open, or it is
+     *                                     half-open and all trial requests are in flight.
+     */
+    synchronized void checkAllowed(@NonNull final String key)
+            throws CircuitBreakerOpenException {
+        final Circuit circuit = circuits.get(key);
+
+        if (circuit != null) {
+            updateState(circuit, System.nanoTime());
+            throwIfRejecting(key, circuit);
+        }
+    }
+
+    /**
+     * Refuse a request if the given circuit is open, or it is half-open and all trial requests
+     * are in flight. This must be called while holding the lock on this instance.
+     *
+     * @param key The key of the host.
+     * @param circuit The circuit of the host.
+     * @throws CircuitBreakerOpenException When the request is refused.
+     */
+    private void throwIfRejecting(@NonNull final String key, @NonNull final Circuit circuit)
+            throws CircuitBreakerOpenException {
+        if (circuit.state == State.OPEN ||
+                (circuit.state == State.HALF_OPEN && circuit.trialsIssued >= halfOpenCalls)) {
+            rejectedCount++;
+            throw new CircuitBreakerOpenException("The circuit breaker for " + key + " is open.");
+        }
+    }
+
+    /**
+     * Record the outcome of a call. Outcomes of calls which were allowed before the circuit last
+     * changed state are ignored.
+     *
+     * @param permit The {@link Permit} of the call.
+     * @param failed {@code true} if the call failed, {@code false} if not.
+     * @param slow {@code true} if the call was slow, {@code false} if not.
+     */
+    private synchronized void record(@NonNull final Permit permit, final boolean failed,
+            final boolean slow) {
+        final Circuit circuit = permit.circuit;
+
+        // The circuit may have been reset, or have changed state, since the call was allowed.
+        if (circuits.get(permit.key) != circuit || circuit.generation != permit.generation) {
+            return;
+        }
+
+        if (circuit.state == State.CLOSED) {
+            circuit.add(failed, slow);
+
+            if (circuit.count >= minimumCalls &&
+                    isOverThresholds(circuit.failureCount, circuit.slowCount, circuit.count)) {
+                open(circuit, System.nanoTime());
+            }
+        } else if (circuit.state == State.HALF_OPEN) {
+            circuit.trialsCompleted++;
+
+            if (failed) {
+                circuit.trialFailureCount++;
+            }
+
+            if (slow) {
+                circuit.trialSlowCount++;
+            }
+
+            if (circuit.trialsCompleted >= halfOpenCalls) {
+                if (isOverThresholds(circuit.trialFailureCount, circuit.trialSlowCount,
+                        circuit.trialsCompleted)) {
+                    open(circuit, System.nanoTime());
+                } else {
+                    circuit.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back the trial slot of a call which was abandoned without an outcome.
+     *
+     * @param permit The {@link Permit} of the call.
+     */
+    private synchronized void abandon(@NonNull final Permit permit) {
+        final Circuit circuit = permit.circuit;
+
+        if (circuits.get(permit.key) == circuit && circuit.generation == permit.generation &&
+                circuit.state == State.HALF_OPEN) {
+            circuit.trialsIssued--;
+        }
+    }
+
+    /**
+     * Are the given counts at or over either of the thresholds?
+     *
+     * @param failureCount The number of failed calls.
+     * @param slowCount The number of slow calls.
+     * @param count The total number of calls.
+     * @return {@code true} if the circuit should open, {@code false} if not.
+     */
+    private boolean isOverThresholds(final int failureCount, final int slowCount,
+            final int count) {
+        return (double) failureCount / count >= failureRateThreshold ||
+                (double) slowCount / count >= slowCallRateThreshold;
+    }
+
+    /**
+     * Open the given circuit. This must be called while holding the lock on this instance.
+     *
+     * @param circuit The circuit to open.
+     * @param now The current time, as given by {@link System#nanoTime()}.
+     */
+    private static void open(@NonNull final Circuit circuit, final long now) {
+        circuit.state = State.OPEN;
+        circuit.openedAt = now;
+        circuit.generation++;
+    }
+
+    /**
+     * Move the given circuit from open to half-open if the open duration has passed. This must be
+     * called while holding the lock on this instance.
+     *
+     * @param circuit The circuit to update.
+     * @param now The current time, as given by {@link System#nanoTime()}.
+     */
+    private void updateState(@NonNull final Circuit circuit, final long now) {
+        if (circuit.state == State.OPEN && now - circuit.openedAt >= openDuration * 1000000L) {
+            circuit.state = State.HALF_OPEN;
+            circuit.trialsIssued = 0;
+            circuit.trialsCompleted = 0;
+            circuit.trialFailureCount = 0;
+            circuit.trialSlowCount = 0;
+            circuit.generation++;
+        }
+    }
+
+    /**
+     * A {@code Permit} is given to a call which has been allowed by the {@link CircuitBreaker}.
+     * The call reports its outcome through it. Only the first outcome is recorded.
+     */
+    final class Permit {
+
+        private final String key;
+        private final Circuit circuit;
+        private final int generation;
+        private final long startTime;
+
+        private boolean finished;
+        private int responseCode = -1;
+        private long headersTime;
+
+        /**
+         * Create a new {@code Permit}.
+         *
+         * @param key The key of the host.
+         * @param circuit The circuit of the host.
+         * @param generation The generation of the circuit when the call was allowed.
+         * @param startTime The time the call was allowed, as given by {@link System#nanoTime()}.
+         */
+        private Permit(@NonNull final String key, @NonNull final Circuit circuit,
+                final int generation, final long startTime) {
+            this.key = key;
+            this.circuit = circuit;
+            this.generation = generation;
+            this.startTime = startTime;
+        }
+
+        /**
+         * Record that the response has been received.
+         *
+         * @param responseCode The status code of the response.
+         */
+        void onResponse(final int responseCode) {
+            if (!finished) {
+                finished = true;
+                record(this, responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR, isSlow());
+            }
+        }
+
+        /**
+         * Note that the response headers have been received, without recording an outcome yet,
+         * as the body may still fail. The response is recorded by {@link #release()} or
+         * {@link #onCallerFailure()}, unless {@link #onFailure(IOException)} is called first.
+         *
+         * @param responseCode The status code of the response.
+         */
+        void onHeaders(final int responseCode) {
+            if (headersTime == 0) {
+                this.responseCode = responseCode;
+                headersTime = System.nanoTime();
+            }
+        }
+
+        /**
+         * Record that the connection to the host failed. If the call was interrupted by the
+         * caller, it is not counted.
+         *
+         * @param e The {@link IOException} that the call failed with.
+         */
+        void onFailure(@Nullable final IOException e) {
+            if (!finished) {
+                finished = true;
+
+                if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                    abandon(this);
+                } else {
+                    record(this, true, isSlow());
+                }
+            }
+        }
+
+        /**
+         * Record that the call failed because of the caller rather than the host. If the
+         * response headers had been received, the response is recorded. Otherwise, the call is
+         * not counted.
+         */
+        void onCallerFailure() {
+            if (!finished) {
+                if (headersTime != 0) {
+                    onResponse(responseCode);
+                } else {
+                    finished = true;
+                    abandon(this);
+                }
+            }
+        }
+
+        /**
+         * Release the permit once the call has finished. If the response headers were received,
+         * the response is recorded. If no outcome has been recorded at all, the call is counted
+         * as failed.
+         */
+        void release() {
+            if (headersTime != 0) {
+                onResponse(responseCode);
+            } else {
+                onFailure(null);
+            }
+        }
+
+        /**
+         * Did the call take at least the slow call duration to receive the response headers, or
+         * has it taken that long so far if they have not been received?
+         *
+         * @return {@code true} if the call is slow, {@code false} if not.
+         */
+        private boolean isSlow() {
+            final long end = headersTime != 0 ? headersTime : System.nanoTime();
+
+            return end - startTime >= slowCallDuration * 1000000L;
+        }
+    }
+
+    /**
+     * This holds the state of the circuit of a single host.
+     */
+    private static class Circuit {
+
+        private final boolean[] failures;
+        private final boolean[] slows;
+
+        private State state = State.CLOSED;
+        private int generation;
+        private int position;
+        private int count;
+        private int failureCount;
+        private int slowCount;
+        private long openedAt;
+        private int trialsIssued;
+        private int trialsCompleted;
+        private int trialFailureCount;
+        private int trialSlowCount;
+
+        /**
+         * Create a new {@code Circuit}.
+         *
+         * @param windowSize The number of calls held in the rolling window.
+         */
+        private Circuit(final int windowSize) {
+            failures = new boolean[windowSize];
+            slows = new boolean[windowSize];
+        }
+
+        /**
+         * Add the outcome of a call to the rolling window, replacing the oldest outcome if the
+         * window is full.
+         *
+         * @param failed {@code true} if the call failed, {@code false} if not.
+         * @param slow {@code true} if the call was slow, {@code false} if not.
+         */
+        private void add(final boolean failed, final boolean slow) {
+            if (count == failures.length) {
+                if (failures[position]) {
+                    failureCount--;
+                }
+
+                if (slows[position]) {
+                    slowCount--;
+                }
+            } else {
+                count++;
+            }
+
+            failures[position] = failed;
+            slows[position] = slow;
+
+            if (failed) {
+                failureCount++;
+            }
+
+            if (slow) {
+                slowCount++;
+            }
+
+            position = (position + 1) % failures.length;
+        }
+
+        /**
+         * Close the circuit and empty the rolling window.
+         */
+        private void close() {
+            state = State.CLOSED;
+            generation++;
+            position = 0;
+            count = 0;
+            failureCount = 0;
+            slowCount = 0;
+        }
+    }
+
+    /**
+     * This class is used to construct a new {@link CircuitBreaker}. All fields have defaults. When
+     * building is done, call {@link #build()} to get an instance of {@link CircuitBreaker}.
+     */
+    public static class Builder {
+
+        private int windowSize = 20;
+        private int minimumCalls = 10;
+        private double failureRateThreshold = 0.5;
+        private double slowCallRateThreshold = 1.0;
+        private long slowCallDuration = 10000;
+        private long openDuration = 30000;
+        private int halfOpenCalls = 3;
+
+        /**
+         * Set the number of calls held in the rolling window of each host. The rates are worked
+         * out over these calls.
+         *
+         * <p>
+         *     By default, this is set as {@code 20}.
+         * </p>
+         *
+         * @param windowSize The size of the rolling window. Must be {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setWindowSize(final int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        /**
+         * Set the minimum number of calls in the rolling window before the rates are checked, so
+         * that a single failure to a new host does not open its circuit.
+         *
+         * <p>
+         *     By default, this is set as {@code 10}.
+         * </p>
+         *
+         * @param minimumCalls The minimum number of calls. Must be {@code 1} or greater, and no
+         *                     greater than the window size.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMinimumCalls(final int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * Set the rate of failed calls at which the circuit opens.
+         *
+         * <p>
+         *     By default, this is set as {@code 0.5}.
+         * </p>
+         *
+         * @param failureRateThreshold The failure rate threshold. Must be greater than {@code 0}
+         *                             and no greater than {@code 1}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setFailureRateThreshold(final double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * Set the rate of slow calls at which the circuit opens.
+         *
+         * <p>
+         *     By default, this is set as {@code 1.0}, so the circuit only opens when every call in
+         *     the window is slow.
+         * </p>
+         *
+         * @param slowCallRateThreshold The slow call rate threshold. Must be greater than
+         *                              {@code 0} and no greater than {@code 1}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setSlowCallRateThreshold(final double slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            return this;
+        }
+
+        /**
+         * Set the time taken to receive a response at which the call is counted as slow.
+         *
+         * <p>
+         *     By default, this is set as {@code 10000} milliseconds.
+         * </p>
+         *
+         * @param slowCallDurationMillis The slow call duration, in milliseconds. Must be greater
+         *                               than {@code 0}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setSlowCallDuration(final long slowCallDurationMillis) {
+            slowCallDuration = slowCallDurationMillis;
+            return this;
+        }
+
+        /**
+         * Set the time that a circuit stays open before it allows trial requests.
+         *
+         * <p>
+         *     By default, this is set as {@code 30000} milliseconds.
+         * </p>
+         *
+         * @param openDurationMillis The open duration, in milliseconds. Must be {@code 0} or
+         *                           greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setOpenDuration(final long openDurationMillis) {
+            openDuration = openDurationMillis;
+            return this;
+        }
+
+        /**
+         * Set the number of trial requests allowed while a circuit is half-open. The circuit
+         * closes or opens again once they have all finished.
+         *
+         * <p>
+         *     By default, this is set as {@code 3}.
+         * </p>
+         *
+         * @param halfOpenCalls The number of trial requests. Must be {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setHalfOpenCalls(final int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        /**
+         * Create a new instance of {@link CircuitBreaker} based on the snapshot of data in this
+         * {@code Builder} at the instant this method is called.
+         *
+         * @return A new instance of {@link CircuitBreaker}.
+         * @throws IllegalArgumentException When any of the values are out of range.
+         */
+        @NonNull
+        public CircuitBreaker build() {
+            if (windowSize < 1) {
+                throw new IllegalArgumentException("windowSize must be 1 or greater.");
+            }
+
+            if (minimumCalls < 1 || minimumCalls > windowSize) {
+                throw new IllegalArgumentException("minimumCalls must be between 1 and " +
+                        "windowSize.");
+            }
+
+            if (failureRateThreshold <= 0 || failureRateThreshold > 1 ||
+                    slowCallRateThreshold <= 0 || slowCallRateThreshold > 1) {
+                throw new IllegalArgumentException("The thresholds must be greater than 0 and " +
+                        "no greater than 1.");
+            }
+
+            if (slowCallDuration <= 0) {
+                throw new IllegalArgumentException("slowCallDuration must be greater than 0.");
+            }
+
+            if (openDuration < 0) {
+                throw new IllegalArgumentException("openDuration must be 0 or greater.");
+            }
+
+            if (halfOpenCalls < 1) {
+                throw new IllegalArgumentException("halfOpenCalls must be 1 or greater.");
+            }
+
+            return new CircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * This {@link Exception} is thrown when the {@link CircuitBreaker} of a {@link HttpFetcherClient}
+ * is open for the host of a request. The request fails straight away, without a connection being
+ * attempted, as the host has recently been failing or responding too slowly.
+ *
+ * @author Niall Scott
+ * @see CircuitBreaker
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    /**
+     * Constructs a new {@code CircuitBreakerOpenException} with the default message filled in.
+     */
+    public CircuitBreakerOpenException() {
+        super("The circuit breaker is open.");
+    }
+
+    /**
+     * Constructs a new {@code CircuitBreakerOpenException}, specifying the message.
+     *
+     * @param detailMessage The {@link Exception} message.
+     */
+    public CircuitBreakerOpenException(@Nullable final String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A {@code ConnectionPool} keeps track of idle keep-alive connections, grouped by host. It is owned
+ * by a {@link HttpFetcherClient} and is shared between all {@link HttpFetcher}s which use that
+ * client.
+ *
+ * <p>
+ *     The sockets themselves are owned by the platform {@link java.net.HttpURLConnection}
+ *     implementation, which keeps a socket alive when the response body has been fully read and
+ *     the stream closed, rather than the connection being disconnected. This class decides whether
+ *     a connection is allowed to go back to the idle state. When a host already has the maximum
+ *     number of idle connections, the {@link HttpFetcher} will disconnect instead, which closes the
+ *     socket. Idle connections which have been idle for longer than the keep-alive duration are
+ *     evicted.
+ * </p>
+ *
+ * <p>
+ *     The estimated hit and miss counters give a rough idea of how often a request was able to
+ *     reuse an idle connection to the same host. They are only estimates: this class does not own
+ *     the sockets, so it can not see when the platform has closed an idle socket, or reused a
+ *     socket for a request which did not go through this pool. A hit means that a connection was
+ *     believed to be idle, not that the socket was actually reused.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient
+ */
+public class ConnectionPool {
+
+    private final int maxIdleConnectionsPerHost;
+    private final long keepAliveDurationMillis;
+    private final HashMap<String, LinkedList<Long>> idleConnections = new HashMap<>();
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Create a new {@code ConnectionPool}.
+     *
+     * @param maxIdleConnectionsPerHost The maximum number of idle connections to keep per host.
+     *                                  Must be {@code 0} or greater.
+     * @param keepAliveDurationMillis The number of milliseconds that a connection may remain idle
+     *                                for before it is evicted. Must be greater than {@code 0}.
+     */
+    public ConnectionPool(final int maxIdleConnectionsPerHost, final long keepAliveDurationMillis) {
+        if (maxIdleConnectionsPerHost < 0) {
+            throw new IllegalArgumentException("maxIdleConnectionsPerHost must be 0 or greater.");
+        }
+
+        if (keepAliveDurationMillis <= 0) {
+            throw new IllegalArgumentException("keepAliveDurationMillis must be greater than 0.");
+        }
+
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.keepAliveDurationMillis = keepAliveDurationMillis;
+    }
+
+    /**
+     * Acquire an idle connection to the host described by {@code key}, if one is available. This
+     * is called before a request is made. If an idle connection is available, it is removed from
+     * the idle set and the estimated hit counter is incremented. Otherwise, the estimated miss
+     * counter is incremented.
+     *
+     * @param key The key of the host. See {@link #getKey(URL)}.
+     * @return {@code true} if an idle connection to the host was available, {@code false} if a new
+     *         connection will need to be established.
+     */
+    public synchronized boolean acquire(@NonNull final String key) {
+        final long now = System.nanoTime();
+        evictExpired(now);
+        final LinkedList<Long> idle = idleConnections.get(key);
+
+        if (idle != null && !idle.isEmpty()) {
+            // Take the most recently used connection, as it is the least likely to have been
+            // closed by the server.
+            idle.removeLast();
+
+            if (idle.isEmpty()) {
+                idleConnections.remove(key);
+            }
+
+            hitCount++;
+            return true;
+        } else {
+            missCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Offer a connection to the host described by {@code key} back to the pool once its response
+     * body has been fully read.
+     *
+     * @param key The key of the host. See {@link #getKey(URL)}.
+     * @return {@code true} if the connection should be kept alive, {@code false} if the pool for
+     *         this host is full and the connection should be closed.
+     */
+    public synchronized boolean release(@NonNull final String key) {
+        final long now = System.nanoTime();
+        evictExpired(now);
+        LinkedList<Long> idle = idleConnections.get(key);
+
+        if (idle == null) {
+            if (maxIdleConnectionsPerHost == 0) {
+                return false;
+            }
+
+            idle = new LinkedList<>();
+            idleConnections.put(key, idle);
+        } else if (idle.size() >= maxIdleConnectionsPerHost) {
+            return false;
+        }
+
+        idle.addLast(now);
+        return true;
+    }
+
+    /**
+     * Evict all idle connections from the pool. This does not reset the estimated hit and miss
+     * counters.
+     */
+    public synchronized void evictAll() {
+        idleConnections.clear();
+    }
+
+    /**
+     * Get the total number of idle connections held by this pool, across all hosts.
+     *
+     * @return The total number of idle connections.
+     */
+    public synchronized int getIdleConnectionCount() {
+        evictExpired(System.nanoTime());
+        int count = 0;
+
+        for (LinkedList<Long> idle : idleConnections.values()) {
+            count += idle.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the number of idle connections held by this pool for the given host.
+     *
+     * @param key The key of the host. See {@link #getKey(URL)}.
+     * @return The number of idle connections for the given host.
+     */
+    public synchronized int getIdleConnectionCount(@NonNull final String key) {
+        evictExpired(System.nanoTime());
+        final LinkedList<Long> idle = idleConnections.get(key);
+
+        return idle != null ? idle.size() : 0;
+    }
+
+    /**
+     * Get an estimate of the number of times a request was able to use an idle connection. This
+     * counts the times an idle connection was believed to be available; the platform may have
+     * closed the socket in the meantime, in which case a new connection was made anyway.
+     *
+     * @return The estimated number of pool hits.
+     */
+    public synchronized long getEstimatedHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get an estimate of the number of times a request was not able to use an idle connection and
+     * a new connection had to be established. The platform may still have reused a socket which
+     * this pool did not know about.
+     *
+     * @return The estimated number of pool misses.
+     */
+    public synchronized long getEstimatedMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the maximum number of idle connections kept per host.
+     *
+     * @return The maximum number of idle connections kept per host.
+     */
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Get the number of milliseconds that a connection may remain idle for before it is evicted.
+     *
+     * @return The keep-alive duration, in milliseconds.
+     */
+    public long getKeepAliveDurationMillis() {
+        return keepAliveDurationMillis;
+    }
+
+    /**
+     * Get the key that connections to the host of the given {@link URL} are grouped by. Connections
+     * are only reusable when the scheme, host and port are the same.
+     *
+     * @param url The {@link URL} to get the key for.
+     * @return The key for the host of the {@link URL}.
+     */
+    @NonNull
+    public static String getKey(@NonNull final URL url) {
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ':' + port;
+    }
+
+    /**
+     * Remove any idle connections which have been idle for longer than the keep-alive duration.
+     * This must be called while holding the lock on this instance.
+     *
+     * @param now The current time, as given by {@link System#nanoTime()}.
+     */
+    private void evictExpired(final long now) {
+        final long keepAliveNanos = keepAliveDurationMillis * 1000000L;
+        final Iterator<Map.Entry<String, LinkedList<Long>>> it =
+                idleConnections.entrySet().iterator();
+
+        while (it.hasNext()) {
+            final LinkedList<Long> idle = it.next().getValue();
+
+            // The oldest connections are at the head of the queue.
+            while (!idle.isEmpty() && now - idle.getFirst() > keepAliveNanos) {
+                idle.removeFirst();
+            }
+
+            if (idle.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,796 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@code DiskResponseCache} stores HTTP response bodies on disk along with their validators (the
+ * {@code ETag} and {@code Last-Modified} response headers) and the rest of the response headers. It is given to a
+ * {@link HttpFetcherClient} with {@link HttpFetcherClient.Builder#setDiskCache(DiskResponseCache)}.
+ *
+ * <p>
+ *     When a {@link HttpFetcher} which uses caches performs a {@code GET} request and the cache
+ *     holds an entry for the request, the {@code If-None-Match} and {@code If-Modified-Since}
+ *     request headers are sent automatically. If the server responds with
+ *     {@code 304 Not Modified}, the cached body is given to the {@link FetcherStreamReader}
+ *     instead, so the body is not downloaded again. The response is then described as the stored
+ *     {@code 200 OK} response, with the headers updated from the {@code 304 Not Modified}
+ *     response. A {@code 200 OK} response which has a validator is written to the cache
+ *     while the {@link FetcherStreamReader} is reading it, and is only committed once the whole
+ *     body has been read.
+ * </p>
+ *
+ * <p>
+ *     Entries stored by a {@link HttpFetcher} are keyed by {@link HttpFetcher#getCacheKey()},
+ *     which includes the request headers and settings which affect the response, not just the
+ *     URL. Responses which vary on {@code *} or on a credential header are not stored.
+ * </p>
+ *
+ * <p>
+ *     The cache is bounded by the total size of the bodies it holds. When the bound is exceeded,
+ *     the least recently used entries are evicted.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe. Only one instance should be used per directory.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient
+ */
+public class DiskResponseCache {
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String SUFFIX_BODY = ".0";
+    private static final String SUFFIX_METADATA = ".1";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private boolean initialised;
+    private long size;
+    private int tempCounter;
+    private long requestCount;
+    private long hitCount;
+    private long writeCount;
+
+    /**
+     * Create a new {@code DiskResponseCache}.
+     *
+     * @param directory The directory to store the cache in. This should be a directory dedicated to
+     *                  this cache, such as a sub-directory of {@link
+     *                  android.content.Context#getCacheDir()}. It will be created if it does not
+     *                  exist. Must not be {@code null}.
+     * @param maxSize The maximum total size of the cached bodies, in bytes. Must be greater than
+     *                {@code 0}.
+     */
+    public DiskResponseCache(@NonNull final File directory, final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0.");
+        }
+
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a {@link Snapshot} of the cache entry for the given key.
+     *
+     * @param cacheKey The key to get the cache entry for. For entries stored by a
+     *                 {@link HttpFetcher}, this is {@link HttpFetcher#getCacheKey()}.
+     * @return A {@link Snapshot} of the cache entry, or {@code null} if there is no entry for the
+     *         given key. The caller must close the {@link Snapshot} once it is finished with.
+     */
+    @Nullable
+    public synchronized Snapshot get(@NonNull final String cacheKey) {
+        initialise();
+        requestCount++;
+        final String key = getKey(cacheKey);
+        final Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            return new Snapshot(entry, new FileInputStream(getBodyFile(key)));
+        } catch (IOException e) {
+            // The body has been removed from underneath us.
+            removeEntry(key);
+            return null;
+        }
+    }
+
+    /**
+     * Remove the cache entry for the given key, if it exists.
+     *
+     * @param cacheKey The key to remove the cache entry for.
+     */
+    public synchronized void remove(@NonNull final String cacheKey) {
+        initialise();
+        removeEntry(getKey(cacheKey));
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void evictAll() {
+        initialise();
+        final Iterator<String> it = entries.keySet().iterator();
+
+        while (it.hasNext()) {
+            final String key = it.next();
+            getBodyFile(key).delete();
+            getMetadataFile(key).delete();
+            it.remove();
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Get the total size of the bodies held by this cache, in bytes.
+     *
+     * @return The total size of the bodies held by this cache, in bytes.
+     */
+    public synchronized long getSize() {
+        initialise();
+        return size;
+    }
+
+    /**
+     * Get the maximum total size of the bodies held by this cache, in bytes.
+     *
+     * @return The maximum size of this cache, in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the directory that this cache is stored in.
+     *
+     * @return The directory that this cache is stored in.
+     */
+    @NonNull
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of times this cache has been consulted.
+     *
+     * @return The number of times this cache has been consulted.
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Get the number of times a cached body has been given to a {@link FetcherStreamReader}
+     * because the server responded with {@code 304 Not Modified}.
+     *
+     * @return The number of times a cached body has been used.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of response bodies which have been written to this cache.
+     *
+     * @return The number of response bodies which have been written to this cache.
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Record that a cached body has been used in place of a response body.
+     */
+    synchronized void trackHit() {
+        hitCount++;
+    }
+
+    /**
+     * Wrap the response body {@link InputStream} so that the body is written to this cache as it
+     * is read. The entry is committed when the end of the stream has been reached. If the stream is
+     * closed before the end has been reached, the entry is discarded.
+     *
+     * @param cacheKey The key to store the entry under.
+     * @param metadata The {@link ResponseMetadata} of the {@code 200 OK} response. Its
+     *                 {@code ETag} and {@code Last-Modified} headers are the validators of the
+     *                 entry.
+     * @param in The response body {@link InputStream}.
+     * @return An {@link InputStream} which should be given to the {@link FetcherStreamReader}. If
+     *         the response is not cacheable, or the cache could not be written to, {@code in} is
+     *         returned as-is.
+     */
+    @NonNull
+    InputStream wrapForWriting(@NonNull final String cacheKey,
+            @NonNull final ResponseMetadata metadata, @NonNull final InputStream in) {
+        final String etag = metadata.getHeader("ETag");
+        final String lastModified = metadata.getHeader("Last-Modified");
+
+        if (TextUtils.isEmpty(etag) && TextUtils.isEmpty(lastModified)) {
+            // Without a validator, the entry could never be revalidated.
+            return in;
+        }
+
+        final File tempFile;
+
+        synchronized (this) {
+            initialise();
+            tempFile = new File(directory, getKey(cacheKey) + '.' + (tempCounter++) +
+                    SUFFIX_TEMP);
+        }
+
+        try {
+            return new CacheWritingInputStream(in, new Entry(cacheKey, etag, lastModified,
+                    metadata.getResponseMessage(), metadata.getUrl(), metadata.getHeaders(), 0),
+                    tempFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            return in;
+        }
+    }
+
+    /**
+     * Commit a fully written body to the cache.
+     *
+     * @param entry The {@link Entry} describing the body.
+     * @param tempFile The temporary file that the body has been written to.
+     */
+    private synchronized void commit(@NonNull final Entry entry, @NonNull final File tempFile) {
+        if (entry.length > maxSize) {
+            tempFile.delete();
+            return;
+        }
+
+        final String key = getKey(entry.cacheKey);
+        removeEntry(key);
+
+        try {
+            writeMetadata(entry, getMetadataFile(key));
+        } catch (IOException e) {
+            tempFile.delete();
+            return;
+        }
+
+        if (!tempFile.renameTo(getBodyFile(key))) {
+            tempFile.delete();
+            getMetadataFile(key).delete();
+            return;
+        }
+
+        entries.put(key, entry);
+        size += entry.length;
+        writeCount++;
+        trimToSize();
+    }
+
+    /**
+     * Remove the entry with the given key from the cache, including its files. This must be called
+     * while holding the lock on this instance.
+     *
+     * @param key The key of the entry to remove.
+     */
+    private void removeEntry(@NonNull final String key) {
+        final Entry entry = entries.remove(key);
+
+        if (entry != null) {
+            size -= entry.length;
+        }
+
+        getBodyFile(key).delete();
+        getMetadataFile(key).delete();
+    }
+
+    /**
+     * Evict the least recently used entries until the size of the cache is within its bound. This
+     * must be called while holding the lock on this instance.
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, Entry> eldest = it.next();
+            final String key = eldest.getKey();
+            it.remove();
+            size -= eldest.getValue().length;
+            getBodyFile(key).delete();
+            getMetadataFile(key).delete();
+        }
+    }
+
+    /**
+     * Read the existing entries from disk the first time this cache is used. This must be called
+     * while holding the lock on this instance.
+     */
+    private void initialise() {
+        if (initialised) {
+            return;
+        }
+
+        initialised = true;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(SUFFIX_TEMP)) {
+                // Left over from a write which was interrupted.
+                file.delete();
+            } else if (name.endsWith(SUFFIX_METADATA)) {
+                final String key = name.substring(0, name.length() - SUFFIX_METADATA.length());
+                final File bodyFile = getBodyFile(key);
+
+                try {
+                    final Entry entry = readMetadata(file);
+
+                    if (bodyFile.length() == entry.length && getKey(entry.cacheKey).equals(key)) {
+                        entries.put(key, entry);
+                        size += entry.length;
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // Fall through to delete the corrupt entry.
+                }
+
+                file.delete();
+                bodyFile.delete();
+            }
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Get the body {@link File} for the given key.
+     *
+     * @param key The key of the entry.
+     * @return The body {@link File} for the given key.
+     */
+    @NonNull
+    private File getBodyFile(@NonNull final String key) {
+        return new File(directory, key + SUFFIX_BODY);
+    }
+
+    /**
+     * Get the metadata {@link File} for the given key.
+     *
+     * @param key The key of the entry.
+     * @return The metadata {@link File} for the given key.
+     */
+    @NonNull
+    private File getMetadataFile(@NonNull final String key) {
+        return new File(directory, key + SUFFIX_METADATA);
+    }
+
+    /**
+     * Write the metadata of an {@link Entry} out to a file.
+     *
+     * @param entry The {@link Entry} to write.
+     * @param file The {@link File} to write to.
+     * @throws IOException When there was a problem writing to the file.
+     */
+    private static void writeMetadata(@NonNull final Entry entry, @NonNull final File file)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(entry.cacheKey);
+            out.writeUTF(entry.etag != null ? entry.etag : "");
+            out.writeUTF(entry.lastModified != null ? entry.lastModified : "");
+            out.writeLong(entry.length);
+            out.writeBoolean(entry.responseMessage != null);
+
+            if (entry.responseMessage != null) {
+                out.writeUTF(entry.responseMessage);
+            }
+
+            out.writeUTF(entry.url);
+            out.writeInt(entry.headers.size());
+
+            for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().size());
+
+                for (String value : header.getValue()) {
+                    out.writeUTF(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the metadata of an {@link Entry} from a file.
+     *
+     * @param file The {@link File} to read from.
+     * @return The {@link Entry} described by the file.
+     * @throws IOException When there was a problem reading the file, or it is not in the expected
+     *                     format.
+     */
+    @NonNull
+    private static Entry readMetadata(@NonNull final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown cache format version.");
+            }
+
+            final String cacheKey = in.readUTF();
+            final String etag = in.readUTF();
+            final String lastModified = in.readUTF();
+            final long length = in.readLong();
+            final String responseMessage = in.readBoolean() ? in.readUTF() : null;
+            final String url = in.readUTF();
+            final int headerCount = in.readInt();
+            final TreeMap<String, List<String>> headers =
+                    new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+            for (int i = 0; i < headerCount; i++) {
+                final String name = in.readUTF();
+                final int valueCount = in.readInt();
+                final ArrayList<String> values = new ArrayList<>(valueCount);
+
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(in.readUTF());
+                }
+
+                headers.put(name, values);
+            }
+
+            return new Entry(cacheKey, etag.length() > 0 ? etag : null,
+                    lastModified.length() > 0 ? lastModified : null, responseMessage, url,
+                    headers, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the key used to name the files of the entry for the given cache key. The key is the hex
+     * encoded MD5 hash of the cache key, so that it is safe to use in file names.
+     *
+     * @param cacheKey The cache key to get the file key for.
+     * @return The file key for the given cache key.
+     */
+    @NonNull
+    static String getKey(@NonNull final String cacheKey) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5")
+                    .digest(cacheKey.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * This describes a single entry in the cache.
+     */
+    private static class Entry {
+
+        private final String cacheKey;
+        private final String etag;
+        private final String lastModified;
+        private final String responseMessage;
+        private final String url;
+        private final Map<String, List<String>> headers;
+        private long length;
+
+        /**
+         * Create a new {@code Entry}.
+         *
+         * @param cacheKey The key the entry is stored under.
+         * @param etag The {@code ETag} validator, if any.
+         * @param lastModified The {@code Last-Modified} validator, if any.
+         * @param responseMessage The message of the stored response, if any.
+         * @param url The URL the stored response came from.
+         * @param headers The headers of the stored response.
+         * @param length The length of the body, in bytes.
+         */
+        private Entry(@NonNull final String cacheKey, @Nullable final String etag,
+                @Nullable final String lastModified, @Nullable final String responseMessage,
+                @NonNull final String url, @NonNull final Map<String, List<String>> headers,
+                final long length) {
+            this.cacheKey = cacheKey;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.responseMessage = responseMessage;
+            this.url = url;
+            this.headers = headers;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A {@code Snapshot} is a view on a cache entry at the time it was retrieved. It holds the
+     * validators of the entry and an open {@link InputStream} of its body. The body remains
+     * readable even if the entry is evicted while the {@code Snapshot} is held.
+     */
+    public static class Snapshot {
+
+        private final Entry entry;
+        private final InputStream body;
+
+        /**
+         * Create a new {@code Snapshot}.
+         *
+         * @param entry The {@link Entry} this is a snapshot of.
+         * @param body The {@link InputStream} of the body.
+         */
+        private Snapshot(@NonNull final Entry entry, @NonNull final InputStream body) {
+            this.entry = entry;
+            this.body = body;
+        }
+
+        /**
+         * Get the {@code ETag} validator of the cached response.
+         *
+         * @return The {@code ETag} validator, or {@code null} if the response did not have one.
+         */
+        @Nullable
+        public String getETag() {
+            return entry.etag;
+        }
+
+        /**
+         * Get the {@code Last-Modified} validator of the cached response.
+         *
+         * @return The {@code Last-Modified} validator, or {@code null} if the response did not
+         *         have one.
+         */
+        @Nullable
+        public String getLastModified() {
+            return entry.lastModified;
+        }
+
+        /**
+         * Get the length of the cached body, in bytes.
+         *
+         * @return The length of the cached body, in bytes.
+         */
+        public long getLength() {
+            return entry.length;
+        }
+
+        /**
+         * Get the {@link InputStream} of the cached body.
+         *
+         * @return The {@link InputStream} of the cached body.
+         */
+        @NonNull
+        public InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * Get the {@link ResponseMetadata} to describe the cached body with, once the server has
+         * responded with {@code 304 Not Modified}. This is the stored {@code 200 OK} response,
+         * with its headers updated from those of the {@code 304 Not Modified} response. The
+         * {@code Content-Length} of the stored response is kept, as it describes the cached body.
+         *
+         * @param notModifiedHeaders The headers of the {@code 304 Not Modified} response.
+         * @param requestTime The time the request was started, from {@link System#nanoTime()}.
+         * @param responseTime The time the response headers were received, from
+         *                     {@link System#nanoTime()}.
+         * @return The {@link ResponseMetadata} to describe the cached body with.
+         */
+        @NonNull
+        ResponseMetadata getResponseMetadata(
+                @NonNull final Map<String, List<String>> notModifiedHeaders,
+                final long requestTime, final long responseTime) {
+            final TreeMap<String, List<String>> headers =
+                    new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(entry.headers);
+
+            for (Map.Entry<String, List<String>> header : notModifiedHeaders.entrySet()) {
+                final String name = header.getKey();
+
+                if (name != null && !"Content-Length".equalsIgnoreCase(name)) {
+                    headers.put(name, header.getValue());
+                }
+            }
+
+            return new ResponseMetadata(HttpURLConnection.HTTP_OK, entry.responseMessage,
+                    entry.url, headers, requestTime, responseTime);
+        }
+
+        /**
+         * Close this {@code Snapshot}, releasing the body {@link InputStream}.
+         */
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // Nothing to do here.
+            }
+        }
+    }
+
+    /**
+     * This {@link InputStream} copies the bytes read from the wrapped {@link InputStream} out to a
+     * temporary file. When the end of the stream is reached, the temporary file is committed to the
+     * cache. If anything goes wrong writing to the cache, the file is discarded but reading
+     * continues unaffected.
+     */
+    private class CacheWritingInputStream extends FilterInputStream {
+
+        private final Entry entry;
+        private final File tempFile;
+        private OutputStream out;
+
+        /**
+         * Create a new {@code CacheWritingInputStream}.
+         *
+         * @param in The {@link InputStream} to wrap.
+         * @param entry The {@link Entry} describing the response.
+         * @param tempFile The temporary file to write to.
+         * @throws IOException When the temporary file could not be opened.
+         */
+        private CacheWritingInputStream(@NonNull final InputStream in, @NonNull final Entry entry,
+                @NonNull final File tempFile) throws IOException {
+            super(in);
+
+            this.entry = entry;
+            this.tempFile = tempFile;
+            out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b == -1) {
+                complete();
+            } else if (out != null) {
+                try {
+                    out.write(b);
+                    entry.length++;
+                } catch (IOException e) {
+                    abort();
+                }
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            final int len = super.read(buffer, offset, count);
+
+            if (len == -1) {
+                complete();
+            } else if (out != null) {
+                try {
+                    out.write(buffer, offset, len);
+                    entry.length += len;
+                } catch (IOException e) {
+                    abort();
+                }
+            }
+
+            return len;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            // Skipped bytes would leave a hole in the cached body.
+            abort();
+            return super.skip(byteCount);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        /**
+         * Called when the end of the stream has been reached. The temporary file is committed to
+         * the cache.
+         */
+        private void complete() {
+            if (out == null) {
+                return;
+            }
+
+            try {
+                out.close();
+                out = null;
+                commit(entry, tempFile);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        /**
+         * Discard the temporary file.
+         */
+        private void abort() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do here.
+                }
+
+                out = null;
+                tempFile.delete();
+            }
+        }
+    }
+}
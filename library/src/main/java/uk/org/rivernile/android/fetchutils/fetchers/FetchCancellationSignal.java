@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * A {@code FetchCancellationSignal} is used to cancel fetches which are in progress. It is given
+ * to a {@link HttpFetcher} with
+ * {@link HttpFetcher.Builder#setCancellationSignal(FetchCancellationSignal)}. When
+ * {@link #cancel()} is called, usually from another thread, the connections of the fetch are
+ * disconnected so that any read in progress fails straight away, and the fetch throws a
+ * {@link FetchCancelledException}. A fetch which has not started yet throws the exception
+ * without connecting.
+ *
+ * <p>
+ *     One signal may be shared by many fetches, for example all of the fetches made by a single
+ *     load, so that they are all cancelled together. Once cancelled, a signal stays cancelled, so
+ *     a new signal is needed for the next load.
+ * </p>
+ *
+ * <p>
+ *     The {@code SimpleAsyncTaskLoader}s in this library create a signal for each load and cancel
+ *     it when the load is cancelled. The signal is available to {@code loadInBackground()} through
+ *     {@code getCancellationSignal()}.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public class FetchCancellationSignal {
+
+    private final ArrayList<OnCancelListener> listeners = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    /**
+     * Cancel the fetches which use this signal. Each {@link OnCancelListener} is called on the
+     * calling thread. Calling this more than once has no further effect.
+     */
+    public void cancel() {
+        final OnCancelListener[] toCall;
+
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+
+            cancelled = true;
+            toCall = listeners.toArray(new OnCancelListener[listeners.size()]);
+            listeners.clear();
+            // Wake any fetch which is waiting between retries.
+            notifyAll();
+        }
+
+        for (OnCancelListener listener : toCall) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * Has this signal been cancelled?
+     *
+     * @return {@code true} if this signal has been cancelled, {@code false} if not.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw a {@link FetchCancelledException} if this signal has been cancelled. A
+     * {@link Fetcher} should call this at the points where it can stop.
+     *
+     * @throws FetchCancelledException When this signal has been cancelled.
+     */
+    public void throwIfCancelled() throws FetchCancelledException {
+        if (cancelled) {
+            throw new FetchCancelledException();
+        }
+    }
+
+    /**
+     * Add an {@link OnCancelListener} to be called when this signal is cancelled. If it has
+     * already been cancelled, the listener is not added.
+     *
+     * @param listener The {@link OnCancelListener} to add.
+     * @return {@code true} if the listener was added, {@code false} if this signal has already
+     *         been cancelled.
+     */
+    public synchronized boolean addOnCancelListener(@NonNull final OnCancelListener listener) {
+        if (cancelled) {
+            return false;
+        }
+
+        listeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Remove an {@link OnCancelListener}. This should be done once the work it would cancel has
+     * finished.
+     *
+     * @param listener The {@link OnCancelListener} to remove.
+     */
+    public synchronized void removeOnCancelListener(@NonNull final OnCancelListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sleep for the given time, returning early if this signal is cancelled.
+     *
+     * @param millis The time to sleep for, in milliseconds.
+     * @throws FetchCancelledException When this signal is cancelled before or while sleeping.
+     * @throws InterruptedException When the calling thread is interrupted.
+     */
+    synchronized void sleep(final long millis) throws FetchCancelledException,
+            InterruptedException {
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        long remaining = millis;
+
+        while (!cancelled && remaining > 0) {
+            wait(remaining);
+            remaining = (deadline - System.nanoTime()) / 1000000L;
+        }
+
+        throwIfCancelled();
+    }
+
+    /**
+     * An {@code OnCancelListener} is called when a {@link FetchCancellationSignal} is cancelled.
+     * It should abort the work in progress, for example by disconnecting a connection. It must not
+     * block, as it is called on the thread which cancelled the signal.
+     */
+    public interface OnCancelListener {
+
+        /**
+         * This is called when the {@link FetchCancellationSignal} has been cancelled.
+         */
+        public void onCancel();
+    }
+}
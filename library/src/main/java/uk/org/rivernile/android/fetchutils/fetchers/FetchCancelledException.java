@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.Nullable;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This {@link Exception} is thrown when a fetch has been stopped because its
+ * {@link FetchCancellationSignal} was cancelled. If the transfer was in progress, the connection
+ * is disconnected and the error caused by this is given as the cause.
+ *
+ * <p>
+ *     As this is an {@link InterruptedIOException}, a cancelled fetch is not retried by a
+ *     {@link RetryPolicy}, and is not counted as a failure by a {@link CircuitBreaker}.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see FetchCancellationSignal
+ */
+public class FetchCancelledException extends InterruptedIOException {
+
+    /**
+     * Constructs a new {@code FetchCancelledException} with the default message filled in.
+     */
+    public FetchCancelledException() {
+        super("The fetch was cancelled.");
+    }
+
+    /**
+     * Constructs a new {@code FetchCancelledException}, specifying the message.
+     *
+     * @param detailMessage The {@link Exception} message.
+     */
+    public FetchCancelledException(@Nullable final String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * A {@code FetchEventListener} is told about the phases of a request made by a
+ * {@link HttpFetcher}, so that the time spent in each phase can be measured. It may be set on a
+ * single {@link HttpFetcher} with {@link HttpFetcher.Builder#setEventListener(FetchEventListener)},
+ * or on a {@link HttpFetcherClient} with
+ * {@link HttpFetcherClient.Builder#setEventListener(FetchEventListener)} to be told about every
+ * request made through that client. When both are set, both are told.
+ *
+ * <p>
+ *     Every method has an empty implementation, so only the events of interest need to be
+ *     overridden. Each is given a timestamp taken from {@link System#nanoTime()}, which is
+ *     monotonic, so the time between two events is found by subtracting their timestamps. When no
+ *     listener is set, no timestamps are taken and no extra work is done.
+ * </p>
+ *
+ * <p>
+ *     For each attempt at a request, and for each redirect hop within an attempt, the events
+ *     {@link #onConnectionAcquired(HttpFetcher, String, long)},
+ *     {@link #onRequestSent(HttpFetcher, String, long, long)} and
+ *     {@link #onFirstByte(HttpFetcher, String, int, long)} are called in that order. The
+ *     connection is established by the time {@code onConnectionAcquired()} is called, so the time
+ *     before it covers DNS lookup, connecting and the TLS handshake, as
+ *     {@link java.net.HttpURLConnection} does not report these separately. When a connection is
+ *     reused from the {@link ConnectionPool}, this time is close to zero. A segmented fetch
+ *     (see {@link HttpFetcher.Builder#setSegmentCount(int)}) calls these three again for the
+ *     request of each segment, after those for the probe request.
+ * </p>
+ *
+ * <p>
+ *     The methods are called on the thread which is running the {@link HttpFetcher}, and must
+ *     return quickly as the request waits for them. The exception is the events for the segments
+ *     of a segmented fetch, which are called on the threads fetching the segments, so may be
+ *     called at the same time for a single {@link HttpFetcher}. A listener set on a
+ *     {@link HttpFetcherClient} is called by many {@link HttpFetcher}s at once, so it must be
+ *     thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public abstract class FetchEventListener {
+
+    /**
+     * This is called when the {@link HttpFetcher} starts, before any cache is checked.
+     *
+     * @param fetcher The {@link HttpFetcher} which is running.
+     * @param url The URL being fetched.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onFetchStart(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+            final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when the connectivity of the device has been checked, before an attempt is
+     * made. If the device is not connected, the fetch fails straight after this.
+     *
+     * @param fetcher The {@link HttpFetcher} which is running.
+     * @param connected {@code true} if the device is connected, {@code false} if not.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onConnectivityChecked(@NonNull final HttpFetcher fetcher, final boolean connected,
+            final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when a connection to the server has been established, or reused, and the
+     * request is about to be sent.
+     *
+     * @param fetcher The {@link HttpFetcher} which is running.
+     * @param url The URL being requested. After a redirect, this is the location of the redirect.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onConnectionAcquired(@NonNull final HttpFetcher fetcher,
+            @NonNull final String url, final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when the request body has been written. When there is no request body, the
+     * request headers are only written when the response is asked for, so this is called
+     * straight after {@link #onConnectionAcquired(HttpFetcher, String, long)}.
+     *
+     * @param fetcher The {@link HttpFetcher} which is running.
+     * @param url The URL being requested.
+     * @param bodyBytes The number of bytes of request body written, or {@code 0} if there is no
+     *                  request body.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onRequestSent(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+            final long bodyBytes, final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when the response headers have been received from the server. The time
+     * since {@link #onRequestSent(HttpFetcher, String, long, long)} is the time to first byte.
+     *
+     * @param fetcher The {@link HttpFetcher} which is running.
+     * @param url The URL being requested.
+     * @param responseCode The HTTP response code.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onFirstByte(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+            final int responseCode, final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when the fetch has succeeded and the {@link FetcherStreamReader} has
+     * finished reading the response body.
+     *
+     * @param fetcher The {@link HttpFetcher} which has run.
+     * @param finalUrl The URL the body came from, after any redirects.
+     * @param bodyBytes The number of bytes of response body given to the
+     *                  {@link FetcherStreamReader}.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onBodyComplete(@NonNull final HttpFetcher fetcher, @NonNull final String finalUrl,
+            final long bodyBytes, final long timeNanos) {
+        // Nothing to do by default.
+    }
+
+    /**
+     * This is called when the fetch has failed. This is only called once, after the last attempt
+     * has failed.
+     *
+     * @param fetcher The {@link HttpFetcher} which has run.
+     * @param finalUrl The URL which was last requested, after any redirects.
+     * @param error The {@link IOException} the fetch failed with.
+     * @param timeNanos The time of the event, from {@link System#nanoTime()}.
+     */
+    public void onFetchFailed(@NonNull final HttpFetcher fetcher, @NonNull final String finalUrl,
+            @NonNull final IOException error, final long timeNanos) {
+        // Nothing to do by default.
+    }
+}
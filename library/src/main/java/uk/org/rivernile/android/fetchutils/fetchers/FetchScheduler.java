@@ -0,0 +1,661 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code FetchScheduler} runs {@link Fetcher}s asynchronously, like {@link FetcherExecutor},
+ * but each submission is given a {@link Priority}. This allows fetches the user is waiting for
+ * to go ahead of prefetching and background syncing, rather than competing equally with them for
+ * threads and bandwidth.
+ *
+ * <p>
+ *     Each {@link Priority} has its own queue. When a thread is free, the queues are checked from
+ *     the highest priority to the lowest, and the oldest submission of the first class which may
+ *     start is run. A class may not start a submission when;
+ * </p>
+ *
+ * <ul>
+ *     <li>It already has its maximum number of fetches in progress. See
+ *         {@link Builder#setMaxConcurrent(Priority, int)}.</li>
+ *     <li>It has been paused with {@link #pause(Priority)}.</li>
+ *     <li>Deferral is enabled and a class of higher priority has fetches in progress or waiting
+ *         to start. See {@link Builder#setDeferLowerPriorities(boolean)}.</li>
+ * </ul>
+ *
+ * <p>
+ *     Fetches which have already started are never stopped to make way for those of a higher
+ *     priority, as a {@link Fetcher} cannot be resumed. Pausing and deferral only hold back
+ *     fetches which have not started. To stop a fetch in progress, cancel its {@link Future}, or
+ *     give its {@link HttpFetcher} a {@link FetchCancellationSignal}.
+ * </p>
+ *
+ * <p>
+ *     The time that submissions of each class waited before starting is recorded, so that the
+ *     effect of the limits can be seen. This class is thread-safe. An instance should be shared
+ *     and kept for as long as it is needed, then {@link #shutdown()} should be called.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * FetchScheduler scheduler = new FetchScheduler.Builder().build();
+ * Future&lt;StringFetcherStreamReader&gt; future = scheduler.submit(fetcher,
+ *         new StringFetcherStreamReader(), FetchScheduler.Priority.USER_VISIBLE);
+ * // Do something else, then wait for the result.
+ * String data = future.get().getData();
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see FetcherExecutor
+ * @see FetcherCallback
+ */
+public class FetchScheduler {
+
+    /**
+     * The priorities that a submission can have, from the highest to the lowest.
+     */
+    public enum Priority {
+        /** The user is waiting for the result of the fetch. */
+        USER_VISIBLE,
+        /** The result is likely to be needed soon, but nobody is waiting for it yet. */
+        PREFETCH,
+        /** The fetch keeps data up to date in the background, such as a sync. */
+        BACKGROUND
+    }
+
+    private final int threadCount;
+    private final int maxQueueLength;
+    private final boolean deferLowerPriorities;
+    private final PriorityClass[] classes;
+    private final ThreadPoolExecutor executor;
+
+    private int activeCount;
+    private int queueDepth;
+    private boolean shutdown;
+
+    /**
+     * Construct a {@code FetchScheduler} from a {@link Builder}. This constructor is private - it
+     * should be called by {@link Builder#build()}.
+     *
+     * @param builder The instance of the {@link Builder} to construct from.
+     */
+    private FetchScheduler(@NonNull final Builder builder) {
+        threadCount = builder.threadCount;
+        maxQueueLength = builder.maxQueueLength;
+        deferLowerPriorities = builder.deferLowerPriorities;
+
+        final Priority[] priorities = Priority.values();
+        classes = new PriorityClass[priorities.length];
+
+        for (int i = 0; i < priorities.length; i++) {
+            classes[i] = new PriorityClass(builder.maxConcurrent[i]);
+        }
+
+        // Submissions are only handed to the executor when a thread is free, so its queue never
+        // holds more than a moment's worth of tasks.
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new FetcherExecutor.FetcherThreadFactory("FetchScheduler"));
+    }
+
+    /**
+     * Get the number of threads which run {@link Fetcher}s.
+     *
+     * @return The number of threads.
+     * @see Builder#setThreadCount(int)
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Get the maximum number of submissions which may wait to start, across all priorities.
+     *
+     * @return The maximum queue length.
+     * @see Builder#setMaxQueueLength(int)
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * Get the maximum number of fetches of the given priority which may be in progress at once.
+     *
+     * @param priority The {@link Priority}.
+     * @return The maximum number of concurrent fetches of the priority.
+     * @see Builder#setMaxConcurrent(Priority, int)
+     */
+    public int getMaxConcurrent(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].maxConcurrent;
+    }
+
+    /**
+     * Are lower priorities held back while a higher priority has fetches in progress or
+     * waiting?
+     *
+     * @return {@code true} if lower priorities are deferred, {@code false} if not.
+     * @see Builder#setDeferLowerPriorities(boolean)
+     */
+    public boolean isDeferLowerPriorities() {
+        return deferLowerPriorities;
+    }
+
+    /**
+     * Submit a {@link Fetcher} to be run asynchronously with the given {@link Priority}.
+     *
+     * @param fetcher The {@link Fetcher} to run.
+     * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+     * @param priority The {@link Priority} of the fetch.
+     * @param <R> The type of {@link FetcherStreamReader}.
+     * @return A {@link Future} which yields {@code reader} once the fetch has completed.
+     * @throws RejectedExecutionException When the queue is full, or this scheduler has been shut
+     *                                    down.
+     */
+    @NonNull
+    public <R extends FetcherStreamReader> Future<R> submit(@NonNull final Fetcher fetcher,
+            @NonNull final R reader, @NonNull final Priority priority) {
+        return submit(fetcher, reader, priority, null);
+    }
+
+    /**
+     * Submit a {@link Fetcher} to be run asynchronously with the given {@link Priority}, with a
+     * {@link FetcherCallback} to be told of the outcome.
+     *
+     * @param fetcher The {@link Fetcher} to run.
+     * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+     * @param priority The {@link Priority} of the fetch.
+     * @param callback The {@link FetcherCallback} to be told of the outcome. May be {@code null}.
+     * @param <R> The type of {@link FetcherStreamReader}.
+     * @return A {@link Future} which yields {@code reader} once the fetch has completed.
+     * @throws RejectedExecutionException When the queue is full, or this scheduler has been shut
+     *                                    down.
+     */
+    @NonNull
+    public <R extends FetcherStreamReader> Future<R> submit(@NonNull final Fetcher fetcher,
+            @NonNull final R reader, @NonNull final Priority priority,
+            @Nullable final FetcherCallback<R> callback) {
+        final ScheduledTask<R> task = new ScheduledTask<>(fetcher, reader, priority, callback);
+
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The FetchScheduler has been shut down.");
+            }
+
+            if (queueDepth >= maxQueueLength) {
+                throw new RejectedExecutionException("The FetchScheduler queue is full.");
+            }
+
+            task.enqueueTime = System.nanoTime();
+            classes[priority.ordinal()].queue.add(task);
+            queueDepth++;
+            dispatch();
+        }
+
+        return task;
+    }
+
+    /**
+     * Pause the given {@link Priority}. Its submissions which have not started are held back
+     * until {@link #resume(Priority)} is called. Fetches of the priority which are already in
+     * progress carry on.
+     *
+     * @param priority The {@link Priority} to pause.
+     */
+    public synchronized void pause(@NonNull final Priority priority) {
+        classes[priority.ordinal()].paused = true;
+        // A paused class no longer holds back the classes below it.
+        dispatch();
+    }
+
+    /**
+     * Resume the given {@link Priority} after it was paused with {@link #pause(Priority)}.
+     *
+     * @param priority The {@link Priority} to resume.
+     */
+    public synchronized void resume(@NonNull final Priority priority) {
+        classes[priority.ordinal()].paused = false;
+        dispatch();
+    }
+
+    /**
+     * Is the given {@link Priority} paused?
+     *
+     * @param priority The {@link Priority}.
+     * @return {@code true} if the priority is paused, {@code false} if not.
+     * @see #pause(Priority)
+     */
+    public synchronized boolean isPaused(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].paused;
+    }
+
+    /**
+     * Stop accepting new submissions. Submissions already accepted will still be run, unless
+     * their {@link Priority} is paused and is never resumed.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        shutdownExecutorIfIdle();
+    }
+
+    /**
+     * Has this scheduler been shut down?
+     *
+     * @return {@code true} if {@link #shutdown()} has been called, {@code false} if not.
+     */
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Get the number of fetches currently in progress, across all priorities.
+     *
+     * @return The number of fetches in progress.
+     */
+    public synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Get the number of fetches of the given {@link Priority} currently in progress.
+     *
+     * @param priority The {@link Priority}.
+     * @return The number of fetches of the priority in progress.
+     */
+    public synchronized int getActiveCount(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].activeCount;
+    }
+
+    /**
+     * Get the number of submissions waiting to start, across all priorities.
+     *
+     * @return The number of waiting submissions.
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the number of submissions of the given {@link Priority} waiting to start.
+     *
+     * @param priority The {@link Priority}.
+     * @return The number of waiting submissions of the priority.
+     */
+    public synchronized int getQueueDepth(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].queue.size();
+    }
+
+    /**
+     * Get the number of submissions of the given {@link Priority} which have started.
+     *
+     * @param priority The {@link Priority}.
+     * @return The number of started submissions of the priority.
+     */
+    public synchronized long getStartedCount(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].startedCount;
+    }
+
+    /**
+     * Get the average time that submissions of the given {@link Priority} waited before they
+     * started.
+     *
+     * @param priority The {@link Priority}.
+     * @return The average wait time, in milliseconds.
+     */
+    public synchronized double getAverageWaitTime(@NonNull final Priority priority) {
+        final PriorityClass priorityClass = classes[priority.ordinal()];
+
+        return priorityClass.startedCount > 0
+                ? priorityClass.totalWaitNanos / 1000000.0 / priorityClass.startedCount : 0;
+    }
+
+    /**
+     * Get the longest time that a submission of the given {@link Priority} waited before it
+     * started.
+     *
+     * @param priority The {@link Priority}.
+     * @return The longest wait time, in milliseconds.
+     */
+    public synchronized long getMaxWaitTime(@NonNull final Priority priority) {
+        return classes[priority.ordinal()].maxWaitNanos / 1000000L;
+    }
+
+    /**
+     * Start as many waiting submissions as the limits allow. This must be called while holding
+     * the lock on this instance.
+     */
+    private void dispatch() {
+        while (activeCount < threadCount) {
+            final ScheduledTask<?> task = pollNext();
+
+            if (task == null) {
+                return;
+            }
+
+            final PriorityClass priorityClass = classes[task.priority.ordinal()];
+            final long waitNanos = System.nanoTime() - task.enqueueTime;
+            queueDepth--;
+            activeCount++;
+            priorityClass.activeCount++;
+            priorityClass.startedCount++;
+            priorityClass.totalWaitNanos += waitNanos;
+            priorityClass.maxWaitNanos = Math.max(priorityClass.maxWaitNanos, waitNanos);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        onFinished(task);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Take the next submission which may start from the queues. This must be called while
+     * holding the lock on this instance.
+     *
+     * @return The next submission to start, or {@code null} if none may start.
+     */
+    @Nullable
+    private ScheduledTask<?> pollNext() {
+        for (PriorityClass priorityClass : classes) {
+            if (!priorityClass.paused && priorityClass.activeCount < priorityClass.maxConcurrent
+                    && !priorityClass.queue.isEmpty()) {
+                return priorityClass.queue.poll();
+            }
+
+            if (deferLowerPriorities && !priorityClass.paused &&
+                    (priorityClass.activeCount > 0 || !priorityClass.queue.isEmpty())) {
+                // This class is busy, so the classes below it must wait.
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * This is called when a submission has finished running.
+     *
+     * @param task The submission which has finished.
+     */
+    private synchronized void onFinished(@NonNull final ScheduledTask<?> task) {
+        activeCount--;
+        classes[task.priority.ordinal()].activeCount--;
+
+        if (shutdown) {
+            shutdownExecutorIfIdle();
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Remove a submission which was cancelled before it started.
+     *
+     * @param task The cancelled submission.
+     */
+    private synchronized void onCancelled(@NonNull final ScheduledTask<?> task) {
+        if (classes[task.priority.ordinal()].queue.remove(task)) {
+            queueDepth--;
+
+            if (shutdown) {
+                shutdownExecutorIfIdle();
+            }
+
+            // A cancelled submission may have been holding back the classes below it.
+            dispatch();
+        }
+    }
+
+    /**
+     * Shut down the underlying executor once there is nothing left for it to run. This must be
+     * called while holding the lock on this instance.
+     */
+    private void shutdownExecutorIfIdle() {
+        if (activeCount == 0 && queueDepth == 0) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The state of the submissions of a single {@link Priority}.
+     */
+    private static class PriorityClass {
+
+        private final int maxConcurrent;
+        private final LinkedList<ScheduledTask<?>> queue = new LinkedList<>();
+
+        private boolean paused;
+        private int activeCount;
+        private long startedCount;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        /**
+         * Create a new {@code PriorityClass}.
+         *
+         * @param maxConcurrent The maximum number of fetches of the priority which may be in
+         *                      progress at once.
+         */
+        private PriorityClass(final int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+        }
+    }
+
+    /**
+     * A {@code ScheduledTask} runs a single {@link Fetcher} and informs the
+     * {@link FetcherCallback} when done.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    private class ScheduledTask<R extends FetcherStreamReader> extends FutureTask<R> {
+
+        private final Priority priority;
+        private final FetcherCallback<R> callback;
+        private long enqueueTime;
+
+        /**
+         * Create a new {@code ScheduledTask}.
+         *
+         * @param fetcher The {@link Fetcher} to run.
+         * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+         * @param priority The {@link Priority} of the fetch.
+         * @param callback The {@link FetcherCallback} to be told of the outcome. May be
+         *                 {@code null}.
+         */
+        private ScheduledTask(@NonNull final Fetcher fetcher, @NonNull final R reader,
+                @NonNull final Priority priority, @Nullable final FetcherCallback<R> callback) {
+            super(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    fetcher.executeFetcher(reader);
+                    return reader;
+                }
+            });
+
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                onCancelled(this);
+                return;
+            }
+
+            if (callback == null) {
+                return;
+            }
+
+            final R reader;
+
+            try {
+                reader = get();
+            } catch (ExecutionException e) {
+                callback.onFetchFailure(FetcherExecutor.toIOException(e.getCause()));
+                return;
+            } catch (InterruptedException e) {
+                // This will not happen as the task is already done.
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            callback.onFetchSuccess(reader);
+        }
+    }
+
+    /**
+     * This class is used to construct a new {@link FetchScheduler}. All fields have defaults.
+     * When building is done, call {@link #build()} to get an instance of {@link FetchScheduler}.
+     */
+    public static class Builder {
+
+        private int threadCount = 4;
+        private int maxQueueLength = 64;
+        private boolean deferLowerPriorities = true;
+        private final int[] maxConcurrent = { 4, 2, 1 };
+
+        /**
+         * Set the number of threads which run {@link Fetcher}s. This is the maximum number of
+         * fetches in progress at once, across all priorities.
+         *
+         * <p>
+         *     By default, this is set as {@code 4}.
+         * </p>
+         *
+         * @param threadCount The number of threads. Must be greater than {@code 0}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setThreadCount(final int threadCount) {
+            this.threadCount = threadCount;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of submissions which may wait to start, across all priorities.
+         * When this many are waiting, {@link FetchScheduler#submit(Fetcher, FetcherStreamReader,
+         * Priority)} throws a {@link RejectedExecutionException}.
+         *
+         * <p>
+         *     By default, this is set as {@code 64}.
+         * </p>
+         *
+         * @param maxQueueLength The maximum queue length. Must be greater than {@code 0}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxQueueLength(final int maxQueueLength) {
+            this.maxQueueLength = maxQueueLength;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of fetches of the given {@link Priority} which may be in
+         * progress at once. Capping the lower priorities keeps threads free for the fetches the
+         * user is waiting for.
+         *
+         * <p>
+         *     By default, this is set as {@code 4} for {@link Priority#USER_VISIBLE}, {@code 2}
+         *     for {@link Priority#PREFETCH} and {@code 1} for {@link Priority#BACKGROUND}.
+         * </p>
+         *
+         * @param priority The {@link Priority} to set the limit of.
+         * @param maxConcurrent The maximum number of concurrent fetches of the priority. Must be
+         *                      greater than {@code 0}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxConcurrent(@NonNull final Priority priority,
+                final int maxConcurrent) {
+            this.maxConcurrent[priority.ordinal()] = maxConcurrent;
+            return this;
+        }
+
+        /**
+         * Set whether the submissions of a {@link Priority} are held back while a higher
+         * priority has fetches in progress or waiting to start. This stops background work from
+         * taking bandwidth from the fetches the user is waiting for on a slow link, at the cost of
+         * the lower priorities waiting for as long as the higher ones are busy.
+         *
+         * <p>
+         *     By default, this is set as {@code true}.
+         * </p>
+         *
+         * @param deferLowerPriorities {@code true} if lower priorities should be deferred,
+         *                             {@code false} if they only wait for a free thread.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setDeferLowerPriorities(final boolean deferLowerPriorities) {
+            this.deferLowerPriorities = deferLowerPriorities;
+            return this;
+        }
+
+        /**
+         * Create a new instance of {@link FetchScheduler} based on the snapshot of data in this
+         * {@code Builder} at the instant this method is called.
+         *
+         * @return A new instance of {@link FetchScheduler}.
+         * @throws IllegalArgumentException When any of the values are out of range.
+         */
+        @NonNull
+        public FetchScheduler build() {
+            if (threadCount <= 0) {
+                throw new IllegalArgumentException("threadCount must be greater than 0.");
+            }
+
+            if (maxQueueLength <= 0) {
+                throw new IllegalArgumentException("maxQueueLength must be greater than 0.");
+            }
+
+            for (int max : maxConcurrent) {
+                if (max <= 0) {
+                    throw new IllegalArgumentException("maxConcurrent must be greater than 0.");
+                }
+            }
+
+            return new FetchScheduler(this);
+        }
+    }
+}
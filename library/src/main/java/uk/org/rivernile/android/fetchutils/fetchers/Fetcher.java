@@ -29,7 +29,8 @@ import java.io.IOException;
  *     (or your own custom one), as well as instantiating an appropriate
  *     {@link FetcherStreamReader}. When the fetch is to happen, then
  *     {@link #executeFetcher(FetcherStreamReader)} should be called. The fetch process is
- *     <b>blocking</b>. Threading is entirely the responsibility of the caller.
+ *     <b>blocking</b>. Threading is entirely the responsibility of the caller, although
+ *     {@link FetcherExecutor} may be used to run {@code Fetcher}s asynchronously.
  * </p>
  *
  * <p>All {@code Fetcher}s should implement this interface.</p>
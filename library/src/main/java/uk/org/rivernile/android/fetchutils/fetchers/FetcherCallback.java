@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * A {@code FetcherCallback} is informed of the outcome of a {@link Fetcher} which has been
+ * submitted to a {@link FetcherExecutor}. The callback methods are called on the thread that ran
+ * the {@link Fetcher}, not the main thread. If the fetch is cancelled, neither method is called.
+ *
+ * @author Niall Scott
+ * @param <R> The type of {@link FetcherStreamReader} given to the {@link Fetcher}.
+ * @see FetcherExecutor
+ */
+public interface FetcherCallback<R extends FetcherStreamReader> {
+
+    /**
+     * This is called when the {@link Fetcher} has completed successfully.
+     *
+     * @param reader The {@link FetcherStreamReader} which the data was given to.
+     */
+    public void onFetchSuccess(@NonNull R reader);
+
+    /**
+     * This is called when the {@link Fetcher} has failed.
+     *
+     * @param error The {@link IOException} that caused the failure. If the {@link Fetcher} threw
+     *              an unchecked exception, it is wrapped in an {@link IOException}.
+     */
+    public void onFetchFailure(@NonNull IOException error);
+}
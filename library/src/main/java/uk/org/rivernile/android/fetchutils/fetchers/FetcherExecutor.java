@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@code FetcherExecutor} runs {@link Fetcher}s asynchronously on a fixed number of background
+ * threads. {@link Fetcher#executeFetcher(FetcherStreamReader)} is blocking, so this allows many
+ * fetches to be in progress without the caller managing its own threads.
+ *
+ * <p>
+ *     Any {@link Fetcher} may be submitted, such as a {@link HttpFetcher}, {@link FileFetcher} or
+ *     {@link AssetFileFetcher}. Each submission returns a {@link Future} which yields the
+ *     {@link FetcherStreamReader} once the fetch has completed. If the fetch failed,
+ *     {@link Future#get()} throws an {@link ExecutionException} with the {@link IOException} as
+ *     its cause. Optionally, a {@link FetcherCallback} may be given, which is told of the outcome.
+ * </p>
+ *
+ * <p>
+ *     Submissions which cannot start straight away wait in a queue of bounded capacity. When the
+ *     queue is full, {@link RejectedExecutionException} is thrown. Cancelling a {@link Future}
+ *     stops a fetch which has not started yet. A fetch which is already running is not stopped,
+ *     as a blocking read on a socket does not respond to interruption, so {@link Future#get()}
+ *     on a cancelled {@link Future} waits until the {@link Fetcher} has stopped using the
+ *     {@link FetcherStreamReader} before throwing {@link CancellationException}. To stop a
+ *     {@link HttpFetcher} in progress, give it a {@link FetchCancellationSignal} and cancel that.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe. An instance should be shared and kept for as long as it is
+ *     needed, then {@link #shutdown()} should be called.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * FetcherExecutor executor = new FetcherExecutor(4, 64);
+ * Future&lt;StringFetcherStreamReader&gt; future = executor.submit(fetcher,
+ *         new StringFetcherStreamReader());
+ * // Do something else, then wait for the result.
+ * String data = future.get().getData();
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see FetcherCallback
+ */
+public class FetcherExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a new {@code FetcherExecutor}.
+     *
+     * @param threadCount The number of threads to run {@link Fetcher}s on. Must be greater than
+     *                    {@code 0}.
+     * @param queueCapacity The number of submissions which may wait for a thread. Must be greater
+     *                      than {@code 0}.
+     */
+    public FetcherExecutor(final int threadCount, final int queueCapacity) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be greater than 0.");
+        }
+
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be greater than 0.");
+        }
+
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new FetcherThreadFactory("FetcherExecutor"));
+    }
+
+    /**
+     * Submit a {@link Fetcher} to be run asynchronously.
+     *
+     * @param fetcher The {@link Fetcher} to run.
+     * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+     * @param <R> The type of {@link FetcherStreamReader}.
+     * @return A {@link Future} which yields {@code reader} once the fetch has completed.
+     * @throws RejectedExecutionException When the queue is full, or this executor has been shut
+     *                                    down.
+     */
+    @NonNull
+    public <R extends FetcherStreamReader> Future<R> submit(@NonNull final Fetcher fetcher,
+            @NonNull final R reader) {
+        return submit(fetcher, reader, null);
+    }
+
+    /**
+     * Submit a {@link Fetcher} to be run asynchronously, with a {@link FetcherCallback} to be told
+     * of the outcome.
+     *
+     * @param fetcher The {@link Fetcher} to run.
+     * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+     * @param callback The {@link FetcherCallback} to be told of the outcome. May be {@code null}.
+     * @param <R> The type of {@link FetcherStreamReader}.
+     * @return A {@link Future} which yields {@code reader} once the fetch has completed.
+     * @throws RejectedExecutionException When the queue is full, or this executor has been shut
+     *                                    down.
+     */
+    @NonNull
+    public <R extends FetcherStreamReader> Future<R> submit(@NonNull final Fetcher fetcher,
+            @NonNull final R reader, @Nullable final FetcherCallback<R> callback) {
+        final FetchTask<R> task = new FetchTask<>(fetcher, reader, callback);
+        executor.execute(task);
+
+        return task;
+    }
+
+    /**
+     * Stop accepting new submissions. Submissions already accepted will still be run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Has this executor been shut down?
+     *
+     * @return {@code true} if {@link #shutdown()} has been called, {@code false} if not.
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Get the number of threads currently running a {@link Fetcher}.
+     *
+     * @return The number of threads currently running a {@link Fetcher}.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Get the number of submissions waiting for a thread.
+     *
+     * @return The number of submissions waiting for a thread.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Convert the cause of a failed fetch in to an {@link IOException}.
+     *
+     * @param cause The cause of the failure.
+     * @return {@code cause} if it is an {@link IOException}, otherwise an {@link IOException}
+     *         wrapping it.
+     */
+    @NonNull
+    static IOException toIOException(@Nullable final Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+
+        final IOException e = new IOException("The fetch failed with an unexpected error.");
+        e.initCause(cause);
+
+        return e;
+    }
+
+    /**
+     * A {@code FetchTask} runs a single {@link Fetcher} and informs the {@link FetcherCallback}
+     * when done.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    private static class FetchTask<R extends FetcherStreamReader> extends FutureTask<R> {
+
+        private final FetchCallable<R> callable;
+        private final FetcherCallback<R> callback;
+
+        /**
+         * Create a new {@code FetchTask}.
+         *
+         * @param fetcher The {@link Fetcher} to run.
+         * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+         * @param callback The {@link FetcherCallback} to be told of the outcome. May be
+         *                 {@code null}.
+         */
+        private FetchTask(@NonNull final Fetcher fetcher, @NonNull final R reader,
+                @Nullable final FetcherCallback<R> callback) {
+            this(new FetchCallable<>(fetcher, reader), callback);
+        }
+
+        /**
+         * Create a new {@code FetchTask}.
+         *
+         * @param callable The {@link FetchCallable} which runs the {@link Fetcher}.
+         * @param callback The {@link FetcherCallback} to be told of the outcome. May be
+         *                 {@code null}.
+         */
+        private FetchTask(@NonNull final FetchCallable<R> callable,
+                @Nullable final FetcherCallback<R> callback) {
+            super(callable);
+
+            this.callable = callable;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            if (cancelled) {
+                callable.preventStart();
+            }
+
+            return cancelled;
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            try {
+                return super.get();
+            } catch (CancellationException e) {
+                // The reader must not be used until the Fetcher has stopped writing to it.
+                callable.stopped.await();
+                throw e;
+            }
+        }
+
+        @Override
+        public R get(final long timeout, @NonNull final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+            try {
+                return super.get(timeout, unit);
+            } catch (CancellationException e) {
+                if (!callable.stopped.await(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    throw new TimeoutException("The cancelled fetch has not stopped yet.");
+                }
+
+                throw e;
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+
+            final R reader;
+
+            try {
+                reader = get();
+            } catch (ExecutionException e) {
+                callback.onFetchFailure(toIOException(e.getCause()));
+                return;
+            } catch (InterruptedException e) {
+                // This will not happen as the task is already done.
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            callback.onFetchSuccess(reader);
+        }
+    }
+
+    /**
+     * A {@code FetchCallable} runs a {@link Fetcher} for a {@link FetchTask}, and tells when the
+     * {@link Fetcher} has stopped, even if the {@link FetchTask} has been cancelled.
+     *
+     * @param <R> The type of {@link FetcherStreamReader}.
+     */
+    private static class FetchCallable<R extends FetcherStreamReader> implements Callable<R> {
+
+        private final Fetcher fetcher;
+        private final R reader;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch stopped = new CountDownLatch(1);
+
+        /**
+         * Create a new {@code FetchCallable}.
+         *
+         * @param fetcher The {@link Fetcher} to run.
+         * @param reader The {@link FetcherStreamReader} to give to the {@link Fetcher}.
+         */
+        private FetchCallable(@NonNull final Fetcher fetcher, @NonNull final R reader) {
+            this.fetcher = fetcher;
+            this.reader = reader;
+        }
+
+        @Override
+        public R call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) {
+                // The task was cancelled before the fetch started.
+                return null;
+            }
+
+            try {
+                fetcher.executeFetcher(reader);
+                return reader;
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        /**
+         * Stop the {@link Fetcher} from being run if it has not started yet.
+         */
+        private void preventStart() {
+            if (claimed.compareAndSet(false, true)) {
+                stopped.countDown();
+            }
+        }
+    }
+
+    /**
+     * This {@link ThreadFactory} creates named, daemon threads with a lowered priority so that
+     * fetching does not compete with the main thread.
+     */
+    static class FetcherThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Create a new {@code FetcherThreadFactory}.
+         *
+         * @param name The name of the threads, which is followed by their number.
+         */
+        FetcherThreadFactory(@NonNull final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            final Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+            return thread;
+        }
+    }
+}
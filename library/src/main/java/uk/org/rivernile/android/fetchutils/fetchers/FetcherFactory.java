@@ -21,12 +21,16 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.Map;
+
 /**
  * This class contains a static method that allows an appropriate {@link Fetcher} to be created
- * depending on the supplied {@link Uri}.
+ * depending on the supplied {@link Uri}. It also contains a static method which fetches a batch of
+ * {@link Uri}s concurrently.
  * 
  * @author Niall Scott
  * @see #getFetcher(android.content.Context, android.net.Uri)
+ * @see #fetchAll(Context, Map, int, int, BatchFetch.Listener)
  */
 public final class FetcherFactory {
     
@@ -74,6 +78,24 @@ public final class FetcherFactory {
      *         set as {@code null}.
      */
     public static Fetcher getFetcher(@NonNull final Context context, @Nullable final Uri uri) {
+        return getFetcher(context, uri, null);
+    }
+
+    /**
+     * Get the most appropriate {@link Fetcher} for the given {@link Uri}, as
+     * {@link #getFetcher(Context, Uri)} does, which can be cancelled with the given
+     * {@link FetchCancellationSignal}. Only {@link HttpFetcher}s use the signal. Fetching files
+     * and assets is not cancellable.
+     *
+     * @param context A {@link Context} instance. Must not be {@code null}.
+     * @param uri The {@link Uri} of the data to be fetched. May be {@code null}.
+     * @param cancellationSignal The {@link FetchCancellationSignal} which cancels the returned
+     *                           {@link Fetcher}. May be {@code null}.
+     * @return An appropriate {@link Fetcher} for the given {@link Uri}, or {@code null} if there is
+     *         no suitable {@link Fetcher}s or {@code uri} is set as {@code null}.
+     */
+    public static Fetcher getFetcher(@NonNull final Context context, @Nullable final Uri uri,
+            @Nullable final FetchCancellationSignal cancellationSignal) {
         if (uri == null) {
             return null;
         }
@@ -86,6 +108,7 @@ public final class FetcherFactory {
                 // Return the most simply configured HttpFetcher instance.
                 return new HttpFetcher.Builder(context)
                         .setUrl(uri.toString())
+                        .setCancellationSignal(cancellationSignal)
                         .build();
             } else if (SCHEME_ASSET.equalsIgnoreCase(scheme)) {
                 return new AssetFileFetcher(context, uri.getPath());
@@ -98,4 +121,51 @@ public final class FetcherFactory {
         
         return null;
     }
+
+    /**
+     * Fetch a batch of {@link Uri}s concurrently. Each {@link Uri} is paired with the
+     * {@link FetcherStreamReader} that its data should be given to, and a {@link Fetcher} is
+     * obtained for it with {@link #getFetcher(Context, Uri)}.
+     *
+     * <p>
+     *     At most {@code maxParallel} fetches are in progress at once, and at most
+     *     {@code maxPerHost} of those are to the same host. Fetches which do not have a host, such
+     *     as files and assets, only count towards {@code maxParallel}. Fetches are started in the
+     *     iteration order of {@code requests}, so a {@link java.util.LinkedHashMap} should be used
+     *     if the order matters.
+     * </p>
+     *
+     * <p>
+     *     This method returns immediately. The outcome of each fetch is made available as soon as
+     *     it completes, either through {@link BatchFetch#take()} or the given
+     *     {@link BatchFetch.Listener}. If there is no {@link Fetcher} for a {@link Uri}, its
+     *     outcome is an {@link java.io.IOException}.
+     * </p>
+     *
+     * @param context A {@link Context} instance. Must not be {@code null}.
+     * @param requests The mapping of {@link Uri}s to fetch to the {@link FetcherStreamReader}s
+     *                 their data should be given to. Must not be {@code null}.
+     * @param maxParallel The maximum number of fetches in progress at once. Must be greater than
+     *                    {@code 0}.
+     * @param maxPerHost The maximum number of fetches in progress to any one host. Must be greater
+     *                   than {@code 0}.
+     * @param listener A {@link BatchFetch.Listener} to inform as each fetch completes. May be
+     *                 {@code null}.
+     * @param <R> The type of {@link FetcherStreamReader}.
+     * @return A {@link BatchFetch} which can be used to receive the outcomes and to cancel the
+     *         batch.
+     * @throws IllegalArgumentException When {@code maxParallel} or {@code maxPerHost} is less than
+     *                                  {@code 1}.
+     */
+    @NonNull
+    public static <R extends FetcherStreamReader> BatchFetch<R> fetchAll(
+            @NonNull final Context context, @NonNull final Map<Uri, R> requests,
+            final int maxParallel, final int maxPerHost,
+            @Nullable final BatchFetch.Listener<R> listener) {
+        final BatchFetch<R> batch = new BatchFetch<>(context, requests, maxParallel, maxPerHost,
+                listener);
+        batch.start();
+
+        return batch;
+    }
 }
\ No newline at end of file
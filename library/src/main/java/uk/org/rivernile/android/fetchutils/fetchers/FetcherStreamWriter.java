@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@code FetcherStreamWriter} is an interface that should be implemented by classes supplying
+ * the request body sent by a {@link Fetcher}, such as the body of a {@code POST} or {@code PUT}
+ * request made by a {@link HttpFetcher}. It is the counterpart of {@link FetcherStreamReader}.
+ *
+ * <p>
+ *     The body is written straight to the connection as it is produced. When the length of the
+ *     body is known up front, it is sent with a fixed length. Otherwise, it is sent in chunks.
+ *     Either way, the whole body is never held in memory, so large bodies can be sent.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcher.Builder#setRequestBody(FetcherStreamWriter)
+ * @see uk.org.rivernile.android.fetchutils.fetchers.writers.FileFetcherStreamWriter
+ */
+public interface FetcherStreamWriter {
+
+    /**
+     * Get the media type of the body, which is sent as the {@code Content-Type} header unless
+     * that header has been set explicitly.
+     *
+     * @return The media type of the body, or {@code null} if it should not be sent.
+     */
+    @Nullable
+    public String getContentType();
+
+    /**
+     * Get the length of the body, in bytes, if it is known before the body has been written.
+     *
+     * @return The length of the body, or {@code -1} if it is not known, in which case the body is
+     *         sent in chunks.
+     */
+    public long getContentLength();
+
+    /**
+     * Can the body be written more than once? If a request fails and is retried, the body must
+     * be written again.
+     *
+     * @return {@code true} if {@link #writeOutputStream(OutputStream)} may be called more than
+     *         once, {@code false} if not.
+     */
+    public boolean isRepeatable();
+
+    /**
+     * This method is called when an {@link OutputStream} is available to write the body to. Do
+     * not close the stream inside this method, this will be done inside the calling
+     * {@link Fetcher} classes. If {@link #getContentLength()} returned a length, exactly that many
+     * bytes must be written.
+     *
+     * @param stream The {@link OutputStream}.
+     * @throws IOException When an {@link IOException} occurs.
+     */
+    public void writeOutputStream(@NonNull OutputStream stream) throws IOException;
+}
@@ -16,25 +16,36 @@
 
 package uk.org.rivernile.android.fetchutils.fetchers;
 
-import android.Manifest;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@code HttpFetcher} fetches data from a HTTP server, specified by the given URL. The stream is
@@ -55,6 +66,15 @@ import java.util.Map;
  * </p>
  *
  * <p>
+ *     While a {@code HttpFetcher} is not reusable, the connection it uses can be. If a
+ *     {@link HttpFetcherClient} is given to {@link Builder#setClient(HttpFetcherClient)}, then
+ *     once the response body has been fully read the connection is returned to the client's
+ *     {@link ConnectionPool} instead of being disconnected, so that later requests to the same host
+ *     can reuse the socket. A single {@link HttpFetcherClient} should be shared between many
+ *     {@code HttpFetcher}s.
+ * </p>
+ *
+ * <p>
  *     If this class is being used on an Android platform prior to Android Froyo (API level 8), then
  *     the system property "http.keepAlive" has been set to {@code false}. This is to workaround a
  *     known issue whereby the connection pool can be poisoned. Please see the documentation in
@@ -111,44 +131,157 @@ import java.util.Map;
  *     <ul>
  *         <li>If the hosting application has requested the permission
  *             {@code android.permission.ACCESS_NETWORK_STATE}, then a connectivity check will
- *             happen prior to connecting to the HTTP server. This consists of querying the
- *             {@link ConnectivityManager} to ensure there is an active network connection.</li>
+ *             happen prior to connecting to the HTTP server. This consults the
+ *             {@link NetworkStateMonitor}, which keeps the network state up to date, to ensure
+ *             there is an active network connection.</li>
  *         <li>A new property has been added which can be set with
  *             {@link Builder#setAllowHostRedirects(boolean)}. This allows host redirection to be
  *             detected and an exception will be thrown when a redirect between hosts happens. You
  *             may want to enable this behaviour to detect when network sign on is being enforced,
  *             so that the user can be prompted to sign in to a Wi-Fi network. See the
  *             {@link HttpURLConnection} documentation for more details.</li>
+ *         <li>If a {@link HttpFetcherClient} with a {@link DiskResponseCache} is set, then
+ *             {@code GET} responses are revalidated with the server using their {@code ETag} and
+ *             {@code Last-Modified} validators. When the server responds with
+ *             {@code 304 Not Modified}, the cached body is given to the
+ *             {@link FetcherStreamReader}.</li>
+ *         <li>If {@link Builder#setUseMemoryCache(boolean)} is set and the
+ *             {@link HttpFetcherClient} has a {@link MemoryResponseCache}, then a fresh cached
+ *             response is given to the {@link FetcherStreamReader} without a connectivity check
+ *             or a connection being made.</li>
+ *         <li>If {@link Builder#setCoalesceRequests(boolean)} is set, then concurrent identical
+ *             {@code GET} and {@code HEAD} requests made through the same
+ *             {@link HttpFetcherClient} share a single network transfer. See
+ *             {@link RequestCoalescer}.</li>
+ *         <li>If the {@link FetcherStreamReader} is a {@link ResumableFetcherStreamReader}
+ *             holding a partial body from an earlier {@code GET}, only the missing bytes are
+ *             requested with the {@code Range} and {@code If-Range} headers. If the server sends
+ *             the whole body instead, the reader is told to start again. Any other response
+ *             fails the fetch with an {@link UnexpectedResponseCodeException}.</li>
+ *         <li>If {@link Builder#setSegmentCount(int)} is greater than {@code 1} and the
+ *             {@link FetcherStreamReader} is a {@link SegmentedFetcherStreamReader}, a large
+ *             {@code GET} body is fetched as several ranges in parallel.</li>
+ *         <li>If a {@link RetryPolicy} is set with {@link Builder#setRetryPolicy(RetryPolicy)},
+ *             failed attempts and {@code 429} or {@code 503} responses are retried with backoff,
+ *             within the {@link RetryBudget} of the {@link HttpFetcherClient}.</li>
+ *         <li>If the {@link HttpFetcherClient} has a {@link CircuitBreaker} and the circuit for
+ *             the host is open, a {@link CircuitBreakerOpenException} is thrown without a
+ *             connection being attempted.</li>
+ *         <li>If the {@link HttpFetcherClient} has an {@link AdmissionController}, the request
+ *             waits until the host is within its concurrency and rate limits before a connection
+ *             is opened.</li>
+ *         <li>A request body can be sent with
+ *             {@link Builder#setRequestBody(FetcherStreamWriter)}. It is streamed to the server
+ *             with a fixed length when its length is known, or in chunks when it is not.</li>
+ *         <li>Redirects are followed one hop at a time, rather than by {@link HttpURLConnection}.
+ *             Each hop is checked against {@link Builder#setAllowHostRedirects(boolean)} before a
+ *             connection to it is opened, and permanent redirects are remembered in the
+ *             {@link RedirectCache} of the {@link HttpFetcherClient}.</li>
+ *         <li>A {@link FetchEventListener} can be set with
+ *             {@link Builder#setEventListener(FetchEventListener)}, or on the
+ *             {@link HttpFetcherClient}, to be told when each phase of the request happens.</li>
+ *         <li>The status, headers and final URL of the response are captured in a
+ *             {@link ResponseMetadata}, which is given to a
+ *             {@link ResponseAwareFetcherStreamReader} before the body and is available from
+ *             {@link #getResponseMetadata()} afterwards.</li>
+ *         <li>A fetch in progress can be cancelled from another thread with a
+ *             {@link FetchCancellationSignal}, set with
+ *             {@link Builder#setCancellationSignal(FetchCancellationSignal)}. Its connections are
+ *             disconnected and a {@link FetchCancelledException} is thrown.</li>
+ *         <li>Connections are opened by a {@link HttpTransport}, set with
+ *             {@link Builder#setTransport(HttpTransport)} or on the {@link HttpFetcherClient}.
+ *             This allows the platform {@link HttpURLConnection} to be replaced, for example by
+ *             the {@link uk.org.rivernile.android.fetchutils.fetchers.nio.NioHttpEngine}.</li>
  *     </ul>
  * </p>
  *
  * <h3>TODO</h3>
- * TODO: implement HTTPS specific methods (HTTPS is supported, but not customisable).<br/>
- * TODO: implement posting content to a server.
+ * TODO: implement HTTPS specific methods (HTTPS is supported, but not customisable).
  * 
  * @author Niall Scott
  */
 public class HttpFetcher implements Fetcher {
 
-    private final ConnectivityManager connMan;
+    /**
+     * The maximum number of unread response body bytes that will be read and discarded in order to
+     * return a connection to the {@link ConnectionPool}.
+     */
+    private static final int MAX_DRAIN_BYTES = 65536;
+
+    /**
+     * The maximum number of redirects followed for a single request. This is the same limit as
+     * {@link HttpURLConnection} applies when it follows redirects itself.
+     */
+    private static final int MAX_REDIRECTS = 20;
+
+    /**
+     * The {@code 416 Range Not Satisfiable} response code, which {@link HttpURLConnection} does
+     * not have a constant for.
+     */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The request headers which carry credentials. They are not sent to a host other than the one
+     * the request was made to, even if they were set as custom headers.
+     */
+    private static final String[] CREDENTIAL_HEADERS = {
+            "Authorization", "Cookie", "Proxy-Authorization"
+    };
+
+    /**
+     * The {@link HttpTransport} used when neither this instance nor its
+     * {@link HttpFetcherClient} have one set.
+     */
+    private static final HttpTransport PLATFORM_TRANSPORT = new PlatformHttpTransport();
+
+    /** The most segments which are fetched at once, on top of those on the calling threads. */
+    private static final int SEGMENT_THREAD_COUNT = 4;
+
+    private static ThreadPoolExecutor segmentExecutor;
+
+    private final NetworkStateMonitor networkMonitor;
 
     private final Context context;
+    private final HttpFetcherClient client;
     private final String url;
     private final Proxy proxy;
     private final boolean allowHostRedirects;
-    //private final int chunkLength;
-    //private final long contentLength;
+    private final int chunkLength;
+    private final long contentLength;
     private final boolean followRedirects;
     private final String requestMethod;
     private final int connectTimeout;
-    //private final boolean doInput;
-    //private final boolean doOutput;
+    private final boolean doInput;
+    private final boolean doOutput;
     private final long modifiedSince;
     private final int readTimeout;
     private final boolean useCaches;
+    private final boolean useMemoryCache;
+    private final long memoryCacheMaxAge;
+    private final boolean coalesceRequests;
+    private final int segmentCount;
+    private final long minSegmentSize;
+    private final RetryPolicy retryPolicy;
+    private final FetcherStreamWriter requestBody;
+    private final FetchEventListener eventListener;
+    private final FetchCancellationSignal cancellationSignal;
+    private final HttpTransport transport;
     private final HashMap<String, String> customHeaders;
+    private final FetchEventListener events;
 
+    private boolean hasRun;
     private HttpURLConnection connection;
+    private int attemptCount;
+    private int redirectCount;
+    private boolean bodyStarted;
+    private URL lastUrl;
+    private boolean credentialsWithheld;
+    private long bodyBytes;
+    private ResponseMetadata responseMetadata;
+    private boolean revalidated;
+    private boolean fromMemoryCache;
+    private IOException callerError;
+    private ConnectionCanceller canceller;
 
     static {
         // As recommended in the Javadoc for HttpUrlConnection.
@@ -166,597 +299,3253 @@ public class HttpFetcher implements Fetcher {
      */
     private HttpFetcher(@NonNull final Builder builder) {
         context = builder.context;
+        client = builder.client;
         url = builder.url;
         proxy = builder.proxy;
         allowHostRedirects = builder.allowHostRedirects;
-        //chunkLength = builder.chunkLength;
-        //contentLength = builder.contentLength;
+        chunkLength = builder.chunkLength;
+        contentLength = builder.contentLength;
         followRedirects = builder.followRedirects;
         requestMethod = builder.requestMethod;
         connectTimeout = builder.connectTimeout;
-        //doInput = builder.doInput;
-        //doOutput = builder.doOutput;
+        doInput = builder.doInput;
+        doOutput = builder.doOutput;
         modifiedSince = builder.modifiedSince;
         readTimeout = builder.readTimeout;
         useCaches = builder.useCaches;
+        useMemoryCache = builder.useMemoryCache;
+        memoryCacheMaxAge = builder.memoryCacheMaxAge;
+        coalesceRequests = builder.coalesceRequests;
+        segmentCount = builder.segmentCount;
+        minSegmentSize = builder.minSegmentSize;
+        retryPolicy = builder.retryPolicy;
+        requestBody = builder.requestBody;
+        eventListener = builder.eventListener;
+        cancellationSignal = builder.cancellationSignal;
+        transport = builder.transport;
         customHeaders = builder.customHeaders;
 
-        connMan = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final FetchEventListener clientListener = client != null ? client.getEventListener()
+                : null;
+
+        if (eventListener != null && clientListener != null) {
+            events = new EventListenerPair(eventListener, clientListener);
+        } else {
+            events = eventListener != null ? eventListener : clientListener;
+        }
+
+        networkMonitor = NetworkStateMonitor.getInstance(context);
     }
 
     @Override
     public synchronized void executeFetcher(@NonNull final FetcherStreamReader reader)
             throws IOException {
-        if (connection != null) {
+        if (hasRun) {
             throw new IllegalStateException("This instance can only be used once. Please create " +
                     "a new instance.");
         }
 
-        if (!isConnected()) {
-            throw new ConnectivityUnavailableException();
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCancelled();
         }
 
-        HttpURLConnection conn = null;
-        
-        try {
-            final URL u = new URL(url);
-            conn = (HttpURLConnection) (proxy != null ? u.openConnection(proxy)
-                    : u.openConnection());
-            configureConnectionInstance(conn);
-            InputStream in;
+        if (events != null) {
+            events.onFetchStart(this, url, System.nanoTime());
+        }
 
-            try {
-                in = conn.getInputStream();
-            } catch (IOException e) {
-                in = conn.getErrorStream();
+        // Resumable and segmented readers need responses of their own, so they bypass sharing and
+        // caching.
+        final SegmentedFetcherStreamReader segmented = getSegmentedReader(reader);
+        final boolean exclusive = segmented != null || getResumableReader(reader) != null;
+        final MemoryResponseCache memoryCache = exclusive ? null : getMemoryCache();
 
-                if (in == null) {
-                    // This happens when the error happened before reaching the server
-                    // (connectivity, DNS unresolvable etc). In this case, throw the exception down
-                    // to the caller.
-                    throw e;
+        if (memoryCache != null) {
+            final MemoryResponseCache.CachedResponse cached =
+                    memoryCache.getResponse(getCacheKey());
+
+            if (cached != null) {
+                responseMetadata = cached.getMetadata();
+
+                if (responseMetadata != null) {
+                    notifyResponse(reader);
+                }
+
+                reader.readInputStream(countBody(replayBody(cached.getBody())));
+                hasRun = true;
+                fromMemoryCache = true;
+
+                if (events != null) {
+                    events.onBodyComplete(this, url, bodyBytes, System.nanoTime());
                 }
+
+                return;
             }
-            
-            if (!allowHostRedirects && !u.getHost().equals(conn.getURL().getHost())) {
-                conn.disconnect();
-                throw new UrlMismatchException();
+        }
+
+        final RequestCoalescer coalescer = exclusive ? null : getRequestCoalescer();
+
+        if (cancellationSignal != null) {
+            canceller = new ConnectionCanceller();
+        }
+
+        try {
+            if (canceller != null && !cancellationSignal.addOnCancelListener(canceller)) {
+                throw new FetchCancelledException();
             }
-            
-            reader.readInputStream(in);
+
+            if (retryPolicy != null) {
+                executeWithRetries(reader, coalescer, segmented, exclusive);
+            } else {
+                attemptCount = 1;
+                executeAttempt(reader, coalescer, segmented);
+            }
+        } catch (IOException e) {
+            final IOException error = getCancelledException(e);
+
+            if (events != null) {
+                events.onFetchFailed(this, lastUrl != null ? lastUrl.toString() : url, error,
+                        System.nanoTime());
+            }
+
+            throw error;
         } finally {
-            if (conn != null) {
-                conn.disconnect();
+            if (canceller != null) {
+                cancellationSignal.removeOnCancelListener(canceller);
             }
         }
 
-        connection = conn;
-    }
-
-    /*
-     ******************
-     * Configuration. *
-     ******************
-     */
+        hasRun = true;
 
-    /**
-     * Get the URL that this instance is configured for.
-     *
-     * @return The URL that this instance is configured for.
-     * @see Builder#setUrl(String)
-     */
-    @NonNull
-    public String getUrl() {
-        return url;
+        if (events != null) {
+            events.onBodyComplete(this, getFinalUrl(), bodyBytes, System.nanoTime());
+        }
     }
 
     /**
-     * Get the {@link Proxy} configured for this instance, if one is configured.
+     * Perform a single attempt at the request.
      *
-     * @return The {@link Proxy} configured for this insance, if one is configured. Otherwise,
-     *         {@code null} is returned.
-     * @see Builder#setProxy(java.net.Proxy)
+     * @param reader The {@link FetcherStreamReader} to give the body to.
+     * @param coalescer The {@link RequestCoalescer} to use, or {@code null} if the request should
+     *                  not be coalesced.
+     * @param segmented The {@link SegmentedFetcherStreamReader} if the body should be fetched in
+     *                  segments, otherwise {@code null}.
+     * @throws IOException When the attempt failed.
      */
-    @Nullable
-    public Proxy getProxy() {
-        return proxy;
+    private void executeAttempt(@NonNull final FetcherStreamReader reader,
+            @Nullable final RequestCoalescer coalescer,
+            @Nullable final SegmentedFetcherStreamReader segmented) throws IOException {
+        bodyStarted = false;
+        bodyBytes = 0;
+
+        if (coalescer != null) {
+            executeCoalesced(coalescer, reader);
+        } else if (segmented != null) {
+            connection = executeSegmented(segmented);
+        } else {
+            connection = executeNetwork(reader);
+        }
     }
 
     /**
-     * Does this instance allow redirects between different hosts?
+     * Perform the request, retrying failed attempts as described by the {@link RetryPolicy}.
      *
-     * @return {@code true} if this instance allows redirects between different hosts, {@code false}
-     *         if not.
-     * @see Builder#setAllowHostRedirects(boolean)
+     * @param reader The {@link FetcherStreamReader} to give the body to.
+     * @param coalescer The {@link RequestCoalescer} to use, or {@code null} if the request should
+     *                  not be coalesced.
+     * @param segmented The {@link SegmentedFetcherStreamReader} if the body should be fetched in
+     *                  segments, otherwise {@code null}.
+     * @param restartable {@code true} if the reader can be given the body again after it has
+     *                    started reading it, {@code false} if not.
+     * @throws IOException When the last attempt failed.
      */
-    public boolean isAllowHostRedirects() {
-        return allowHostRedirects;
-    }
+    private void executeWithRetries(@NonNull final FetcherStreamReader reader,
+            @Nullable final RequestCoalescer coalescer,
+            @Nullable final SegmentedFetcherStreamReader segmented, final boolean restartable)
+            throws IOException {
+        final RetryBudget budget = client != null ? client.getRetryBudget() : null;
 
-    /* TODO: enable these methods when posting has been implemented.
-    **
-     * Get the chunk length configured for this instance.
-     *
-     * @return The chunk length configured for this instance, or {@code -1} if chunking mode is not
-     *         used.
-     * @see Builder#setChunkedStreamingMode(int)
-     * @see HttpURLConnection#chunkLength
-     *
-    public int getChunkLength() {
-        return chunkLength;
-    }
+        if (budget != null) {
+            budget.onRequest();
+        }
 
-    **
-     * Get the fixed content length configured for this instance.
-     *
-     * @return The fixed content length configured for this instance, or {@code -1} if it not used
-     *         or known.
-     * @see Builder#setFixedLengthStreamingMode(long)
-     * @see HttpURLConnection#fixedContentLength
-     * @see HttpURLConnection#fixedContentLengthLong
-     *
-    public long getFixedContentLength() {
-        return contentLength;
-    }*/
+        while (true) {
+            attemptCount++;
+            retryPolicy.onAttempt(attemptCount);
+            final long delay;
 
-    /**
-     * Should this instance follow redirects?
-     *
-     * @return {@code true} if this instance should follow redirects, {@code false} if not.
-     * @see Builder#setFollowRedirects(boolean)
-     * @see HttpURLConnection#getInstanceFollowRedirects()
-     */
-    public boolean isFollowRedirects() {
-        return followRedirects;
-    }
+            try {
+                executeAttempt(reader, coalescer, segmented);
 
-    /**
-     * Get the request method configured for this instance.
-     *
-     * @return The request method configured for this instance. If this method returns {@code null},
-     *         assume the configured request method is {@code GET}.
-     * @see Builder#setRequestMethod(String)
-     * @see HttpURLConnection#getRequestMethod()
-     */
-    @Nullable
-    public String getRequestMethod() {
-        return requestMethod;
-    }
+                if (attemptCount > 1) {
+                    retryPolicy.onRetrySucceeded();
+                }
 
-    /**
-     * Get the connection timeout configured for this instance.
-     *
-     * @return The connection timeout configured for this instance, or {@code 0} if the default is
-     *         used.
-     * @see Builder#setConnectTimeout(int)
-     * @see java.net.URLConnection#getConnectTimeout()
-     */
-    public int getConnectTimeout() {
-        return connectTimeout;
-    }
+                return;
+            } catch (RetryResponseException e) {
+                // Only this fetch's own attempt throws this, after getRetryDelay() has checked the
+                // attempts left and taken a token from the budget. The attempts are checked again
+                // so that a retry can never go beyond the policy.
+                if (!hasAttemptsLeft()) {
+                    throw new IOException("The request received response code " +
+                            e.responseCode + " and has no attempts left.");
+                }
 
-    /* TODO: enable these methods when posting has been implemented.
-    **
-     * Is this instance configured for outputting data?
-     *
-     * @return {@code true} if this instance is configured for outputting data, {@code false} if
-     *         not.
-     * @see Builder#setDoInput(boolean)
-     * @see java.net.URLConnection#getDoInput()
-     *
-    public boolean isDoInput() {
-        return doInput;
-    }
+                delay = e.delay;
+            } catch (IOException e) {
+                if (cancellationSignal != null && cancellationSignal.isCancelled()) {
+                    throw e;
+                }
 
-    **
-     * Is this instance configured for receiving data?
-     *
-     * @return {@code true} if this instance is configured for receiving data, {@code false} if not.
-     * @see Builder#setDoOutput(boolean)
-     * @see java.net.URLConnection#getDoOutput()
-     *
-    public boolean isDoOutput() {
-        return doOutput;
-    }*/
+                if (!hasAttemptsLeft() || !retryPolicy.isRetryableException(e) ||
+                        (bodyStarted && !restartable) ||
+                        (budget != null && !budget.tryAcquire())) {
+                    throw e;
+                }
 
-    /**
-     * Get the modification timestamp configured for this instance.
-     *
-     * @return The modification timestamp configured for this instance, or {@code 0} if the default
-     *         value is used.
-     * @see Builder#setIfModifiedSince(long)
-     * @see java.net.URLConnection#getIfModifiedSince()
-     */
-    public long getModifiedSince() {
-        return modifiedSince;
-    }
+                delay = retryPolicy.getBackoffDelay(attemptCount);
+            }
 
-    /**
-     * Get the read timeout configured for this instance.
-     *
-     * @return The read timeout configured for this instance, or {@code 0} if the default is used.
-     * @see Builder#setReadTimeout(int)
-     * @see java.net.URLConnection#getReadTimeout()
-     */
-    public int getReadTimeout() {
-        return readTimeout;
+            if (delay > 0) {
+                try {
+                    if (cancellationSignal != null) {
+                        cancellationSignal.sleep(delay);
+                    } else {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry.");
+                }
+            }
+        }
     }
 
     /**
-     * Get the cache status configured for this instance.
+     * Perform the request through the {@link RequestCoalescer}. If an identical request is already
+     * in flight, wait for it and replay its body in to {@code reader}, or perform the request
+     * separately if it could not be shared. Otherwise, perform the request, streaming the body in
+     * to {@code reader} and keeping a copy of it for any identical requests which arrived before
+     * the body started.
      *
-     * @return {@code true} if this instance uses caches, {@code false} if not.
-     * @see Builder#setUseCaches(boolean)
-     * @see java.net.URLConnection#getUseCaches()
+     * @param coalescer The {@link RequestCoalescer} to use.
+     * @param reader The {@link FetcherStreamReader} to give the body to.
+     * @throws IOException When the request failed.
      */
-    public boolean isUseCaches() {
-        return useCaches;
-    }
+    private void executeCoalesced(@NonNull final RequestCoalescer coalescer,
+            @NonNull final FetcherStreamReader reader) throws IOException {
+        final RequestCoalescer.Call call = coalescer.begin(getCoalescingKey());
 
-    /**
-     * Get the mapping of custom headers configured for this instance.
-     *
-     * @return The mapping of custom headers configured for this instance, or {@code null} if no
-     *         custom headers have been set.
-     * @see Builder#setCustomHeader(String, String)
-     */
-    @Nullable
-    public Map<String, String> getCustomHeaders() {
-        return customHeaders != null ? new HashMap<>(customHeaders) : null;
+        if (!call.isLeader()) {
+            final boolean shared;
+
+            try {
+                shared = call.await(cancellationSignal);
+            } catch (InterruptedIOException e) {
+                coalescer.leave(call);
+                throw e;
+            }
+
+            if (shared) {
+                // Only the metadata is shared. The connection belongs to the leader's thread.
+                responseMetadata = call.getMetadata();
+                notifyResponse(reader);
+                bodyStarted = true;
+                final byte[] body = call.getBody();
+                bodyBytes = body.length;
+                reader.readInputStream(replayBody(new ByteArrayInputStream(body)));
+            } else {
+                // The leader could not share the body, so it is fetched separately.
+                connection = executeNetwork(reader);
+            }
+
+            return;
+        }
+
+        final SharingReader sharing = new SharingReader(coalescer, call, reader);
+        boolean finished = false;
+
+        try {
+            connection = executeNetwork(sharing);
+            sharing.complete(responseMetadata);
+            finished = true;
+        } catch (IOException e) {
+            final IOException error;
+
+            if (cancellationSignal != null && cancellationSignal.isCancelled()) {
+                // Only this fetch was cancelled, so the waiting requests should not see it as
+                // a cancellation of their own.
+                error = new IOException("The coalesced request was cancelled.");
+            } else if (e instanceof RetryResponseException) {
+                // The retry was allowed for by this fetch's policy and budget, not those of
+                // the waiting requests. They fail with a plain IOException, which their own
+                // policies may retry.
+                error = new IOException("The coalesced request received response code " +
+                        ((RetryResponseException) e).responseCode + ".");
+            } else {
+                error = e;
+            }
+
+            sharing.fail(error);
+            finished = true;
+            throw e;
+        } finally {
+            if (!finished) {
+                sharing.fail(new IOException("The coalesced request failed."));
+            }
+        }
     }
 
     /**
-     * Get a custom header configured for this instance.
+     * Perform the request over the network and give the response body to {@code reader}.
      *
-     * @param header The name of the custom header to get.
-     * @param defaultValue The default value to return if the custom header does not exist.
-     * @return The custom header for the given {@code header} name. If this is not found, then
-     *         {@code defaultValue} will be returned. Be prepared for {@code null} if
-     *         {@code defaultValue} is {@code null} or the custom header is {@code null}.
+     * @param reader The {@link FetcherStreamReader} to give the body to.
+     * @return The {@link HttpURLConnection} which was used for the request. It will have been
+     *         disconnected or returned to the {@link ConnectionPool}.
+     * @throws IOException When the request failed.
      */
-    @Nullable
-    public String getCustomHeader(@NonNull final String header,
-                                  @Nullable final String defaultValue) {
-        if (customHeaders != null) {
-            return customHeaders.containsKey(header) ? customHeaders.get(header) : defaultValue;
-        } else {
-            return defaultValue;
-        }
-    }
+    @NonNull
+    private HttpURLConnection executeNetwork(@NonNull final FetcherStreamReader reader)
+            throws IOException {
+        final long requestTime = System.nanoTime();
+        revalidated = false;
+        callerError = null;
+        checkConnectivity();
 
-    /*
-     **************
-     * Run state. *
-     **************
-     */
+        final ResumableFetcherStreamReader resumable = getResumableReader(reader);
+        final MemoryResponseCache memoryCache = resumable == null ? getMemoryCache() : null;
+        HttpURLConnection conn = null;
+        String admissionKey = null;
+        CircuitBreaker.Permit permit = null;
+        DiskResponseCache.Snapshot cached = null;
+        InputStream cacheWriter = null;
+        boolean keepAlive = false;
+        
+        try {
+            final URL u = new URL(url);
+            final DiskResponseCache diskCache = resumable == null ? getDiskCache() : null;
+            admissionKey = admit(u);
+            permit = acquirePermit(u);
+            final String resumeValidator = resumable != null ? getResumeValidator(resumable)
+                    : null;
 
-    /**
-     * See {@link HttpURLConnection#getContentEncoding()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+            if (diskCache != null) {
+                cached = diskCache.get(getCacheKey());
+            }
+
+            conn = connect(u, false, resumable, resumeValidator, cached);
+            InputStream in;
+
+            try {
+                in = conn.getInputStream();
+            } catch (IOException e) {
+                in = conn.getErrorStream();
+
+                if (in == null) {
+                    if (!hasResponse(conn)) {
+                        // This happens when the error happened before reaching the server
+                        // (connectivity, DNS unresolvable etc). In this case, throw the exception
+                        // down to the caller.
+                        throw e;
+                    }
+
+                    // The error response has no body, but its response code is still handled.
+                    in = new ByteArrayInputStream(new byte[0]);
+                }
+            }
+
+            // A resumed body cut short must fail, otherwise the reader would think it is complete.
+            final TransportInputStream transport = new TransportInputStream(resumable != null
+                    ? new LengthCheckingInputStream(in, conn.getHeaderField("Content-Length"))
+                    : in);
+            in = transport;
+            responseMetadata = ResponseMetadata.from(conn, requestTime, System.nanoTime());
+
+            if (permit != null) {
+                // The outcome is recorded once the body has been read, as it may still fail.
+                permit.onHeaders(conn.getResponseCode());
+            }
+
+            final long retryDelay = getRetryDelay(conn);
+
+            if (retryDelay >= 0) {
+                throw new RetryResponseException(conn.getResponseCode(), retryDelay);
+            }
+            
+            InputStream body = in;
+
+            if (diskCache != null) {
+                final int responseCode = conn.getResponseCode();
+
+                if (cached != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // The cached body is still valid, so give it to the reader instead, described
+                    // as the stored response.
+                    diskCache.trackHit();
+                    body = cached.getBody();
+                    responseMetadata = cached.getResponseMetadata(conn.getHeaderFields(),
+                            requestTime, responseMetadata.getResponseTime());
+                    revalidated = true;
+                } else if (responseCode == HttpURLConnection.HTTP_OK &&
+                        isStorable(responseMetadata)) {
+                    cacheWriter = diskCache.wrapForWriting(getCacheKey(), responseMetadata, in);
+                    body = cacheWriter;
+                }
+            }
+
+            if (memoryCache != null &&
+                    responseMetadata.getResponseCode() == HttpURLConnection.HTTP_OK &&
+                    isStorable(responseMetadata)) {
+                final long maxAge = memoryCacheMaxAge >= 0 ? memoryCacheMaxAge
+                        : MemoryResponseCache.parseMaxAge(
+                                responseMetadata.getHeader("Cache-Control"));
+                body = memoryCache.wrapForWriting(getCacheKey(), responseMetadata, maxAge, body);
+
+                if (body != in) {
+                    cacheWriter = body;
+                }
+            }
+
+            body = countBody(body);
+
+            try {
+                if (resumable != null) {
+                    prepareResumable(conn, resumable, resumeValidator);
+                }
+
+                notifyResponse(reader);
+                bodyStarted = true;
+                reader.readInputStream(body);
+            } catch (IOException e) {
+                if (e != transport.error) {
+                    callerError = e;
+                }
+
+                throw e;
+            }
+
+            if (client != null) {
+                // Draining the cache writer also commits the body to the caches.
+                keepAlive = releaseConnection(conn, cacheWriter != null ? cacheWriter : in);
+            }
+        } catch (IOException e) {
+            final IOException error = getCancelledException(e);
+
+            if (permit != null) {
+                if (isTransportFailure(e)) {
+                    permit.onFailure(error);
+                } else {
+                    permit.onCallerFailure();
+                }
+            }
+
+            throw error;
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+
+            if (cached != null) {
+                cached.close();
+            }
+
+            if (cacheWriter != null) {
+                try {
+                    // If the body was not read in full, this discards the partial cache entry.
+                    cacheWriter.close();
+                } catch (IOException e) {
+                    // Nothing to do here.
+                }
+            }
+
+            if (conn != null && !keepAlive) {
+                conn.disconnect();
+            }
+
+            leaveAdmission(admissionKey);
+        }
+
+        return conn;
+    }
+
+    /**
+     * Perform the request as several ranges fetched in parallel. A {@code HEAD} request is made
+     * first to find the length of the body and whether the server supports ranges. If it does not,
+     * or the body is too small to be worth splitting, the request is performed as normal with
+     * {@link #executeNetwork(FetcherStreamReader)}.
      *
-     * @return See {@link HttpURLConnection#getContentEncoding()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see HttpURLConnection#getContentEncoding()
+     * @param reader The {@link SegmentedFetcherStreamReader} to give the segments to.
+     * @return The {@link HttpURLConnection} of the {@code HEAD} request, which describes the whole
+     *         body, or the connection returned by {@link #executeNetwork(FetcherStreamReader)}.
+     * @throws IOException When the request failed.
      */
-    @Nullable
-    public String getContentEncoding() {
-        checkState();
-        return connection.getContentEncoding();
+    @NonNull
+    private HttpURLConnection executeSegmented(@NonNull final SegmentedFetcherStreamReader reader)
+            throws IOException {
+        final long requestTime = System.nanoTime();
+        callerError = null;
+        checkConnectivity();
+
+        final URL u = new URL(url);
+        final String admissionKey = admit(u);
+        CircuitBreaker.Permit permit = null;
+        HttpURLConnection probe = null;
+        final long contentLength;
+        final String validator;
+        final int count;
+        boolean keepAlive = false;
+
+        try {
+            permit = acquirePermit(u);
+            probe = connect(u, true, null, null, null);
+            final int responseCode = probe.getResponseCode();
+            responseMetadata = ResponseMetadata.from(probe, requestTime, System.nanoTime());
+
+            if (permit != null) {
+                permit.onResponse(responseCode);
+            }
+
+            contentLength = parseContentLength(probe.getHeaderField("Content-Length"));
+            validator = getStrongValidator(probe);
+            count = responseCode == HttpURLConnection.HTTP_OK &&
+                    "bytes".equalsIgnoreCase(probe.getHeaderField("Accept-Ranges"))
+                    ? getSegmentCount(contentLength) : 1;
+
+            if (client != null && responseCode == HttpURLConnection.HTTP_OK) {
+                keepAlive = releaseConnection(probe, probe.getInputStream());
+            }
+        } catch (IOException e) {
+            final IOException error = getCancelledException(e);
+
+            if (permit != null) {
+                if (isTransportFailure(e)) {
+                    permit.onFailure(error);
+                } else {
+                    permit.onCallerFailure();
+                }
+            }
+
+            throw error;
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+
+            if (probe != null && !keepAlive) {
+                probe.disconnect();
+            }
+
+            leaveAdmission(admissionKey);
+        }
+
+        if (count < 2) {
+            return executeNetwork(reader);
+        }
+
+        // Fetch the segments from where the probe ended up, so redirects are not followed again.
+        final URL segmentUrl = probe.getURL();
+        final SegmentTask[] tasks = new SegmentTask[count];
+        final long segmentSize = contentLength / count;
+
+        for (int i = 0; i < count; i++) {
+            final long start = i * segmentSize;
+            final long end = i == count - 1 ? contentLength - 1 : start + segmentSize - 1;
+            tasks[i] = new SegmentTask(tasks, segmentUrl, !credentialsWithheld, validator, start,
+                    end, reader);
+        }
+
+        notifyResponse(reader);
+        reader.prepareForSegments(contentLength);
+        boolean success = false;
+
+        try {
+            runSegments(tasks);
+            bodyBytes = contentLength;
+            success = true;
+        } finally {
+            reader.finishSegments(success);
+        }
+
+        return probe;
     }
 
     /**
-     * See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Run the {@link SegmentTask}s in parallel. The first segment is run on the calling thread,
+     * and the others on the shared segment {@link ThreadPoolExecutor}, so the number of segment
+     * threads is bounded however many segmented fetches are running.
      *
-     * @param field See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
-     * @param defaultValue See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
-     * @return See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see HttpURLConnection#getHeaderFieldDate(String, long)
+     * @param tasks The {@link SegmentTask}s to run.
+     * @throws IOException The first {@link IOException} that a segment failed with, or an
+     *                     {@link InterruptedIOException} if the calling thread was interrupted.
      */
-    public long getHeaderFieldDate(@NonNull final String field, final long defaultValue) {
-        checkState();
-        return connection.getHeaderFieldDate(field, defaultValue);
+    private static void runSegments(@NonNull final SegmentTask[] tasks) throws IOException {
+        final ThreadPoolExecutor executor = getSegmentExecutor();
+        final Future<?>[] futures = new Future<?>[tasks.length];
+
+        for (int i = 1; i < tasks.length; i++) {
+            futures[i] = executor.submit(tasks[i]);
+        }
+
+        tasks[0].run();
+
+        try {
+            for (int i = 1; i < futures.length; i++) {
+                futures[i].get();
+            }
+        } catch (InterruptedException e) {
+            abortSegments(tasks);
+
+            for (int i = 1; i < futures.length; i++) {
+                futures[i].cancel(true);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segments.");
+        } catch (ExecutionException e) {
+            // SegmentTask.run() records its failures, so only an Error can get here.
+            abortSegments(tasks);
+            final IOException wrapped = new IOException("A segment failed.");
+            wrapped.initCause(e.getCause());
+            throw wrapped;
+        }
+
+        IOException error = null;
+
+        // Prefer the error which caused the other segments to be aborted.
+        for (SegmentTask task : tasks) {
+            if (task.error != null && (error == null || task.rootCause)) {
+                error = task.error;
+
+                if (task.rootCause) {
+                    break;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
     }
 
     /**
-     * See {@link HttpURLConnection#getResponseCode()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Get the {@link ThreadPoolExecutor} which runs segments, creating it if it does not yet
+     * exist. Segments which do not fit on its threads wait in its queue.
      *
-     * @return See {@link java.net.HttpURLConnection#getResponseCode()}.
-     * @throws IOException See {@link java.net.HttpURLConnection#getResponseCode()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see HttpURLConnection#getResponseCode()
+     * @return The {@link ThreadPoolExecutor} which runs segments.
      */
-    public int getResponseCode() throws IOException {
-        checkState();
-        return connection.getResponseCode();
+    @NonNull
+    private static synchronized ThreadPoolExecutor getSegmentExecutor() {
+        if (segmentExecutor == null) {
+            segmentExecutor = new ThreadPoolExecutor(SEGMENT_THREAD_COUNT, SEGMENT_THREAD_COUNT,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new FetcherExecutor.FetcherThreadFactory("HttpFetcher segment"));
+        }
+
+        return segmentExecutor;
     }
 
     /**
-     * See {@link java.net.URLConnection#getContentLength()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Abort the given {@link SegmentTask}s by disconnecting their connections, which causes any
+     * read in progress to fail.
      *
-     * @return See {@link java.net.URLConnection#getContentLength()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getContentLength()
+     * @param tasks The {@link SegmentTask}s to abort.
      */
-    public int getContentLength() {
-        checkState();
-        return connection.getContentLength();
+    private static void abortSegments(@NonNull final SegmentTask[] tasks) {
+        for (SegmentTask task : tasks) {
+            task.aborted = true;
+            final HttpURLConnection conn = task.conn;
+
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
     }
 
     /**
-     * See {@link java.net.URLConnection#getContentType()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Get the number of segments to split a body of the given length in to. Each segment is at
+     * least the minimum segment size.
      *
-     * @return See {@link java.net.URLConnection#getContentType()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getContentType()
+     * @param contentLength The length of the body, or {@code -1} if it is not known.
+     * @return The number of segments. If this is less than {@code 2}, the body should not be
+     *         split.
      */
-    @Nullable
-    public String getContentType() {
-        checkState();
-        return connection.getContentType();
+    private int getSegmentCount(final long contentLength) {
+        if (contentLength <= 0) {
+            return 1;
+        }
+
+        return (int) Math.max(1, Math.min(segmentCount, contentLength / minSegmentSize));
     }
 
     /**
-     * See {@link java.net.URLConnection#getDate()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Wait for the {@link AdmissionController} of the {@link HttpFetcherClient}, if there is one,
+     * to admit a request to the host of the given {@link URL}. The {@link CircuitBreaker} is
+     * consulted first, so that a request to a host whose circuit is open does not take a slot or
+     * wait in the queue.
      *
-     * @return See {@link java.net.URLConnection#getDate()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getDate()
+     * @param u The {@link URL} the request is being made to.
+     * @return The key of the host, which must be given to {@link #leaveAdmission(String)} once the
+     *         request has finished, or {@code null} if there is no {@link AdmissionController}.
+     * @throws IOException When the request was refused, the circuit for the host is open, or the
+     *                     thread was interrupted while waiting.
      */
-    public long getDate() {
-        checkState();
-        return connection.getDate();
+    @Nullable
+    private String admit(@NonNull final URL u) throws IOException {
+        final AdmissionController admission = client != null
+                ? client.getAdmissionController() : null;
+
+        if (admission == null) {
+            return null;
+        }
+
+        final String key = ConnectionPool.getKey(u);
+        final CircuitBreaker breaker = client.getCircuitBreaker();
+
+        if (breaker != null) {
+            breaker.checkAllowed(key);
+        }
+
+        admission.acquire(key, cancellationSignal);
+
+        return key;
     }
 
     /**
-     * See {@link java.net.URLConnection#getExpiration()}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Tell the {@link AdmissionController} that a request admitted by {@link #admit(URL)} has
+     * finished.
      *
-     * @return See {@link java.net.URLConnection#getExpiration()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getExpiration()
+     * @param admissionKey The key returned by {@link #admit(URL)}. If this is {@code null},
+     *                     nothing happens.
      */
-    public long getExpiration() {
-        checkState();
-        return connection.getExpiration();
+    private void leaveAdmission(@Nullable final String admissionKey) {
+        if (admissionKey != null) {
+            client.getAdmissionController().release(admissionKey);
+        }
     }
 
     /**
-     * See {@link java.net.URLConnection#getHeaderField(String)}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Ask the {@link CircuitBreaker} of the {@link HttpFetcherClient}, if there is one, for
+     * permission to make a request to the host of the given {@link URL}.
      *
-     * @param key See {@link java.net.URLConnection#getHeaderField(String)}.
-     * @return See {@link java.net.URLConnection#getHeaderField(String)}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getHeaderField(String)
+     * @param u The {@link URL} the request is being made to.
+     * @return The {@link CircuitBreaker.Permit} to record the outcome of the request with, or
+     *         {@code null} if there is no {@link CircuitBreaker}.
+     * @throws CircuitBreakerOpenException When the circuit for the host is open.
      */
     @Nullable
-    public String getHeaderField(@NonNull final String key) {
-        checkState();
-        return connection.getHeaderField(key);
+    private CircuitBreaker.Permit acquirePermit(@NonNull final URL u)
+            throws CircuitBreakerOpenException {
+        final CircuitBreaker breaker = client != null ? client.getCircuitBreaker() : null;
+
+        return breaker != null ? breaker.acquire(ConnectionPool.getKey(u)) : null;
     }
 
     /**
-     * See {@link java.net.URLConnection#getHeaderField(int)}.
-     *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * Open a connection to the given {@link URL} and configure it with the fields set in the
+     * {@link Builder}. If there is a {@link HttpFetcherClient}, the connection is accounted for in
+     * its {@link ConnectionPool}.
      *
-     * @param pos See {@link java.net.URLConnection#getHeaderField(int)}.
-     * @return See {@link java.net.URLConnection#getHeaderField(int)}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getHeaderField(int)
+     * @param u The {@link URL} to open a connection to.
+     * @param sendCredentials {@code true} if custom headers which carry credentials should be
+     *                        sent, {@code false} if the {@link URL} is on another host to the one
+     *                        the request was made to, and they should be left out.
+     * @return The configured {@link HttpURLConnection}.
+     * @throws IOException When the connection could not be opened.
      */
-    @Nullable
-    public String getHeaderField(final int pos) {
-        checkState();
-        return connection.getHeaderField(pos);
+    @NonNull
+    private HttpURLConnection openConnection(@NonNull final URL u, final boolean sendCredentials)
+            throws IOException {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCancelled();
+        }
+
+        if (client != null) {
+            final String key = ConnectionPool.getKey(u);
+            client.getPreconnector().onConnectionAcquired(key,
+                    client.getConnectionPool().acquire(key));
+        }
+
+        final HttpTransport t;
+
+        if (transport != null) {
+            t = transport;
+        } else if (client != null) {
+            t = client.getTransport();
+        } else {
+            t = PLATFORM_TRANSPORT;
+        }
+
+        final HttpURLConnection conn = t.openConnection(u, proxy);
+        configureConnectionInstance(conn, sendCredentials);
+
+        if (canceller != null) {
+            canceller.track(conn);
+        }
+
+        return conn;
     }
 
     /**
-     * See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
+     * Send the request for the given {@link URL}, following redirects one hop at a time. Before a
+     * connection is opened to each hop, it is checked against
+     * {@link Builder#setAllowHostRedirects(boolean)}, so that a redirect to another host is
+     * detected without the other host being contacted. Permanent redirects are remembered in the
+     * {@link RedirectCache} of the {@link HttpFetcherClient}, and a remembered redirect is taken
+     * straight away rather than being requested again.
      *
      * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
+     *     As with {@link HttpURLConnection}, a redirect is not followed when it changes the
+     *     protocol, and {@code 303 See Other}, or a {@code 301} or {@code 302} in response to a
+     *     {@code POST}, changes the request to a {@code GET}. A redirect is also not followed when
+     *     a request body has been sent, as the body cannot be sent to the next hop. In these
+     *     cases, the redirect response is returned.
      * </p>
      *
-     * @param field See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
-     * @param defaultValue See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
-     * @return See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getHeaderFieldInt(String, int)
+     * <p>
+     *     Once a redirect has gone to another host, the {@code Authorization}, {@code Cookie} and
+     *     {@code Proxy-Authorization} custom headers are not sent to that hop or any hop after it,
+     *     so that credentials meant for one host are not given to another.
+     * </p>
+     *
+     * @param u The {@link URL} to request.
+     * @param probe {@code true} if this is the {@code HEAD} request made before fetching a body
+     *              in segments, {@code false} for the request set up in the {@link Builder}.
+     * @param resumable The {@link ResumableFetcherStreamReader} the body will be given to, or
+     *                  {@code null} if the body is not resumable.
+     * @param resumeValidator The validator to send in the {@code If-Range} header, or
+     *                        {@code null} if the whole body should be requested.
+     * @param cached The cached response to revalidate, or {@code null} if there is none.
+     * @return The {@link HttpURLConnection} holding the final response. It has not been
+     *         disconnected.
+     * @throws UrlMismatchException When a hop is to another host and host redirects are not
+     *                              allowed.
+     * @throws ProtocolException When there are more than {@link #MAX_REDIRECTS} redirects.
+     * @throws IOException When the request failed.
      */
-    public int getHeaderFieldInt(@NonNull final String field, final int defaultValue) {
-        checkState();
-        return connection.getHeaderFieldInt(field, defaultValue);
+    @NonNull
+    private HttpURLConnection connect(@NonNull final URL u, final boolean probe,
+            @Nullable final ResumableFetcherStreamReader resumable,
+            @Nullable final String resumeValidator,
+            @Nullable final DiskResponseCache.Snapshot cached) throws IOException {
+        final RedirectCache redirectCache = followRedirects && client != null
+                ? client.getRedirectCache() : null;
+        URL target = redirectCache != null ? getCachedLocation(redirectCache, u) : u;
+        String method = probe ? "HEAD" : requestMethod;
+        boolean sendCredentials = true;
+        redirectCount = 0;
+
+        while (true) {
+            final boolean sameHost = u.getHost().equalsIgnoreCase(target.getHost());
+
+            if (!allowHostRedirects && !sameHost) {
+                throw new UrlMismatchException();
+            }
+
+            sendCredentials &= sameHost;
+            final HttpURLConnection conn = openConnection(target, sendCredentials);
+            boolean keepConnection = false;
+
+            try {
+                if (!TextUtils.equals(method, requestMethod)) {
+                    conn.setRequestMethod(method);
+                }
+
+                if (probe) {
+                    conn.setRequestProperty("Accept-Encoding", "identity");
+                } else if (resumable != null) {
+                    addRangeHeaders(conn, resumeValidator, resumable.getResumeOffset());
+                }
+
+                if (cached != null) {
+                    addValidatorHeaders(conn, cached);
+                }
+
+                lastUrl = target;
+
+                if (events != null) {
+                    conn.connect();
+                    events.onConnectionAcquired(this, target.toString(), System.nanoTime());
+                }
+
+                final long sentBytes = requestBody != null ? writeRequestBody(conn) : 0;
+
+                if (events != null) {
+                    events.onRequestSent(this, target.toString(), sentBytes, System.nanoTime());
+                    final int responseCode = conn.getResponseCode();
+                    events.onFirstByte(this, target.toString(), responseCode, System.nanoTime());
+                }
+
+                final URL location = followRedirects ? getRedirectLocation(conn, target) : null;
+
+                if (location == null) {
+                    credentialsWithheld = !sendCredentials;
+                    keepConnection = true;
+                    return conn;
+                }
+
+                if (++redirectCount > MAX_REDIRECTS) {
+                    throw new ProtocolException("Too many redirects: " + redirectCount);
+                }
+
+                final int responseCode = conn.getResponseCode();
+
+                // 308 Permanent Redirect does not have a constant in HttpURLConnection.
+                if (redirectCache != null && (responseCode == HttpURLConnection.HTTP_MOVED_PERM ||
+                        responseCode == 308)) {
+                    redirectCache.put(target.toString(), location.toString());
+                }
+
+                if ((responseCode == HttpURLConnection.HTTP_SEE_OTHER &&
+                        !"HEAD".equalsIgnoreCase(method)) ||
+                        ((responseCode == HttpURLConnection.HTTP_MOVED_PERM ||
+                        responseCode == HttpURLConnection.HTTP_MOVED_TEMP) &&
+                        "POST".equalsIgnoreCase(method))) {
+                    method = "GET";
+                }
+
+                keepConnection = discardRedirect(conn);
+                target = location;
+            } finally {
+                if (!keepConnection) {
+                    conn.disconnect();
+                }
+            }
+        }
     }
 
     /**
-     * See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
+     * Get the location that the given {@link URL} has permanently moved to, from the
+     * {@link RedirectCache}.
      *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * @param redirectCache The {@link RedirectCache} to look the {@link URL} up in.
+     * @param u The {@link URL} being requested.
+     * @return The {@link URL} to request instead, or {@code u} if it is not known to have moved.
+     */
+    @NonNull
+    private static URL getCachedLocation(@NonNull final RedirectCache redirectCache,
+            @NonNull final URL u) {
+        final String location = redirectCache.resolve(u.toString());
+
+        if (location != null) {
+            try {
+                return new URL(location);
+            } catch (MalformedURLException e) {
+                redirectCache.remove(u.toString());
+            }
+        }
+
+        return u;
+    }
+
+    /**
+     * Get the location that the response held by the connection redirects to, if it should be
+     * followed.
      *
-     * @param posn See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
-     * @return See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getHeaderFieldKey(int)
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @param target The {@link URL} which was requested.
+     * @return The {@link URL} to request next, or {@code null} if the response is not a redirect
+     *         which should be followed.
+     * @throws IOException When there was a problem getting the response.
      */
     @Nullable
-    public String getHeaderFieldKey(final int posn) {
-        checkState();
-        return connection.getHeaderFieldKey(posn);
+    private URL getRedirectLocation(@NonNull final HttpURLConnection conn,
+            @NonNull final URL target) throws IOException {
+        switch (conn.getResponseCode()) {
+            case HttpURLConnection.HTTP_MULT_CHOICE:
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case 307:
+            case 308:
+                break;
+            default:
+                return null;
+        }
+
+        final String location = conn.getHeaderField("Location");
+
+        if (requestBody != null || location == null) {
+            return null;
+        }
+
+        final URL next;
+
+        try {
+            next = new URL(target, location);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+
+        return next.getProtocol().equalsIgnoreCase(target.getProtocol()) ? next : null;
     }
 
     /**
-     * See {@link java.net.URLConnection#getHeaderFields()}.
+     * Discard the body of a redirect response which is being followed. If there is a
+     * {@link HttpFetcherClient}, the connection is returned to its {@link ConnectionPool} so that
+     * the next hop may reuse it if it is on the same host.
      *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * @param conn The {@link HttpURLConnection} holding the redirect response.
+     * @return {@code true} if the connection is being kept alive, in which case it must not be
+     *         disconnected. {@code false} if the connection should be disconnected.
+     */
+    private boolean discardRedirect(@NonNull final HttpURLConnection conn) {
+        if (client == null) {
+            return false;
+        }
+
+        try {
+            return releaseConnection(conn, conn.getInputStream());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     ******************
+     * Configuration. *
+     ******************
+     */
+
+    /**
+     * Get the URL that this instance is configured for.
      *
-     * @return See {@link java.net.URLConnection#getHeaderFields()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getHeaderFields()
+     * @return The URL that this instance is configured for.
+     * @see Builder#setUrl(String)
+     */
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the key that responses to this request are stored under in the
+     * {@link MemoryResponseCache} and the {@link DiskResponseCache}. This is made up of the URL,
+     * proxy, the settings which can change the response, and the custom headers, sorted by name,
+     * so that a response is only given to requests which would have got the same response.
+     *
+     * @return The key that responses to this request are cached under.
+     */
+    @NonNull
+    public String getCacheKey() {
+        final StringBuilder sb = new StringBuilder(url);
+
+        if (proxy != null) {
+            sb.append("\nProxy: ").append(proxy);
+        }
+
+        sb.append("\nallowHostRedirects: ").append(allowHostRedirects)
+                .append("\nfollowRedirects: ").append(followRedirects)
+                .append("\nmodifiedSince: ").append(modifiedSince);
+
+        if (customHeaders != null) {
+            for (Map.Entry<String, String> header : new TreeMap<>(customHeaders).entrySet()) {
+                sb.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Get the {@link HttpFetcherClient} configured for this instance, if one is configured.
+     *
+     * @return The {@link HttpFetcherClient} configured for this instance, if one is configured.
+     *         Otherwise, {@code null} is returned.
+     * @see Builder#setClient(HttpFetcherClient)
      */
     @Nullable
-    public Map<String, List<String>> getHeaderFields() {
-        checkState();
-        return connection.getHeaderFields();
+    public HttpFetcherClient getClient() {
+        return client;
     }
 
     /**
-     * See {@link java.net.URLConnection#getLastModified()}.
+     * Get the {@link Proxy} configured for this instance, if one is configured.
      *
-     * <p>
-     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
-     *     called before, an {@link IllegalStateException} will be thrown.
-     * </p>
+     * @return The {@link Proxy} configured for this insance, if one is configured. Otherwise,
+     *         {@code null} is returned.
+     * @see Builder#setProxy(java.net.Proxy)
+     */
+    @Nullable
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Does this instance allow redirects between different hosts?
      *
-     * @return See {@link java.net.URLConnection#getLastModified()}.
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see java.net.URLConnection#getLastModified()
+     * @return {@code true} if this instance allows redirects between different hosts, {@code false}
+     *         if not.
+     * @see Builder#setAllowHostRedirects(boolean)
      */
-    public long getLastModified() {
-        checkState();
-        return connection.getLastModified();
+    public boolean isAllowHostRedirects() {
+        return allowHostRedirects;
     }
 
     /**
-     * Has this instance run yet? That is, has {@link #executeFetcher(FetcherStreamReader)} been
-     * called?
+     * Get the chunk length configured for this instance.
      *
-     * @return {@code true} if this instance has run, {@code false} if not.
+     * @return The chunk length configured for this instance, or {@code -1} if chunking mode has
+     *         not been set explicitly.
+     * @see Builder#setChunkedStreamingMode(int)
+     * @see HttpURLConnection#chunkLength
      */
-    public boolean hasRun() {
-        return connection != null;
+    public int getChunkLength() {
+        return chunkLength;
+    }
+
+    /**
+     * Get the fixed content length configured for this instance.
+     *
+     * @return The fixed content length configured for this instance, or {@code -1} if it has not
+     *         been set explicitly.
+     * @see Builder#setFixedLengthStreamingMode(long)
+     * @see HttpURLConnection#fixedContentLength
+     * @see HttpURLConnection#fixedContentLengthLong
+     */
+    public long getFixedContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Should this instance follow redirects?
+     *
+     * @return {@code true} if this instance should follow redirects, {@code false} if not.
+     * @see Builder#setFollowRedirects(boolean)
+     * @see HttpURLConnection#getInstanceFollowRedirects()
+     */
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    /**
+     * Get the request method configured for this instance.
+     *
+     * @return The request method configured for this instance. If this method returns {@code null},
+     *         assume the configured request method is {@code GET}.
+     * @see Builder#setRequestMethod(String)
+     * @see HttpURLConnection#getRequestMethod()
+     */
+    @Nullable
+    public String getRequestMethod() {
+        return requestMethod;
+    }
+
+    /**
+     * Get the connection timeout configured for this instance.
+     *
+     * @return The connection timeout configured for this instance, or {@code 0} if the default is
+     *         used.
+     * @see Builder#setConnectTimeout(int)
+     * @see java.net.URLConnection#getConnectTimeout()
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Is this instance configured for receiving data?
+     *
+     * @return {@code true} if this instance is configured for receiving data, {@code false} if not.
+     * @see Builder#setDoInput(boolean)
+     * @see java.net.URLConnection#getDoInput()
+     */
+    public boolean isDoInput() {
+        return doInput;
+    }
+
+    /**
+     * Is this instance configured for outputting data? This is always the case when a request
+     * body has been set.
+     *
+     * @return {@code true} if this instance is configured for outputting data, {@code false} if
+     *         not.
+     * @see Builder#setDoOutput(boolean)
+     * @see java.net.URLConnection#getDoOutput()
+     */
+    public boolean isDoOutput() {
+        return doOutput || requestBody != null;
+    }
+
+    /**
+     * Get the modification timestamp configured for this instance.
+     *
+     * @return The modification timestamp configured for this instance, or {@code 0} if the default
+     *         value is used.
+     * @see Builder#setIfModifiedSince(long)
+     * @see java.net.URLConnection#getIfModifiedSince()
+     */
+    public long getModifiedSince() {
+        return modifiedSince;
+    }
+
+    /**
+     * Get the read timeout configured for this instance.
+     *
+     * @return The read timeout configured for this instance, or {@code 0} if the default is used.
+     * @see Builder#setReadTimeout(int)
+     * @see java.net.URLConnection#getReadTimeout()
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Get the cache status configured for this instance.
+     *
+     * @return {@code true} if this instance uses caches, {@code false} if not.
+     * @see Builder#setUseCaches(boolean)
+     * @see java.net.URLConnection#getUseCaches()
+     */
+    public boolean isUseCaches() {
+        return useCaches;
     }
 
-    /**
-     * Configure the supplied instance of {@link HttpURLConnection} with the fields set in the
-     * {@link Builder}.
-     *
-     * @param connection The {@link HttpURLConnection} instance to configure.
-     * @throws ProtocolException Where there is an error configuring the request method of this
-     *                           instance.
-     */
-    private void configureConnectionInstance(@NonNull final HttpURLConnection connection)
-            throws ProtocolException {
-        /*if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            connection.setFixedLengthStreamingMode(contentLength);
-        } else {
-            connection.setFixedLengthStreamingMode((int) Math.min(contentLength,
-                    Integer.MAX_VALUE));
-        }*/
+    /**
+     * Does this instance use the {@link MemoryResponseCache} of the {@link HttpFetcherClient}?
+     *
+     * @return {@code true} if this instance uses the memory cache, {@code false} if not.
+     * @see Builder#setUseMemoryCache(boolean)
+     */
+    public boolean isUseMemoryCache() {
+        return useMemoryCache;
+    }
+
+    /**
+     * Get the freshness lifetime override for responses put in to the {@link MemoryResponseCache}.
+     *
+     * @return The freshness lifetime override in milliseconds, or {@code -1} if the lifetime is
+     *         taken from the {@code Cache-Control} response header.
+     * @see Builder#setMemoryCacheMaxAge(long)
+     */
+    public long getMemoryCacheMaxAge() {
+        return memoryCacheMaxAge;
+    }
+
+    /**
+     * Does this instance share its network transfer with concurrent identical requests?
+     *
+     * @return {@code true} if this instance coalesces requests, {@code false} if not.
+     * @see Builder#setCoalesceRequests(boolean)
+     */
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Get the {@link RetryPolicy} configured for this instance.
+     *
+     * @return The {@link RetryPolicy} configured for this instance, or {@code null} if failed
+     *         requests are not retried.
+     * @see Builder#setRetryPolicy(RetryPolicy)
+     */
+    @Nullable
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Get the {@link FetcherStreamWriter} which supplies the request body.
+     *
+     * @return The {@link FetcherStreamWriter} which supplies the request body, or {@code null} if
+     *         no body is sent.
+     * @see Builder#setRequestBody(FetcherStreamWriter)
+     */
+    @Nullable
+    public FetcherStreamWriter getRequestBody() {
+        return requestBody;
+    }
+
+    /**
+     * Get the {@link FetchEventListener} set on this instance.
+     *
+     * @return The {@link FetchEventListener} set on this instance, or {@code null} if there is
+     *         none. This does not include the listener of the {@link HttpFetcherClient}.
+     * @see Builder#setEventListener(FetchEventListener)
+     */
+    @Nullable
+    public FetchEventListener getEventListener() {
+        return eventListener;
+    }
+
+    /**
+     * Get the {@link HttpTransport} set on this instance.
+     *
+     * @return The {@link HttpTransport} set on this instance, or {@code null} if the transport of
+     *         the {@link HttpFetcherClient}, or the default, is used.
+     * @see Builder#setTransport(HttpTransport)
+     */
+    @Nullable
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get the {@link FetchCancellationSignal} which cancels this instance.
+     *
+     * @return The {@link FetchCancellationSignal} which cancels this instance, or {@code null} if
+     *         there is none.
+     * @see Builder#setCancellationSignal(FetchCancellationSignal)
+     */
+    @Nullable
+    public FetchCancellationSignal getCancellationSignal() {
+        return cancellationSignal;
+    }
+
+    /**
+     * Get the number of attempts that were made to perform the request. This is {@code 0} when
+     * the response was taken from the {@link MemoryResponseCache}, and may be greater than
+     * {@code 1} when a {@link RetryPolicy} has been set.
+     *
+     * @return The number of attempts that were made to perform the request.
+     */
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    /**
+     * Get the {@link ResponseMetadata} captured from the response. Unlike the other response
+     * getters of this class, it does not depend on the connection, which has been released by the
+     * time the fetch has finished. When the response was taken from the
+     * {@link MemoryResponseCache}, this is the {@link ResponseMetadata} stored with it. When the
+     * server responded with {@code 304 Not Modified} and the body was taken from the
+     * {@link DiskResponseCache}, this describes the stored {@code 200 OK} response.
+     *
+     * @return The {@link ResponseMetadata} captured from the response.
+     * @throws IllegalStateException When the instance has not been run yet, or the response was
+     *                               taken from the memory cache without its metadata.
+     */
+    @NonNull
+    public ResponseMetadata getResponseMetadata() {
+        checkState();
+        return responseMetadata;
+    }
+
+    /**
+     * Get the number of redirects that were followed over the network for the request. Redirects
+     * which were taken from the {@link RedirectCache} without being requested are not counted.
+     *
+     * @return The number of redirects that were followed for the request.
+     */
+    public int getRedirectCount() {
+        return redirectCount;
+    }
+
+    /**
+     * Get the URL that the response came from, after any redirects were followed.
+     *
+     * @return The URL that the response came from.
+     * @throws IllegalStateException When the instance has not been run yet, or the response was
+     *                               taken from the memory cache without its metadata.
+     */
+    @NonNull
+    public String getFinalUrl() {
+        checkState();
+        return connection != null ? connection.getURL().toString() : responseMetadata.getUrl();
+    }
+
+    /**
+     * Get the maximum number of segments a body is fetched in.
+     *
+     * @return The maximum number of segments a body is fetched in.
+     * @see Builder#setSegmentCount(int)
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Get the minimum size of a segment, in bytes.
+     *
+     * @return The minimum size of a segment, in bytes.
+     * @see Builder#setMinSegmentSize(long)
+     */
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    /**
+     * Get the mapping of custom headers configured for this instance.
+     *
+     * @return The mapping of custom headers configured for this instance, or {@code null} if no
+     *         custom headers have been set.
+     * @see Builder#setCustomHeader(String, String)
+     */
+    @Nullable
+    public Map<String, String> getCustomHeaders() {
+        return customHeaders != null ? new HashMap<>(customHeaders) : null;
+    }
+
+    /**
+     * Get a custom header configured for this instance.
+     *
+     * @param header The name of the custom header to get.
+     * @param defaultValue The default value to return if the custom header does not exist.
+     * @return The custom header for the given {@code header} name. If this is not found, then
+     *         {@code defaultValue} will be returned. Be prepared for {@code null} if
+     *         {@code defaultValue} is {@code null} or the custom header is {@code null}.
+     */
+    @Nullable
+    public String getCustomHeader(@NonNull final String header,
+                                  @Nullable final String defaultValue) {
+        if (customHeaders != null) {
+            return customHeaders.containsKey(header) ? customHeaders.get(header) : defaultValue;
+        } else {
+            return defaultValue;
+        }
+    }
+
+    /*
+     **************
+     * Run state. *
+     **************
+     */
+
+    /**
+     * See {@link HttpURLConnection#getContentEncoding()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link HttpURLConnection#getContentEncoding()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see HttpURLConnection#getContentEncoding()
+     */
+    @Nullable
+    public String getContentEncoding() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getContentEncoding()
+                : connection.getContentEncoding();
+    }
+
+    /**
+     * See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @param field See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
+     * @param defaultValue See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
+     * @return See {@link HttpURLConnection#getHeaderFieldDate(String, long)}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see HttpURLConnection#getHeaderFieldDate(String, long)
+     */
+    public long getHeaderFieldDate(@NonNull final String field, final long defaultValue) {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getHeaderDate(field, defaultValue)
+                : connection.getHeaderFieldDate(field, defaultValue);
+    }
+
+    /**
+     * See {@link HttpURLConnection#getResponseCode()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * <p>
+     *     When the server responded with {@code 304 Not Modified} and the body was taken from the
+     *     {@link DiskResponseCache}, this and the other getters which look up headers by name
+     *     describe the stored {@code 200 OK} response, with its headers updated from the
+     *     {@code 304 Not Modified} response. The getters which look up headers by position
+     *     describe the {@code 304 Not Modified} response. When the response was taken from the
+     *     {@link MemoryResponseCache}, all of the getters describe the stored response.
+     * </p>
+     *
+     * @return See {@link java.net.HttpURLConnection#getResponseCode()}.
+     * @throws IOException See {@link java.net.HttpURLConnection#getResponseCode()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see HttpURLConnection#getResponseCode()
+     */
+    public int getResponseCode() throws IOException {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getResponseCode() : connection.getResponseCode();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getContentLength()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getContentLength()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getContentLength()
+     */
+    public int getContentLength() {
+        checkState();
+
+        if (isMetadataResponse()) {
+            final long contentLength = responseMetadata.getContentLength();
+            return contentLength <= Integer.MAX_VALUE ? (int) contentLength : -1;
+        }
+
+        return connection.getContentLength();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getContentType()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getContentType()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getContentType()
+     */
+    @Nullable
+    public String getContentType() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getContentType() : connection.getContentType();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getDate()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getDate()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getDate()
+     */
+    public long getDate() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getHeaderDate("Date", 0) : connection.getDate();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getExpiration()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getExpiration()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getExpiration()
+     */
+    public long getExpiration() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getHeaderDate("Expires", 0)
+                : connection.getExpiration();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getHeaderField(String)}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @param key See {@link java.net.URLConnection#getHeaderField(String)}.
+     * @return See {@link java.net.URLConnection#getHeaderField(String)}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getHeaderField(String)
+     */
+    @Nullable
+    public String getHeaderField(@NonNull final String key) {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getHeader(key) : connection.getHeaderField(key);
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getHeaderField(int)}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @param pos See {@link java.net.URLConnection#getHeaderField(int)}.
+     * @return See {@link java.net.URLConnection#getHeaderField(int)}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getHeaderField(int)
+     */
+    @Nullable
+    public String getHeaderField(final int pos) {
+        checkState();
+        return isMetadataResponse() ? getMetadataHeaderField(pos, false)
+                : connection.getHeaderField(pos);
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @param field See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
+     * @param defaultValue See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
+     * @return See {@link java.net.URLConnection#getHeaderFieldInt(String, int)}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getHeaderFieldInt(String, int)
+     */
+    public int getHeaderFieldInt(@NonNull final String field, final int defaultValue) {
+        checkState();
+
+        if (isMetadataResponse()) {
+            try {
+                final String value = responseMetadata.getHeader(field);
+                return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        return connection.getHeaderFieldInt(field, defaultValue);
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @param posn See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
+     * @return See {@link java.net.URLConnection#getHeaderFieldKey(int)}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getHeaderFieldKey(int)
+     */
+    @Nullable
+    public String getHeaderFieldKey(final int posn) {
+        checkState();
+        return isMetadataResponse() ? getMetadataHeaderField(posn, true)
+                : connection.getHeaderFieldKey(posn);
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getHeaderFields()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getHeaderFields()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getHeaderFields()
+     */
+    @Nullable
+    public Map<String, List<String>> getHeaderFields() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getHeaders() : connection.getHeaderFields();
+    }
+
+    /**
+     * See {@link java.net.URLConnection#getLastModified()}.
+     *
+     * <p>
+     *     This should only be called after {@link #executeFetcher(FetcherStreamReader)}. If it is
+     *     called before, an {@link IllegalStateException} will be thrown.
+     * </p>
+     *
+     * @return See {@link java.net.URLConnection#getLastModified()}.
+     * @throws IllegalStateException When the instance has not been run yet.
+     * @see java.net.URLConnection#getLastModified()
+     */
+    public long getLastModified() {
+        checkState();
+        return isMetadataResponse() ? responseMetadata.getLastModified() : connection.getLastModified();
+    }
+
+    /**
+     * Has this instance run yet? That is, has {@link #executeFetcher(FetcherStreamReader)} been
+     * called?
+     *
+     * @return {@code true} if this instance has run, {@code false} if not.
+     */
+    public boolean hasRun() {
+        return hasRun;
+    }
+
+    /**
+     * Was the response given to the {@link FetcherStreamReader} taken from the
+     * {@link MemoryResponseCache}? When this is the case, no connection was made and the response
+     * getters of this class describe the {@link ResponseMetadata} stored with the body.
+     *
+     * @return {@code true} if this instance has run and the response came from the memory cache,
+     *         {@code false} otherwise.
+     */
+    public boolean isFromMemoryCache() {
+        return fromMemoryCache;
+    }
+
+    /**
+     * Configure the supplied instance of {@link HttpURLConnection} with the fields set in the
+     * {@link Builder}.
+     *
+     * @param connection The {@link HttpURLConnection} instance to configure.
+     * @param sendCredentials {@code true} if custom headers which carry credentials should be
+     *                        set, {@code false} if they should be left out.
+     * @throws ProtocolException Where there is an error configuring the request method of this
+     *                           instance.
+     */
+    private void configureConnectionInstance(@NonNull final HttpURLConnection connection,
+            final boolean sendCredentials) throws ProtocolException {
+        if (isDoOutput()) {
+            configureStreamingMode(connection);
+        }
+
+        // Redirects are followed one hop at a time by connect().
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(requestMethod);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setDoInput(doInput);
+        connection.setDoOutput(isDoOutput());
+        connection.setIfModifiedSince(modifiedSince);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(useCaches);
+
+        if (customHeaders != null) {
+            for (String header : customHeaders.keySet()) {
+                if (sendCredentials || !isCredentialHeader(header)) {
+                    connection.setRequestProperty(header, customHeaders.get(header));
+                }
+            }
+        }
+
+        // The Content-Type of the request body is used unless it has been set explicitly.
+        final String contentType = requestBody != null ? requestBody.getContentType() : null;
+
+        if (contentType != null && getCustomHeader("Content-Type", null) == null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+    }
+
+    /**
+     * Is the given header one which carries credentials?
+     *
+     * @param header The name of the header.
+     * @return {@code true} if the header is one of {@link #CREDENTIAL_HEADERS}, {@code false} if
+     *         not.
+     */
+    private static boolean isCredentialHeader(@NonNull final String header) {
+        for (String credentialHeader : CREDENTIAL_HEADERS) {
+            if (credentialHeader.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Set the streaming mode of the connection, so that the request body is written straight to
+     * the network rather than being buffered in memory until it is complete. An explicit fixed
+     * length or chunk length takes priority. Otherwise, the body is sent with a fixed length if
+     * the {@link FetcherStreamWriter} knows its length, or in chunks if not.
+     *
+     * @param connection The {@link HttpURLConnection} instance to configure.
+     */
+    private void configureStreamingMode(@NonNull final HttpURLConnection connection) {
+        final long length;
+
+        if (contentLength >= 0) {
+            length = contentLength;
+        } else if (chunkLength < 0 && requestBody != null) {
+            length = requestBody.getContentLength();
+        } else {
+            length = -1;
+        }
+
+        if (length >= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            connection.setFixedLengthStreamingMode(length);
+        } else if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else if (chunkLength >= 0 || requestBody != null) {
+            // A length over 2GB cannot be fixed before KitKat, so it is sent in chunks instead. A
+            // chunk length of 0 means the default chunk length.
+            connection.setChunkedStreamingMode(Math.max(chunkLength, 0));
+        }
+    }
+
+    /**
+     * Write the request body from the {@link FetcherStreamWriter} to the connection.
+     *
+     * @param conn The {@link HttpURLConnection} to write the body to.
+     * @return The number of bytes written if there is a {@link FetchEventListener}, otherwise
+     *         {@code 0} as the bytes are not counted.
+     * @throws IOException When the body could not be written.
+     */
+    private long writeRequestBody(@NonNull final HttpURLConnection conn) throws IOException {
+        final TransportOutputStream transport = new TransportOutputStream(conn.getOutputStream());
+        final OutputStream out = events != null ? new CountingOutputStream(transport) : transport;
+
+        try {
+            requestBody.writeOutputStream(out);
+        } catch (IOException e) {
+            if (e != transport.error) {
+                callerError = e;
+            }
+
+            throw e;
+        } finally {
+            out.close();
+        }
+
+        return out instanceof CountingOutputStream ? ((CountingOutputStream) out).count : 0;
+    }
+
+    /**
+     * Wrap a response body which is replayed from memory, rather than read from a connection, so
+     * that it stops being read when the {@link FetchCancellationSignal} is cancelled. There is no
+     * connection for the signal to disconnect in this case.
+     *
+     * @param body The body to replay.
+     * @return The {@link InputStream} to give to the {@link FetcherStreamReader}.
+     */
+    @NonNull
+    private InputStream replayBody(@NonNull final InputStream body) {
+        return cancellationSignal != null ? new CancellableInputStream(body, cancellationSignal)
+                : body;
+    }
+
+    /**
+     * Get the exception to throw for a failure. If the {@link FetchCancellationSignal} has been
+     * cancelled, the failure was most likely caused by the connection being disconnected, so a
+     * {@link FetchCancelledException} is thrown instead, with the failure as its cause.
+     *
+     * @param e The {@link IOException} the fetch failed with.
+     * @return The exception to throw.
+     */
+    @NonNull
+    private IOException getCancelledException(@NonNull final IOException e) {
+        if (cancellationSignal == null || !cancellationSignal.isCancelled() ||
+                e instanceof FetchCancelledException) {
+            return e;
+        }
+
+        final FetchCancelledException cancelled = new FetchCancelledException();
+        cancelled.initCause(e);
+
+        return cancelled;
+    }
+
+    /**
+     * Did the request fail because of the connection to the host? Failures of the caller's
+     * {@link FetcherStreamReader} or {@link FetcherStreamWriter}, of local storage, and refusals
+     * by the policy of this class say nothing about the health of the host, so they are not
+     * counted against it by the {@link CircuitBreaker}.
+     *
+     * @param e The {@link IOException} the request failed with.
+     * @return {@code true} if the failure should be counted against the host.
+     */
+    private boolean isTransportFailure(@NonNull final IOException e) {
+        return e != callerError && !(e instanceof UrlMismatchException) &&
+                !(e instanceof RetryResponseException) &&
+                !(e instanceof UnexpectedResponseCodeException);
+    }
+
+    /**
+     * Give the {@link ResponseMetadata} of the response to the reader, if it is a
+     * {@link ResponseAwareFetcherStreamReader}. This must be called before the body is given to
+     * the reader.
+     *
+     * @param reader The {@link FetcherStreamReader} the body will be given to.
+     * @throws IOException When the reader cannot accept the response.
+     */
+    private void notifyResponse(@NonNull final FetcherStreamReader reader) throws IOException {
+        if (reader instanceof ResponseAwareFetcherStreamReader) {
+            ((ResponseAwareFetcherStreamReader) reader).onResponse(responseMetadata);
+        }
+    }
+
+    /**
+     * Wrap the response body so that the bytes given to the {@link FetcherStreamReader} are
+     * counted in {@link #bodyBytes}, if there is a {@link FetchEventListener} to tell.
+     *
+     * @param body The response body.
+     * @return The wrapped response body, or {@code body} if there is no
+     *         {@link FetchEventListener}.
+     */
+    @NonNull
+    private InputStream countBody(@NonNull final InputStream body) {
+        return events != null ? new CountingInputStream(body) : body;
+    }
+
+    /**
+     * Get the {@link RequestCoalescer} to use for this request, if any. Only {@code GET} and
+     * {@code HEAD} requests are coalesced, as other methods are not safe to share.
+     *
+     * @return The {@link RequestCoalescer} to use for this request, or {@code null} if this
+     *         request should not be coalesced.
+     */
+    @Nullable
+    private RequestCoalescer getRequestCoalescer() {
+        if (client == null || !coalesceRequests) {
+            return null;
+        }
+
+        if (requestMethod != null && !"GET".equalsIgnoreCase(requestMethod) &&
+                !"HEAD".equalsIgnoreCase(requestMethod)) {
+            return null;
+        }
+
+        return client.getRequestCoalescer();
+    }
+
+    /**
+     * Get the key which identifies requests that are identical to this one. This is made up of the
+     * request method, the {@link #getCacheKey()} and the caches which are used. Requests which
+     * differ in how redirects are followed or which caches they use could get different
+     * responses, so they are not shared.
+     *
+     * @return The key which identifies requests that are identical to this one.
+     */
+    @NonNull
+    private String getCoalescingKey() {
+        return (requestMethod != null ? requestMethod.toUpperCase() : "GET") + ' ' +
+                getCacheKey() +
+                "\nuseCaches: " + useCaches +
+                "\nuseMemoryCache: " + useMemoryCache;
+    }
+
+    /**
+     * Get the {@link MemoryResponseCache} to use for this request, if any. The memory cache is only
+     * used for {@code GET} requests when this instance has opted in to it and the
+     * {@link HttpFetcherClient} has a {@link MemoryResponseCache}.
+     *
+     * @return The {@link MemoryResponseCache} to use for this request, or {@code null} if the
+     *         memory cache should not be used.
+     */
+    @Nullable
+    private MemoryResponseCache getMemoryCache() {
+        if (client == null || !useMemoryCache ||
+                (requestMethod != null && !"GET".equalsIgnoreCase(requestMethod))) {
+            return null;
+        }
+
+        return client.getMemoryCache();
+    }
+
+    /**
+     * Get the {@link DiskResponseCache} to use for this request, if any. The disk cache is only
+     * used for {@code GET} requests when this instance uses caches and the
+     * {@link HttpFetcherClient} has a {@link DiskResponseCache}.
+     *
+     * @return The {@link DiskResponseCache} to use for this request, or {@code null} if the disk
+     *         cache should not be used.
+     */
+    @Nullable
+    private DiskResponseCache getDiskCache() {
+        if (client == null || !useCaches ||
+                (requestMethod != null && !"GET".equalsIgnoreCase(requestMethod))) {
+            return null;
+        }
+
+        return client.getDiskCache();
+    }
+
+    /**
+     * Add the {@code If-None-Match} and {@code If-Modified-Since} request headers to the
+     * connection, using the validators of the cached response. Any headers that have been set
+     * explicitly with {@link Builder#setCustomHeader(String, String)} take priority.
+     *
+     * @param conn The {@link HttpURLConnection} to add the headers to.
+     * @param cached The {@link DiskResponseCache.Snapshot} of the cached response.
+     */
+    private void addValidatorHeaders(@NonNull final HttpURLConnection conn,
+            @NonNull final DiskResponseCache.Snapshot cached) {
+        final String etag = cached.getETag();
+        final String lastModified = cached.getLastModified();
+
+        if (etag != null && getCustomHeader("If-None-Match", null) == null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+
+        if (lastModified != null && modifiedSince == 0 &&
+                getCustomHeader("If-Modified-Since", null) == null) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Does the {@link RetryPolicy} allow another attempt at this request? This does not consider
+     * the reason the last attempt failed or the {@link RetryBudget}. A request body which cannot
+     * be written twice prevents any retries.
+     *
+     * @return {@code true} if another attempt is allowed, {@code false} if not.
+     */
+    private boolean hasAttemptsLeft() {
+        return retryPolicy != null && attemptCount < retryPolicy.getMaxAttempts() &&
+                retryPolicy.isRetryableMethod(requestMethod) &&
+                (requestBody == null || requestBody.isRepeatable());
+    }
+
+    /**
+     * Should the response be retried rather than given to the {@link FetcherStreamReader}? This
+     * is the case for {@code 429 Too Many Requests} and {@code 503 Service Unavailable} responses
+     * when the {@link RetryPolicy} and the {@link RetryBudget} allow another attempt.
+     *
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @return The delay before the next attempt in milliseconds, or {@code -1} if the response
+     *         should not be retried.
+     * @throws IOException When the response code could not be read.
+     */
+    private long getRetryDelay(@NonNull final HttpURLConnection conn) throws IOException {
+        final int responseCode = conn.getResponseCode();
+
+        if ((responseCode != 429 && responseCode != HttpURLConnection.HTTP_UNAVAILABLE) ||
+                !hasAttemptsLeft()) {
+            return -1;
+        }
+
+        long delay = retryPolicy.isHonourRetryAfter() ? parseRetryAfter(conn) : -1;
+
+        if (delay > retryPolicy.getMaxDelay()) {
+            // The server will not be ready before we would give up anyway.
+            return -1;
+        } else if (delay < 0) {
+            delay = retryPolicy.getBackoffDelay(attemptCount);
+        }
+
+        final RetryBudget budget = client != null ? client.getRetryBudget() : null;
+        return budget == null || budget.tryAcquire() ? delay : -1;
+    }
+
+    /**
+     * Parse the {@code Retry-After} response header, which is either a number of seconds or a
+     * HTTP date.
+     *
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @return The delay given by the header in milliseconds, or {@code -1} if there is no valid
+     *         header.
+     */
+    private static long parseRetryAfter(@NonNull final HttpURLConnection conn) {
+        final String value = conn.getHeaderField("Retry-After");
+
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000L);
+        } catch (NumberFormatException e) {
+            // It may be a date instead.
+        }
+
+        final long date = conn.getHeaderFieldDate("Retry-After", -1);
+        return date == -1 ? -1 : Math.max(0, date - System.currentTimeMillis());
+    }
+
+    /**
+     * Get the given {@link FetcherStreamReader} as a {@link SegmentedFetcherStreamReader}, if it
+     * is one, this is a {@code GET} request and this instance is configured to use more than one
+     * segment.
+     *
+     * @param reader The {@link FetcherStreamReader} the response body will be given to.
+     * @return The {@link SegmentedFetcherStreamReader}, or {@code null} if this request will not
+     *         be fetched in segments.
+     */
+    @Nullable
+    private SegmentedFetcherStreamReader getSegmentedReader(
+            @NonNull final FetcherStreamReader reader) {
+        if (segmentCount < 2 || !(reader instanceof SegmentedFetcherStreamReader) ||
+                (requestMethod != null && !"GET".equalsIgnoreCase(requestMethod))) {
+            return null;
+        }
+
+        return (SegmentedFetcherStreamReader) reader;
+    }
+
+    /**
+     * Get the given {@link FetcherStreamReader} as a {@link ResumableFetcherStreamReader}, if it is
+     * one and this is a {@code GET} request. Ranges are only meaningful for {@code GET}.
+     *
+     * @param reader The {@link FetcherStreamReader} the response body will be given to.
+     * @return The {@link ResumableFetcherStreamReader}, or {@code null} if this request will not
+     *         be resumed.
+     */
+    @Nullable
+    private ResumableFetcherStreamReader getResumableReader(
+            @NonNull final FetcherStreamReader reader) {
+        if (!(reader instanceof ResumableFetcherStreamReader) ||
+                (requestMethod != null && !"GET".equalsIgnoreCase(requestMethod))) {
+            return null;
+        }
+
+        return (ResumableFetcherStreamReader) reader;
+    }
+
+    /**
+     * Get the validator to send in the {@code If-Range} header if the
+     * {@link ResumableFetcherStreamReader} holds a partial body which can be resumed.
+     *
+     * @param resumable The {@link ResumableFetcherStreamReader} the body will be given to.
+     * @return The validator to send in the {@code If-Range} header, or {@code null} if the
+     *         request is for the whole body.
+     */
+    @Nullable
+    private static String getResumeValidator(
+            @NonNull final ResumableFetcherStreamReader resumable) {
+        return resumable.getResumeOffset() > 0 ? resumable.getResumeValidator() : null;
+    }
+
+    /**
+     * Add the {@code Range} and {@code If-Range} request headers to the connection if a partial
+     * body is being resumed.
+     *
+     * @param conn The {@link HttpURLConnection} to add the headers to.
+     * @param validator The validator to send in the {@code If-Range} header, or {@code null} if
+     *                  the request is for the whole body.
+     * @param offset The offset to resume the body from.
+     */
+    private static void addRangeHeaders(@NonNull final HttpURLConnection conn,
+            @Nullable final String validator, final long offset) {
+        // The offset counts bytes of the decoded body, so it would be meaningless if the server
+        // compressed the response.
+        conn.setRequestProperty("Accept-Encoding", "identity");
+
+        if (validator != null) {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            conn.setRequestProperty("If-Range", validator);
+        }
+    }
+
+    /**
+     * Tell the {@link ResumableFetcherStreamReader} whether the response body is the remainder or
+     * the whole of the data. A {@code 206 Partial Content} response is only accepted if a range
+     * was asked for and it starts at the offset that was asked for. Any response other than
+     * {@code 200 OK} or {@code 206 Partial Content} is not given to the reader, and fails the
+     * fetch with an {@link UnexpectedResponseCodeException}. The partial data the reader holds is
+     * kept for a later attempt, except after {@code 416 Range Not Satisfiable}. As the
+     * {@code If-Range} validator still matched, the data held does not fit the resource, so it is
+     * discarded and a later attempt fetches the whole of the data.
+     *
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @param resumable The {@link ResumableFetcherStreamReader} the body will be given to.
+     * @param resumeValidator The validator sent in the {@code If-Range} header, or {@code null}
+     *                        if the whole body was asked for.
+     * @throws IOException When the server responded with an unexpected response code or range,
+     *                     or the reader failed to prepare.
+     */
+    private static void prepareResumable(@NonNull final HttpURLConnection conn,
+            @NonNull final ResumableFetcherStreamReader resumable,
+            @Nullable final String resumeValidator) throws IOException {
+        final int responseCode = conn.getResponseCode();
+
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL && resumeValidator != null) {
+            final String contentRange = conn.getHeaderField("Content-Range");
+            final String expected = "bytes " + resumable.getResumeOffset() + "-";
+
+            if (contentRange == null || !contentRange.trim().startsWith(expected)) {
+                throw new IOException("The server responded with an unexpected Content-Range: " +
+                        contentRange);
+            }
+
+            final String validator = getStrongValidator(conn);
+            resumable.prepareForResponse(true, validator != null ? validator : resumeValidator);
+
+            return;
+        } else if (responseCode == HttpURLConnection.HTTP_OK) {
+            resumable.prepareForResponse(false, getStrongValidator(conn));
+
+            return;
+        } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && resumeValidator != null) {
+            // This discards the partial data and its validator without giving the reader a body.
+            resumable.prepareForResponse(false, null);
+        }
+
+        throw new UnexpectedResponseCodeException(responseCode);
+    }
+
+    /**
+     * Did the server respond to the request made on the connection? This is used once the body
+     * could not be read, to tell an error response without a body apart from a request which
+     * failed before reaching the server.
+     *
+     * @param conn The {@link HttpURLConnection} the request was made on.
+     * @return {@code true} if the server responded, {@code false} if not.
+     */
+    private static boolean hasResponse(@NonNull final HttpURLConnection conn) {
+        try {
+            return conn.getResponseCode() != -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse the value of a {@code Content-Length} header. Unlike
+     * {@link HttpURLConnection#getContentLength()}, this supports lengths over 2GB.
+     *
+     * @param contentLength The value of the {@code Content-Length} header. May be {@code null}.
+     * @return The content length, or {@code -1} if it is not known.
+     */
+    private static long parseContentLength(@Nullable final String contentLength) {
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // Fall through.
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get a validator from the response which may be used in an {@code If-Range} header. Weak
+     * {@code ETag}s may not be used for ranges, so {@code Last-Modified} is used instead.
+     *
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @return The strong validator of the response, or {@code null} if it does not have one.
+     */
+    @Nullable
+    private static String getStrongValidator(@NonNull final HttpURLConnection conn) {
+        final String etag = conn.getHeaderField("ETag");
+
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Is the response allowed to be stored in the {@link DiskResponseCache} or the
+     * {@link MemoryResponseCache}? A response is not stored when the server has sent
+     * {@code Cache-Control: no-store}, or when it varies on {@code *} or on a credential header.
+     * The platform can add credential headers of its own, which the cache key does not see. Other
+     * request headers are part of the cache key.
+     *
+     * @param metadata The {@link ResponseMetadata} of the response.
+     * @return {@code true} if the response may be stored, {@code false} if not.
+     */
+    private static boolean isStorable(@NonNull final ResponseMetadata metadata) {
+        final String cacheControl = metadata.getHeader("Cache-Control");
+
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return false;
+        }
+
+        final String vary = metadata.getHeader("Vary");
+
+        if (vary != null) {
+            for (String header : vary.split(",")) {
+                final String name = header.trim();
+
+                if ("*".equals(name) || isCredentialHeader(name)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Attempt to return the connection to the {@link ConnectionPool} of the
+     * {@link HttpFetcherClient} after the {@link FetcherStreamReader} has finished with the stream.
+     * For the connection to be reusable, the remainder of the response body is read and discarded
+     * and the stream is closed rather than the connection being disconnected. If the remainder of
+     * the body is too large to be worth reading, or the pool for the host is full, the connection
+     * is not kept alive.
+     *
+     * @param conn The {@link HttpURLConnection} which has been used for the request.
+     * @param in The {@link InputStream} to drain the remainder of the response body from.
+     * @return {@code true} if the connection is being kept alive, in which case it must not be
+     *         disconnected. {@code false} if the connection should be disconnected.
+     */
+    private boolean releaseConnection(@NonNull final HttpURLConnection conn,
+                                      @NonNull final InputStream in) {
+        // Keep-alive is disabled prior to Froyo. See the static initialiser.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            return false;
+        }
+
+        try {
+            final byte[] buf = new byte[1024];
+            int remaining = MAX_DRAIN_BYTES;
+            int len;
+
+            while ((len = in.read(buf)) != -1) {
+                remaining -= len;
+
+                if (remaining < 0) {
+                    return false;
+                }
+            }
+
+            if (!client.getConnectionPool().release(ConnectionPool.getKey(conn.getURL()))) {
+                return false;
+            }
+
+            in.close();
+
+            if (canceller != null) {
+                // The connection now belongs to the pool, so it must not be disconnected.
+                canceller.untrack(conn);
+            }
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check that the device is connected to a network before an attempt is made. The state held
+     * by the {@link NetworkStateMonitor} is updated by a broadcast, which can arrive after the
+     * network has come back, so it is queried again before the attempt is refused.
+     *
+     * @throws ConnectivityUnavailableException When the device is not connected.
+     */
+    private void checkConnectivity() throws ConnectivityUnavailableException {
+        boolean connected = networkMonitor.isConnected();
+
+        if (!connected) {
+            networkMonitor.refresh();
+            connected = networkMonitor.isConnected();
+        }
+
+        if (events != null) {
+            events.onConnectivityChecked(this, connected, System.nanoTime());
+        }
+
+        if (!connected) {
+            throw new ConnectivityUnavailableException();
+        }
+    }
+
+    /**
+     * This is called by certain getter methods to ensure that this instance has been run before the
+     * getter returns its data. This is because many values are not available until the instance has
+     * run.
+     *
+     * <p>
+     *     Use {@link #hasRun()} to check if the instance has been run before calling the getter
+     *     method.
+     * </p>
+     *
+     * <p>
+     *     When the response was taken from the {@link MemoryResponseCache}, there is no connection
+     *     to query, so the getters use the {@link ResponseMetadata} stored with it. If it was
+     *     stored without one, an {@link IllegalStateException} is also thrown.
+     * </p>
+     *
+     * @throws IllegalStateException When the instance has not been run yet, or the response was
+     *                               taken from the memory cache without its metadata.
+     * @see #hasRun()
+     * @see #isFromMemoryCache()
+     */
+    private void checkState() {
+        if (!hasRun()) {
+            throw new IllegalStateException("executeFetcher() must be called before calling this " +
+                    "method.");
+        }
+
+        if (connection == null && responseMetadata == null) {
+            throw new IllegalStateException("The response was taken from the memory cache " +
+                    "without its metadata, so there are no response details.");
+        }
+    }
+
+    /**
+     * Should the response getters be answered from {@link #responseMetadata} rather than the
+     * connection? This is the case when there is no connection because the response came from the
+     * {@link MemoryResponseCache}, and when the connection holds a {@code 304 Not Modified} which
+     * was answered from the {@link DiskResponseCache}.
+     *
+     * @return {@code true} if the getters should use {@link #responseMetadata}.
+     */
+    private boolean isMetadataResponse() {
+        return revalidated || connection == null;
+    }
+
+    /**
+     * Look up a header of {@link #responseMetadata} by position, in the same way as
+     * {@link HttpURLConnection#getHeaderField(int)} and
+     * {@link HttpURLConnection#getHeaderFieldKey(int)}. Position {@code 0} is the status line,
+     * which has no key, and each value of each header follows in order.
+     *
+     * @param pos The position of the header.
+     * @param key {@code true} to get the name of the header, {@code false} to get its value.
+     * @return The name or value of the header, or {@code null} if there is none at the position.
+     */
+    @Nullable
+    private String getMetadataHeaderField(final int pos, final boolean key) {
+        if (pos == 0) {
+            final String message = responseMetadata.getResponseMessage();
+
+            return key ? null : "HTTP/1.1 " + responseMetadata.getResponseCode() +
+                    (message != null ? " " + message : "");
+        }
+
+        int i = 1;
+
+        for (Map.Entry<String, List<String>> entry : responseMetadata.getHeaders().entrySet()) {
+            for (String value : entry.getValue()) {
+                if (i++ == pos) {
+                    return key ? entry.getKey() : value;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * This {@link IOException} is thrown by an attempt which received a response that should be
+     * retried. It never leaves this class, and is never given to the requests waiting on a
+     * coalesced request.
+     */
+    private static class RetryResponseException extends IOException {
+
+        private final int responseCode;
+        private final long delay;
+
+        /**
+         * Create a new {@code RetryResponseException}.
+         *
+         * @param responseCode The response code which is being retried.
+         * @param delay The delay before the next attempt, in milliseconds.
+         */
+        private RetryResponseException(final int responseCode, final long delay) {
+            super("Retrying after response code " + responseCode);
+
+            this.responseCode = responseCode;
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * A {@code SegmentTask} fetches a single range of the body and gives it to the
+     * {@link SegmentedFetcherStreamReader}. If it fails, the other segments in its group are
+     * aborted, as the body cannot be completed without it.
+     */
+    private class SegmentTask implements Runnable {
+
+        private final SegmentTask[] group;
+        private final URL url;
+        private final boolean sendCredentials;
+        private final String validator;
+        private final long start;
+        private final long end;
+        private final SegmentedFetcherStreamReader reader;
+
+        private volatile HttpURLConnection conn;
+        private volatile boolean aborted;
+        private IOException error;
+        private boolean rootCause;
+
+        /**
+         * Create a new {@code SegmentTask}.
+         *
+         * @param group All of the {@code SegmentTask}s for the body, including this one.
+         * @param url The {@link URL} to fetch the range from.
+         * @param sendCredentials {@code true} if custom headers which carry credentials should be
+         *                        sent, {@code false} if the probe was redirected to another host
+         *                        and they were left out.
+         * @param validator The strong validator of the body, used in the {@code If-Range} header
+         *                  so that every segment comes from the same version of the body. May be
+         *                  {@code null}.
+         * @param start The offset of the first byte of the range.
+         * @param end The offset of the last byte of the range, inclusive.
+         * @param reader The {@link SegmentedFetcherStreamReader} to give the range to.
+         */
+        private SegmentTask(@NonNull final SegmentTask[] group, @NonNull final URL url,
+                final boolean sendCredentials, @Nullable final String validator, final long start,
+                final long end, @NonNull final SegmentedFetcherStreamReader reader) {
+            this.group = group;
+            this.url = url;
+            this.sendCredentials = sendCredentials;
+            this.validator = validator;
+            this.start = start;
+            this.end = end;
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            try {
+                fetch();
+            } catch (IOException e) {
+                onFailed(e);
+            } catch (RuntimeException e) {
+                // Some implementations throw these when disconnected by another thread. Either
+                // way, the failure must be recorded or the body would be left with a hole.
+                final IOException wrapped = new IOException("The segment failed.");
+                wrapped.initCause(e);
+                onFailed(wrapped);
+            }
+        }
+
+        /**
+         * Record the failure of this segment. If this segment has not already been aborted, it is
+         * the root cause, and the other segments are aborted.
+         *
+         * @param e The reason for the failure.
+         */
+        private void onFailed(@NonNull final IOException e) {
+            error = e;
+
+            if (!aborted) {
+                rootCause = true;
+                abortSegments(group);
+            }
+        }
+
+        /**
+         * Fetch the range and give it to the reader.
+         *
+         * @throws IOException When the range could not be fetched.
+         */
+        private void fetch() throws IOException {
+            if (aborted) {
+                // Another segment failed while this one was waiting for a thread.
+                throw new InterruptedIOException("The segment was aborted.");
+            }
+
+            final String admissionKey = admit(url);
+            CircuitBreaker.Permit permit = null;
+            TransportInputStream body = null;
+            boolean keepAlive = false;
+            HttpURLConnection c = null;
+
+            try {
+                permit = acquirePermit(url);
+                c = openConnection(url, sendCredentials);
+                conn = c;
+
+                if (aborted) {
+                    throw new InterruptedIOException("The segment was aborted.");
+                }
+
+                c.setRequestProperty("Accept-Encoding", "identity");
+                c.setRequestProperty("Range", "bytes=" + start + '-' + end);
+
+                if (validator != null) {
+                    c.setRequestProperty("If-Range", validator);
+                }
+
+                final String target = url.toString();
+
+                if (events != null) {
+                    c.connect();
+                    events.onConnectionAcquired(HttpFetcher.this, target, System.nanoTime());
+                    events.onRequestSent(HttpFetcher.this, target, 0, System.nanoTime());
+                }
+
+                final int responseCode = c.getResponseCode();
+
+                if (events != null) {
+                    events.onFirstByte(HttpFetcher.this, target, responseCode, System.nanoTime());
+                }
+
+                if (permit != null) {
+                    permit.onHeaders(responseCode);
+                }
+
+                final InputStream in = c.getInputStream();
+                final String contentRange = c.getHeaderField("Content-Range");
+
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL ||
+                        contentRange == null ||
+                        !contentRange.trim().startsWith("bytes " + start + '-' + end + '/')) {
+                    // The server sent something else, most likely because the body changed.
+                    throw new IOException("The server did not honour the range " + start + '-' +
+                            end + ". Content-Range: " + contentRange);
+                }
+
+                body = new TransportInputStream(new LengthCheckingInputStream(in,
+                        end - start + 1));
+                reader.readSegment(start, end - start + 1, body);
+
+                if (client != null) {
+                    keepAlive = releaseConnection(c, in);
+                }
+            } catch (IOException e) {
+                if (permit == null) {
+                    throw e;
+                } else if (aborted) {
+                    // A segment disconnected because another failed says nothing about the host.
+                    permit.onFailure(new InterruptedIOException("The segment was aborted."));
+                } else if (body != null && e != body.error) {
+                    permit.onCallerFailure();
+                } else {
+                    permit.onFailure(e);
+                }
+
+                throw e;
+            } catch (RuntimeException e) {
+                if (permit != null && aborted) {
+                    permit.onFailure(new InterruptedIOException("The segment was aborted."));
+                }
+
+                throw e;
+            } finally {
+                if (permit != null) {
+                    permit.release();
+                }
+
+                if (c != null && !keepAlive) {
+                    c.disconnect();
+                }
+
+                leaveAdmission(admissionKey);
+            }
+        }
+    }
+
+    /**
+     * This {@link InputStream} throws an {@link EOFException} if the wrapped {@link InputStream}
+     * ends before the number of bytes given in the {@code Content-Length} header has been read.
+     */
+    private static class LengthCheckingInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        /**
+         * Create a new {@code LengthCheckingInputStream}.
+         *
+         * @param in The {@link InputStream} to wrap.
+         * @param contentLength The value of the {@code Content-Length} header. If this is
+         *                      {@code null} or invalid, the length is not checked.
+         */
+        private LengthCheckingInputStream(@NonNull final InputStream in,
+                @Nullable final String contentLength) {
+            this(in, parseContentLength(contentLength));
+        }
+
+        /**
+         * Create a new {@code LengthCheckingInputStream}.
+         *
+         * @param in The {@link InputStream} to wrap.
+         * @param length The expected length, or {@code -1} if the length should not be checked.
+         */
+        private LengthCheckingInputStream(@NonNull final InputStream in, final long length) {
+            super(in);
+
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            onRead(b == -1 ? -1 : 1);
+
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            final int len = super.read(buffer, offset, count);
+            onRead(len);
+
+            return len;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            final long skipped = super.skip(byteCount);
+
+            if (remaining > 0) {
+                remaining -= skipped;
+            }
+
+            return skipped;
+        }
+
+        /**
+         * Track the number of bytes read.
+         *
+         * @param len The number of bytes read, or {@code -1} if the end of the stream was reached.
+         * @throws EOFException When the end of the stream was reached too early.
+         */
+        private void onRead(final int len) throws EOFException {
+            if (len == -1) {
+                if (remaining > 0) {
+                    throw new EOFException("The response body ended " + remaining +
+                            " bytes early.");
+                }
+            } else if (remaining > 0) {
+                remaining -= len;
+            }
+        }
+    }
+
+    /**
+     * This {@link FetchCancellationSignal.OnCancelListener} disconnects the connections of the
+     * fetch when it is cancelled. Connections which have been returned to the
+     * {@link ConnectionPool} are no longer tracked, as they may be in use by another fetch.
+     */
+    private static class ConnectionCanceller implements FetchCancellationSignal.OnCancelListener {
+
+        private final ArrayList<HttpURLConnection> connections = new ArrayList<>();
+        private boolean cancelled;
+
+        /**
+         * Track a connection so that it is disconnected if the fetch is cancelled.
+         *
+         * @param conn The {@link HttpURLConnection} to track.
+         * @throws FetchCancelledException When the fetch has already been cancelled. The
+         *                                 connection is disconnected.
+         */
+        private synchronized void track(@NonNull final HttpURLConnection conn)
+                throws FetchCancelledException {
+            if (cancelled) {
+                conn.disconnect();
+                throw new FetchCancelledException();
+            }
+
+            connections.add(conn);
+        }
+
+        /**
+         * Stop tracking a connection.
+         *
+         * @param conn The {@link HttpURLConnection} to stop tracking.
+         */
+        private synchronized void untrack(@NonNull final HttpURLConnection conn) {
+            connections.remove(conn);
+        }
+
+        @Override
+        public void onCancel() {
+            final HttpURLConnection[] toDisconnect;
+
+            synchronized (this) {
+                cancelled = true;
+                toDisconnect = connections.toArray(new HttpURLConnection[connections.size()]);
+                connections.clear();
+            }
+
+            for (HttpURLConnection conn : toDisconnect) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * This {@link InputStream} counts the bytes of response body read through it in
+     * {@link #bodyBytes}, to be given to the {@link FetchEventListener}.
+     */
+    private class CountingInputStream extends FilterInputStream {
+
+        /**
+         * Create a new {@code CountingInputStream}.
+         *
+         * @param in The {@link InputStream} to wrap.
+         */
+        private CountingInputStream(@NonNull final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b != -1) {
+                bodyBytes++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            final int len = super.read(buffer, offset, count);
+
+            if (len > 0) {
+                bodyBytes += len;
+            }
+
+            return len;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            final long skipped = super.skip(byteCount);
+            bodyBytes += skipped;
+
+            return skipped;
+        }
+    }
+
+    /**
+     * This {@link InputStream} throws a {@link FetchCancelledException} from each read once its
+     * {@link FetchCancellationSignal} has been cancelled.
+     */
+    private static class CancellableInputStream extends FilterInputStream {
+
+        private final FetchCancellationSignal signal;
+
+        /**
+         * Create a new {@code CancellableInputStream}.
+         *
+         * @param in The {@link InputStream} to wrap.
+         * @param signal The {@link FetchCancellationSignal} to check before each read.
+         */
+        private CancellableInputStream(@NonNull final InputStream in,
+                @NonNull final FetchCancellationSignal signal) {
+            super(in);
+
+            this.signal = signal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            signal.throwIfCancelled();
+
+            return super.read();
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            signal.throwIfCancelled();
+
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            signal.throwIfCancelled();
+
+            return super.skip(byteCount);
+        }
+    }
+
+    /**
+     * This {@link InputStream} remembers the last {@link IOException} thrown by the connection
+     * while reading the response, so that it can be told apart from one thrown by the
+     * {@link FetcherStreamReader} reading it.
+     */
+    private static class TransportInputStream extends FilterInputStream {
+
+        private IOException error;
+
+        /**
+         * Create a new {@code TransportInputStream}.
+         *
+         * @param in The {@link InputStream} of the connection.
+         */
+        private TransportInputStream(@NonNull final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            try {
+                return super.skip(byteCount);
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            try {
+                return super.available();
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * This {@link OutputStream} remembers the last {@link IOException} thrown by the connection
+     * while writing the request body, so that it can be told apart from one thrown by the
+     * {@link FetcherStreamWriter} writing it.
+     */
+    private static class TransportOutputStream extends FilterOutputStream {
+
+        private IOException error;
+
+        /**
+         * Create a new {@code TransportOutputStream}.
+         *
+         * @param out The {@link OutputStream} of the connection.
+         */
+        private TransportOutputStream(@NonNull final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            try {
+                out.write(oneByte);
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(@NonNull final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            try {
+                // FilterOutputStream would otherwise write the bytes one at a time.
+                out.write(buffer, offset, length);
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * This {@link OutputStream} counts the bytes of request body written through it, to be given
+     * to the {@link FetchEventListener}.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        /**
+         * Create a new {@code CountingOutputStream}.
+         *
+         * @param out The {@link OutputStream} to wrap.
+         */
+        private CountingOutputStream(@NonNull final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            out.write(oneByte);
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            // FilterOutputStream would otherwise write the bytes one at a time.
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * This {@link FetchEventListener} passes each event on to the listener of the
+     * {@link HttpFetcher} and then to the listener of the {@link HttpFetcherClient}.
+     */
+    private static class EventListenerPair extends FetchEventListener {
+
+        private final FetchEventListener first;
+        private final FetchEventListener second;
+
+        /**
+         * Create a new {@code EventListenerPair}.
+         *
+         * @param first The {@link FetchEventListener} to tell first.
+         * @param second The {@link FetchEventListener} to tell second.
+         */
+        private EventListenerPair(@NonNull final FetchEventListener first,
+                @NonNull final FetchEventListener second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void onFetchStart(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+                final long timeNanos) {
+            first.onFetchStart(fetcher, url, timeNanos);
+            second.onFetchStart(fetcher, url, timeNanos);
+        }
+
+        @Override
+        public void onConnectivityChecked(@NonNull final HttpFetcher fetcher,
+                final boolean connected, final long timeNanos) {
+            first.onConnectivityChecked(fetcher, connected, timeNanos);
+            second.onConnectivityChecked(fetcher, connected, timeNanos);
+        }
+
+        @Override
+        public void onConnectionAcquired(@NonNull final HttpFetcher fetcher,
+                @NonNull final String url, final long timeNanos) {
+            first.onConnectionAcquired(fetcher, url, timeNanos);
+            second.onConnectionAcquired(fetcher, url, timeNanos);
+        }
+
+        @Override
+        public void onRequestSent(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+                final long bodyBytes, final long timeNanos) {
+            first.onRequestSent(fetcher, url, bodyBytes, timeNanos);
+            second.onRequestSent(fetcher, url, bodyBytes, timeNanos);
+        }
+
+        @Override
+        public void onFirstByte(@NonNull final HttpFetcher fetcher, @NonNull final String url,
+                final int responseCode, final long timeNanos) {
+            first.onFirstByte(fetcher, url, responseCode, timeNanos);
+            second.onFirstByte(fetcher, url, responseCode, timeNanos);
+        }
+
+        @Override
+        public void onBodyComplete(@NonNull final HttpFetcher fetcher,
+                @NonNull final String finalUrl, final long bodyBytes, final long timeNanos) {
+            first.onBodyComplete(fetcher, finalUrl, bodyBytes, timeNanos);
+            second.onBodyComplete(fetcher, finalUrl, bodyBytes, timeNanos);
+        }
+
+        @Override
+        public void onFetchFailed(@NonNull final HttpFetcher fetcher,
+                @NonNull final String finalUrl, @NonNull final IOException error,
+                final long timeNanos) {
+            first.onFetchFailed(fetcher, finalUrl, error, timeNanos);
+            second.onFetchFailed(fetcher, finalUrl, error, timeNanos);
+        }
+    }
+
+    /**
+     * This {@link FetcherStreamReader} is used by the leader of a coalesced request. It passes the
+     * response on to the leader's {@link FetcherStreamReader}, and when other requests are
+     * waiting, keeps a copy of the body for them as it is read, up to
+     * {@link RequestCoalescer#MAX_SHARED_BODY_SIZE} bytes.
+     */
+    private static class SharingReader implements ResponseAwareFetcherStreamReader {
+
+        private final RequestCoalescer coalescer;
+        private final RequestCoalescer.Call call;
+        private final FetcherStreamReader reader;
+        private long contentLength = -1;
+        private ByteArrayOutputStream copy;
+        private boolean bodyStarted;
+        private boolean resolved;
+
+        /**
+         * Create a new {@code SharingReader}.
+         *
+         * @param coalescer The {@link RequestCoalescer} the {@link RequestCoalescer.Call} belongs
+         *                  to.
+         * @param call The {@link RequestCoalescer.Call} this fetch is the leader of.
+         * @param reader The leader's {@link FetcherStreamReader}.
+         */
+        private SharingReader(@NonNull final RequestCoalescer coalescer,
+                @NonNull final RequestCoalescer.Call call,
+                @NonNull final FetcherStreamReader reader) {
+            this.coalescer = coalescer;
+            this.call = call;
+            this.reader = reader;
+        }
+
+        @Override
+        public void onResponse(@NonNull final ResponseMetadata metadata) throws IOException {
+            contentLength = metadata.getContentLength();
+
+            if (reader instanceof ResponseAwareFetcherStreamReader) {
+                ((ResponseAwareFetcherStreamReader) reader).onResponse(metadata);
+            }
+        }
+
+        @Override
+        public void readInputStream(@NonNull final InputStream stream) throws IOException {
+            bodyStarted = true;
+
+            if (!coalescer.startBody(call)) {
+                // Nobody is waiting, so the body is not copied.
+                resolved = true;
+                reader.readInputStream(stream);
+                return;
+            } else if (contentLength > RequestCoalescer.MAX_SHARED_BODY_SIZE) {
+                // The body is known to be too long to copy, so the waiting requests are released
+                // straight away.
+                abandon();
+                reader.readInputStream(stream);
+                return;
+            }
+
+            final SharingInputStream in = new SharingInputStream(stream);
+            copy = new ByteArrayOutputStream();
+            reader.readInputStream(in);
+
+            try {
+                // The waiting requests need the whole body, even if the reader stopped early.
+                in.drain();
+            } catch (IOException e) {
+                abandon();
+            }
+        }
+
+        /**
+         * Give the copy of the body to the waiting requests, if it is complete. Otherwise, they
+         * are told to perform their own requests.
+         *
+         * @param metadata The {@link ResponseMetadata} of the response.
+         */
+        void complete(@NonNull final ResponseMetadata metadata) {
+            if (resolved) {
+                return;
+            }
 
-        //connection.setChunkedStreamingMode(chunkLength);
-        connection.setInstanceFollowRedirects(followRedirects);
-        connection.setRequestMethod(requestMethod);
-        connection.setConnectTimeout(connectTimeout);
-        //connection.setDoInput(doInput);
-        //connection.setDoOutput(doOutput);
-        connection.setIfModifiedSince(modifiedSince);
-        connection.setReadTimeout(readTimeout);
-        connection.setUseCaches(useCaches);
+            resolved = true;
 
-        if (customHeaders != null) {
-            for (String header : customHeaders.keySet()) {
-                connection.setRequestProperty(header, customHeaders.get(header));
+            if (copy != null) {
+                coalescer.complete(call, copy.toByteArray(), metadata);
+            } else {
+                coalescer.abandon(call);
             }
         }
-    }
 
-    /**
-     * Does the application that is calling us have the permission
-     * {@link android.Manifest.permission#ACCESS_NETWORK_STATE}?
-     *
-     * @return {@code true} if the application calling us requests the permission
-     *         {@link android.Manifest.permission#ACCESS_NETWORK_STATE}, {@code false} if not.
-     */
-    private boolean hasAccessNetworkStatePermission() {
-        return context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
-                == PackageManager.PERMISSION_GRANTED;
-    }
+        /**
+         * Tell the waiting requests that the leader failed. If the body had not started, they
+         * fail with {@code error}. Otherwise, the failure may be down to the leader's
+         * {@link FetcherStreamReader}, so they are told to perform their own requests.
+         *
+         * @param error The reason for the failure.
+         */
+        void fail(@NonNull final IOException error) {
+            if (resolved) {
+                return;
+            }
 
-    /**
-     * Is the device currently connected to any network?
-     *
-     * @return {@code true} if the device has a network connection or the calling application has
-     *         not requested the permission
-     *         {@link android.Manifest.permission#ACCESS_NETWORK_STATE}, {@code false} if it is
-     *         determined the device has no active connection.
-     */
-    private boolean isConnected() {
-        if (hasAccessNetworkStatePermission()) {
-            final NetworkInfo networkInfo = connMan.getActiveNetworkInfo();
-            return networkInfo != null && networkInfo.isConnected();
-        } else {
-            // If we don't have permission to check our network connectivity, assume we have a
-            // connection.
-            return true;
+            resolved = true;
+
+            if (bodyStarted) {
+                coalescer.abandon(call);
+            } else {
+                coalescer.fail(call, error);
+            }
         }
-    }
 
-    /**
-     * This is called by certain getter methods to ensure that this instance has been run before the
-     * getter returns its data. This is because many values are not available until the instance has
-     * run.
-     *
-     * <p>
-     *     Use {@link #hasRun()} to check if the instance has been run before calling the getter
-     *     method.
-     * </p>
-     *
-     * @throws IllegalStateException When the instance has not been run yet.
-     * @see #hasRun()
-     */
-    private void checkState() {
-        if (!hasRun()) {
-            throw new IllegalStateException("executeFetcher() must be called before calling this " +
-                    "method.");
+        /**
+         * Stop copying the body, and tell the waiting requests to perform their own requests.
+         */
+        private void abandon() {
+            copy = null;
+
+            if (!resolved) {
+                resolved = true;
+                coalescer.abandon(call);
+            }
+        }
+
+        /**
+         * This {@link InputStream} copies the bytes read through it in to
+         * {@link SharingReader#copy}, until the copy would be longer than
+         * {@link RequestCoalescer#MAX_SHARED_BODY_SIZE}.
+         */
+        private class SharingInputStream extends FilterInputStream {
+
+            /**
+             * Create a new {@code SharingInputStream}.
+             *
+             * @param in The response body.
+             */
+            private SharingInputStream(@NonNull final InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+
+                if (b != -1 && fits(1)) {
+                    copy.write(b);
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(@NonNull final byte[] b, final int off, final int len)
+                    throws IOException {
+                final int read = super.read(b, off, len);
+
+                if (read > 0 && fits(read)) {
+                    copy.write(b, off, read);
+                }
+
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                // Skipped bytes must still be copied, so they are read instead.
+                final byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+                final int read = read(buffer, 0, buffer.length);
+
+                return read > 0 ? read : 0;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            /**
+             * Read the rest of the body, so that the copy is complete. This stops early if the
+             * body is too long to copy.
+             *
+             * @throws IOException When there was a problem reading the body.
+             */
+            void drain() throws IOException {
+                final byte[] buffer = new byte[8192];
+
+                while (copy != null && read(buffer, 0, buffer.length) != -1) {
+                    // Keep reading.
+                }
+            }
+
+            /**
+             * Check that the given number of bytes can be added to the copy. If they can not,
+             * the copy is abandoned.
+             *
+             * @param count The number of bytes to add.
+             * @return {@code true} if the bytes should be added to the copy.
+             */
+            private boolean fits(final int count) {
+                if (copy == null) {
+                    return false;
+                } else if (copy.size() + (long) count > RequestCoalescer.MAX_SHARED_BODY_SIZE) {
+                    abandon();
+                    return false;
+                }
+
+                return true;
+            }
         }
     }
 
@@ -768,19 +3557,30 @@ public class HttpFetcher implements Fetcher {
     public static class Builder {
 
         private final Context context;
+        private HttpFetcherClient client;
         private String url;
         private Proxy proxy;
         private boolean allowHostRedirects = true;
-        //private int chunkLength = -1;
-        //private long contentLength = -1;
+        private int chunkLength = -1;
+        private long contentLength = -1;
         private boolean followRedirects = true;
         private String requestMethod = "GET";
         private int connectTimeout = 0;
-        //private boolean doInput = true;
-        //private boolean doOutput = false;
+        private boolean doInput = true;
+        private boolean doOutput = false;
         private long modifiedSince = 0;
         private int readTimeout = 0;
         private boolean useCaches = true;
+        private boolean useMemoryCache = false;
+        private long memoryCacheMaxAge = -1;
+        private boolean coalesceRequests = false;
+        private int segmentCount = 1;
+        private long minSegmentSize = 1048576;
+        private RetryPolicy retryPolicy;
+        private FetcherStreamWriter requestBody;
+        private FetchEventListener eventListener;
+        private FetchCancellationSignal cancellationSignal;
+        private HttpTransport transport;
         private HashMap<String, String> customHeaders;
 
         /**
@@ -807,6 +3607,27 @@ public class HttpFetcher implements Fetcher {
             return this;
         }
 
+        /**
+         * Set the {@link HttpFetcherClient} to use. The client holds state that is shared between
+         * many {@link HttpFetcher}s, such as the {@link ConnectionPool}. If this is set as
+         * {@code null}, then the connection will always be disconnected once the request has
+         * completed.
+         *
+         * <p>
+         *     By default, the client is set as {@code null}.
+         * </p>
+         *
+         * @param client The {@link HttpFetcherClient} to use, or {@code null} if connections
+         *               should not be pooled.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setClient(@Nullable final HttpFetcherClient client) {
+            this.client = client;
+            return this;
+        }
+
         /**
          * Set a proxy to use for the connection. If this is set as non-{@code null}, then
          * {@link URL#openConnection(java.net.Proxy)} will be used for the connection. Otherwise,
@@ -855,24 +3676,35 @@ public class HttpFetcher implements Fetcher {
             return this;
         }
 
-        /* TODO: enable these methods when posting has been implemented.
-        **
-         * See {@link HttpURLConnection#setChunkedStreamingMode(int)}.
+        /**
+         * See {@link HttpURLConnection#setChunkedStreamingMode(int)}. This only applies when a
+         * request body is sent. It is not normally necessary to call this, as a request body of
+         * unknown length is sent in chunks anyway.
+         *
+         * <p>
+         *     By default, this is set as {@code -1}, meaning it has not been set.
+         * </p>
          *
          * @param chunkLength See {@link HttpURLConnection#setChunkedStreamingMode(int)}.
          * @return A reference to this {@code Builder} for method chaining.
          * @see HttpURLConnection#setChunkedStreamingMode(int)
          * @see #build()
-         *
+         */
         @NonNull
         public Builder setChunkedStreamingMode(final int chunkLength) {
             this.chunkLength = chunkLength;
             return this;
         }
 
-        **
+        /**
          * See {@link HttpURLConnection#setFixedLengthStreamingMode(long)} and
-         * {@link HttpURLConnection#setFixedLengthStreamingMode(int)}.
+         * {@link HttpURLConnection#setFixedLengthStreamingMode(int)}. This only applies when a
+         * request body is sent. It is not normally necessary to call this, as the length given by
+         * the {@link FetcherStreamWriter} is used.
+         *
+         * <p>
+         *     By default, this is set as {@code -1}, meaning it has not been set.
+         * </p>
          *
          * @param contentLength See {@link HttpURLConnection#setFixedLengthStreamingMode(long)} and
          *                      {@link HttpURLConnection#setFixedLengthStreamingMode(int)}.
@@ -880,12 +3712,12 @@ public class HttpFetcher implements Fetcher {
          * @see HttpURLConnection#setFixedLengthStreamingMode(long)
          * @see HttpURLConnection#setFixedLengthStreamingMode(int)
          * @see #build()
-         *
+         */
         @NonNull
         public Builder setFixedLengthStreamingMode(final long contentLength) {
             this.contentLength = contentLength;
             return this;
-        }*/
+        }
 
         /**
          * See {@link HttpURLConnection#setInstanceFollowRedirects(boolean)}.
@@ -929,15 +3761,14 @@ public class HttpFetcher implements Fetcher {
             return this;
         }
 
-        /* TODO: enable these methods when posting has been implemented.
-        **
+        /**
          * See {@link java.net.URLConnection#setDoInput(boolean)}.
          *
          * @param doInput See {@link java.net.URLConnection#setDoInput(boolean)}.
          * @return A reference to this {@code Builder} for method chaining.
          * @see java.net.URLConnection#setDoInput(boolean)
          * @see #build()
-         *
+         */
         @NonNull
         public Builder setDoInput(final boolean doInput) {
             this.doInput = doInput;
@@ -950,13 +3781,14 @@ public class HttpFetcher implements Fetcher {
          * @param doOutput See {@link java.net.URLConnection#setDoOutput(boolean)}.
          * @return A reference to this {@code Builder} for method chaining.
          * @see java.net.URLConnection#setDoOutput(boolean)
+         * @see #setRequestBody(FetcherStreamWriter)
          * @see #build()
-         *
+         */
         @NonNull
         public Builder setDoOutput(final boolean doOutput) {
             this.doOutput = doOutput;
             return this;
-        }*/
+        }
 
         /**
          * See {@link java.net.URLConnection#setIfModifiedSince(long)}.
@@ -989,6 +3821,11 @@ public class HttpFetcher implements Fetcher {
         /**
          * See {@link java.net.URLConnection#setUseCaches(boolean)}.
          *
+         * <p>
+         *     This also controls whether the {@link DiskResponseCache} of the
+         *     {@link HttpFetcherClient} is used for {@code GET} requests, if one has been set.
+         * </p>
+         *
          * @param useCaches See {@link java.net.URLConnection#setUseCaches(boolean)}.
          * @return A reference to this {@code Builder} for method chaining.
          * @see java.net.URLConnection#setUseCaches(boolean)
@@ -1000,6 +3837,240 @@ public class HttpFetcher implements Fetcher {
             return this;
         }
 
+        /**
+         * Should this request use the {@link MemoryResponseCache} of the
+         * {@link HttpFetcherClient}? If {@code true}, and a fresh response is held in the memory
+         * cache, it is given to the {@link FetcherStreamReader} without a connection being made.
+         * Otherwise, a successful response is put in to the memory cache once it has been read.
+         * This only has an effect for {@code GET} requests when a client with a memory cache has
+         * been set with {@link #setClient(HttpFetcherClient)}.
+         *
+         * <p>
+         *     By default, this method is set as {@code false}.
+         * </p>
+         *
+         * @param useMemoryCache {@code true} if the memory cache should be used, {@code false} if
+         *                       not.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setUseMemoryCache(final boolean useMemoryCache) {
+            this.useMemoryCache = useMemoryCache;
+            return this;
+        }
+
+        /**
+         * Override the freshness lifetime of the response when it is put in to the
+         * {@link MemoryResponseCache}. Otherwise, the lifetime is taken from the {@code max-age}
+         * directive of the {@code Cache-Control} response header.
+         *
+         * <p>
+         *     By default, this is set as {@code -1}, meaning the response header is used.
+         * </p>
+         *
+         * @param maxAgeMillis The freshness lifetime in milliseconds, {@code 0} to not cache the
+         *                     response, or {@code -1} to use the response header.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #setUseMemoryCache(boolean)
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMemoryCacheMaxAge(final long maxAgeMillis) {
+            memoryCacheMaxAge = maxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Should this request share its network transfer with concurrent identical requests? When
+         * {@code true}, and an identical request is already in flight through the same
+         * {@link HttpFetcherClient}, this request waits for it and its
+         * {@link FetcherStreamReader} is given a replay of the same body. This only has an effect
+         * for {@code GET} and {@code HEAD} requests when a client has been set with
+         * {@link #setClient(HttpFetcherClient)}.
+         *
+         * <p>
+         *     When another request is waiting, a copy of the response body is held in memory
+         *     while it is read, up to {@link RequestCoalescer#MAX_SHARED_BODY_SIZE} bytes. Longer
+         *     bodies are not shared, and the waiting requests perform their own transfers.
+         * </p>
+         *
+         * <p>
+         *     By default, this method is set as {@code false}.
+         * </p>
+         *
+         * @param coalesceRequests {@code true} if concurrent identical requests should be
+         *                         coalesced, {@code false} if not.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see RequestCoalescer
+         * @see #build()
+         */
+        @NonNull
+        public Builder setCoalesceRequests(final boolean coalesceRequests) {
+            this.coalesceRequests = coalesceRequests;
+            return this;
+        }
+
+        /**
+         * Set the {@link RetryPolicy} used to retry the request when an attempt fails. If a
+         * {@link HttpFetcherClient} has been set, retries are also limited by its
+         * {@link RetryBudget}.
+         *
+         * <p>
+         *     By default, the retry policy is set as {@code null}, meaning failed requests are not
+         *     retried.
+         * </p>
+         *
+         * @param retryPolicy The {@link RetryPolicy} to use, or {@code null} if failed requests
+         *                    should not be retried.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see RetryPolicy
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRetryPolicy(@Nullable final RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Set the {@link FetcherStreamWriter} which supplies the request body. The body is
+         * streamed to the server as it is written, so it is never held in memory as a whole.
+         * Setting a request body implies {@link #setDoOutput(boolean)}. A request body cannot be
+         * sent with a {@code GET} or {@code HEAD} request, so the request method must also be set,
+         * for example to {@code POST} or {@code PUT}.
+         *
+         * <p>
+         *     By default, the request body is set as {@code null}, meaning no body is sent.
+         * </p>
+         *
+         * @param requestBody The {@link FetcherStreamWriter} which supplies the request body, or
+         *                    {@code null} if no body should be sent.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see uk.org.rivernile.android.fetchutils.fetchers.writers.FileFetcherStreamWriter
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRequestBody(@Nullable final FetcherStreamWriter requestBody) {
+            this.requestBody = requestBody;
+            return this;
+        }
+
+        /**
+         * Set the {@link FetchEventListener} to tell about the phases of the request. If the
+         * {@link HttpFetcherClient} also has a listener, both are told.
+         *
+         * <p>
+         *     By default, the event listener is set as {@code null}.
+         * </p>
+         *
+         * @param eventListener The {@link FetchEventListener} to use, or {@code null} if there is
+         *                      none.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see HttpFetcherClient.Builder#setEventListener(FetchEventListener)
+         * @see #build()
+         */
+        @NonNull
+        public Builder setEventListener(@Nullable final FetchEventListener eventListener) {
+            this.eventListener = eventListener;
+            return this;
+        }
+
+        /**
+         * Set the {@link HttpTransport} which opens the connections of this fetch. This takes
+         * priority over the transport of the {@link HttpFetcherClient}.
+         *
+         * <p>
+         *     By default, the transport is set as {@code null}, meaning the transport of the
+         *     {@link HttpFetcherClient} is used, or a {@link PlatformHttpTransport} if there is no
+         *     client.
+         * </p>
+         *
+         * @param transport The {@link HttpTransport} to use, or {@code null} to use the default.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see HttpFetcherClient.Builder#setTransport(HttpTransport)
+         * @see #build()
+         */
+        @NonNull
+        public Builder setTransport(@Nullable final HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Set the {@link FetchCancellationSignal} which cancels the fetch. When it is cancelled,
+         * the connections of the fetch are disconnected, so that a read in progress in the
+         * {@link FetcherStreamReader} fails straight away, and
+         * {@link HttpFetcher#executeFetcher(FetcherStreamReader)} throws a
+         * {@link FetchCancelledException}. A fetch waiting for the {@link AdmissionController}
+         * or for a coalesced request is not woken, but stops before it connects.
+         *
+         * <p>
+         *     By default, the cancellation signal is set as {@code null}, meaning the fetch cannot
+         *     be cancelled.
+         * </p>
+         *
+         * @param cancellationSignal The {@link FetchCancellationSignal} to use, or {@code null}
+         *                           if the fetch cannot be cancelled.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setCancellationSignal(
+                @Nullable final FetchCancellationSignal cancellationSignal) {
+            this.cancellationSignal = cancellationSignal;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of segments to fetch the body in. When this is greater than
+         * {@code 1} and the {@link FetcherStreamReader} is a {@link SegmentedFetcherStreamReader},
+         * a {@code GET} request first asks the server for the length of the body with a
+         * {@code HEAD} request. If the server supports ranges, the body is split in to segments
+         * which are fetched in parallel over separate connections. Each segment is at least
+         * {@link #setMinSegmentSize(long)} bytes, so small bodies are fetched in fewer segments,
+         * or as normal.
+         *
+         * <p>
+         *     This helps on high-latency links, where a single connection cannot fill the
+         *     available bandwidth. It costs an extra round trip for the {@code HEAD} request, so it
+         *     is only worthwhile for large bodies.
+         * </p>
+         *
+         * <p>
+         *     By default, this is set as {@code 1}, meaning the body is not split.
+         * </p>
+         *
+         * @param segmentCount The maximum number of segments. Must be {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see SegmentedFetcherStreamReader
+         * @see #build()
+         */
+        @NonNull
+        public Builder setSegmentCount(final int segmentCount) {
+            this.segmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * Set the minimum size of a segment when the body is fetched in segments.
+         *
+         * <p>
+         *     By default, this is set as {@code 1048576} (1MB).
+         * </p>
+         *
+         * @param minSegmentSize The minimum size of a segment, in bytes. Must be {@code 1} or
+         *                       greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #setSegmentCount(int)
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMinSegmentSize(final long minSegmentSize) {
+            this.minSegmentSize = minSegmentSize;
+            return this;
+        }
+
         /**
          * Set a custom header to use in the request. This method may be called many times to
          * provide new mappings.
@@ -1009,6 +4080,11 @@ public class HttpFetcher implements Fetcher {
          *     multiple calls are made for the same key, only the last call will take effect.
          * </p>
          *
+         * <p>
+         *     The {@code Authorization}, {@code Cookie} and {@code Proxy-Authorization} headers are
+         *     not sent after a redirect to another host.
+         * </p>
+         *
          * @param header The header to provide data for.
          * @param value  The value to map for the header.
          * @return A reference to this {@code Builder} for method chaining.
@@ -1040,7 +4116,10 @@ public class HttpFetcher implements Fetcher {
          *
          * @return A new instance of {@link HttpFetcher} based on the data inside this
          *         {@code Builder} at the instant this method was called.
-         * @throws IllegalArgumentException When the  URL is {@code null} or empty.
+         * @throws IllegalArgumentException When the  URL is {@code null} or empty, the segment
+         *                                  count or minimum segment size is less than {@code 1},
+         *                                  or a request body is set for a {@code GET} or
+         *                                  {@code HEAD} request.
          */
         @NonNull
         public HttpFetcher build() {
@@ -1049,6 +4128,21 @@ public class HttpFetcher implements Fetcher {
                         "called setUrl()?");
             }
 
+            if (segmentCount < 1) {
+                throw new IllegalArgumentException("The segmentCount must be 1 or greater.");
+            }
+
+            if (minSegmentSize < 1) {
+                throw new IllegalArgumentException("The minSegmentSize must be 1 or greater.");
+            }
+
+            if (requestBody != null && (requestMethod == null ||
+                    "GET".equalsIgnoreCase(requestMethod) ||
+                    "HEAD".equalsIgnoreCase(requestMethod))) {
+                throw new IllegalArgumentException("A request body cannot be sent with a GET or " +
+                        "HEAD request. Have you called setRequestMethod()?");
+            }
+
             return new HttpFetcher(this);
         }
     }
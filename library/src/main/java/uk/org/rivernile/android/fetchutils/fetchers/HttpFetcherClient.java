@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A {@code HttpFetcherClient} holds state which is shared between many {@link HttpFetcher}s, such
+ * as the {@link ConnectionPool}. Unlike a {@link HttpFetcher}, which can only be run once, a
+ * {@code HttpFetcherClient} is intended to be long-lived. An application would typically create a
+ * single instance and give it to each {@link HttpFetcher.Builder} with
+ * {@link HttpFetcher.Builder#setClient(HttpFetcherClient)}.
+ *
+ * <p>
+ *     When a {@link HttpFetcher} is run with a client, connections are returned to the
+ *     {@link ConnectionPool} once the response body has been fully read, rather than being
+ *     disconnected. This allows subsequent requests to the same host to reuse the socket and TLS
+ *     session.
+ * </p>
+ *
+ * <p>
+ *     A client may also be given a {@link DiskResponseCache}. {@link HttpFetcher}s which use caches
+ *     (see {@link HttpFetcher.Builder#setUseCaches(boolean)}) will then revalidate cached
+ *     responses with the server and replay the cached body when the server reports that it has not
+ *     been modified.
+ * </p>
+ *
+ * <p>
+ *     A {@link MemoryResponseCache} may also be set. As the client is intended to be shared across
+ *     the application, this acts as a process-wide cache of fresh responses. It is only used by
+ *     {@link HttpFetcher}s which opt in with
+ *     {@link HttpFetcher.Builder#setUseMemoryCache(boolean)}.
+ * </p>
+ *
+ * <p>
+ *     The client also owns a {@link RequestCoalescer}, which collapses concurrent identical
+ *     requests from {@link HttpFetcher}s that opt in with
+ *     {@link HttpFetcher.Builder#setCoalesceRequests(boolean)}.
+ * </p>
+ *
+ * <p>
+ *     Retries made by {@link HttpFetcher}s with a {@link RetryPolicy} are limited by the client's
+ *     {@link RetryBudget}, so that retries cannot multiply the load on a failing backend.
+ * </p>
+ *
+ * <p>
+ *     A {@link CircuitBreaker} may also be set. Requests to a host which has recently been
+ *     failing, or responding too slowly, then fail straight away with a
+ *     {@link CircuitBreakerOpenException} until the host has had time to recover.
+ * </p>
+ *
+ * <p>
+ *     An {@link AdmissionController} may be set to limit the number of concurrent requests, and
+ *     the rate of requests, to each host. Requests beyond the limits wait in a queue.
+ * </p>
+ *
+ * <p>
+ *     Permanent redirects ({@code 301} and {@code 308}) are remembered in the client's
+ *     {@link RedirectCache}, so that later requests for the same URL go straight to the new
+ *     location without the extra round trip.
+ * </p>
+ *
+ * <p>
+ *     The client's {@link Preconnector} warms up hosts in the background before they are needed,
+ *     so that the first request to a host can reuse a connection which is already open.
+ * </p>
+ *
+ * <p>
+ *     Connections are opened by the client's {@link HttpTransport}. By default this is the
+ *     platform {@link java.net.HttpURLConnection}, but it may be replaced, for example with a
+ *     {@link uk.org.rivernile.android.fetchutils.fetchers.nio.NioHttpEngine} which multiplexes
+ *     the socket I/O of every request on a single thread.
+ * </p>
+ *
+ * <p>
+ *     A {@link FetchEventListener} may be set to be told about the phases of every request made
+ *     through the client, for example to measure latency across the application.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * HttpFetcherClient client = new HttpFetcherClient.Builder()
+ *         .setMaxIdleConnectionsPerHost(5)
+ *         .setKeepAliveDuration(300000) // 5 minutes - just an example.
+ *         .build();
+ * HttpFetcher fetcher = new HttpFetcher.Builder(getContext())
+ *         .setUrl("http://www.android.com/")
+ *         .setClient(client)
+ *         .build();
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see ConnectionPool
+ */
+public class HttpFetcherClient {
+
+    private final ConnectionPool connectionPool;
+    private final DiskResponseCache diskCache;
+    private final MemoryResponseCache memoryCache;
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+    private final Preconnector preconnector = new Preconnector(this);
+    private final RetryBudget retryBudget;
+    private final CircuitBreaker circuitBreaker;
+    private final AdmissionController admissionController;
+    private final RedirectCache redirectCache;
+    private final HttpTransport transport;
+    private final FetchEventListener eventListener;
+
+    /**
+     * Construct a {@code HttpFetcherClient} from a {@link Builder}. This constructor is private -
+     * it should be called by {@link Builder#build()}.
+     *
+     * @param builder The instance of the {@link Builder} to construct from.
+     */
+    private HttpFetcherClient(@NonNull final Builder builder) {
+        connectionPool = new ConnectionPool(builder.maxIdleConnectionsPerHost,
+                builder.keepAliveDuration);
+        diskCache = builder.diskCache;
+        memoryCache = builder.memoryCache;
+        retryBudget = builder.retryBudget;
+        circuitBreaker = builder.circuitBreaker;
+        admissionController = builder.admissionController;
+        redirectCache = builder.redirectCache;
+        transport = builder.transport;
+        eventListener = builder.eventListener;
+    }
+
+    /**
+     * Get the {@link Preconnector} owned by this client, which warms up hosts before they are
+     * requested.
+     *
+     * @return The {@link Preconnector} owned by this client.
+     */
+    @NonNull
+    public Preconnector getPreconnector() {
+        return preconnector;
+    }
+
+    /**
+     * Get the {@link ConnectionPool} owned by this client.
+     *
+     * @return The {@link ConnectionPool} owned by this client.
+     */
+    @NonNull
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Get the {@link RequestCoalescer} owned by this client.
+     *
+     * @return The {@link RequestCoalescer} owned by this client.
+     */
+    @NonNull
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Get the {@link RetryBudget} which limits the retries made through this client, if one is
+     * set.
+     *
+     * @return The {@link RetryBudget} of this client, or {@code null} if retries are not limited.
+     * @see Builder#setRetryBudget(RetryBudget)
+     */
+    @Nullable
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Get the {@link CircuitBreaker} which guards the hosts requested through this client, if one
+     * is set.
+     *
+     * @return The {@link CircuitBreaker} of this client, or {@code null} if there is none.
+     * @see Builder#setCircuitBreaker(CircuitBreaker)
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Get the {@link AdmissionController} which limits the requests made to each host through this
+     * client, if one is set.
+     *
+     * @return The {@link AdmissionController} of this client, or {@code null} if requests are not
+     *         limited.
+     * @see Builder#setAdmissionController(AdmissionController)
+     */
+    @Nullable
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Get the {@link RedirectCache} which remembers permanent redirects followed through this
+     * client, if one is set.
+     *
+     * @return The {@link RedirectCache} of this client, or {@code null} if permanent redirects
+     *         are not remembered.
+     * @see Builder#setRedirectCache(RedirectCache)
+     */
+    @Nullable
+    public RedirectCache getRedirectCache() {
+        return redirectCache;
+    }
+
+    /**
+     * Get the {@link HttpTransport} which opens the connections of requests made through this
+     * client.
+     *
+     * @return The {@link HttpTransport} of this client.
+     * @see Builder#setTransport(HttpTransport)
+     */
+    @NonNull
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get the {@link FetchEventListener} which is told about every request made through this
+     * client, if one is set.
+     *
+     * @return The {@link FetchEventListener} of this client, or {@code null} if there is none.
+     * @see Builder#setEventListener(FetchEventListener)
+     */
+    @Nullable
+    public FetchEventListener getEventListener() {
+        return eventListener;
+    }
+
+    /**
+     * Get the {@link DiskResponseCache} used by this client, if one is set.
+     *
+     * @return The {@link DiskResponseCache} used by this client, or {@code null} if responses are
+     *         not cached on disk.
+     * @see Builder#setDiskCache(DiskResponseCache)
+     */
+    @Nullable
+    public DiskResponseCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Get the {@link MemoryResponseCache} used by this client, if one is set.
+     *
+     * @return The {@link MemoryResponseCache} used by this client, or {@code null} if responses
+     *         are not cached in memory.
+     * @see Builder#setMemoryCache(MemoryResponseCache)
+     */
+    @Nullable
+    public MemoryResponseCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * This class is used to construct a new {@link HttpFetcherClient}. All fields have defaults.
+     * When building is done, call {@link #build()} to get an instance of
+     * {@link HttpFetcherClient}.
+     */
+    public static class Builder {
+
+        private int maxIdleConnectionsPerHost = 5;
+        private long keepAliveDuration = 300000;
+        private DiskResponseCache diskCache;
+        private MemoryResponseCache memoryCache;
+        private RetryBudget retryBudget = new RetryBudget(0.1, 10);
+        private CircuitBreaker circuitBreaker;
+        private AdmissionController admissionController;
+        private RedirectCache redirectCache = new RedirectCache(64);
+        private HttpTransport transport = new PlatformHttpTransport();
+        private FetchEventListener eventListener;
+
+        /**
+         * Set the maximum number of idle connections to keep per host. Connections beyond this
+         * limit will be closed once their response body has been read.
+         *
+         * <p>
+         *     By default, this is set as {@code 5}.
+         * </p>
+         *
+         * @param maxIdleConnectionsPerHost The maximum number of idle connections to keep per
+         *                                  host. Must be {@code 0} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxIdleConnectionsPerHost(final int maxIdleConnectionsPerHost) {
+            this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * Set the number of milliseconds that a connection may remain idle for before it is
+         * evicted from the pool.
+         *
+         * <p>
+         *     By default, this is set as {@code 300000} (5 minutes).
+         * </p>
+         *
+         * @param keepAliveMillis The keep-alive duration, in milliseconds. Must be greater than
+         *                        {@code 0}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setKeepAliveDuration(final long keepAliveMillis) {
+            keepAliveDuration = keepAliveMillis;
+            return this;
+        }
+
+        /**
+         * Set the {@link DiskResponseCache} used to store response bodies on disk for
+         * revalidation. Only one {@link DiskResponseCache} should exist per cache directory, so
+         * this should be shared if many clients are created.
+         *
+         * <p>
+         *     By default, the disk cache is set as {@code null}.
+         * </p>
+         *
+         * @param diskCache The {@link DiskResponseCache} to use, or {@code null} if responses
+         *                  should not be cached on disk.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setDiskCache(@Nullable final DiskResponseCache diskCache) {
+            this.diskCache = diskCache;
+            return this;
+        }
+
+        /**
+         * Set the {@link MemoryResponseCache} used to hold fresh response bodies in memory.
+         *
+         * <p>
+         *     By default, the memory cache is set as {@code null}.
+         * </p>
+         *
+         * @param memoryCache The {@link MemoryResponseCache} to use, or {@code null} if responses
+         *                    should not be cached in memory.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMemoryCache(@Nullable final MemoryResponseCache memoryCache) {
+            this.memoryCache = memoryCache;
+            return this;
+        }
+
+        /**
+         * Set the {@link RetryBudget} which limits the retries made by {@link HttpFetcher}s with a
+         * {@link RetryPolicy} through this client.
+         *
+         * <p>
+         *     By default, a budget with a retry ratio of {@code 0.1} and {@code 10} tokens is
+         *     used.
+         * </p>
+         *
+         * @param retryBudget The {@link RetryBudget} to use, or {@code null} if retries should
+         *                    only be limited by each {@link RetryPolicy}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRetryBudget(@Nullable final RetryBudget retryBudget) {
+            this.retryBudget = retryBudget;
+            return this;
+        }
+
+        /**
+         * Set the {@link CircuitBreaker} which stops requests being made to hosts which are
+         * failing.
+         *
+         * <p>
+         *     By default, the circuit breaker is set as {@code null}.
+         * </p>
+         *
+         * @param circuitBreaker The {@link CircuitBreaker} to use, or {@code null} if requests
+         *                       should always be attempted.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setCircuitBreaker(@Nullable final CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Set the {@link AdmissionController} which limits the number of concurrent requests,
+         * and the rate of requests, to each host.
+         *
+         * <p>
+         *     By default, the admission controller is set as {@code null}.
+         * </p>
+         *
+         * @param admissionController The {@link AdmissionController} to use, or {@code null} if
+         *                            requests should not be limited.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setAdmissionController(
+                @Nullable final AdmissionController admissionController) {
+            this.admissionController = admissionController;
+            return this;
+        }
+
+        /**
+         * Set the {@link RedirectCache} which remembers permanent redirects, so that later
+         * requests for the same URL go straight to the new location.
+         *
+         * <p>
+         *     By default, a cache holding up to {@code 64} redirects is used.
+         * </p>
+         *
+         * @param redirectCache The {@link RedirectCache} to use, or {@code null} if permanent
+         *                      redirects should not be remembered.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRedirectCache(@Nullable final RedirectCache redirectCache) {
+            this.redirectCache = redirectCache;
+            return this;
+        }
+
+        /**
+         * Set the {@link HttpTransport} which opens the connections of requests made through this
+         * client. A {@link HttpFetcher} may override this with
+         * {@link HttpFetcher.Builder#setTransport(HttpTransport)}. As it is used by many
+         * {@link HttpFetcher}s at once, it must be thread-safe.
+         *
+         * <p>
+         *     By default, a {@link PlatformHttpTransport} is used.
+         * </p>
+         *
+         * @param transport The {@link HttpTransport} to use. Must not be {@code null}.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setTransport(@NonNull final HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Set the {@link FetchEventListener} which is told about the phases of every request made
+         * through this client. As it is called by many {@link HttpFetcher}s at once, it must be
+         * thread-safe.
+         *
+         * <p>
+         *     By default, the event listener is set as {@code null}.
+         * </p>
+         *
+         * @param eventListener The {@link FetchEventListener} to use, or {@code null} if there is
+         *                      none.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see HttpFetcher.Builder#setEventListener(FetchEventListener)
+         * @see #build()
+         */
+        @NonNull
+        public Builder setEventListener(@Nullable final FetchEventListener eventListener) {
+            this.eventListener = eventListener;
+            return this;
+        }
+
+        /**
+         * Create a new instance of {@link HttpFetcherClient} based on the snapshot of data in this
+         * {@code Builder} at the instant this method is called.
+         *
+         * @return A new instance of {@link HttpFetcherClient}.
+         * @throws IllegalArgumentException When any of the values are out of range.
+         */
+        @NonNull
+        public HttpFetcherClient build() {
+            if (transport == null) {
+                throw new IllegalArgumentException("The transport must not be null.");
+            }
+
+            return new HttpFetcherClient(this);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * A {@code HttpTransport} opens the connections used by a {@link HttpFetcher}. The
+ * {@link HttpFetcher} drives each connection through the {@link HttpURLConnection} API, so a
+ * transport may provide its own implementation of {@link HttpURLConnection} to change how the
+ * request is sent over the network, while redirects, caching, retries and the other features of
+ * the {@link HttpFetcher} work as before.
+ *
+ * <p>
+ *     {@link PlatformHttpTransport}, which uses the platform {@link HttpURLConnection}, is used by
+ *     default. A transport is set for all {@link HttpFetcher}s of a client with
+ *     {@link HttpFetcherClient.Builder#setTransport(HttpTransport)}, or for a single
+ *     {@link HttpFetcher} with {@link HttpFetcher.Builder#setTransport(HttpTransport)}.
+ * </p>
+ *
+ * <p>
+ *     Implementations must be thread-safe, as they are shared between many {@link HttpFetcher}s.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see PlatformHttpTransport
+ * @see uk.org.rivernile.android.fetchutils.fetchers.nio.NioHttpEngine
+ */
+public interface HttpTransport {
+
+    /**
+     * Open a connection to the given {@link URL}. The connection must not be connected yet, so
+     * that the {@link HttpFetcher} can configure it.
+     *
+     * @param url The {@link URL} to connect to.
+     * @param proxy The {@link Proxy} to connect through, or {@code null} if the default proxy
+     *              selection should be used.
+     * @return A new, unconnected {@link HttpURLConnection}.
+     * @throws IOException When the connection could not be opened.
+     */
+    @NonNull
+    public HttpURLConnection openConnection(@NonNull URL url, @Nullable Proxy proxy)
+            throws IOException;
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@code MemoryResponseCache} holds recently fetched HTTP response bodies in memory for as long
+ * as they are fresh, along with the {@link ResponseMetadata} of the response they came from. It is given to a {@link HttpFetcherClient} with
+ * {@link HttpFetcherClient.Builder#setMemoryCache(MemoryResponseCache)}, and is used by
+ * {@link HttpFetcher}s which have been configured with
+ * {@link HttpFetcher.Builder#setUseMemoryCache(boolean)}.
+ *
+ * <p>
+ *     The freshness lifetime of an entry is taken from the {@code max-age} directive of the
+ *     {@code Cache-Control} response header, unless it has been overridden with
+ *     {@link HttpFetcher.Builder#setMemoryCacheMaxAge(long)}. Responses without a freshness
+ *     lifetime, or with {@code no-store} or {@code no-cache}, are not held. When a fresh entry
+ *     exists, the {@link HttpFetcher} gives it to the {@link FetcherStreamReader} directly, without
+ *     checking connectivity or opening a connection.
+ * </p>
+ *
+ * <p>
+ *     Entries stored by a {@link HttpFetcher} are keyed by {@link HttpFetcher#getCacheKey()},
+ *     which includes the request headers and settings which affect the response, not just the
+ *     URL. Responses which vary on {@code *} or on a credential header are not held.
+ * </p>
+ *
+ * <p>
+ *     The cache is bounded by the total size of the bodies it holds. When the bound is exceeded,
+ *     the least recently used entries are evicted. Bodies are held as byte arrays which are never
+ *     modified once stored, so a single copy is shared between all readers.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient
+ */
+public class MemoryResponseCache {
+
+    private final long maxSize;
+    private final long maxEntrySize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long evictionCount;
+
+    /**
+     * Create a new {@code MemoryResponseCache}. A single body may occupy at most a quarter of the
+     * cache.
+     *
+     * @param maxSize The maximum total size of the cached bodies, in bytes. Must be greater than
+     *                {@code 0}.
+     */
+    public MemoryResponseCache(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than 0.");
+        }
+
+        this.maxSize = maxSize;
+        maxEntrySize = Math.max(1, maxSize / 4);
+    }
+
+    /**
+     * Get an {@link InputStream} over the cached body for the given key, if a fresh entry exists.
+     * Stale entries are removed.
+     *
+     * @param key The key to get the cached body for. For entries stored by a
+     *            {@link HttpFetcher}, this is {@link HttpFetcher#getCacheKey()}.
+     * @return An {@link InputStream} over the cached body, or {@code null} if there is no fresh
+     *         entry for the given key.
+     */
+    @Nullable
+    public InputStream get(@NonNull final String key) {
+        final CachedResponse response = getResponse(key);
+
+        return response != null ? response.getBody() : null;
+    }
+
+    /**
+     * Put a body in to the cache.
+     *
+     * @param key The key to store the body under.
+     * @param body The body. This array must not be modified after it has been given to this
+     *             method.
+     * @param maxAgeMillis The freshness lifetime of the body, in milliseconds. If this is
+     *                     {@code 0} or less, the body is not stored.
+     */
+    public void put(@NonNull final String key, @NonNull final byte[] body,
+            final long maxAgeMillis) {
+        put(key, body, null, maxAgeMillis);
+    }
+
+    /**
+     * Get the cached body and the {@link ResponseMetadata} for the given key, if a fresh entry
+     * exists. Stale entries are removed.
+     *
+     * @param key The key to get the cached response for.
+     * @return The cached response, or {@code null} if there is no fresh entry for the given key.
+     */
+    @Nullable
+    synchronized CachedResponse getResponse(@NonNull final String key) {
+        final Entry entry = entries.get(key);
+
+        if (entry != null) {
+            if (entry.expiresAt - System.nanoTime() > 0) {
+                hitCount++;
+                return new CachedResponse(new ByteArrayInputStream(entry.body), entry.metadata);
+            }
+
+            entries.remove(key);
+            size -= entry.body.length;
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Put a body and the {@link ResponseMetadata} of its response in to the cache.
+     *
+     * @param key The key to store the body under.
+     * @param body The body. This array must not be modified after it has been given to this
+     *             method.
+     * @param metadata The {@link ResponseMetadata} of the response, which is given to the
+     *                 {@link ResponseAwareFetcherStreamReader} when the entry is used. May be
+     *                 {@code null}.
+     * @param maxAgeMillis The freshness lifetime of the body, in milliseconds. If this is
+     *                     {@code 0} or less, the body is not stored.
+     */
+    synchronized void put(@NonNull final String key, @NonNull final byte[] body,
+            @Nullable final ResponseMetadata metadata, final long maxAgeMillis) {
+        if (maxAgeMillis <= 0 || body.length > maxEntrySize) {
+            return;
+        }
+
+        final Entry previous = entries.put(key,
+                new Entry(body, metadata, System.nanoTime() + maxAgeMillis * 1000000L));
+
+        if (previous != null) {
+            size -= previous.body.length;
+        }
+
+        size += body.length;
+        putCount++;
+        trimToSize();
+    }
+
+    /**
+     * Remove the entry for the given key, if it exists.
+     *
+     * @param key The key to remove the entry for.
+     */
+    public synchronized void remove(@NonNull final String key) {
+        final Entry entry = entries.remove(key);
+
+        if (entry != null) {
+            size -= entry.body.length;
+        }
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void evictAll() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Get the total size of the bodies held by this cache, in bytes.
+     *
+     * @return The total size of the bodies held by this cache, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the maximum total size of the bodies held by this cache, in bytes.
+     *
+     * @return The maximum size of this cache, in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of times a fresh entry was found.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of times a fresh entry was not found.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the number of bodies which have been put in to the cache.
+     *
+     * @return The number of bodies which have been put in to the cache.
+     */
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * Get the number of entries which have been evicted to keep the cache within its bound.
+     *
+     * @return The number of evicted entries.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Wrap the response body {@link InputStream} so that the body is put in to this cache once it
+     * has been read to the end.
+     *
+     * @param key The key to store the body under.
+     * @param metadata The {@link ResponseMetadata} of the response. May be {@code null}.
+     * @param maxAgeMillis The freshness lifetime of the body, in milliseconds.
+     * @param in The response body {@link InputStream}.
+     * @return An {@link InputStream} which should be given to the {@link FetcherStreamReader}. If
+     *         the body would not be stored, {@code in} is returned as-is.
+     */
+    @NonNull
+    InputStream wrapForWriting(@NonNull final String key,
+            @Nullable final ResponseMetadata metadata, final long maxAgeMillis,
+            @NonNull final InputStream in) {
+        return maxAgeMillis > 0
+                ? new CacheWritingInputStream(key, metadata, maxAgeMillis, in) : in;
+    }
+
+    /**
+     * Get the freshness lifetime of a response from its {@code Cache-Control} header.
+     *
+     * @param cacheControl The value of the {@code Cache-Control} response header. May be
+     *                     {@code null}.
+     * @return The freshness lifetime in milliseconds, or {@code 0} if the response should not be
+     *         held in the cache.
+     */
+    static long parseMaxAge(@Nullable final String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+
+        long maxAge = 0;
+
+        for (String directive : cacheControl.split(",")) {
+            final String d = directive.trim().toLowerCase();
+
+            if (d.equals("no-store") || d.equals("no-cache")) {
+                return 0;
+            } else if (d.startsWith("max-age=")) {
+                try {
+                    maxAge = Long.parseLong(d.substring(8).replace("\"", "").trim()) * 1000L;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return Math.max(0, maxAge);
+    }
+
+    /**
+     * Evict the least recently used entries until the size of the cache is within its bound. This
+     * must be called while holding the lock on this instance.
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().body.length;
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * This describes a fresh entry which has been found in the cache.
+     */
+    static class CachedResponse {
+
+        private final InputStream body;
+        private final ResponseMetadata metadata;
+
+        /**
+         * Create a new {@code CachedResponse}.
+         *
+         * @param body An {@link InputStream} over the cached body.
+         * @param metadata The {@link ResponseMetadata} of the response. May be {@code null}.
+         */
+        private CachedResponse(@NonNull final InputStream body,
+                @Nullable final ResponseMetadata metadata) {
+            this.body = body;
+            this.metadata = metadata;
+        }
+
+        /**
+         * Get an {@link InputStream} over the cached body.
+         *
+         * @return An {@link InputStream} over the cached body.
+         */
+        @NonNull
+        InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * Get the {@link ResponseMetadata} of the response the body came from.
+         *
+         * @return The {@link ResponseMetadata} of the response, or {@code null} if the body was
+         *         put in to the cache without it.
+         */
+        @Nullable
+        ResponseMetadata getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * This describes a single entry in the cache.
+     */
+    private static class Entry {
+
+        private final byte[] body;
+        private final ResponseMetadata metadata;
+        private final long expiresAt;
+
+        /**
+         * Create a new {@code Entry}.
+         *
+         * @param body The body.
+         * @param metadata The {@link ResponseMetadata} of the response. May be {@code null}.
+         * @param expiresAt The time at which this entry becomes stale, as given by
+         *                  {@link System#nanoTime()}.
+         */
+        private Entry(@NonNull final byte[] body, @Nullable final ResponseMetadata metadata,
+                final long expiresAt) {
+            this.body = body;
+            this.metadata = metadata;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * This {@link InputStream} copies the bytes read from the wrapped {@link InputStream} in to
+     * memory. When the end of the stream is reached, the body is put in to the cache. If the body
+     * grows larger than a single entry may be, copying stops.
+     */
+    private class CacheWritingInputStream extends FilterInputStream {
+
+        private final String key;
+        private final ResponseMetadata metadata;
+        private final long maxAgeMillis;
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /**
+         * Create a new {@code CacheWritingInputStream}.
+         *
+         * @param key The key to store the body under.
+         * @param metadata The {@link ResponseMetadata} of the response. May be {@code null}.
+         * @param maxAgeMillis The freshness lifetime of the body, in milliseconds.
+         * @param in The {@link InputStream} to wrap.
+         */
+        private CacheWritingInputStream(@NonNull final String key,
+                @Nullable final ResponseMetadata metadata, final long maxAgeMillis,
+                @NonNull final InputStream in) {
+            super(in);
+
+            this.key = key;
+            this.metadata = metadata;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b == -1) {
+                complete();
+            } else if (out != null) {
+                out.write(b);
+                checkSize();
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            final int len = super.read(buffer, offset, count);
+
+            if (len == -1) {
+                complete();
+            } else if (out != null) {
+                out.write(buffer, offset, len);
+                checkSize();
+            }
+
+            return len;
+        }
+
+        @Override
+        public long skip(final long byteCount) throws IOException {
+            // Skipped bytes would leave a hole in the cached body.
+            out = null;
+            return super.skip(byteCount);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Stop copying if the body has grown too large to be cached.
+         */
+        private void checkSize() {
+            if (out.size() > maxEntrySize) {
+                out = null;
+            }
+        }
+
+        /**
+         * Called when the end of the stream has been reached. The body is put in to the cache.
+         */
+        private void complete() {
+            if (out != null) {
+                put(key, out.toByteArray(), metadata, maxAgeMillis);
+                out = null;
+            }
+        }
+    }
+}
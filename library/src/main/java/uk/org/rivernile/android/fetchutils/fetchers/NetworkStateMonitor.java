@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.annotation.NonNull;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@code NetworkStateMonitor} keeps an up to date snapshot of the network state of the device,
+ * so that {@link HttpFetcher}s can check connectivity without querying the
+ * {@link ConnectivityManager} for every request. Each query is a call to another process, which
+ * adds latency when many small requests are made.
+ *
+ * <p>
+ *     There is a single instance per process, obtained with {@link #getInstance(Context)}. When it
+ *     is created, it checks once whether the application has the permission
+ *     {@link android.Manifest.permission#ACCESS_NETWORK_STATE}. If it does, the network state is
+ *     queried and then updated each time the system broadcasts
+ *     {@link ConnectivityManager#CONNECTIVITY_ACTION}. If it does not, the device is assumed to be
+ *     connected to a network of unknown type, as the state cannot be queried.
+ * </p>
+ *
+ * <p>
+ *     The state is held as an immutable {@link NetworkState}, which is replaced as a whole when it
+ *     changes, so reading it does not take a lock. A {@link Listener} may be added to be told
+ *     when the state changes. This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public class NetworkStateMonitor {
+
+    /**
+     * The network type when there is no network, or the type is not known.
+     */
+    public static final int TYPE_NONE = -1;
+
+    private static NetworkStateMonitor instance;
+
+    private final ConnectivityManager connMan;
+    private final boolean hasPermission;
+    private final CopyOnWriteArrayList<Listener> listeners =
+            new CopyOnWriteArrayList<>();
+
+    private volatile NetworkState state;
+
+    /**
+     * Get the instance of {@code NetworkStateMonitor} for this process. It is created the first
+     * time this is called.
+     *
+     * @param context A {@link Context} instance. The application {@link Context} is taken from
+     *                this, so any {@link Context} may be given.
+     * @return The instance of {@code NetworkStateMonitor}.
+     */
+    @NonNull
+    public static synchronized NetworkStateMonitor getInstance(@NonNull final Context context) {
+        if (instance == null) {
+            instance = new NetworkStateMonitor(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create a new {@code NetworkStateMonitor}. This constructor is private - the instance should
+     * be obtained with {@link #getInstance(Context)}.
+     *
+     * @param context The application {@link Context}.
+     */
+    private NetworkStateMonitor(@NonNull final Context context) {
+        connMan = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        hasPermission = context.checkCallingOrSelfPermission(
+                Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+
+        if (hasPermission) {
+            state = queryState();
+            context.registerReceiver(new ConnectivityReceiver(),
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        } else {
+            // The metered status cannot be known, so assume the worst for policy decisions.
+            state = new NetworkState(true, TYPE_NONE, true, false);
+        }
+    }
+
+    /**
+     * Get the current {@link NetworkState}. Use this rather than the individual getters when more
+     * than one property is needed, so that they all come from the same snapshot.
+     *
+     * @return The current {@link NetworkState}.
+     */
+    @NonNull
+    public NetworkState getState() {
+        return state;
+    }
+
+    /**
+     * Is the device currently connected to a network?
+     *
+     * @return {@code true} if the device is connected to a network, or the state cannot be
+     *         queried. {@code false} if it is known that the device is not connected.
+     */
+    public boolean isConnected() {
+        return state.isConnected();
+    }
+
+    /**
+     * Get the type of the network the device is connected to.
+     *
+     * @return One of the {@code TYPE_} constants of {@link ConnectivityManager}, or
+     *         {@link #TYPE_NONE} if there is no network or the type is not known.
+     */
+    public int getNetworkType() {
+        return state.getNetworkType();
+    }
+
+    /**
+     * Is the network the device is connected to metered? Applications should avoid large
+     * transfers on metered networks.
+     *
+     * @return {@code true} if the network is metered, or this cannot be known. {@code false} if
+     *         it is not metered.
+     */
+    public boolean isMetered() {
+        return state.isMetered();
+    }
+
+    /**
+     * Does the application have permission to query the network state? If not, the state is
+     * assumed rather than known.
+     *
+     * @return {@code true} if the application has the permission
+     *         {@link android.Manifest.permission#ACCESS_NETWORK_STATE}, {@code false} if not.
+     */
+    public boolean hasPermission() {
+        return hasPermission;
+    }
+
+    /**
+     * Query the network state now, rather than waiting for the next broadcast. This is not
+     * normally needed.
+     */
+    public void refresh() {
+        if (hasPermission) {
+            onNetworkStateChanged();
+        }
+    }
+
+    /**
+     * Add a {@link Listener} to be told when the network state changes.
+     *
+     * @param listener The {@link Listener} to add.
+     */
+    public void addListener(@NonNull final Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Remove a {@link Listener} so that it is no longer told when the network state changes.
+     *
+     * @param listener The {@link Listener} to remove.
+     */
+    public void removeListener(@NonNull final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Query the network state and tell the {@link Listener}s if it has changed.
+     */
+    private void onNetworkStateChanged() {
+        final NetworkState newState;
+        final NetworkState oldState;
+
+        // The query and the store are done together, so that a slower query which started first
+        // can not replace the result of a newer one with an older snapshot.
+        synchronized (this) {
+            newState = queryState();
+            oldState = state;
+            state = newState;
+        }
+
+        if (!newState.equals(oldState)) {
+            for (Listener listener : listeners) {
+                listener.onNetworkStateChanged(newState);
+            }
+        }
+    }
+
+    /**
+     * Query the {@link ConnectivityManager} for the state of the active network.
+     *
+     * @return The current {@link NetworkState}.
+     */
+    @NonNull
+    private NetworkState queryState() {
+        final NetworkInfo networkInfo = connMan.getActiveNetworkInfo();
+
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return new NetworkState(false, TYPE_NONE, false, false);
+        }
+
+        return new NetworkState(true, networkInfo.getType(),
+                ConnectivityManagerCompat.isActiveNetworkMetered(connMan),
+                networkInfo.isRoaming());
+    }
+
+    /**
+     * A {@code NetworkState} is an immutable snapshot of the network state of the device.
+     */
+    public static final class NetworkState {
+
+        private final boolean connected;
+        private final int networkType;
+        private final boolean metered;
+        private final boolean roaming;
+
+        /**
+         * Create a new {@code NetworkState}.
+         *
+         * @param connected Whether the device is connected to a network.
+         * @param networkType The type of the network.
+         * @param metered Whether the network is metered.
+         * @param roaming Whether the network is roaming.
+         */
+        NetworkState(final boolean connected, final int networkType, final boolean metered,
+                final boolean roaming) {
+            this.connected = connected;
+            this.networkType = networkType;
+            this.metered = metered;
+            this.roaming = roaming;
+        }
+
+        /**
+         * Is the device connected to a network?
+         *
+         * @return {@code true} if the device is connected to a network, {@code false} if not.
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * Get the type of the network.
+         *
+         * @return One of the {@code TYPE_} constants of {@link ConnectivityManager}, or
+         *         {@link #TYPE_NONE} if there is no network or the type is not known.
+         */
+        public int getNetworkType() {
+            return networkType;
+        }
+
+        /**
+         * Is the network metered?
+         *
+         * @return {@code true} if the network is metered, {@code false} if not.
+         */
+        public boolean isMetered() {
+            return metered;
+        }
+
+        /**
+         * Is the network roaming?
+         *
+         * @return {@code true} if the network is roaming, {@code false} if not.
+         */
+        public boolean isRoaming() {
+            return roaming;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof NetworkState)) {
+                return false;
+            }
+
+            final NetworkState other = (NetworkState) o;
+            return connected == other.connected && networkType == other.networkType &&
+                    metered == other.metered && roaming == other.roaming;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = connected ? 1 : 0;
+            result = 31 * result + networkType;
+            result = 31 * result + (metered ? 1 : 0);
+            return 31 * result + (roaming ? 1 : 0);
+        }
+    }
+
+    /**
+     * A {@code Listener} is told when the network state changes. It is called on the main thread,
+     * or on the thread which called {@link #refresh()}.
+     */
+    public interface Listener {
+
+        /**
+         * This is called when the network state has changed.
+         *
+         * @param state The new {@link NetworkState}.
+         */
+        public void onNetworkStateChanged(@NonNull NetworkState state);
+    }
+
+    /**
+     * This {@link BroadcastReceiver} receives {@link ConnectivityManager#CONNECTIVITY_ACTION}
+     * broadcasts and updates the network state.
+     */
+    private class ConnectivityReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            onNetworkStateChanged();
+        }
+    }
+}
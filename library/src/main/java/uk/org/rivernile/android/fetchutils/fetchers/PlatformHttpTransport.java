@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * The default {@link HttpTransport}, which opens connections with the platform
+ * {@link HttpURLConnection} implementation. Each connection blocks the thread which reads it, and
+ * idle sockets are kept alive by the platform.
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public class PlatformHttpTransport implements HttpTransport {
+
+    @NonNull
+    @Override
+    public HttpURLConnection openConnection(@NonNull final URL url, @Nullable final Proxy proxy)
+            throws IOException {
+        return (HttpURLConnection) (proxy != null ? url.openConnection(proxy)
+                : url.openConnection());
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code Preconnector} warms up a host in the background before a {@link HttpFetcher} needs it,
+ * so that the first request to the host does not pay for the DNS lookup, the TCP connection and
+ * the TLS handshake. It is owned by a {@link HttpFetcherClient}, and may be obtained with
+ * {@link HttpFetcherClient#getPreconnector()}.
+ *
+ * <p>
+ *     Call {@link #preconnect(String)} with a URL which will be needed soon, for example when a
+ *     screen is opened. On a background thread, the host name is resolved, and a {@code HEAD}
+ *     request is made to the URL. Once the response has been read, the connection is given to the
+ *     {@link ConnectionPool} of the client, so the platform keeps the socket alive for the next
+ *     request to the host. A {@link HttpFetcher} which uses the client, and does not have its own
+ *     proxy, then reuses the connection.
+ * </p>
+ *
+ * <p>
+ *     A hint is skipped when the host already has an idle connection in the pool, is already
+ *     being warmed up, or its circuit in the {@link CircuitBreaker} of the client is open. Before
+ *     Froyo, where keep-alive is disabled, only the DNS lookup is done.
+ * </p>
+ *
+ * <p>
+ *     The time taken to resolve the host and to connect to it is recorded. When a
+ *     {@link HttpFetcher} later reuses an idle connection to a warmed host, that time is counted as
+ *     saved. These figures are estimates, and are named as such: they are based on the
+ *     {@link ConnectionPool}'s belief that an idle connection was available, and the
+ *     {@link HttpFetcher} may have reused another idle connection to the host, or the platform
+ *     may have closed the warmed socket in the meantime. Warmed connections which were evicted
+ *     from the pool before they were used are counted as expired.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * // When the screen is opened, before its data is fetched.
+ * client.getPreconnector().preconnect("https://www.example.com/api/items");
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient
+ * @see ConnectionPool
+ */
+public class Preconnector {
+
+    private static final int TIMEOUT = 10000;
+    private static final int THREAD_COUNT = 2;
+
+    private final HttpFetcherClient client;
+    private final HashSet<String> inProgress = new HashSet<>();
+    private final HashMap<String, Long> warmed = new HashMap<>();
+    private ThreadPoolExecutor executor;
+
+    private long preconnectCount;
+    private long skippedCount;
+    private long failedCount;
+    private long usedCount;
+    private long expiredCount;
+    private long lookupCount;
+    private long totalDnsNanos;
+    private long totalSetupNanos;
+    private long savedNanos;
+
+    /**
+     * Create a new {@code Preconnector}.
+     *
+     * @param client The {@link HttpFetcherClient} which owns this {@code Preconnector}.
+     */
+    Preconnector(@NonNull final HttpFetcherClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Hint that the given URL will be requested soon. The host is warmed up on a background
+     * thread, and this method returns straight away.
+     *
+     * @param url The URL which will be requested.
+     * @throws IllegalArgumentException When {@code url} is not a valid URL.
+     */
+    public void preconnect(@NonNull final String url) {
+        try {
+            preconnect(new URL(url));
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("The URL is not valid: " + url);
+        }
+    }
+
+    /**
+     * Hint that the given {@link URL} will be requested soon. The host is warmed up on a
+     * background thread, and this method returns straight away.
+     *
+     * @param url The {@link URL} which will be requested.
+     */
+    public void preconnect(@NonNull final URL url) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preconnectNow(url);
+                } catch (IOException e) {
+                    // This has already been counted as a failure. The real request will report
+                    // the problem if it happens again.
+                }
+            }
+        });
+    }
+
+    /**
+     * Warm up the host of the given {@link URL} on the calling thread. This blocks until the host
+     * has been resolved and connected to, so it must not be called on the main thread.
+     *
+     * @param url The {@link URL} which will be requested.
+     * @return {@code true} if a connection was warmed up, {@code false} if the hint was skipped
+     *         or only the DNS lookup could be done.
+     * @throws IOException When the host could not be resolved or connected to.
+     */
+    public boolean preconnectNow(@NonNull final URL url) throws IOException {
+        final String key = ConnectionPool.getKey(url);
+
+        if (!begin(key)) {
+            return false;
+        }
+
+        boolean success = false;
+        long dnsNanos = 0;
+        long setupNanos = 0;
+
+        try {
+            long start = System.nanoTime();
+            InetAddress.getAllByName(url.getHost());
+            dnsNanos = System.nanoTime() - start;
+
+            // Keep-alive is disabled prior to Froyo, so the connection could not be reused.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+                return false;
+            }
+
+            // The client's transport is used, so the warmed connection is one it can reuse.
+            final HttpURLConnection conn = client.getTransport().openConnection(url, null);
+            conn.setRequestMethod("HEAD");
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            conn.setUseCaches(false);
+
+            try {
+                start = System.nanoTime();
+                conn.connect();
+                setupNanos = System.nanoTime() - start;
+                // Reading the response completes the exchange, so the socket can be kept alive.
+                conn.getResponseCode();
+                success = release(conn, key);
+            } finally {
+                if (!success) {
+                    conn.disconnect();
+                }
+            }
+
+            return success;
+        } catch (IOException e) {
+            synchronized (this) {
+                failedCount++;
+            }
+
+            throw e;
+        } finally {
+            end(key, success, dnsNanos, dnsNanos + setupNanos);
+        }
+    }
+
+    /**
+     * Get the number of hosts which were warmed up.
+     *
+     * @return The number of hosts which were warmed up.
+     */
+    public synchronized long getPreconnectCount() {
+        return preconnectCount;
+    }
+
+    /**
+     * Get the number of hints which were skipped, because the host already had an idle
+     * connection, was already being warmed up, or its circuit was open.
+     *
+     * @return The number of skipped hints.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Get the number of hosts which could not be warmed up because of an error.
+     *
+     * @return The number of failed attempts.
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Get an estimate of the number of warmed up connections which were then used by a
+     * {@link HttpFetcher}. This counts the times the {@link ConnectionPool} believed an idle
+     * connection was available to a warmed host; it is not known which socket was reused.
+     *
+     * @return The estimated number of used connections.
+     */
+    public synchronized long getEstimatedUsedCount() {
+        return usedCount;
+    }
+
+    /**
+     * Get an estimate of the number of warmed up connections which had been evicted from the
+     * {@link ConnectionPool} before a {@link HttpFetcher} needed them.
+     *
+     * @return The estimated number of expired connections.
+     */
+    public synchronized long getEstimatedExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Get the average time taken to resolve the host of a hint.
+     *
+     * @return The average DNS lookup time, in milliseconds.
+     */
+    public synchronized double getAverageDnsTime() {
+        return lookupCount > 0 ? totalDnsNanos / 1000000.0 / lookupCount : 0;
+    }
+
+    /**
+     * Get the average time taken to resolve and connect to a host which was warmed up. This
+     * includes the TLS handshake, but not the {@code HEAD} request.
+     *
+     * @return The average setup time, in milliseconds.
+     */
+    public synchronized double getAverageSetupTime() {
+        return preconnectCount > 0 ? totalSetupNanos / 1000000.0 / preconnectCount : 0;
+    }
+
+    /**
+     * Get an estimate of the total time which was saved by {@link HttpFetcher}s using warmed up
+     * connections, rather than having to resolve and connect to the host themselves. This is the
+     * setup time of each warmed connection counted by {@link #getEstimatedUsedCount()}, not a
+     * measurement of the requests themselves.
+     *
+     * @return The estimated total saved time, in milliseconds.
+     */
+    public synchronized long getEstimatedSavedTime() {
+        return savedNanos / 1000000L;
+    }
+
+    /**
+     * This is called by a {@link HttpFetcher} when it acquires a connection from the
+     * {@link ConnectionPool}, so that the use of a warmed up connection can be recorded.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @param hit {@code true} if an idle connection was available, {@code false} if not.
+     */
+    synchronized void onConnectionAcquired(@NonNull final String key, final boolean hit) {
+        final Long setupNanos = warmed.remove(key);
+
+        if (setupNanos == null) {
+            return;
+        }
+
+        if (hit) {
+            usedCount++;
+            savedNanos += setupNanos;
+        } else {
+            expiredCount++;
+        }
+    }
+
+    /**
+     * Mark the given host as being warmed up, unless the hint should be skipped.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return {@code true} if the host should be warmed up, {@code false} if the hint was
+     *         skipped.
+     */
+    private synchronized boolean begin(@NonNull final String key) {
+        final CircuitBreaker circuitBreaker = client.getCircuitBreaker();
+
+        if (inProgress.contains(key) ||
+                client.getConnectionPool().getIdleConnectionCount(key) > 0 ||
+                (circuitBreaker != null &&
+                        circuitBreaker.getState(key) == CircuitBreaker.State.OPEN)) {
+            skippedCount++;
+            return false;
+        }
+
+        inProgress.add(key);
+        return true;
+    }
+
+    /**
+     * Record the outcome of warming up the given host.
+     *
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @param success {@code true} if a connection was given to the {@link ConnectionPool},
+     *                {@code false} if not.
+     * @param dnsNanos The time taken to resolve the host, in nanoseconds.
+     * @param setupNanos The time taken to resolve and connect to the host, in nanoseconds.
+     */
+    private synchronized void end(@NonNull final String key, final boolean success,
+            final long dnsNanos, final long setupNanos) {
+        inProgress.remove(key);
+
+        if (dnsNanos > 0) {
+            lookupCount++;
+            totalDnsNanos += dnsNanos;
+        }
+
+        if (success) {
+            preconnectCount++;
+            totalSetupNanos += setupNanos;
+            warmed.put(key, setupNanos);
+        }
+    }
+
+    /**
+     * Give a connection to the {@link ConnectionPool} once its response has been read.
+     *
+     * @param conn The {@link HttpURLConnection} to give to the pool.
+     * @param key The key of the host. See {@link ConnectionPool#getKey(URL)}.
+     * @return {@code true} if the connection is now idle in the pool, {@code false} if the pool
+     *         is full and the connection should be disconnected.
+     * @throws IOException When the response could not be read.
+     */
+    private boolean release(@NonNull final HttpURLConnection conn, @NonNull final String key)
+            throws IOException {
+        InputStream in = conn.getErrorStream();
+
+        if (in == null) {
+            try {
+                in = conn.getInputStream();
+            } catch (IOException e) {
+                // There is no body to read.
+            }
+        }
+
+        if (in != null) {
+            final byte[] buf = new byte[256];
+
+            while (in.read(buf) != -1) {
+                // The response to a HEAD request has no body, but drain anything sent anyway.
+            }
+        }
+
+        if (!client.getConnectionPool().release(key)) {
+            return false;
+        }
+
+        if (in != null) {
+            in.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the {@link ThreadPoolExecutor} which runs hints, creating it if needed.
+     *
+     * @return The {@link ThreadPoolExecutor} which runs hints.
+     */
+    @NonNull
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new FetcherExecutor.FetcherThreadFactory("Preconnector"));
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A {@code RedirectCache} remembers permanent redirects ({@code 301 Moved Permanently} and
+ * {@code 308 Permanent Redirect}) seen by {@link HttpFetcher}s, so that later requests for the
+ * same URL go straight to the new location rather than following the redirect again. It is owned
+ * by a {@link HttpFetcherClient} and is shared between all {@link HttpFetcher}s which use that
+ * client.
+ *
+ * <p>
+ *     The cache holds a bounded number of redirects. When the bound is exceeded, the least
+ *     recently used redirects are evicted. The hit and miss counters can be used to check how
+ *     often a redirect was avoided.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient.Builder#setRedirectCache(RedirectCache)
+ */
+public class RedirectCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<String, String> redirects = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Create a new {@code RedirectCache}.
+     *
+     * @param maxSize The maximum number of redirects to remember. Must be {@code 1} or greater.
+     */
+    public RedirectCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be 1 or greater.");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the location that the given URL has permanently moved to, if it is known. If that
+     * location has itself permanently moved, the chain of remembered redirects is followed.
+     *
+     * @param url The URL being requested.
+     * @return The final location the URL has permanently moved to, or {@code null} if no
+     *         permanent redirect is known for the URL.
+     */
+    @Nullable
+    public synchronized String resolve(@NonNull final String url) {
+        String location = redirects.get(url);
+
+        if (location == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        // Bound the chain, in case the remembered redirects form a loop.
+        int remaining = redirects.size();
+        String next;
+
+        while (remaining-- > 0 && (next = redirects.get(location)) != null) {
+            location = next;
+        }
+
+        return location;
+    }
+
+    /**
+     * Remember that the given URL has permanently moved to a new location.
+     *
+     * @param url The URL which was requested.
+     * @param location The absolute URL that the request was redirected to.
+     */
+    public synchronized void put(@NonNull final String url, @NonNull final String location) {
+        redirects.put(url, location);
+
+        while (redirects.size() > maxSize) {
+            // The eldest entry is the least recently used, as this map is in access order.
+            redirects.remove(redirects.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Forget the permanent redirect of the given URL, if there is one.
+     *
+     * @param url The URL to forget the redirect of.
+     */
+    public synchronized void remove(@NonNull final String url) {
+        redirects.remove(url);
+    }
+
+    /**
+     * Forget all permanent redirects. This does not reset the hit and miss counters.
+     */
+    public synchronized void evictAll() {
+        redirects.clear();
+    }
+
+    /**
+     * Get the number of redirects currently remembered.
+     *
+     * @return The number of redirects currently remembered.
+     */
+    public synchronized int size() {
+        return redirects.size();
+    }
+
+    /**
+     * Get the maximum number of redirects remembered.
+     *
+     * @return The maximum number of redirects remembered.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of times a request was sent straight to a remembered location.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of times no permanent redirect was remembered for a request.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * A {@code RequestCoalescer} collapses concurrent identical requests in to a single network
+ * transfer. It is owned by a {@link HttpFetcherClient} and is used by {@link HttpFetcher}s which
+ * have been configured with {@link HttpFetcher.Builder#setCoalesceRequests(boolean)}.
+ *
+ * <p>
+ *     Requests are identical when they have the same request method, URL, proxy and custom
+ *     headers, and the same settings for following redirects, {@code If-Modified-Since} and the
+ *     use of caches, as any of these can change the response. The first request for a key is the
+ *     leader, and performs the transfer. Any identical request which arrives before the response
+ *     body starts waits for it. Once the body starts, later requests perform their own transfer.
+ * </p>
+ *
+ * <p>
+ *     When nobody is waiting by the time the body starts, the leader streams the body straight
+ *     in to its {@link FetcherStreamReader}. Otherwise, the body is also copied in to memory as
+ *     it is read, and each waiting {@link FetcherStreamReader} is given its own replay of the
+ *     same bytes. If the body is longer than {@link #MAX_SHARED_BODY_SIZE}, or the leader fails
+ *     once the body has started, the transfer is abandoned and the waiting requests perform
+ *     their own. If the leader fails before the body starts, each waiting request fails with its
+ *     own {@link IOException}, caused by the failure of the leader.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient
+ */
+public class RequestCoalescer {
+
+    /**
+     * The largest response body, in bytes, which is held in memory to be replayed to waiting
+     * requests.
+     */
+    public static final int MAX_SHARED_BODY_SIZE = 1024 * 1024;
+
+    private final HashMap<String, Call> inFlight = new HashMap<>();
+
+    private long executedCount;
+    private long coalescedCount;
+
+    /**
+     * Get the number of network transfers which have been started by this coalescer.
+     *
+     * @return The number of network transfers which have been started.
+     */
+    public synchronized long getExecutedCount() {
+        return executedCount;
+    }
+
+    /**
+     * Get the number of requests which were collapsed in to a transfer already in flight, rather
+     * than performing their own transfer.
+     *
+     * @return The number of collapsed requests.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Get the number of distinct transfers currently in flight which can still be joined.
+     *
+     * @return The number of transfers currently in flight which can still be joined.
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Begin a request with the given key. If an identical request is already in flight and its
+     * body has not started, its {@link Call} is returned and the caller should
+     * {@link Call#await(FetchCancellationSignal)} the result. Otherwise, a new {@link Call} is returned for which the
+     * caller is the leader - it must perform the transfer, call {@link #startBody(Call)} when the
+     * body starts, and then call {@link #complete(Call, byte[], ResponseMetadata)},
+     * {@link #fail(Call, IOException)} or {@link #abandon(Call)}.
+     *
+     * @param key The key which identifies identical requests.
+     * @return The {@link Call} for the request.
+     */
+    @NonNull
+    synchronized Call begin(@NonNull final String key) {
+        final Call existing = inFlight.get(key);
+
+        if (existing != null) {
+            coalescedCount++;
+            existing.waiters++;
+            return new Call(existing);
+        }
+
+        final Call call = new Call(key);
+        inFlight.put(key, call);
+        executedCount++;
+
+        return call;
+    }
+
+    /**
+     * Stop waiting on a {@link Call}, for example because the waiting request was cancelled. The
+     * leader will not keep a copy of the body for a request which has left.
+     *
+     * @param call The {@link Call} returned to a waiting request by {@link #begin(String)}.
+     */
+    synchronized void leave(@NonNull final Call call) {
+        if (!call.leader) {
+            call.shared.waiters--;
+        }
+    }
+
+    /**
+     * Tell the coalescer that the response body of a {@link Call} is about to be read. No more
+     * requests can join the {@link Call} after this.
+     *
+     * @param call The {@link Call} whose body is starting. The caller must be its leader.
+     * @return {@code true} if any requests are waiting on the {@link Call}, in which case the
+     *         body should be copied for them. {@code false} if nobody is waiting, in which case
+     *         the body does not need to be kept.
+     */
+    synchronized boolean startBody(@NonNull final Call call) {
+        remove(call);
+
+        return call.waiters > 0;
+    }
+
+    /**
+     * Complete a {@link Call} successfully. All requests waiting on it are released.
+     *
+     * @param call The {@link Call} to complete. The caller must be its leader.
+     * @param body The response body.
+     * @param metadata The {@link ResponseMetadata} of the response.
+     */
+    void complete(@NonNull final Call call, @NonNull final byte[] body,
+            @NonNull final ResponseMetadata metadata) {
+        synchronized (this) {
+            remove(call);
+        }
+
+        call.body = body;
+        call.metadata = metadata;
+        call.finish();
+    }
+
+    /**
+     * Fail a {@link Call}. All requests waiting on it are released and will throw an
+     * {@link IOException} caused by the given {@link IOException}.
+     *
+     * @param call The {@link Call} to fail. The caller must be its leader.
+     * @param error The reason for the failure.
+     */
+    void fail(@NonNull final Call call, @NonNull final IOException error) {
+        synchronized (this) {
+            remove(call);
+        }
+
+        call.error = error;
+        call.finish();
+    }
+
+    /**
+     * Abandon a {@link Call} because its body can not be shared. All requests waiting on it are
+     * released and should perform their own transfer.
+     *
+     * @param call The {@link Call} to abandon. The caller must be its leader.
+     */
+    void abandon(@NonNull final Call call) {
+        synchronized (this) {
+            remove(call);
+        }
+
+        call.abandoned = true;
+        call.finish();
+    }
+
+    /**
+     * Stop new requests from joining a {@link Call}. This must be called while holding the lock
+     * on this object. A later {@link Call} for the same key is left in place.
+     *
+     * @param call The {@link Call} to remove.
+     */
+    private void remove(@NonNull final Call call) {
+        if (inFlight.get(call.key) == call) {
+            inFlight.remove(call.key);
+        }
+    }
+
+    /**
+     * A {@code Call} represents a single network transfer which one or more requests are waiting
+     * on.
+     */
+    static class Call {
+
+        private final String key;
+        private final boolean leader;
+        private final Call shared;
+
+        private int waiters;
+        private boolean finished;
+        private volatile byte[] body;
+        private volatile ResponseMetadata metadata;
+        private volatile IOException error;
+        private volatile boolean abandoned;
+
+        /**
+         * Create a new {@code Call} for a leader.
+         *
+         * @param key The key which identifies identical requests.
+         */
+        private Call(@NonNull final String key) {
+            this.key = key;
+            leader = true;
+            shared = this;
+        }
+
+        /**
+         * Create a new {@code Call} for a request which waits on an existing {@code Call}.
+         *
+         * @param existing The {@code Call} already in flight.
+         */
+        private Call(@NonNull final Call existing) {
+            key = existing.key;
+            leader = false;
+            shared = existing;
+        }
+
+        /**
+         * Is the holder of this {@code Call} responsible for performing the transfer?
+         *
+         * @return {@code true} if the holder must perform the transfer, {@code false} if it
+         *         should wait for the result.
+         */
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Wait for the transfer to finish, or for the waiting request to be cancelled.
+         *
+         * @param signal The {@link FetchCancellationSignal} of the waiting request, or
+         *               {@code null} if it can not be cancelled.
+         * @return {@code true} if the body is available from {@link #getBody()}, {@code false} if
+         *         the transfer was abandoned and the caller should perform its own.
+         * @throws FetchCancelledException When {@code signal} is cancelled before the transfer
+         *                                 finishes.
+         * @throws IOException An {@link IOException} caused by the failure of the transfer, or an
+         *                     {@link InterruptedIOException} if the waiting thread was
+         *                     interrupted.
+         */
+        boolean await(@Nullable final FetchCancellationSignal signal) throws IOException {
+            final FetchCancellationSignal.OnCancelListener listener = signal != null
+                    ? new FetchCancellationSignal.OnCancelListener() {
+                        @Override
+                        public void onCancel() {
+                            synchronized (shared) {
+                                shared.notifyAll();
+                            }
+                        }
+                    } : null;
+
+            if (signal != null && !signal.addOnCancelListener(listener)) {
+                throw new FetchCancelledException();
+            }
+
+            try {
+                synchronized (shared) {
+                    while (!shared.finished) {
+                        if (signal != null) {
+                            // The signal is set before its listeners are called, and the listener
+                            // needs this lock, so a cancel can not be missed between this check
+                            // and the wait.
+                            signal.throwIfCancelled();
+                        }
+
+                        shared.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a coalesced " +
+                        "request.");
+            } finally {
+                if (signal != null) {
+                    signal.removeOnCancelListener(listener);
+                }
+            }
+
+            final IOException error = shared.error;
+
+            if (error != null) {
+                // Each waiter gets its own exception, as exceptions are not safe to share between
+                // threads.
+                final IOException wrapped = new IOException(error.getMessage());
+                wrapped.initCause(error);
+                throw wrapped;
+            }
+
+            return !shared.abandoned;
+        }
+
+        /**
+         * Release the requests waiting on this {@code Call}. Its outcome must have been set
+         * first.
+         */
+        private synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Get the response body. Only valid after {@link #await(FetchCancellationSignal)} has
+         * returned {@code true}.
+         *
+         * @return The response body.
+         */
+        @NonNull
+        byte[] getBody() {
+            return shared.body;
+        }
+
+        /**
+         * Get the {@link ResponseMetadata} of the response. Only valid after
+         * {@link #await(FetchCancellationSignal)} has returned {@code true}.
+         *
+         * @return The {@link ResponseMetadata} of the response.
+         */
+        @NonNull
+        ResponseMetadata getMetadata() {
+            return shared.metadata;
+        }
+    }
+}
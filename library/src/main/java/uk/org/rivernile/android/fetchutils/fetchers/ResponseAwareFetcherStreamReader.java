@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * A {@code ResponseAwareFetcherStreamReader} is a {@link FetcherStreamReader} which is told about
+ * the response before it is given the response body. This allows the reader to size its buffers
+ * from the {@code Content-Length}, or choose how to decode the body from the
+ * {@code Content-Type}, without the connection being held open.
+ *
+ * <p>
+ *     {@link #onResponse(ResponseMetadata)} is called by {@link HttpFetcher} before each call to
+ *     {@link #readInputStream(java.io.InputStream)}. If the request is retried after the body has
+ *     started to be read, it is called again with the new response. It is not called when the
+ *     body is taken from the {@link MemoryResponseCache}, as there is no response to describe.
+ *     When a body is fetched in segments, it describes the response to the {@code HEAD} request,
+ *     so the {@code Content-Length} is the length of the whole body.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see ResponseMetadata
+ */
+public interface ResponseAwareFetcherStreamReader extends FetcherStreamReader {
+
+    /**
+     * This is called with the metadata of the response before the response body is given to
+     * {@link #readInputStream(java.io.InputStream)}.
+     *
+     * @param metadata The {@link ResponseMetadata} of the response.
+     * @throws IOException When the reader cannot accept the response. The fetch fails with this
+     *                     exception.
+     */
+    public void onResponse(@NonNull ResponseMetadata metadata) throws IOException;
+}
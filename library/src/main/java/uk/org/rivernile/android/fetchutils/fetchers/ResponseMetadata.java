@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * A {@code ResponseMetadata} is an immutable snapshot of the response to a request made by a
+ * {@link HttpFetcher}: the status, the headers, the URL the response came from after any
+ * redirects, and when the request was made and answered. It is captured once the response
+ * headers have been received, so it remains available after the connection has been released.
+ *
+ * <p>
+ *     It is given to a {@link ResponseAwareFetcherStreamReader} before the response body, so that
+ *     the reader can, for example, size its buffers from {@link #getContentLength()} or choose how
+ *     to decode the body from {@link #getMimeType()} and {@link #getCharset(String)}. After the
+ *     fetch, it is available from {@link HttpFetcher#getResponseMetadata()}.
+ * </p>
+ *
+ * <p>
+ *     Header names are matched without regard to case. This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see ResponseAwareFetcherStreamReader
+ */
+public final class ResponseMetadata {
+
+    private final int responseCode;
+    private final String responseMessage;
+    private final String url;
+    private final Map<String, List<String>> headers;
+    private final long requestTime;
+    private final long responseTime;
+
+    /**
+     * Create a new {@code ResponseMetadata}.
+     *
+     * @param responseCode The HTTP response code.
+     * @param responseMessage The HTTP response message, or {@code null} if there is none.
+     * @param url The URL the response came from.
+     * @param headers The response headers. They are copied.
+     * @param requestTime The time the request was started, from {@link System#nanoTime()}.
+     * @param responseTime The time the response headers were received, from
+     *                     {@link System#nanoTime()}.
+     */
+    ResponseMetadata(final int responseCode, @Nullable final String responseMessage,
+            @NonNull final String url, @NonNull final Map<String, List<String>> headers,
+            final long requestTime, final long responseTime) {
+        this.responseCode = responseCode;
+        this.responseMessage = responseMessage;
+        this.url = url;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        final TreeMap<String, List<String>> copy =
+                new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            // HttpURLConnection gives the status line with a null key.
+            if (entry.getKey() != null && entry.getValue() != null) {
+                copy.put(entry.getKey(),
+                        Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+            }
+        }
+
+        this.headers = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Capture the response held by the given {@link HttpURLConnection}.
+     *
+     * @param conn The {@link HttpURLConnection} holding the response.
+     * @param requestTime The time the request was started, from {@link System#nanoTime()}.
+     * @param responseTime The time the response headers were received, from
+     *                     {@link System#nanoTime()}.
+     * @return A new {@code ResponseMetadata}.
+     * @throws IOException When there was a problem getting the response.
+     */
+    @NonNull
+    static ResponseMetadata from(@NonNull final HttpURLConnection conn, final long requestTime,
+            final long responseTime) throws IOException {
+        return new ResponseMetadata(conn.getResponseCode(), conn.getResponseMessage(),
+                conn.getURL().toString(), conn.getHeaderFields(), requestTime, responseTime);
+    }
+
+    /**
+     * Get the HTTP response code.
+     *
+     * @return The HTTP response code.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Get the HTTP response message, such as {@code OK}.
+     *
+     * @return The HTTP response message, or {@code null} if there was none.
+     */
+    @Nullable
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    /**
+     * Get the URL the response came from, after any redirects were followed.
+     *
+     * @return The URL the response came from.
+     */
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get all of the response headers. Names are matched without regard to case.
+     *
+     * @return An unmodifiable {@link Map} of header names to their values, sorted by name.
+     */
+    @NonNull
+    public Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get all of the values of the given header.
+     *
+     * @param name The name of the header.
+     * @return An unmodifiable {@link List} of the values of the header, which is empty if the
+     *         header was not sent.
+     */
+    @NonNull
+    public List<String> getHeaders(@NonNull final String name) {
+        final List<String> values = headers.get(name);
+        return values != null ? values : Collections.<String>emptyList();
+    }
+
+    /**
+     * Get the value of the given header. If the header was sent more than once, the last value is
+     * returned, as with {@link HttpURLConnection#getHeaderField(String)}.
+     *
+     * @param name The name of the header.
+     * @return The value of the header, or {@code null} if it was not sent.
+     */
+    @Nullable
+    public String getHeader(@NonNull final String name) {
+        final List<String> values = headers.get(name);
+        return values != null && !values.isEmpty() ? values.get(values.size() - 1) : null;
+    }
+
+    /**
+     * Get the value of the {@code Content-Length} header.
+     *
+     * @return The length of the response body in bytes, or {@code -1} if it is not known.
+     */
+    public long getContentLength() {
+        final String value = getHeader("Content-Length");
+
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            final long length = Long.parseLong(value.trim());
+            return length >= 0 ? length : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the value of the {@code Content-Type} header.
+     *
+     * @return The value of the {@code Content-Type} header, or {@code null} if it was not sent.
+     */
+    @Nullable
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * Get the MIME type from the {@code Content-Type} header, without any parameters. For
+     * example, {@code text/html; charset=UTF-8} gives {@code text/html}.
+     *
+     * @return The MIME type in lower case, or {@code null} if the {@code Content-Type} header was
+     *         not sent.
+     */
+    @Nullable
+    public String getMimeType() {
+        final String contentType = getContentType();
+
+        if (contentType == null) {
+            return null;
+        }
+
+        final int semicolon = contentType.indexOf(';');
+        final String mimeType = semicolon >= 0 ? contentType.substring(0, semicolon)
+                : contentType;
+
+        return mimeType.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Get the {@code charset} parameter of the {@code Content-Type} header.
+     *
+     * @param defaultCharset The charset to return if none was given.
+     * @return The charset of the response body, or {@code defaultCharset} if none was given.
+     */
+    @Nullable
+    public String getCharset(@Nullable final String defaultCharset) {
+        final String contentType = getContentType();
+
+        if (contentType == null) {
+            return defaultCharset;
+        }
+
+        final String[] params = contentType.split(";");
+
+        for (int i = 1; i < params.length; i++) {
+            final String param = params[i].trim();
+            final int equals = param.indexOf('=');
+
+            if (equals > 0 && "charset".equalsIgnoreCase(param.substring(0, equals).trim())) {
+                String charset = param.substring(equals + 1).trim();
+
+                if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+
+                return charset.length() > 0 ? charset : defaultCharset;
+            }
+        }
+
+        return defaultCharset;
+    }
+
+    /**
+     * Get the value of the {@code Content-Encoding} header.
+     *
+     * @return The value of the {@code Content-Encoding} header, or {@code null} if it was not
+     *         sent.
+     */
+    @Nullable
+    public String getContentEncoding() {
+        return getHeader("Content-Encoding");
+    }
+
+    /**
+     * Get the value of the given header as a date.
+     *
+     * @param name The name of the header.
+     * @param defaultValue The value to return if the header was not sent, or is not a valid date.
+     * @return The date, in milliseconds since the epoch, or {@code defaultValue}.
+     */
+    public long getHeaderDate(@NonNull final String name, final long defaultValue) {
+        final String value = getHeader(name);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        // SimpleDateFormat is not thread-safe, so one is created each time.
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get the value of the {@code Last-Modified} header.
+     *
+     * @return The date the resource was last modified, in milliseconds since the epoch, or
+     *         {@code 0} if it is not known.
+     */
+    public long getLastModified() {
+        return getHeaderDate("Last-Modified", 0);
+    }
+
+    /**
+     * Get the time the request was started, from {@link System#nanoTime()}. This is the start of
+     * the attempt which produced this response, before any connection was made.
+     *
+     * @return The time the request was started, from {@link System#nanoTime()}.
+     */
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    /**
+     * Get the time the response headers were received, from {@link System#nanoTime()}.
+     *
+     * @return The time the response headers were received, from {@link System#nanoTime()}.
+     */
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * Get the time between the request being started and the response headers being received.
+     *
+     * @return The time taken for the response to arrive, in milliseconds.
+     */
+    public long getResponseDelay() {
+        return (responseTime - requestTime) / 1000000L;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * A {@code ResumableFetcherStreamReader} is a {@link FetcherStreamReader} which may already hold
+ * the start of the data from an earlier, interrupted fetch, and which can accept only the missing
+ * remainder.
+ *
+ * <p>
+ *     When a {@link HttpFetcher} performs a {@code GET} request with a
+ *     {@code ResumableFetcherStreamReader} that has a resume offset and a validator, it asks the
+ *     server for only the bytes from the resume offset onwards, using the {@code Range} and
+ *     {@code If-Range} request headers. Before the body is given to
+ *     {@link #readInputStream(java.io.InputStream)},
+ *     {@link #prepareForResponse(boolean, String)} is called to say whether the body is the
+ *     remainder or the whole of the data. The server sends the whole of the data when it does not
+ *     support ranges, or when the data has changed since the validator was obtained.
+ * </p>
+ *
+ * <p>
+ *     {@link Fetcher}s which do not support resuming do not call
+ *     {@link #prepareForResponse(boolean, String)}. In this case, the body given to
+ *     {@link #readInputStream(java.io.InputStream)} is the whole of the data.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see uk.org.rivernile.android.fetchutils.fetchers.readers.ResumableFileWriterFetcherStreamReader
+ */
+public interface ResumableFetcherStreamReader extends FetcherStreamReader {
+
+    /**
+     * Get the number of bytes of the data which are already held from an earlier fetch.
+     *
+     * @return The number of bytes already held, or {@code 0} if the fetch should start from the
+     *         beginning.
+     */
+    public long getResumeOffset();
+
+    /**
+     * Get the validator of the data already held. This is the {@code ETag} or
+     * {@code Last-Modified} value that was passed to {@link #prepareForResponse(boolean, String)}
+     * by the earlier fetch. A fetch is only resumed when there is a validator, otherwise there is
+     * no way to know whether the data has changed in the meantime.
+     *
+     * @return The validator of the data already held, or {@code null} if there is none.
+     */
+    @Nullable
+    public String getResumeValidator();
+
+    /**
+     * This method is called before the body is given to
+     * {@link #readInputStream(java.io.InputStream)}.
+     *
+     * @param partial {@code true} if the body starts at {@link #getResumeOffset()} and should be
+     *                appended to the data already held. {@code false} if the body is the whole of
+     *                the data, in which case the data already held must be discarded.
+     * @param validator The validator of the data in the response, to be stored and returned from
+     *                  {@link #getResumeValidator()} should this fetch be interrupted. This is
+     *                  {@code null} if the response has no strong validator, in which case a later
+     *                  fetch cannot resume from this one.
+     * @throws IOException When there was a problem preparing for the response.
+     */
+    public void prepareForResponse(boolean partial, @Nullable String validator)
+            throws IOException;
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+/**
+ * A {@code RetryBudget} limits the number of retries made through a {@link HttpFetcherClient}
+ * relative to the number of requests. Without a budget, when a backend is failing every request
+ * is retried up to its maximum number of attempts, multiplying the load on the backend at the
+ * time it can least cope with it.
+ *
+ * <p>
+ *     The budget holds tokens. Each request made with a {@link RetryPolicy} deposits a fraction
+ *     of a token (the retry ratio), and each retry withdraws a whole token. When there is less
+ *     than a whole token, retries are refused and the request fails with the error of its last
+ *     attempt. The balance is capped, and starts full, so that a burst of retries is allowed for
+ *     isolated failures.
+ * </p>
+ *
+ * <p>
+ *     For example, with a ratio of {@code 0.1}, retries can add at most about 10% to the number
+ *     of requests over time, no matter how many attempts a {@link RetryPolicy} allows.
+ * </p>
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see HttpFetcherClient.Builder#setRetryBudget(RetryBudget)
+ */
+public class RetryBudget {
+
+    private final double retryRatio;
+    private final int maxTokens;
+
+    private double tokens;
+    private long rejectedCount;
+
+    /**
+     * Create a new {@code RetryBudget}.
+     *
+     * @param retryRatio The fraction of a token deposited by each request. Must be greater than
+     *                   {@code 0}.
+     * @param maxTokens The maximum number of tokens which can be held, which is also the number
+     *                  held at the start. Must be {@code 1} or greater.
+     */
+    public RetryBudget(final double retryRatio, final int maxTokens) {
+        if (retryRatio <= 0) {
+            throw new IllegalArgumentException("retryRatio must be greater than 0.");
+        }
+
+        if (maxTokens < 1) {
+            throw new IllegalArgumentException("maxTokens must be 1 or greater.");
+        }
+
+        this.retryRatio = retryRatio;
+        this.maxTokens = maxTokens;
+        tokens = maxTokens;
+    }
+
+    /**
+     * Get the fraction of a token deposited by each request.
+     *
+     * @return The fraction of a token deposited by each request.
+     */
+    public double getRetryRatio() {
+        return retryRatio;
+    }
+
+    /**
+     * Get the maximum number of tokens which can be held.
+     *
+     * @return The maximum number of tokens which can be held.
+     */
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * Get the number of tokens currently held. A retry is allowed when this is at least
+     * {@code 1}.
+     *
+     * @return The number of tokens currently held.
+     */
+    public synchronized double getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the number of retries which were refused because the budget had run out.
+     *
+     * @return The number of refused retries.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Record that a request is being made, depositing a fraction of a token.
+     */
+    synchronized void onRequest() {
+        tokens = Math.min(maxTokens, tokens + retryRatio);
+    }
+
+    /**
+     * Attempt to withdraw a token for a retry.
+     *
+     * @return {@code true} if a token was withdrawn and the retry may go ahead, {@code false} if
+     *         the budget has run out.
+     */
+    synchronized boolean tryAcquire() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+
+        rejectedCount++;
+        return false;
+    }
+}
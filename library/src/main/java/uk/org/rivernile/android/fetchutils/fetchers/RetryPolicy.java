@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * A {@code RetryPolicy} describes how a {@link HttpFetcher} retries a request which has failed.
+ * It is given to a {@link HttpFetcher} with
+ * {@link HttpFetcher.Builder#setRetryPolicy(RetryPolicy)}, and may be shared between many
+ * {@link HttpFetcher}s.
+ *
+ * <p>
+ *     A request is retried when it fails with an {@link IOException}, or when the server responds
+ *     with {@code 429 Too Many Requests} or {@code 503 Service Unavailable}. It is not retried
+ *     when;
+ * </p>
+ *
+ * <ul>
+ *     <li>The maximum number of attempts has been reached.</li>
+ *     <li>The request method is not idempotent, unless
+ *         {@link Builder#setRetryNonIdempotent(boolean)} has been set.</li>
+ *     <li>The {@link FetcherStreamReader} has already started reading the response body and cannot
+ *         be restarted, as it would be given the start of the body twice.</li>
+ *     <li>There is no connectivity, the {@link CircuitBreaker} for the host is open, the
+ *         {@link AdmissionController} refused the request, a host redirect was detected, the
+ *         fetch was cancelled with its {@link FetchCancellationSignal}, or the calling thread was
+ *         interrupted.</li>
+ *     <li>The {@link RetryBudget} of the {@link HttpFetcherClient} has run out.</li>
+ * </ul>
+ *
+ * <p>
+ *     Between attempts, the {@link HttpFetcher} sleeps for a delay chosen with "full jitter": a
+ *     random time between {@code 0} and {@code baseDelay * 2^(attempt - 1)}, capped at the maximum
+ *     delay. Randomising the whole delay spreads retries from many clients out, rather than having
+ *     them arrive in waves. If the server sent a {@code Retry-After} header, that delay is used
+ *     instead. If it is longer than the maximum delay, the request is not retried.
+ * </p>
+ *
+ * <p>
+ *     The policy keeps counters of attempts and retries made with it, for diagnostics. This class
+ *     is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see RetryBudget
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final boolean retryNonIdempotent;
+    private final boolean honourRetryAfter;
+    private final Random random = new Random();
+
+    private long attemptCount;
+    private long retryCount;
+    private long retrySuccessCount;
+
+    /**
+     * Construct a {@code RetryPolicy} from a {@link Builder}. This constructor is private - it
+     * should be called by {@link Builder#build()}.
+     *
+     * @param builder The instance of the {@link Builder} to construct from.
+     */
+    private RetryPolicy(@NonNull final Builder builder) {
+        maxAttempts = builder.maxAttempts;
+        baseDelay = builder.baseDelay;
+        maxDelay = builder.maxDelay;
+        retryNonIdempotent = builder.retryNonIdempotent;
+        honourRetryAfter = builder.honourRetryAfter;
+    }
+
+    /**
+     * Get the maximum number of attempts, including the first.
+     *
+     * @return The maximum number of attempts.
+     * @see Builder#setMaxAttempts(int)
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Get the base delay between attempts, in milliseconds.
+     *
+     * @return The base delay between attempts, in milliseconds.
+     * @see Builder#setBaseDelay(long)
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Get the maximum delay between attempts, in milliseconds.
+     *
+     * @return The maximum delay between attempts, in milliseconds.
+     * @see Builder#setMaxDelay(long)
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Are requests with non-idempotent methods, such as {@code POST}, retried?
+     *
+     * @return {@code true} if non-idempotent requests are retried, {@code false} if not.
+     * @see Builder#setRetryNonIdempotent(boolean)
+     */
+    public boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Is the {@code Retry-After} response header honoured?
+     *
+     * @return {@code true} if the {@code Retry-After} header is honoured, {@code false} if not.
+     * @see Builder#setHonourRetryAfter(boolean)
+     */
+    public boolean isHonourRetryAfter() {
+        return honourRetryAfter;
+    }
+
+    /**
+     * Get the number of attempts made with this policy, including first attempts.
+     *
+     * @return The number of attempts made with this policy.
+     */
+    public synchronized long getAttemptCount() {
+        return attemptCount;
+    }
+
+    /**
+     * Get the number of retries made with this policy. This is the number of attempts which were
+     * not first attempts.
+     *
+     * @return The number of retries made with this policy.
+     */
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Get the number of requests which succeeded after being retried.
+     *
+     * @return The number of requests which succeeded after being retried.
+     */
+    public synchronized long getRetrySuccessCount() {
+        return retrySuccessCount;
+    }
+
+    /**
+     * Is a request with the given method allowed to be retried by this policy?
+     *
+     * @param requestMethod The request method. {@code null} means {@code GET}.
+     * @return {@code true} if the request may be retried, {@code false} if not.
+     */
+    boolean isRetryableMethod(@Nullable final String requestMethod) {
+        return retryNonIdempotent || isIdempotent(requestMethod);
+    }
+
+    /**
+     * Is the given {@link IOException} worth retrying? Failures which would happen again
+     * straight away, or which the caller has asked for, are not retried.
+     *
+     * @param e The {@link IOException} the attempt failed with.
+     * @return {@code true} if the attempt may be retried, {@code false} if not.
+     */
+    boolean isRetryableException(@NonNull final IOException e) {
+        if (e instanceof ConnectivityUnavailableException || e instanceof UrlMismatchException ||
+                e instanceof CircuitBreakerOpenException ||
+                e instanceof AdmissionRejectedException) {
+            return false;
+        }
+
+        // A socket timeout is worth retrying, but an interrupted thread wants to stop.
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Get the delay before the next attempt, using full jitter.
+     *
+     * @param attempt The number of the attempt which has just failed, starting at {@code 1}.
+     * @return The delay before the next attempt, in milliseconds.
+     */
+    long getBackoffDelay(final int attempt) {
+        final int shift = Math.min(attempt - 1, 30);
+        final long ceiling = Math.min(maxDelay, baseDelay << shift);
+
+        if (ceiling <= 0) {
+            return 0;
+        }
+
+        final double r;
+
+        synchronized (random) {
+            r = random.nextDouble();
+        }
+
+        return (long) (r * (ceiling + 1));
+    }
+
+    /**
+     * Record that an attempt is being made.
+     *
+     * @param attempt The number of the attempt, starting at {@code 1}.
+     */
+    synchronized void onAttempt(final int attempt) {
+        attemptCount++;
+
+        if (attempt > 1) {
+            retryCount++;
+        }
+    }
+
+    /**
+     * Record that a request succeeded after being retried.
+     */
+    synchronized void onRetrySucceeded() {
+        retrySuccessCount++;
+    }
+
+    /**
+     * Is the given request method idempotent, meaning the request may safely be made more than
+     * once?
+     *
+     * @param requestMethod The request method. {@code null} means {@code GET}.
+     * @return {@code true} if the method is idempotent, {@code false} if not.
+     */
+    static boolean isIdempotent(@Nullable final String requestMethod) {
+        if (requestMethod == null) {
+            return true;
+        }
+
+        final String method = requestMethod.toUpperCase();
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ||
+                "TRACE".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    /**
+     * This class is used to construct a new {@link RetryPolicy}. All fields have defaults. When
+     * building is done, call {@link #build()} to get an instance of {@link RetryPolicy}.
+     */
+    public static class Builder {
+
+        private int maxAttempts = 3;
+        private long baseDelay = 500;
+        private long maxDelay = 30000;
+        private boolean retryNonIdempotent = false;
+        private boolean honourRetryAfter = true;
+
+        /**
+         * Set the maximum number of attempts, including the first.
+         *
+         * <p>
+         *     By default, this is set as {@code 3}.
+         * </p>
+         *
+         * @param maxAttempts The maximum number of attempts. Must be {@code 1} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Set the base delay between attempts. The ceiling of the random delay doubles with each
+         * attempt, starting from this value.
+         *
+         * <p>
+         *     By default, this is set as {@code 500} milliseconds.
+         * </p>
+         *
+         * @param baseDelayMillis The base delay in milliseconds. Must be {@code 0} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setBaseDelay(final long baseDelayMillis) {
+            baseDelay = baseDelayMillis;
+            return this;
+        }
+
+        /**
+         * Set the maximum delay between attempts. A {@code Retry-After} delay longer than this
+         * means the request is not retried.
+         *
+         * <p>
+         *     By default, this is set as {@code 30000} milliseconds.
+         * </p>
+         *
+         * @param maxDelayMillis The maximum delay in milliseconds. Must be {@code 0} or greater.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setMaxDelay(final long maxDelayMillis) {
+            maxDelay = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Set whether requests with non-idempotent methods, such as {@code POST}, are retried.
+         * Retrying these may cause the server to act on the request more than once.
+         *
+         * <p>
+         *     By default, this is set as {@code false}.
+         * </p>
+         *
+         * @param retryNonIdempotent {@code true} if non-idempotent requests should be retried,
+         *                           {@code false} if not.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setRetryNonIdempotent(final boolean retryNonIdempotent) {
+            this.retryNonIdempotent = retryNonIdempotent;
+            return this;
+        }
+
+        /**
+         * Set whether the {@code Retry-After} header of {@code 429} and {@code 503} responses is
+         * honoured. If not, the usual backoff delay is used.
+         *
+         * <p>
+         *     By default, this is set as {@code true}.
+         * </p>
+         *
+         * @param honourRetryAfter {@code true} if the {@code Retry-After} header should be
+         *                         honoured, {@code false} if not.
+         * @return A reference to this {@code Builder} for method chaining.
+         * @see #build()
+         */
+        @NonNull
+        public Builder setHonourRetryAfter(final boolean honourRetryAfter) {
+            this.honourRetryAfter = honourRetryAfter;
+            return this;
+        }
+
+        /**
+         * Create a new instance of {@link RetryPolicy} based on the snapshot of data in this
+         * {@code Builder} at the instant this method is called.
+         *
+         * @return A new instance of {@link RetryPolicy}.
+         * @throws IllegalArgumentException When any of the values are out of range.
+         */
+        @NonNull
+        public RetryPolicy build() {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be 1 or greater.");
+            }
+
+            if (baseDelay < 0 || maxDelay < 0) {
+                throw new IllegalArgumentException("The delays must be 0 or greater.");
+            }
+
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@code SegmentedFetcherStreamReader} is a {@link FetcherStreamReader} which can accept the
+ * body in several segments, each starting at a known offset, which arrive in parallel.
+ *
+ * <p>
+ *     When a {@link HttpFetcher} with a segment count greater than {@code 1} (see
+ *     {@link HttpFetcher.Builder#setSegmentCount(int)}) performs a {@code GET} request with a
+ *     {@code SegmentedFetcherStreamReader}, it first asks the server for the length of the body
+ *     and whether it supports ranges. If it does, and the body is large enough, the body is split
+ *     in to ranges which are fetched in parallel. The sequence of calls is then;
+ * </p>
+ *
+ * <ol>
+ *     <li>{@link #prepareForSegments(long)}, once.</li>
+ *     <li>{@link #readSegment(long, long, InputStream)}, once per segment, concurrently from
+ *         different threads.</li>
+ *     <li>{@link #finishSegments(boolean)}, once, after every segment has finished.</li>
+ * </ol>
+ *
+ * <p>
+ *     Otherwise, the body is fetched as normal and given to
+ *     {@link #readInputStream(InputStream)}.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see uk.org.rivernile.android.fetchutils.fetchers.readers.SegmentedFileWriterFetcherStreamReader
+ */
+public interface SegmentedFetcherStreamReader extends FetcherStreamReader {
+
+    /**
+     * This method is called before any segments are given to this reader.
+     *
+     * @param contentLength The total length of the body, in bytes.
+     * @throws IOException When there was a problem preparing for the segments.
+     */
+    public void prepareForSegments(long contentLength) throws IOException;
+
+    /**
+     * This method is called when the {@link InputStream} for a segment is available to read from.
+     * It is called concurrently for different segments, so implementations must be thread-safe.
+     * Do not close the stream inside this method.
+     *
+     * @param offset The offset of the first byte of this segment within the body.
+     * @param length The length of this segment, in bytes.
+     * @param stream The {@link InputStream} of this segment. It throws an
+     *               {@link java.io.EOFException} if it ends before {@code length} bytes have been
+     *               read.
+     * @throws IOException When an {@link IOException} occurs.
+     */
+    public void readSegment(long offset, long length, @NonNull InputStream stream)
+            throws IOException;
+
+    /**
+     * This method is called once every segment has finished, whether or not they were
+     * successful.
+     *
+     * @param success {@code true} if every segment was read in full, {@code false} if any of them
+     *                failed.
+     * @throws IOException When there was a problem finishing.
+     */
+    public void finishSegments(boolean success) throws IOException;
+}
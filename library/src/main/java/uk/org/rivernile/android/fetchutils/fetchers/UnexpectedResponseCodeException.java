@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers;
+
+import java.io.IOException;
+
+/**
+ * This {@link IOException} is thrown when the server responds with a response code which can not
+ * be given to the {@link FetcherStreamReader}. For example, a resumable download only accepts
+ * {@code 200 OK}, or {@code 206 Partial Content} when a range was asked for.
+ *
+ * @author Niall Scott
+ */
+public class UnexpectedResponseCodeException extends IOException {
+
+    private final int responseCode;
+
+    /**
+     * Constructs a new {@code UnexpectedResponseCodeException} with the default message filled in.
+     *
+     * @param responseCode The response code the server responded with.
+     */
+    public UnexpectedResponseCodeException(final int responseCode) {
+        super("The server responded with the unexpected response code " + responseCode + ".");
+
+        this.responseCode = responseCode;
+    }
+
+    /**
+     * Get the response code the server responded with.
+     *
+     * @return The response code the server responded with.
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+}
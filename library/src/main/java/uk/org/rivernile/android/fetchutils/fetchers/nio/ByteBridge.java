@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code ByteBridge} passes the bytes of a response body from the I/O thread of the
+ * {@link NioHttpEngine} to the thread reading the body. It is a ring buffer of fixed capacity. The
+ * I/O thread never blocks on it. Instead, it only reads as many bytes from the socket as there is
+ * space for, and stops reading from the socket when the buffer is full. When the reader frees
+ * space again, the {@code spaceListener} is run so that the I/O thread can resume reading.
+ *
+ * <p>
+ *     This class is thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+class ByteBridge {
+
+    private final byte[] buffer;
+    private final Runnable spaceListener;
+
+    private int readPosition;
+    private int count;
+    private boolean finished;
+    private boolean closed;
+    private boolean paused;
+    private IOException error;
+
+    /**
+     * Create a new {@code ByteBridge}.
+     *
+     * @param capacity The number of bytes which may be held before the I/O thread must wait.
+     * @param spaceListener A {@link Runnable} which is run, on the reading thread, when space
+     *                      has been freed after the I/O thread was paused.
+     */
+    ByteBridge(final int capacity, @NonNull final Runnable spaceListener) {
+        buffer = new byte[capacity];
+        this.spaceListener = spaceListener;
+    }
+
+    /**
+     * Get the number of bytes which may be written without overflowing the buffer. If there is
+     * no space, the I/O thread is marked as paused, and the {@code spaceListener} will be run once
+     * space has been freed.
+     *
+     * @return The number of bytes which may be written.
+     */
+    synchronized int getSpace() {
+        final int space = closed ? buffer.length : buffer.length - count;
+        paused = space == 0;
+
+        return space;
+    }
+
+    /**
+     * Write bytes from the I/O thread. There must be enough space for them. If the reader has
+     * closed its stream, the bytes are thrown away.
+     *
+     * @param src The {@link ByteBuffer} to take the bytes from. Its position is advanced.
+     * @param length The number of bytes to write.
+     */
+    synchronized void write(@NonNull final ByteBuffer src, final int length) {
+        if (closed) {
+            src.position(src.position() + length);
+            return;
+        }
+
+        int remaining = length;
+
+        while (remaining > 0) {
+            final int writePosition = (readPosition + count) % buffer.length;
+            final int n = Math.min(remaining, buffer.length - writePosition);
+            src.get(buffer, writePosition, n);
+            count += n;
+            remaining -= n;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Mark the body as complete. Once the held bytes have been read, the reader sees the end of
+     * the stream.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Fail the body. The reader is given the {@link IOException} once it has read the bytes held
+     * before the failure, or straight away if it is waiting.
+     *
+     * @param e The {@link IOException} to give to the reader.
+     */
+    synchronized void fail(@NonNull final IOException e) {
+        if (!finished && error == null) {
+            error = e;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Has the whole body been passed through this bridge?
+     *
+     * @return {@code true} if the body is complete, {@code false} if not.
+     */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Create an {@link InputStream} which reads from this bridge.
+     *
+     * @param readTimeout The time, in milliseconds, that a read may wait for bytes before a
+     *                    {@link SocketTimeoutException} is thrown. {@code 0} means no timeout.
+     * @param onClose A {@link Runnable} to run when the stream is closed before the body is
+     *                complete, or {@code null} if nothing should happen.
+     * @return An {@link InputStream} which reads from this bridge.
+     */
+    @NonNull
+    InputStream getInputStream(final int readTimeout, @Nullable final Runnable onClose) {
+        return new BridgeInputStream(readTimeout, onClose);
+    }
+
+    /**
+     * Read bytes on the reading thread, waiting until some are available.
+     *
+     * @param b The array to read in to.
+     * @param off The offset in the array to start at.
+     * @param len The maximum number of bytes to read.
+     * @param readTimeout The time, in milliseconds, to wait for bytes. {@code 0} means no
+     *                    timeout.
+     * @return The number of bytes read, or {@code -1} at the end of the body.
+     * @throws IOException When the body failed, or the timeout passed.
+     */
+    private int read(@NonNull final byte[] b, final int off, final int len,
+            final int readTimeout) throws IOException {
+        final boolean resume;
+        final int total;
+
+        synchronized (this) {
+            final long deadline = System.nanoTime() + readTimeout * 1000000L;
+
+            while (count == 0 && !finished && error == null && !closed) {
+                if (readTimeout == 0) {
+                    waitUninterruptibly(0);
+                } else {
+                    final long remaining = (deadline - System.nanoTime()) / 1000000L;
+
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+
+                    waitUninterruptibly(remaining);
+                }
+            }
+
+            if (closed) {
+                throw new IOException("The stream is closed.");
+            }
+
+            if (count == 0) {
+                if (finished) {
+                    return -1;
+                }
+
+                throw error;
+            }
+
+            total = Math.min(len, count);
+            int remaining = total;
+            int offset = off;
+
+            while (remaining > 0) {
+                final int n = Math.min(remaining, buffer.length - readPosition);
+                System.arraycopy(buffer, readPosition, b, offset, n);
+                readPosition = (readPosition + n) % buffer.length;
+                count -= n;
+                offset += n;
+                remaining -= n;
+            }
+
+            // Only wake the I/O thread once a good amount of space is free, so that it is not
+            // woken for every small read.
+            resume = paused && count <= buffer.length / 2;
+
+            if (resume) {
+                paused = false;
+            }
+        }
+
+        if (resume) {
+            spaceListener.run();
+        }
+
+        return total;
+    }
+
+    /**
+     * Get the number of bytes which can be read without waiting.
+     *
+     * @return The number of bytes which can be read without waiting.
+     */
+    private synchronized int available() {
+        return count;
+    }
+
+    /**
+     * Close the reading side. Held bytes are thrown away.
+     *
+     * @return {@code true} if the body was complete, {@code false} if the stream was closed
+     *         early.
+     */
+    private boolean close() {
+        final boolean resume;
+        final boolean complete;
+
+        synchronized (this) {
+            if (closed) {
+                return true;
+            }
+
+            closed = true;
+            complete = finished && count == 0;
+            count = 0;
+            resume = paused;
+            paused = false;
+            notifyAll();
+        }
+
+        if (resume) {
+            spaceListener.run();
+        }
+
+        return complete;
+    }
+
+    /**
+     * Wait on this instance, keeping the interrupted status of the thread rather than stopping.
+     * A read on a socket is not interrupted either.
+     *
+     * @param millis The time to wait for, or {@code 0} to wait until notified.
+     */
+    private void waitUninterruptibly(final long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The {@link InputStream} given to the reader of the body.
+     */
+    private class BridgeInputStream extends InputStream {
+
+        private final int readTimeout;
+        private final Runnable onClose;
+
+        /**
+         * Create a new {@code BridgeInputStream}.
+         *
+         * @param readTimeout The read timeout, in milliseconds.
+         * @param onClose A {@link Runnable} to run when the stream is closed early, or
+         *                {@code null}.
+         */
+        private BridgeInputStream(final int readTimeout, @Nullable final Runnable onClose) {
+            this.readTimeout = readTimeout;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int n = read(b, 0, 1);
+
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            return ByteBridge.this.read(b, off, len, readTimeout);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return ByteBridge.this.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ByteBridge.this.close() && onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+}
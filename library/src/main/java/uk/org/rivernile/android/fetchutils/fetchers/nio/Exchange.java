@@ -0,0 +1,800 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An {@code Exchange} is a single HTTP/1.1 request and its response, made by a
+ * {@link NioHttpURLConnection} through a {@link NioHttpEngine}. The thread using the connection
+ * queues request bytes and waits for the response, while the I/O thread of the engine writes the
+ * queued bytes to the socket and parses the response as it arrives. The response body is passed
+ * to the reading thread through a {@link ByteBridge}.
+ *
+ * <p>
+ *     Methods which are documented as being called on the I/O thread must only be called there.
+ *     All other methods are thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+class Exchange {
+
+    private static final int MAX_LINE_LENGTH = 65536;
+    private static final int MAX_PENDING_WRITE_BYTES = 65536;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY_FIXED = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_BODY_UNTIL_CLOSE = 7;
+    private static final int STATE_DONE = 8;
+
+    private final NioHttpEngine engine;
+    private final String key;
+    private final InetSocketAddress address;
+    private final boolean headRequest;
+    private final ByteBridge body;
+
+    // Guarded by this.
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<>();
+    private ArrayList<ByteBuffer> replayBuffers = new ArrayList<>();
+    private int replayBytes;
+    private boolean responseStarted;
+    private int pendingWriteBytes;
+    private boolean requestComplete;
+    private boolean connected;
+    private boolean responseReady;
+    private boolean done;
+    private IOException error;
+    private int responseCode = -1;
+    private String statusLine;
+    private String responseMessage;
+    private List<String[]> headers;
+
+    // Only used on the I/O thread.
+    private NioHttpEngine.Connection connection;
+    private int state = STATE_STATUS_LINE;
+    private final StringBuilder line = new StringBuilder();
+    private final ArrayList<String[]> parsedHeaders = new ArrayList<>();
+    private int parsedCode;
+    private String parsedStatusLine;
+    private String parsedMessage;
+    private boolean keepAlive;
+    private long bodyRemaining;
+
+    /**
+     * Create a new {@code Exchange}.
+     *
+     * @param engine The {@link NioHttpEngine} which runs this exchange.
+     * @param key The key of the host, used to reuse idle connections.
+     * @param address The resolved address of the host.
+     * @param headRequest {@code true} if the request method is {@code HEAD}, meaning the response
+     *                    has no body.
+     * @param bufferSize The capacity of the {@link ByteBridge} for the response body.
+     */
+    Exchange(@NonNull final NioHttpEngine engine, @NonNull final String key,
+            @NonNull final InetSocketAddress address, final boolean headRequest,
+            final int bufferSize) {
+        this.engine = engine;
+        this.key = key;
+        this.address = address;
+        this.headRequest = headRequest;
+        body = new ByteBridge(bufferSize, new Runnable() {
+            @Override
+            public void run() {
+                Exchange.this.engine.resumeReading(Exchange.this);
+            }
+        });
+    }
+
+    /**
+     * Get the key of the host.
+     *
+     * @return The key of the host.
+     */
+    @NonNull
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the resolved address of the host.
+     *
+     * @return The resolved address of the host.
+     */
+    @NonNull
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the {@link ByteBridge} which holds the response body.
+     *
+     * @return The {@link ByteBridge} which holds the response body.
+     */
+    @NonNull
+    ByteBridge getBody() {
+        return body;
+    }
+
+    /**
+     * Wait until the connection to the host has been established.
+     *
+     * @param timeout The time to wait, in milliseconds. {@code 0} means no timeout.
+     * @throws IOException When the connection failed, or the timeout passed.
+     */
+    synchronized void awaitConnected(final int timeout) throws IOException {
+        if (!await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return connected;
+            }
+        }, timeout)) {
+            final SocketTimeoutException e = new SocketTimeoutException("connect timed out");
+            abort(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Queue bytes of the request to be written to the socket. This waits while too many bytes
+     * are already waiting to be written.
+     *
+     * @param buffer The bytes to write. The {@link ByteBuffer} must not be changed afterwards.
+     * @param last {@code true} if these are the last bytes of the request.
+     * @param timeout The time to wait for space, in milliseconds. {@code 0} means no timeout.
+     * @throws IOException When the exchange has failed, or the timeout passed.
+     */
+    void write(@NonNull final ByteBuffer buffer, final boolean last, final int timeout)
+            throws IOException {
+        final boolean schedule;
+
+        synchronized (this) {
+            if (!await(new Condition() {
+                @Override
+                public boolean isMet() {
+                    return pendingWriteBytes < MAX_PENDING_WRITE_BYTES;
+                }
+            }, timeout)) {
+                final SocketTimeoutException e = new SocketTimeoutException("Write timed out");
+                abort(e);
+                throw e;
+            }
+
+            schedule = writeQueue.isEmpty();
+            writeQueue.add(buffer);
+            pendingWriteBytes += buffer.remaining();
+            addReplayBuffer(buffer);
+            requestComplete = last;
+        }
+
+        if (schedule) {
+            engine.resumeWriting(this);
+        }
+    }
+
+    /**
+     * Wait until the status line and headers of the response have arrived.
+     *
+     * @param timeout The time to wait, in milliseconds. {@code 0} means no timeout.
+     * @throws IOException When the exchange failed, or the timeout passed.
+     */
+    synchronized void awaitResponse(final int timeout) throws IOException {
+        if (!await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return responseReady;
+            }
+        }, timeout)) {
+            final SocketTimeoutException e = new SocketTimeoutException("Read timed out");
+            abort(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Keep a view of request bytes so that the request can be written again on a new socket if
+     * a reused socket turns out to have been closed by the server. Views are only kept until
+     * the response starts to arrive, and not for large request bodies. This must be called
+     * while holding the lock on this instance.
+     *
+     * @param buffer The bytes which have been queued.
+     */
+    private void addReplayBuffer(@NonNull final ByteBuffer buffer) {
+        if (replayBuffers == null) {
+            return;
+        }
+
+        replayBytes += buffer.remaining();
+
+        if (replayBytes > MAX_PENDING_WRITE_BYTES) {
+            replayBuffers = null;
+        } else {
+            replayBuffers.add(buffer.duplicate());
+        }
+    }
+
+    /**
+     * Get the response code. Only valid after {@link #awaitResponse(int)} has returned.
+     *
+     * @return The response code.
+     */
+    synchronized int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * Get the status line of the response. Only valid after {@link #awaitResponse(int)} has
+     * returned.
+     *
+     * @return The status line of the response.
+     */
+    synchronized String getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * Get the reason phrase of the response. Only valid after {@link #awaitResponse(int)} has
+     * returned.
+     *
+     * @return The reason phrase, or {@code null} if there was none.
+     */
+    @Nullable
+    synchronized String getResponseMessage() {
+        return responseMessage;
+    }
+
+    /**
+     * Get the headers of the response, as name and value pairs in the order they were received.
+     * Only valid after {@link #awaitResponse(int)} has returned.
+     *
+     * @return The headers of the response.
+     */
+    synchronized List<String[]> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Abort the exchange. Anything waiting for it fails with the given {@link IOException}, and
+     * the connection is closed. This has no effect once the response has been fully received.
+     *
+     * @param e The {@link IOException} to fail with.
+     */
+    void abort(@NonNull final IOException e) {
+        if (fail(e)) {
+            engine.abort(this);
+        }
+    }
+
+    /**
+     * Wait until the given {@link Condition} is met or the exchange fails. This must be called
+     * while holding the lock on this instance.
+     *
+     * @param condition The {@link Condition} to wait for.
+     * @param timeout The time to wait, in milliseconds. {@code 0} means no timeout.
+     * @return {@code true} if the condition was met, {@code false} if the timeout passed.
+     * @throws IOException When the exchange failed.
+     */
+    private boolean await(@NonNull final Condition condition, final int timeout)
+            throws IOException {
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+
+        while (!condition.isMet()) {
+            if (error != null) {
+                throw error;
+            }
+
+            long remaining = 0;
+
+            if (timeout > 0) {
+                remaining = (deadline - System.nanoTime()) / 1000000L;
+
+                if (remaining <= 0) {
+                    return false;
+                }
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                // A blocking socket would not be interrupted either, so carry on waiting.
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Record that the exchange has failed.
+     *
+     * @param e The {@link IOException} it failed with.
+     * @return {@code true} if this is the first failure, {@code false} if the exchange had
+     *         already failed or finished.
+     */
+    private boolean fail(@NonNull final IOException e) {
+        synchronized (this) {
+            if (done || error != null) {
+                return false;
+            }
+
+            error = e;
+            notifyAll();
+        }
+
+        body.fail(e);
+        return true;
+    }
+
+    /**
+     * Get the connection which this exchange is using. This is called on the I/O thread.
+     *
+     * @return The connection, or {@code null} if it has not been connected.
+     */
+    @Nullable
+    NioHttpEngine.Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * This is called on the I/O thread when a connection has been established or taken from
+     * the idle connections.
+     *
+     * @param connection The connection to use.
+     * @return {@code true} if the exchange is still wanted, {@code false} if it has already
+     *         failed and the connection should be closed.
+     */
+    boolean onConnected(@NonNull final NioHttpEngine.Connection connection) {
+        this.connection = connection;
+
+        synchronized (this) {
+            if (error != null) {
+                return false;
+            }
+
+            connected = true;
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * This is called on the I/O thread when the connection could not be established.
+     *
+     * @param e The reason for the failure.
+     */
+    void onConnectFailed(@NonNull final IOException e) {
+        fail(e);
+    }
+
+    /**
+     * Get the next bytes to write to the socket. This is called on the I/O thread.
+     *
+     * @return The next bytes to write, or {@code null} if there are none waiting.
+     */
+    @Nullable
+    synchronized ByteBuffer peekWrite() {
+        return writeQueue.peek();
+    }
+
+    /**
+     * Record that bytes have been written to the socket. This is called on the I/O thread.
+     *
+     * @param count The number of bytes written.
+     */
+    synchronized void onWritten(final int count) {
+        final ByteBuffer head = writeQueue.peek();
+
+        if (head != null && !head.hasRemaining()) {
+            writeQueue.poll();
+        }
+
+        pendingWriteBytes -= count;
+        notifyAll();
+    }
+
+    /**
+     * Get the number of bytes of the response body which may be read from the socket without
+     * overflowing the {@link ByteBridge}. This is called on the I/O thread. The status line and
+     * headers are only read while there is space, which is always the case as nothing has been
+     * given to the reader yet.
+     *
+     * @return The number of bytes which may be read, or {@code 0} if reading should pause.
+     */
+    int getReadSpace() {
+        return body.getSpace();
+    }
+
+    /**
+     * Parse bytes of the response. This is called on the I/O thread.
+     *
+     * @param buffer The bytes read from the socket.
+     * @return {@code true} if the response is complete, {@code false} if more is needed.
+     * @throws IOException When the response is not valid HTTP.
+     */
+    boolean onRead(@NonNull final ByteBuffer buffer) throws IOException {
+        if (!responseStarted) {
+            synchronized (this) {
+                // The server has answered, so the request cannot be written again.
+                responseStarted = true;
+                replayBuffers = null;
+            }
+        }
+
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case STATE_STATUS_LINE:
+                case STATE_HEADERS:
+                case STATE_CHUNK_SIZE:
+                case STATE_CHUNK_END:
+                case STATE_TRAILERS:
+                    if (readLine(buffer)) {
+                        onLine(line.toString());
+                        line.setLength(0);
+                    }
+
+                    break;
+                case STATE_BODY_FIXED:
+                case STATE_CHUNK_DATA: {
+                    final int n = (int) Math.min(bodyRemaining, buffer.remaining());
+                    body.write(buffer, n);
+                    bodyRemaining -= n;
+
+                    if (bodyRemaining == 0) {
+                        state = state == STATE_BODY_FIXED ? STATE_DONE : STATE_CHUNK_END;
+                    }
+
+                    break;
+                }
+                case STATE_BODY_UNTIL_CLOSE:
+                    body.write(buffer, buffer.remaining());
+                    break;
+                default:
+                    // The server sent more than the response, so the connection cannot be
+                    // trusted for another request.
+                    keepAlive = false;
+                    buffer.position(buffer.limit());
+                    break;
+            }
+
+            if (state == STATE_DONE) {
+                break;
+            }
+        }
+
+        if (state == STATE_DONE) {
+            if (buffer.hasRemaining()) {
+                keepAlive = false;
+            }
+
+            onDone();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * This is called on the I/O thread when the server has closed the connection.
+     *
+     * @return {@code true} if this completed the response, {@code false} if the response was cut
+     *         short and the exchange has failed.
+     */
+    boolean onEndOfStream() {
+        if (state == STATE_BODY_UNTIL_CLOSE) {
+            keepAlive = false;
+            onDone();
+            return true;
+        }
+
+        fail(new EOFException(state == STATE_STATUS_LINE && line.length() == 0
+                ? "The server closed the connection without a response."
+                : "The connection was closed before the response was complete."));
+        return false;
+    }
+
+    /**
+     * This is called on the I/O thread when the connection failed.
+     *
+     * @param e The reason for the failure.
+     */
+    void onConnectionFailed(@NonNull final IOException e) {
+        fail(e);
+    }
+
+    /**
+     * Can this exchange be started again on a new socket? This is the case when nothing of the
+     * response has arrived, the request bytes written so far are still held, and the exchange
+     * has not failed. This is called on the I/O thread.
+     *
+     * @return {@code true} if the exchange can be started again, {@code false} if not.
+     */
+    synchronized boolean canRetry() {
+        return !responseStarted && replayBuffers != null && error == null && !done;
+    }
+
+    /**
+     * Prepare to start this exchange again on a new socket, by queuing the request bytes which
+     * have been written so far again. An exchange is only started again once. This is called on
+     * the I/O thread, after {@link #canRetry()} has returned {@code true}.
+     */
+    synchronized void resetForRetry() {
+        writeQueue.clear();
+        pendingWriteBytes = 0;
+
+        for (ByteBuffer buffer : replayBuffers) {
+            final ByteBuffer copy = buffer.duplicate();
+            writeQueue.add(copy);
+            pendingWriteBytes += copy.remaining();
+        }
+
+        replayBuffers = null;
+        connection = null;
+        notifyAll();
+    }
+
+    /**
+     * Can the connection be used for another request now that the response is complete? This
+     * is called on the I/O thread.
+     *
+     * @return {@code true} if the connection can be reused, {@code false} if it must be closed.
+     */
+    boolean isReusable() {
+        synchronized (this) {
+            return keepAlive && requestComplete && writeQueue.isEmpty();
+        }
+    }
+
+    /**
+     * Read bytes in to the current line until the end of the line.
+     *
+     * @param buffer The bytes to read from.
+     * @return {@code true} if the line is complete, {@code false} if more bytes are needed.
+     * @throws ProtocolException When the line is too long.
+     */
+    private boolean readLine(@NonNull final ByteBuffer buffer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            final char c = (char) (buffer.get() & 0xff);
+
+            if (c == '\n') {
+                final int length = line.length();
+
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+
+                return true;
+            }
+
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("The response has a line which is too long.");
+            }
+
+            line.append(c);
+        }
+
+        return false;
+    }
+
+    /**
+     * Handle a complete line of the response.
+     *
+     * @param l The line, without its line ending.
+     * @throws IOException When the line is not valid.
+     */
+    private void onLine(@NonNull final String l) throws IOException {
+        switch (state) {
+            case STATE_STATUS_LINE:
+                if (l.length() > 0) {
+                    parseStatusLine(l);
+                    state = STATE_HEADERS;
+                }
+
+                break;
+            case STATE_HEADERS:
+                if (l.length() == 0) {
+                    onHeadersComplete();
+                } else {
+                    final int colon = l.indexOf(':');
+
+                    if (colon > 0) {
+                        parsedHeaders.add(new String[] {
+                                l.substring(0, colon).trim(), l.substring(colon + 1).trim() });
+                    }
+                }
+
+                break;
+            case STATE_CHUNK_SIZE:
+                bodyRemaining = parseChunkSize(l);
+                state = bodyRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+                break;
+            case STATE_CHUNK_END:
+                if (l.length() != 0) {
+                    throw new ProtocolException("A chunk was not followed by a line ending.");
+                }
+
+                state = STATE_CHUNK_SIZE;
+                break;
+            case STATE_TRAILERS:
+                if (l.length() == 0) {
+                    state = STATE_DONE;
+                }
+
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parse the status line of the response.
+     *
+     * @param l The status line.
+     * @throws ProtocolException When the status line is not valid.
+     */
+    private void parseStatusLine(@NonNull final String l) throws ProtocolException {
+        final int firstSpace = l.indexOf(' ');
+
+        if (!l.startsWith("HTTP/") || firstSpace < 0 || l.length() < firstSpace + 4) {
+            throw new ProtocolException("Unexpected status line: " + l);
+        }
+
+        try {
+            parsedCode = Integer.parseInt(l.substring(firstSpace + 1, firstSpace + 4));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected status line: " + l);
+        }
+
+        parsedStatusLine = l;
+        parsedMessage = l.length() > firstSpace + 5 ? l.substring(firstSpace + 5) : null;
+        // HTTP/1.0 connections are only kept alive when the server says so.
+        keepAlive = !l.startsWith("HTTP/1.0");
+    }
+
+    /**
+     * Handle the end of the headers, deciding how the length of the body is known.
+     *
+     * @throws ProtocolException When the headers describe the body in a way which is not
+     *                           valid.
+     */
+    private void onHeadersComplete() throws ProtocolException {
+        if (parsedCode >= 100 && parsedCode < 200) {
+            // An interim response, such as 100 Continue. The real response follows.
+            parsedHeaders.clear();
+            state = STATE_STATUS_LINE;
+            return;
+        }
+
+        String transferEncoding = null;
+        String contentLength = null;
+
+        for (String[] header : parsedHeaders) {
+            final String name = header[0];
+
+            if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                transferEncoding = header[1];
+            } else if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = header[1];
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                final String value = header[1].toLowerCase(Locale.US);
+
+                if (value.contains("close")) {
+                    keepAlive = false;
+                } else if (value.contains("keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+
+        if (headRequest || parsedCode == 204 || parsedCode == 304) {
+            state = STATE_DONE;
+        } else if (transferEncoding != null &&
+                transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+            state = STATE_CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                bodyRemaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+            }
+
+            if (bodyRemaining < 0) {
+                throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+            }
+
+            state = bodyRemaining == 0 ? STATE_DONE : STATE_BODY_FIXED;
+        } else {
+            state = STATE_BODY_UNTIL_CLOSE;
+        }
+
+        synchronized (this) {
+            responseCode = parsedCode;
+            statusLine = parsedStatusLine;
+            responseMessage = parsedMessage;
+            headers = new ArrayList<>(parsedHeaders);
+            responseReady = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Parse the size line of a chunk.
+     *
+     * @param l The size line.
+     * @return The size of the chunk.
+     * @throws ProtocolException When the size is not valid.
+     */
+    private static long parseChunkSize(@NonNull final String l) throws ProtocolException {
+        final int extension = l.indexOf(';');
+        final String size = (extension >= 0 ? l.substring(0, extension) : l).trim();
+
+        try {
+            final long value = Long.parseLong(size, 16);
+
+            if (value < 0) {
+                throw new ProtocolException("Unexpected chunk size: " + l);
+            }
+
+            return value;
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected chunk size: " + l);
+        }
+    }
+
+    /**
+     * Mark the response as complete.
+     */
+    private void onDone() {
+        state = STATE_DONE;
+
+        synchronized (this) {
+            done = true;
+        }
+
+        body.finish();
+    }
+
+    /**
+     * A condition which a thread waits for.
+     */
+    private interface Condition {
+
+        /**
+         * Is the condition met?
+         *
+         * @return {@code true} if the condition is met, {@code false} if not.
+         */
+        boolean isMet();
+    }
+}
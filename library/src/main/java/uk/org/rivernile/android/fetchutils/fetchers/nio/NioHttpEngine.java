@@ -0,0 +1,880 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uk.org.rivernile.android.fetchutils.fetchers.HttpFetcher;
+import uk.org.rivernile.android.fetchutils.fetchers.HttpFetcherClient;
+import uk.org.rivernile.android.fetchutils.fetchers.HttpTransport;
+import uk.org.rivernile.android.fetchutils.fetchers.PlatformHttpTransport;
+
+/**
+ * A {@code NioHttpEngine} is a {@link HttpTransport} which performs the network I/O of all of its
+ * connections on a single thread, using non-blocking {@link SocketChannel}s and a
+ * {@link Selector}. The platform {@link HttpURLConnection} dedicates a blocked thread to each
+ * socket while it waits for the server; with this engine, hundreds of requests may be waiting on
+ * the network while only the I/O thread is busy with them.
+ *
+ * <p>
+ *     The connections returned by {@link #openConnection(URL, Proxy)} implement the
+ *     {@link HttpURLConnection} API, so they can be driven by a {@link HttpFetcher} without it
+ *     knowing about the engine. Request bytes written by the calling thread are queued and
+ *     written by the I/O thread. Response bytes are parsed on the I/O thread, and the body is
+ *     pushed in to a bounded buffer which the reader of the body takes it from. When a reader
+ *     falls behind and its buffer is full, the engine stops reading that socket until the reader
+ *     catches up, so memory use per request is bounded.
+ * </p>
+ *
+ * <p>
+ *     The engine speaks plain HTTP/1.1. Sockets are kept alive and reused for later requests to
+ *     the same host, up to a maximum number of idle sockets per host. Idle sockets are watched so
+ *     that those closed by the server are removed straight away. If a reused socket fails before
+ *     the server has answered, the request is written again on a new socket. The engine does
+ *     not support TLS or proxies. Connections to {@code https} URLs, or through an explicit
+ *     {@link Proxy}, are opened with the {@code fallback} {@link HttpTransport} instead.
+ * </p>
+ *
+ * <p>
+ *     The I/O thread is started when the first connection is made, and stops when
+ *     {@link #shutdown()} is called. This class is thread-safe. An instance should be shared, for
+ *     example by setting it on a {@link HttpFetcherClient} with
+ *     {@link HttpFetcherClient.Builder#setTransport(HttpTransport)}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * NioHttpEngine engine = new NioHttpEngine(5, 300000);
+ * HttpFetcherClient client = new HttpFetcherClient.Builder()
+ *         .setTransport(engine)
+ *         .build();
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see HttpTransport
+ */
+public class NioHttpEngine implements HttpTransport {
+
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int BODY_BUFFER_SIZE = 65536;
+
+    private final int maxIdleConnectionsPerHost;
+    private final long keepAliveDurationMillis;
+    private final HttpTransport fallback;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final HashMap<String, LinkedList<Connection>> idleConnections = new HashMap<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private Selector selector;
+    private Thread ioThread;
+    private boolean shutdown;
+
+    private long connectCount;
+    private long reuseCount;
+    private long retryCount;
+    private int openConnectionCount;
+    private int idleConnectionCount;
+
+    /**
+     * Create a new {@code NioHttpEngine} which falls back to a {@link PlatformHttpTransport}.
+     *
+     * @param maxIdleConnectionsPerHost The maximum number of idle sockets to keep per host. Must
+     *                                  be {@code 0} or greater.
+     * @param keepAliveDurationMillis The number of milliseconds that a socket may remain idle
+     *                                for before it is closed. Must be greater than {@code 0}.
+     */
+    public NioHttpEngine(final int maxIdleConnectionsPerHost, final long keepAliveDurationMillis) {
+        this(maxIdleConnectionsPerHost, keepAliveDurationMillis, new PlatformHttpTransport());
+    }
+
+    /**
+     * Create a new {@code NioHttpEngine}.
+     *
+     * @param maxIdleConnectionsPerHost The maximum number of idle sockets to keep per host. Must
+     *                                  be {@code 0} or greater.
+     * @param keepAliveDurationMillis The number of milliseconds that a socket may remain idle
+     *                                for before it is closed. Must be greater than {@code 0}.
+     * @param fallback The {@link HttpTransport} used for connections which this engine does not
+     *                 support, such as {@code https} URLs.
+     */
+    public NioHttpEngine(final int maxIdleConnectionsPerHost, final long keepAliveDurationMillis,
+            @NonNull final HttpTransport fallback) {
+        if (maxIdleConnectionsPerHost < 0) {
+            throw new IllegalArgumentException("maxIdleConnectionsPerHost must be 0 or greater.");
+        }
+
+        if (keepAliveDurationMillis <= 0) {
+            throw new IllegalArgumentException("keepAliveDurationMillis must be greater than 0.");
+        }
+
+        this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        this.keepAliveDurationMillis = keepAliveDurationMillis;
+        this.fallback = fallback;
+    }
+
+    @NonNull
+    @Override
+    public HttpURLConnection openConnection(@NonNull final URL url, @Nullable final Proxy proxy)
+            throws IOException {
+        if (!"http".equalsIgnoreCase(url.getProtocol()) ||
+                (proxy != null && proxy.type() != Proxy.Type.DIRECT)) {
+            return fallback.openConnection(url, proxy);
+        }
+
+        return new NioHttpURLConnection(url, this);
+    }
+
+    /**
+     * Stop the I/O thread and close all sockets. Requests in progress fail. Connections opened
+     * after this fail to connect.
+     */
+    public void shutdown() {
+        final Selector s;
+
+        synchronized (this) {
+            shutdown = true;
+            s = selector;
+        }
+
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Has this engine been shut down?
+     *
+     * @return {@code true} if {@link #shutdown()} has been called, {@code false} if not.
+     */
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Get the maximum number of idle sockets kept per host.
+     *
+     * @return The maximum number of idle sockets kept per host.
+     */
+    public int getMaxIdleConnectionsPerHost() {
+        return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Get the number of milliseconds that a socket may remain idle for before it is closed.
+     *
+     * @return The keep-alive duration, in milliseconds.
+     */
+    public long getKeepAliveDurationMillis() {
+        return keepAliveDurationMillis;
+    }
+
+    /**
+     * Get the number of new sockets which have been connected.
+     *
+     * @return The number of new sockets.
+     */
+    public synchronized long getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * Get the number of requests which reused an idle socket.
+     *
+     * @return The number of reused sockets.
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * Get the number of requests which were started again on a new socket, because the idle
+     * socket they were given had been closed by the server.
+     *
+     * @return The number of requests which were started again.
+     */
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Get the number of sockets which are currently open, whether in use or idle.
+     *
+     * @return The number of open sockets.
+     */
+    public synchronized int getOpenConnectionCount() {
+        return openConnectionCount;
+    }
+
+    /**
+     * Get the number of idle sockets.
+     *
+     * @return The number of idle sockets.
+     */
+    public synchronized int getIdleConnectionCount() {
+        return idleConnectionCount;
+    }
+
+    /**
+     * Get the capacity of the buffer which holds each response body.
+     *
+     * @return The capacity of the buffer for each response body, in bytes.
+     */
+    int getBodyBufferSize() {
+        return BODY_BUFFER_SIZE;
+    }
+
+    /**
+     * Start the exchange by giving it a socket, either an idle one to the same host or a new one.
+     *
+     * @param exchange The {@link Exchange} to start.
+     * @throws IOException When the engine has been shut down, or the I/O thread could not be
+     *                     started.
+     */
+    void start(@NonNull final Exchange exchange) throws IOException {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                attach(exchange);
+            }
+        });
+    }
+
+    /**
+     * Ask the I/O thread to write the queued bytes of the exchange.
+     *
+     * @param exchange The {@link Exchange} which has bytes to write.
+     */
+    void resumeWriting(@NonNull final Exchange exchange) {
+        submitQuietly(new Runnable() {
+            @Override
+            public void run() {
+                final Connection connection = exchange.getConnection();
+
+                if (connection != null && connection.exchange == exchange) {
+                    setInterest(connection, SelectionKey.OP_WRITE, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ask the I/O thread to read more of the response of the exchange, after it paused because
+     * the body buffer was full.
+     *
+     * @param exchange The {@link Exchange} which has space for more of its body.
+     */
+    void resumeReading(@NonNull final Exchange exchange) {
+        submitQuietly(new Runnable() {
+            @Override
+            public void run() {
+                final Connection connection = exchange.getConnection();
+
+                if (connection != null && connection.exchange == exchange) {
+                    setInterest(connection, SelectionKey.OP_READ, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ask the I/O thread to close the socket of an exchange which has been aborted.
+     *
+     * @param exchange The aborted {@link Exchange}.
+     */
+    void abort(@NonNull final Exchange exchange) {
+        submitQuietly(new Runnable() {
+            @Override
+            public void run() {
+                final Connection connection = exchange.getConnection();
+
+                if (connection != null && connection.exchange == exchange) {
+                    close(connection);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the I/O thread, starting the thread if needed.
+     *
+     * @param task The task to run.
+     * @throws IOException When the engine has been shut down, or the {@link Selector} could not
+     *                     be opened.
+     */
+    private void submit(@NonNull final Runnable task) throws IOException {
+        final Selector s;
+
+        synchronized (this) {
+            if (shutdown) {
+                throw new IOException("The NioHttpEngine has been shut down.");
+            }
+
+            if (selector == null) {
+                selector = Selector.open();
+                ioThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runLoop();
+                    }
+                }, "NioHttpEngine I/O");
+                ioThread.setDaemon(true);
+                ioThread.start();
+            }
+
+            // The task is added while holding the lock, so that it is either run by the I/O
+            // thread or drained when it stops.
+            tasks.add(task);
+            s = selector;
+        }
+
+        s.wakeup();
+    }
+
+    /**
+     * Run a task on the I/O thread, if it is running.
+     *
+     * @param task The task to run.
+     */
+    private void submitQuietly(@NonNull final Runnable task) {
+        try {
+            submit(task);
+        } catch (IOException e) {
+            // The engine has been shut down, so all sockets have already been closed.
+        }
+    }
+
+    /**
+     * The loop run by the I/O thread.
+     */
+    private void runLoop() {
+        final Selector s;
+
+        synchronized (this) {
+            s = selector;
+        }
+
+        try {
+            while (!isShutdown()) {
+                s.select(getSelectTimeout());
+                runTasks();
+
+                final Iterator<SelectionKey> it = s.selectedKeys().iterator();
+
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    onSelected(key);
+                }
+
+                evictExpired();
+            }
+        } catch (IOException e) {
+            // The selector has failed, so nothing more can be done. Fail everything below.
+        } finally {
+            synchronized (this) {
+                shutdown = true;
+            }
+
+            for (SelectionKey key : s.keys()) {
+                close((Connection) key.attachment());
+            }
+
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Nothing can be done about this.
+            }
+
+            // Run outstanding tasks so that exchanges waiting to be attached are failed.
+            runTasks();
+        }
+    }
+
+    /**
+     * Run the tasks submitted from other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Give a socket to an exchange. This is called on the I/O thread.
+     *
+     * @param exchange The {@link Exchange} to give a socket to.
+     */
+    private void attach(@NonNull final Exchange exchange) {
+        if (isShutdown()) {
+            exchange.onConnectFailed(new IOException("The NioHttpEngine has been shut down."));
+            return;
+        }
+
+        final Connection idle = takeIdle(exchange.getKey());
+
+        if (idle != null) {
+            idle.exchange = exchange;
+            idle.reused = true;
+
+            synchronized (this) {
+                reuseCount++;
+            }
+
+            if (exchange.onConnected(idle)) {
+                setInterest(idle, SelectionKey.OP_READ, true);
+                setInterest(idle, SelectionKey.OP_WRITE, exchange.peekWrite() != null);
+            } else {
+                close(idle);
+            }
+
+            return;
+        }
+
+        connect(exchange);
+    }
+
+    /**
+     * Open a new socket for an exchange. This is called on the I/O thread.
+     *
+     * @param exchange The {@link Exchange} to open a socket for.
+     */
+    private void connect(@NonNull final Exchange exchange) {
+        SocketChannel channel = null;
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final boolean connected = channel.connect(exchange.getAddress());
+            final Connection connection = new Connection(exchange.getKey(), channel);
+            connection.exchange = exchange;
+            connection.key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT,
+                    connection);
+
+            synchronized (this) {
+                openConnectionCount++;
+                connectCount++;
+            }
+
+            if (connected) {
+                onConnected(connection);
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+
+            exchange.onConnectFailed(e);
+        }
+    }
+
+    /**
+     * Handle a socket which is ready. This is called on the I/O thread.
+     *
+     * @param key The {@link SelectionKey} of the socket.
+     */
+    private void onSelected(@NonNull final SelectionKey key) {
+        final Connection connection = (Connection) key.attachment();
+
+        if (!key.isValid()) {
+            close(connection);
+            return;
+        }
+
+        try {
+            if (key.isConnectable()) {
+                connection.channel.finishConnect();
+                onConnected(connection);
+                return;
+            }
+
+            if (key.isWritable()) {
+                onWritable(connection);
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                onReadable(connection);
+            }
+        } catch (IOException e) {
+            if (retry(connection)) {
+                return;
+            }
+
+            // The exchange is failed with the real reason before the socket is closed.
+            if (connection.exchange != null) {
+                connection.exchange.onConnectionFailed(e);
+            }
+
+            close(connection);
+        }
+    }
+
+    /**
+     * Start the exchange of a reused socket again on a new socket, if the reused socket failed
+     * before the server answered. A server may close an idle socket at the same time as a
+     * request is written to it, which is not a failure of the request. This is called on the I/O
+     * thread.
+     *
+     * @param connection The {@link Connection} which failed.
+     * @return {@code true} if the exchange was started again and the socket has been closed,
+     *         {@code false} if the failure should be reported to the exchange.
+     */
+    private boolean retry(@NonNull final Connection connection) {
+        final Exchange exchange = connection.exchange;
+
+        if (!connection.reused || exchange == null || !exchange.canRetry()) {
+            return false;
+        }
+
+        connection.exchange = null;
+        close(connection);
+        exchange.resetForRetry();
+
+        synchronized (this) {
+            retryCount++;
+        }
+
+        connect(exchange);
+        return true;
+    }
+
+    /**
+     * Handle a socket which has finished connecting. This is called on the I/O thread.
+     *
+     * @param connection The connected {@link Connection}.
+     */
+    private void onConnected(@NonNull final Connection connection) {
+        setInterest(connection, SelectionKey.OP_CONNECT, false);
+
+        if (connection.exchange.onConnected(connection)) {
+            setInterest(connection, SelectionKey.OP_READ, true);
+            setInterest(connection, SelectionKey.OP_WRITE,
+                    connection.exchange.peekWrite() != null);
+        } else {
+            close(connection);
+        }
+    }
+
+    /**
+     * Write queued request bytes to a socket. This is called on the I/O thread.
+     *
+     * @param connection The {@link Connection} which can be written to.
+     * @throws IOException When the write failed.
+     */
+    private void onWritable(@NonNull final Connection connection) throws IOException {
+        final Exchange exchange = connection.exchange;
+
+        if (exchange == null) {
+            setInterest(connection, SelectionKey.OP_WRITE, false);
+            return;
+        }
+
+        ByteBuffer buffer;
+
+        while ((buffer = exchange.peekWrite()) != null) {
+            final int written = connection.channel.write(buffer);
+            exchange.onWritten(written);
+
+            if (buffer.hasRemaining()) {
+                // The socket buffer is full. Carry on when it is writable again.
+                return;
+            }
+        }
+
+        setInterest(connection, SelectionKey.OP_WRITE, false);
+    }
+
+    /**
+     * Read response bytes from a socket. This is called on the I/O thread.
+     *
+     * @param connection The {@link Connection} which can be read from.
+     * @throws IOException When the read failed, or the response is not valid.
+     */
+    private void onReadable(@NonNull final Connection connection) throws IOException {
+        final Exchange exchange = connection.exchange;
+
+        if (exchange == null) {
+            // An idle socket is readable when the server has closed it, or has sent something
+            // it should not have. Either way, it cannot be reused.
+            close(connection);
+            return;
+        }
+
+        final int space = exchange.getReadSpace();
+
+        if (space == 0) {
+            // The reader has fallen behind. Reading resumes when it frees space.
+            setInterest(connection, SelectionKey.OP_READ, false);
+            return;
+        }
+
+        readBuffer.clear();
+        readBuffer.limit(Math.min(space, readBuffer.capacity()));
+        final int n = connection.channel.read(readBuffer);
+
+        if (n == -1) {
+            if (retry(connection)) {
+                return;
+            }
+
+            final boolean complete = exchange.onEndOfStream();
+            close(connection);
+
+            if (complete) {
+                connection.exchange = null;
+            }
+
+            return;
+        }
+
+        readBuffer.flip();
+
+        if (exchange.onRead(readBuffer)) {
+            connection.exchange = null;
+
+            if (exchange.isReusable()) {
+                release(connection);
+            } else {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Return a socket to the idle sockets of its host, or close it if there are already enough.
+     * This is called on the I/O thread.
+     *
+     * @param connection The {@link Connection} which has finished its exchange.
+     */
+    private void release(@NonNull final Connection connection) {
+        LinkedList<Connection> idle = idleConnections.get(connection.hostKey);
+
+        if (idle == null) {
+            idle = new LinkedList<>();
+            idleConnections.put(connection.hostKey, idle);
+        }
+
+        if (idle.size() >= maxIdleConnectionsPerHost) {
+            close(connection);
+            return;
+        }
+
+        connection.idleSince = System.nanoTime();
+        idle.addLast(connection);
+        setInterest(connection, SelectionKey.OP_WRITE, false);
+        // Watch the idle socket so that it is removed as soon as the server closes it.
+        setInterest(connection, SelectionKey.OP_READ, true);
+
+        synchronized (this) {
+            idleConnectionCount++;
+        }
+    }
+
+    /**
+     * Take the most recently used idle socket to the given host. This is called on the I/O
+     * thread.
+     *
+     * @param hostKey The key of the host.
+     * @return An idle {@link Connection}, or {@code null} if there are none.
+     */
+    @Nullable
+    private Connection takeIdle(@NonNull final String hostKey) {
+        final LinkedList<Connection> idle = idleConnections.get(hostKey);
+
+        while (idle != null && !idle.isEmpty()) {
+            final Connection connection = idle.removeLast();
+
+            synchronized (this) {
+                idleConnectionCount--;
+            }
+
+            if (connection.channel.isOpen() && connection.key.isValid()) {
+                return connection;
+            }
+
+            close(connection);
+        }
+
+        return null;
+    }
+
+    /**
+     * Close idle sockets which have been idle for longer than the keep-alive duration. This is
+     * called on the I/O thread.
+     */
+    private void evictExpired() {
+        final long now = System.nanoTime();
+        final long keepAliveNanos = keepAliveDurationMillis * 1000000L;
+        final Iterator<LinkedList<Connection>> hosts = idleConnections.values().iterator();
+
+        while (hosts.hasNext()) {
+            final LinkedList<Connection> idle = hosts.next();
+            final Iterator<Connection> it = idle.iterator();
+
+            while (it.hasNext()) {
+                final Connection connection = it.next();
+
+                if (now - connection.idleSince >= keepAliveNanos || !connection.channel.isOpen()) {
+                    it.remove();
+
+                    synchronized (this) {
+                        idleConnectionCount--;
+                    }
+
+                    close(connection);
+                }
+            }
+
+            if (idle.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the time to wait in {@link Selector#select(long)}, so that idle sockets are evicted
+     * on time. This is called on the I/O thread.
+     *
+     * @return The time to wait, in milliseconds, or {@code 0} to wait until woken.
+     */
+    private long getSelectTimeout() {
+        long oldest = Long.MAX_VALUE;
+
+        for (LinkedList<Connection> idle : idleConnections.values()) {
+            if (!idle.isEmpty()) {
+                oldest = Math.min(oldest, idle.getFirst().idleSince);
+            }
+        }
+
+        if (oldest == Long.MAX_VALUE) {
+            return 0;
+        }
+
+        final long remaining = (oldest + keepAliveDurationMillis * 1000000L - System.nanoTime())
+                / 1000000L;
+
+        return Math.max(1, remaining);
+    }
+
+    /**
+     * Set or clear an interest of a socket. This is called on the I/O thread.
+     *
+     * @param connection The {@link Connection} to change.
+     * @param op The interest to set or clear.
+     * @param on {@code true} to set the interest, {@code false} to clear it.
+     */
+    private static void setInterest(@NonNull final Connection connection, final int op,
+            final boolean on) {
+        final SelectionKey key = connection.key;
+
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        final int ops = key.interestOps();
+        key.interestOps(on ? ops | op : ops & ~op);
+    }
+
+    /**
+     * Close a socket. If it has an exchange in progress, the exchange fails. This is called on
+     * the I/O thread.
+     *
+     * @param connection The {@link Connection} to close.
+     */
+    private void close(@Nullable final Connection connection) {
+        if (connection == null || connection.closed) {
+            return;
+        }
+
+        connection.closed = true;
+
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+
+        closeQuietly(connection.channel);
+
+        synchronized (this) {
+            openConnectionCount--;
+        }
+
+        final Exchange exchange = connection.exchange;
+        connection.exchange = null;
+
+        if (exchange != null) {
+            exchange.onConnectionFailed(new IOException("The connection was closed."));
+        }
+    }
+
+    /**
+     * Close a {@link SocketChannel}, ignoring any error.
+     *
+     * @param channel The {@link SocketChannel} to close.
+     */
+    private static void closeQuietly(@NonNull final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing can be done about this.
+        }
+    }
+
+    /**
+     * A socket managed by the engine. Its fields are only used on the I/O thread.
+     */
+    static class Connection {
+
+        private final String hostKey;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Exchange exchange;
+        private long idleSince;
+        private boolean reused;
+        private boolean closed;
+
+        /**
+         * Create a new {@code Connection}.
+         *
+         * @param hostKey The key of the host.
+         * @param channel The {@link SocketChannel}.
+         */
+        private Connection(@NonNull final String hostKey, @NonNull final SocketChannel channel) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.rivernile.android.fetchutils.fetchers.nio;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A {@link HttpURLConnection} which sends its request and receives its response through a
+ * {@link NioHttpEngine}. It behaves like the platform implementation as far as a
+ * {@link uk.org.rivernile.android.fetchutils.fetchers.HttpFetcher} is concerned: redirects are
+ * never followed by the connection itself, {@link #getInputStream()} throws for error responses
+ * and {@link #getErrorStream()} gives their body, and request bodies are streamed when a fixed
+ * length or chunked streaming mode has been set, or buffered until the response is requested
+ * when not.
+ *
+ * <p>
+ *     Like the platform implementation, an instance is not thread-safe, apart from
+ *     {@link #disconnect()}, which may be called from another thread to abort the request.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+class NioHttpURLConnection extends HttpURLConnection {
+
+    private static final String CHARSET = "ISO-8859-1";
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    private final NioHttpEngine engine;
+
+    private volatile Exchange exchange;
+    private Map<String, List<String>> requestHeaders;
+    private long fixedLength = -1;
+    private boolean chunked;
+    private RequestOutputStream outputStream;
+    private boolean requestSent;
+    private boolean responseReceived;
+    private InputStream bodyStream;
+
+    /**
+     * Create a new {@code NioHttpURLConnection}.
+     *
+     * @param url The {@link URL} to connect to.
+     * @param engine The {@link NioHttpEngine} to send the request through.
+     */
+    NioHttpURLConnection(@NonNull final URL url, @NonNull final NioHttpEngine engine) {
+        super(url);
+
+        this.engine = engine;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(final int contentLength) {
+        super.setFixedLengthStreamingMode(contentLength);
+        fixedLength = contentLength;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(final long contentLength) {
+        super.setFixedLengthStreamingMode(contentLength);
+        fixedLength = contentLength;
+    }
+
+    @Override
+    public void setChunkedStreamingMode(final int chunkLength) {
+        super.setChunkedStreamingMode(chunkLength);
+        chunked = true;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+
+        // The request properties cannot be read once the connection is marked as connected.
+        requestHeaders = getRequestProperties();
+        final int port = getPort();
+        final InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(url.getHost());
+        }
+
+        final Exchange e = new Exchange(engine, url.getHost().toLowerCase(Locale.US) + ':' + port,
+                address, "HEAD".equals(method), engine.getBodyBufferSize());
+        exchange = e;
+        engine.start(e);
+        e.awaitConnected(getConnectTimeout());
+        connected = true;
+    }
+
+    @Override
+    public void disconnect() {
+        final Exchange e = exchange;
+
+        if (e != null) {
+            e.abort(new IOException("The connection was disconnected."));
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - "
+                    + "call setDoOutput(true)");
+        }
+
+        if (responseReceived) {
+            throw new ProtocolException("Cannot write output after reading input.");
+        }
+
+        if (outputStream == null) {
+            if ("GET".equals(method)) {
+                // This matches the platform implementation.
+                method = "POST";
+            }
+
+            connect();
+            outputStream = new RequestOutputStream();
+        }
+
+        return outputStream;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!doInput) {
+            throw new ProtocolException("Cannot read from URLConnection if doInput=false "
+                    + "(call setDoInput(true))");
+        }
+
+        getResponse();
+
+        if (responseCode >= HTTP_BAD_REQUEST) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+
+            throw new IOException("Server returned HTTP response code: " + responseCode
+                    + " for URL: " + url);
+        }
+
+        return getBodyStream();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (!responseReceived || responseCode < HTTP_BAD_REQUEST) {
+            return null;
+        }
+
+        return getBodyStream();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        getResponse();
+
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        getResponse();
+
+        return responseMessage;
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+        if (!getResponseQuietly()) {
+            return null;
+        }
+
+        final Exchange e = exchange;
+
+        if (name == null) {
+            return e.getStatusLine();
+        }
+
+        final List<String[]> headers = e.getHeaders();
+
+        // The last value is given, as with the platform implementation.
+        for (int i = headers.size() - 1; i >= 0; i--) {
+            final String[] header = headers.get(i);
+
+            if (name.equalsIgnoreCase(header[0])) {
+                return header[1];
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+        if (n <= 0 || !getResponseQuietly()) {
+            return null;
+        }
+
+        final List<String[]> headers = exchange.getHeaders();
+
+        return n <= headers.size() ? headers.get(n - 1)[0] : null;
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+        if (n < 0 || !getResponseQuietly()) {
+            return null;
+        }
+
+        if (n == 0) {
+            return exchange.getStatusLine();
+        }
+
+        final List<String[]> headers = exchange.getHeaders();
+
+        return n <= headers.size() ? headers.get(n - 1)[1] : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        if (!getResponseQuietly()) {
+            return Collections.emptyMap();
+        }
+
+        final LinkedHashMap<String, List<String>> fields = new LinkedHashMap<>();
+        final LinkedHashMap<String, String> names = new LinkedHashMap<>();
+        fields.put(null, Collections.singletonList(exchange.getStatusLine()));
+
+        for (String[] header : exchange.getHeaders()) {
+            final String lower = header[0].toLowerCase(Locale.US);
+            String name = names.get(lower);
+
+            if (name == null) {
+                name = header[0];
+                names.put(lower, name);
+                fields.put(name, new ArrayList<String>());
+            }
+
+            fields.get(name).add(header[1]);
+        }
+
+        for (Map.Entry<String, List<String>> entry : fields.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * Send the request, if it has not been sent, and wait for the status line and headers of
+     * the response.
+     *
+     * @throws IOException When the request failed.
+     */
+    private void getResponse() throws IOException {
+        if (responseReceived) {
+            return;
+        }
+
+        connect();
+
+        if (outputStream != null) {
+            outputStream.close();
+        } else if (!requestSent) {
+            // A method which normally has a body is sent with an empty one.
+            final boolean needsLength = "POST".equals(method) || "PUT".equals(method);
+            sendRequest(needsLength ? 0 : -1, false, null, true);
+        }
+
+        final Exchange e = exchange;
+        e.awaitResponse(getReadTimeout());
+        responseCode = e.getResponseCode();
+        responseMessage = e.getResponseMessage();
+        responseReceived = true;
+    }
+
+    /**
+     * Get the response, returning whether it is available rather than throwing.
+     *
+     * @return {@code true} if the response is available, {@code false} if the request failed.
+     */
+    private boolean getResponseQuietly() {
+        try {
+            getResponse();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the {@link InputStream} of the response body, creating it if needed.
+     *
+     * @return The {@link InputStream} of the response body.
+     */
+    @NonNull
+    private InputStream getBodyStream() {
+        if (bodyStream == null) {
+            final Exchange e = exchange;
+            bodyStream = e.getBody().getInputStream(getReadTimeout(), new Runnable() {
+                @Override
+                public void run() {
+                    // The rest of the body is still on its way, so the socket cannot be reused.
+                    e.abort(new IOException("The response body was closed before it was "
+                            + "complete."));
+                }
+            });
+        }
+
+        return bodyStream;
+    }
+
+    /**
+     * Queue the request line and headers to be sent, optionally followed by the request body.
+     *
+     * @param contentLength The length of the body, or {@code -1} if it is sent in chunks or
+     *                      there is no body.
+     * @param chunkedBody {@code true} if the body is sent in chunks.
+     * @param body The whole body to send with the headers, or {@code null} if the body is
+     *             streamed afterwards or there is none.
+     * @param last {@code true} if nothing follows.
+     * @throws IOException When the request could not be queued.
+     */
+    private void sendRequest(final long contentLength, final boolean chunkedBody,
+            @Nullable final byte[] body, final boolean last) throws IOException {
+        final StringBuilder sb = new StringBuilder(256);
+        final String file = url.getFile();
+        sb.append(method).append(' ').append(file.length() > 0 ? file : "/")
+                .append(" HTTP/1.1\r\n");
+
+        if (getRequestHeader("Host") == null) {
+            sb.append("Host: ").append(url.getHost());
+
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                sb.append(':').append(url.getPort());
+            }
+
+            sb.append("\r\n");
+        }
+
+        for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            final String name = entry.getKey();
+
+            // The body is framed by this connection, so these cannot be set by the caller.
+            if (name == null || "Content-Length".equalsIgnoreCase(name) ||
+                    "Transfer-Encoding".equalsIgnoreCase(name)) {
+                continue;
+            }
+
+            for (String value : entry.getValue()) {
+                sb.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+
+        if (getRequestHeader("User-Agent") == null) {
+            final String agent = System.getProperty("http.agent");
+            sb.append("User-Agent: ").append(agent != null ? agent : "Java").append("\r\n");
+        }
+
+        if (ifModifiedSince != 0 && getRequestHeader("If-Modified-Since") == null) {
+            final SimpleDateFormat format =
+                    new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            sb.append("If-Modified-Since: ").append(format.format(new Date(ifModifiedSince)))
+                    .append("\r\n");
+        }
+
+        if (chunkedBody) {
+            sb.append("Transfer-Encoding: chunked\r\n");
+        } else if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+
+        sb.append("\r\n");
+        final byte[] head = getBytes(sb.toString());
+        final ByteBuffer buffer;
+
+        if (body != null) {
+            buffer = ByteBuffer.allocate(head.length + body.length);
+            buffer.put(head).put(body).flip();
+        } else {
+            buffer = ByteBuffer.wrap(head);
+        }
+
+        requestSent = true;
+        exchange.write(buffer, last, getReadTimeout());
+    }
+
+    /**
+     * Get the first value of a request header which was set before connecting.
+     *
+     * @param name The name of the header.
+     * @return The value, or {@code null} if the header was not set.
+     */
+    @Nullable
+    private String getRequestHeader(@NonNull final String name) {
+        for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the port to connect to.
+     *
+     * @return The port to connect to.
+     */
+    private int getPort() {
+        final int port = url.getPort();
+
+        return port != -1 ? port : url.getDefaultPort();
+    }
+
+    /**
+     * Encode a {@link String} of the request head.
+     *
+     * @param s The {@link String} to encode.
+     * @return The encoded bytes.
+     */
+    @NonNull
+    private static byte[] getBytes(@NonNull final String s) {
+        try {
+            return s.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            // ISO-8859-1 is always supported.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The {@link OutputStream} which the request body is written to. In the streaming modes, the
+     * request head is sent as soon as the stream is created, and the body follows as it is
+     * written. Otherwise, the body is held until the stream is closed, so that its length is
+     * known.
+     */
+    private class RequestOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream buffered;
+        private final byte[] staging;
+        private int staged;
+        private long written;
+        private boolean closed;
+
+        /**
+         * Create a new {@code RequestOutputStream}, sending the request head if the body is
+         * streamed.
+         *
+         * @throws IOException When the request head could not be sent.
+         */
+        private RequestOutputStream() throws IOException {
+            if (fixedLength >= 0 || chunked) {
+                buffered = null;
+                staging = new byte[OUTPUT_BUFFER_SIZE];
+                sendRequest(fixedLength, fixedLength < 0, null, false);
+            } else {
+                buffered = new ByteArrayOutputStream();
+                staging = null;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            if (closed) {
+                throw new IOException("The stream is closed.");
+            }
+
+            if (buffered != null) {
+                buffered.write(b, off, len);
+                return;
+            }
+
+            if (fixedLength >= 0 && written + len > fixedLength) {
+                throw new IOException("More bytes were written than the fixed length of "
+                        + fixedLength + ".");
+            }
+
+            written += len;
+            int offset = off;
+            int remaining = len;
+
+            while (remaining > 0) {
+                final int n = Math.min(remaining, staging.length - staged);
+                System.arraycopy(b, offset, staging, staged, n);
+                staged += n;
+                offset += n;
+                remaining -= n;
+
+                if (staged == staging.length) {
+                    emit(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed && staging != null && staged > 0) {
+                emit(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (buffered != null) {
+                final byte[] body = buffered.toByteArray();
+                sendRequest(body.length, false, body, true);
+            } else if (fixedLength >= 0 && written != fixedLength) {
+                final IOException e = new IOException("Only " + written + " of the fixed "
+                        + "length of " + fixedLength + " bytes were written.");
+                exchange.abort(e);
+                throw e;
+            } else {
+                emit(true);
+            }
+        }
+
+        /**
+         * Queue the staged bytes to be sent.
+         *
+         * @param last {@code true} if these are the last bytes of the body.
+         * @throws IOException When the bytes could not be queued.
+         */
+        private void emit(final boolean last) throws IOException {
+            final ByteBuffer buffer;
+
+            if (chunked && fixedLength < 0) {
+                final byte[] size = staged > 0
+                        ? getBytes(Integer.toHexString(staged) + "\r\n") : new byte[0];
+                final byte[] end = last ? getBytes(staged > 0 ? "\r\n0\r\n\r\n" : "0\r\n\r\n")
+                        : getBytes("\r\n");
+                buffer = ByteBuffer.allocate(size.length + staged + end.length);
+                buffer.put(size).put(staging, 0, staged).put(end).flip();
+            } else {
+                buffer = ByteBuffer.allocate(staged);
+                buffer.put(staging, 0, staged).flip();
+            }
+
+            staged = 0;
+            exchange.write(buffer, last, getReadTimeout());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamReader;
+
+/**
+ * A {@code BindingJSONFetcherStreamReader} fills objects straight from the {@link InputStream}
+ * with a {@link JSONBinder}, while the document is being read. Unlike mapping the tree from a
+ * {@link JSONFetcherStreamReader} on to objects, no {@link String} of the whole document and no
+ * {@link org.json.JSONObject} is created, and, with a binder generated for a {@link JSONModel}
+ * class, no reflection is used.
+ *
+ * <p>
+ *     The document is decoded as {@code UTF-8}. The document must hold exactly the one value
+ *     read by the binder, otherwise a {@link MalformedJSONException} is thrown.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * &#64;JSONModel
+ * public class Stop {
+ *     &#64;JSONField("code") int code;
+ *     &#64;JSONField String name;
+ * }
+ *
+ * BindingJSONFetcherStreamReader&lt;List&lt;Stop&gt;&gt; reader =
+ *         new BindingJSONFetcherStreamReader&lt;&gt;(
+ *                 JSONBinders.listOf(StopJSONBinder.INSTANCE));
+ * fetcher.executeFetcher(reader);
+ * List&lt;Stop&gt; stops = reader.getResult();
+ * </code>
+ * </pre>
+ *
+ * @param <T> The type of the root value of the document.
+ * @author Niall Scott
+ * @see JSONModel
+ */
+public class BindingJSONFetcherStreamReader<T> implements FetcherStreamReader {
+
+    private final JSONBinder<T> binder;
+    private volatile T result;
+
+    /**
+     * Create a new {@code BindingJSONFetcherStreamReader}.
+     *
+     * @param binder The {@link JSONBinder} for the root value of the document.
+     */
+    public BindingJSONFetcherStreamReader(@NonNull final JSONBinder<T> binder) {
+        this.binder = binder;
+    }
+
+    @Override
+    public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        result = null;
+        final JSONTokenizer tokenizer = new JSONTokenizer(new InputStreamReader(stream, "UTF-8"));
+        final T value = binder.read(tokenizer);
+
+        if (tokenizer.peek() != JSONToken.END_DOCUMENT) {
+            throw new MalformedJSONException("Expected the end of the document at " +
+                    tokenizer.getPath());
+        }
+
+        result = value;
+    }
+
+    /**
+     * Get the root value of the document that was read. This may be {@code null} if the stream
+     * has yet to be read from, there was an error while reading it, or the document is
+     * {@code null}.
+     *
+     * @return The root value of the document, or {@code null}.
+     */
+    @Nullable
+    public T getResult() {
+        return result;
+    }
+}
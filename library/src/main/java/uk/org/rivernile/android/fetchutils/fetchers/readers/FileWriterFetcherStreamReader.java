@@ -71,18 +71,34 @@ public class FileWriterFetcherStreamReader implements FetcherStreamReader {
 
     @Override
     public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        writeToFile(stream, append);
+    }
+    
+    /**
+     * Pipe the data from the given {@link InputStream} out to the file. The file is closed even if
+     * the stream fails part way through, so that the data written so far is kept.
+     * 
+     * @param stream The {@link InputStream} to read the data from.
+     * @param append {@code true} if the data should be appended to the end of the file,
+     *               {@code false} if the file should be overwritten.
+     * @throws IOException When there was a problem reading the stream or writing the file.
+     */
+    protected void writeToFile(@NonNull final InputStream stream, final boolean append)
+            throws IOException {
         final BufferedInputStream in = new BufferedInputStream(stream);
         final BufferedOutputStream out = new BufferedOutputStream(
                 new FileOutputStream(file, append));
         final byte[] buf = new byte[1024];
         int len;
 
-        while ((len = in.read(buf)) > 0) {
-            out.write(buf, 0, len);
-            out.flush();
+        try {
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+                out.flush();
+            }
+        } finally {
+            out.close();
         }
-
-        out.close();
     }
     
     /**
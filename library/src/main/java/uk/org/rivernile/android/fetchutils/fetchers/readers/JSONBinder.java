@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * A {@code JSONBinder} reads a value of a particular type from a {@link JSONTokenizer}. Binders
+ * for classes marked with {@link JSONModel} are generated at compile time, and binders for the
+ * basic types are held in {@link JSONBinders}.
+ *
+ * @param <T> The type of value read by this binder.
+ * @author Niall Scott
+ * @see BindingJSONFetcherStreamReader
+ */
+public interface JSONBinder<T> {
+
+    /**
+     * Consume the next value from the tokenizer, and return it as a {@code T}.
+     *
+     * @param tokenizer The {@link JSONTokenizer} to read from.
+     * @return The value, or {@code null} if the value in the document is {@code null}.
+     * @throws IOException When there was a problem reading the document, or the next value does
+     *                     not have the structure expected for a {@code T}.
+     */
+    @Nullable
+    T read(@NonNull JSONTokenizer tokenizer) throws IOException;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds {@link JSONBinder}s for the basic types, which are used by generated binders.
+ * Each of them returns {@code null} for a {@code null} value in the document.
+ *
+ * @author Niall Scott
+ */
+public final class JSONBinders {
+
+    /** A {@link JSONBinder} for {@link String}s. */
+    public static final JSONBinder<String> STRING = new JSONBinder<String>() {
+        @Override
+        public String read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : tokenizer.nextString();
+        }
+    };
+
+    /** A {@link JSONBinder} for {@link Boolean}s. */
+    public static final JSONBinder<Boolean> BOOLEAN = new JSONBinder<Boolean>() {
+        @Override
+        public Boolean read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : tokenizer.nextBoolean();
+        }
+    };
+
+    /** A {@link JSONBinder} for {@link Integer}s. */
+    public static final JSONBinder<Integer> INTEGER = new JSONBinder<Integer>() {
+        @Override
+        public Integer read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : tokenizer.nextInt();
+        }
+    };
+
+    /** A {@link JSONBinder} for {@link Long}s. */
+    public static final JSONBinder<Long> LONG = new JSONBinder<Long>() {
+        @Override
+        public Long read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : tokenizer.nextLong();
+        }
+    };
+
+    /** A {@link JSONBinder} for {@link Float}s. */
+    public static final JSONBinder<Float> FLOAT = new JSONBinder<Float>() {
+        @Override
+        public Float read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : (float) tokenizer.nextDouble();
+        }
+    };
+
+    /** A {@link JSONBinder} for {@link Double}s. */
+    public static final JSONBinder<Double> DOUBLE = new JSONBinder<Double>() {
+        @Override
+        public Double read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            return readNull(tokenizer) ? null : tokenizer.nextDouble();
+        }
+    };
+
+    /**
+     * This constructor is private to prevent instantiation.
+     */
+    private JSONBinders() {
+        // Nothing to do here.
+    }
+
+    /**
+     * Create a {@link JSONBinder} which reads an array as a {@link List}, reading each element
+     * with the given binder.
+     *
+     * @param elementBinder The {@link JSONBinder} for the elements of the array.
+     * @param <T> The type of the elements.
+     * @return A {@link JSONBinder} for a {@link List} of {@code T}.
+     */
+    @NonNull
+    public static <T> JSONBinder<List<T>> listOf(@NonNull final JSONBinder<T> elementBinder) {
+        return new JSONBinder<List<T>>() {
+            @Override
+            public List<T> read(@NonNull final JSONTokenizer tokenizer) throws IOException {
+                return readList(tokenizer, elementBinder);
+            }
+        };
+    }
+
+    /**
+     * Read an array as a {@link List}, reading each element with the given binder.
+     *
+     * @param tokenizer The {@link JSONTokenizer} to read from.
+     * @param elementBinder The {@link JSONBinder} for the elements of the array.
+     * @param <T> The type of the elements.
+     * @return The {@link List}, or {@code null} if the value in the document is {@code null}.
+     * @throws IOException When there was a problem reading the document, or the next value is
+     *                     not an array of the expected elements.
+     */
+    @Nullable
+    public static <T> List<T> readList(@NonNull final JSONTokenizer tokenizer,
+            @NonNull final JSONBinder<T> elementBinder) throws IOException {
+        if (readNull(tokenizer)) {
+            return null;
+        }
+
+        final ArrayList<T> list = new ArrayList<>();
+        tokenizer.beginArray();
+
+        while (tokenizer.hasNext()) {
+            list.add(elementBinder.read(tokenizer));
+        }
+
+        tokenizer.endArray();
+
+        return list;
+    }
+
+    /**
+     * Consume the next value if it is {@code null}.
+     *
+     * @param tokenizer The {@link JSONTokenizer} to read from.
+     * @return {@code true} if the next value was {@code null} and has been consumed,
+     *         {@code false} if not.
+     * @throws IOException When there was a problem reading the document.
+     */
+    public static boolean readNull(@NonNull final JSONTokenizer tokenizer) throws IOException {
+        if (tokenizer.peek() == JSONToken.NULL) {
+            tokenizer.nextNull();
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -16,51 +16,119 @@
 
 package uk.org.rivernile.android.fetchutils.fetchers.readers;
 
+import android.support.annotation.NonNull;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * A {@code JSONFetcherStreamReader} takes an {@link java.io.InputStream} and produces a
  * {@link JSONObject} or {@link JSONArray} version of this data. It is up to the caller whether the
- * data is treated as a {@link JSONObject} or a {@link JSONArray} - the objects are created at the
- * time of calling this class' getters.
+ * data is treated as a {@link JSONObject} or a {@link JSONArray} - the objects are created the
+ * first time this class' getters are called, and the same objects are returned by later calls.
+ * As they are shared, they should be treated as read-only. Reading another stream discards them.
+ *
+ * <p>
+ *     When only a few members of a large object are used, {@link #getLazyJSONObject()} avoids
+ *     building the whole tree. It indexes the top-level members, and only parses the value of a
+ *     member when it is asked for.
+ * </p>
+ *
+ * <p>
+ *     The whole document is held in memory, first as a {@link String} and then as a tree. For
+ *     large documents, {@link StreamingJSONFetcherStreamReader} processes the document while it
+ *     is being read instead, and {@link JSONPathFetcherStreamReader} pulls out only the values at
+ *     a set of paths.
+ * </p>
  * 
  * @author Niall Scott
+ * @see StreamingJSONFetcherStreamReader
+ * @see JSONPathFetcherStreamReader
  */
 public class JSONFetcherStreamReader extends StringFetcherStreamReader {
+
+    private JSONObject jsonObject;
+    private JSONArray jsonArray;
+    private LazyJSONObject lazyJSONObject;
+
+    @Override
+    public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        super.readInputStream(stream);
+
+        synchronized (this) {
+            jsonObject = null;
+            jsonArray = null;
+            lazyJSONObject = null;
+        }
+    }
     
     /**
-     * Get a {@link JSONObject} version of this data.
+     * Get a {@link JSONObject} version of this data. The data is parsed on the first call, and
+     * the same {@link JSONObject} is returned by later calls.
      * 
      * @return A {@link JSONObject}, which is the root of the document tree.
      * @throws JSONException If there was an error parsing the JSON text, such as when the data does
      * not represent a {@link JSONObject}.
      */
-    public JSONObject getJSONObject() throws JSONException {
-        final String data = getData();
-        
-        if (data == null) {
-            throw new JSONException("The data is null.");
+    public synchronized JSONObject getJSONObject() throws JSONException {
+        if (jsonObject == null) {
+            jsonObject = new JSONObject(requireData());
         }
-        
-        return new JSONObject(data);
+
+        return jsonObject;
     }
     
     /**
-     * Get a {@link JSONArray} version of this data.
+     * Get a {@link JSONArray} version of this data. The data is parsed on the first call, and the
+     * same {@link JSONArray} is returned by later calls.
      * 
      * @return A {@link JSONArray}, which is the root of the document tree.
      * @throws JSONException If there was an error parsing the JSON text, such as when the data does
      * not represent a {@link JSONArray}.
      */
-    public JSONArray getJSONArray() throws JSONException {
+    public synchronized JSONArray getJSONArray() throws JSONException {
+        if (jsonArray == null) {
+            jsonArray = new JSONArray(requireData());
+        }
+
+        return jsonArray;
+    }
+
+    /**
+     * Get a {@link LazyJSONObject} version of this data. On the first call, the data is checked
+     * and the top-level members are indexed, but their values are not parsed until they are
+     * asked for. The same {@link LazyJSONObject} is returned by later calls.
+     *
+     * @return A {@link LazyJSONObject}, which is the root of the document.
+     * @throws JSONException If there was an error parsing the JSON text, such as when the data
+     * does not represent a JSON object.
+     */
+    public synchronized LazyJSONObject getLazyJSONObject() throws JSONException {
+        if (lazyJSONObject == null) {
+            lazyJSONObject = new LazyJSONObject(requireData());
+        }
+
+        return lazyJSONObject;
+    }
+
+    /**
+     * Get the data, throwing a {@link JSONException} if there is none.
+     *
+     * @return The data.
+     * @throws JSONException If the data is {@code null}.
+     */
+    @NonNull
+    private String requireData() throws JSONException {
         final String data = getData();
-        
+
         if (data == null) {
             throw new JSONException("The data is null.");
         }
-        
-        return new JSONArray(data);
+
+        return data;
     }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * {@code JSONField} marks a field of a {@link JSONModel} class which is filled by its generated
+ * {@link JSONBinder}. Members of the JSON object which have no matching field are skipped.
+ *
+ * <p>
+ *     The field must be declared in the {@link JSONModel} class itself, and must not be private,
+ *     final or static. Its type must be one of the following.
+ * </p>
+ *
+ * <ul>
+ *     <li>{@code boolean}, {@code int}, {@code long}, {@code float} or {@code double}. A JSON
+ *     {@code null} is not accepted for these.</li>
+ *     <li>{@link Boolean}, {@link Integer}, {@link Long}, {@link Float}, {@link Double} or
+ *     {@link String}.</li>
+ *     <li>Another class marked with {@link JSONModel}.</li>
+ *     <li>A {@link java.util.List} of any of the non-primitive types above, including another
+ *     {@link java.util.List}.</li>
+ * </ul>
+ *
+ * @author Niall Scott
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface JSONField {
+
+    /**
+     * The name of the member of the JSON object. When this is empty, the name of the field is
+     * used.
+     *
+     * @return The name of the member of the JSON object.
+     */
+    String value() default "";
+}
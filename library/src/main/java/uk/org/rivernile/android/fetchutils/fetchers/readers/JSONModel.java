@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * {@code JSONModel} marks a class which a {@link JSONBinder} is generated for at compile time, by
+ * the annotation processor in the {@code fetchutils-compiler} artifact. The binder fills the
+ * fields of the class marked with {@link JSONField} straight from a {@link JSONTokenizer}, with
+ * no reflection and no intermediate {@link org.json.JSONObject}.
+ *
+ * <p>
+ *     The binder for a class {@code Stop} is called {@code StopJSONBinder}, and is created in the
+ *     same package. For a nested class {@code Outer.Stop}, it is called
+ *     {@code Outer_StopJSONBinder}. Its single instance is held in its {@code INSTANCE} field.
+ * </p>
+ *
+ * <p>
+ *     The class must not be abstract, private or generic, a nested class must be static, and it
+ *     must have a constructor with no arguments which is not private.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see BindingJSONFetcherStreamReader
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JSONModel {
+
+}
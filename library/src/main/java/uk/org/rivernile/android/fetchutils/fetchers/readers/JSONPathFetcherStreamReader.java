@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamReader;
+
+/**
+ * A {@code JSONPathFetcherStreamReader} pulls only the values at a set of paths out of a JSON
+ * document, in a single pass while it is being read from the {@link InputStream}. Everything
+ * else is passed over by the {@link JSONTokenizer} without creating any objects, so the cost of
+ * reading a large document where only a few values are used is mostly the cost of scanning it.
+ *
+ * <p>
+ *     A path is made up of steps, each of which is one of the following. The leading {@code $}
+ *     is optional.
+ * </p>
+ *
+ * <ul>
+ *     <li>{@code .name} or {@code name} at the start - the member of an object with that
+ *     name.</li>
+ *     <li>{@code .*} - every member of an object.</li>
+ *     <li>{@code [n]} - the element of an array at index {@code n}.</li>
+ *     <li>{@code [*]} - every element of an array.</li>
+ * </ul>
+ *
+ * <p>
+ *     For example, {@code services[*].departures[0].time} selects the time of the first
+ *     departure of every service. The values found for a path are given by
+ *     {@link #getValues(String)} in the order they appear in the document, as the same types
+ *     {@link JSONObject} uses for a parsed document. Parts of the document which do not match a
+ *     path, or which have a different structure, are ignored. The document must still be valid
+ *     JSON, and a {@link MalformedJSONException} is thrown when it is not.
+ * </p>
+ *
+ * <p>
+ *     The document is decoded as {@code UTF-8}. Reading another stream discards the values from
+ *     the last one.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * JSONPathFetcherStreamReader reader = new JSONPathFetcherStreamReader(
+ *         "services[*].name", "services[*].departures[0].time");
+ * fetcher.executeFetcher(reader);
+ * List&lt;Object&gt; names = reader.getValues("services[*].name");
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see JSONTokenizer#selectName(String[])
+ */
+public class JSONPathFetcherStreamReader implements FetcherStreamReader {
+
+    private final Node root = new Node();
+    private final LinkedHashMap<String, List<Object>> results = new LinkedHashMap<>();
+
+    /**
+     * Create a new {@code JSONPathFetcherStreamReader}.
+     *
+     * @param paths The paths of the values to pull out of the document.
+     * @throws IllegalArgumentException When no paths are given, or a path is not valid.
+     */
+    public JSONPathFetcherStreamReader(@NonNull final String... paths) {
+        if (paths.length == 0) {
+            throw new IllegalArgumentException("At least one path must be given.");
+        }
+
+        for (String path : paths) {
+            compile(path);
+            results.put(path, new ArrayList<>());
+        }
+
+        root.resolve();
+    }
+
+    @Override
+    public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        synchronized (results) {
+            for (List<Object> values : results.values()) {
+                values.clear();
+            }
+        }
+
+        final JSONTokenizer tokenizer = new JSONTokenizer(new InputStreamReader(stream, "UTF-8"));
+        read(tokenizer, root);
+
+        if (tokenizer.peek() != JSONToken.END_DOCUMENT) {
+            throw new MalformedJSONException("Expected the end of the document at " +
+                    tokenizer.getPath());
+        }
+    }
+
+    /**
+     * Get the paths given to this reader, in the order they were given.
+     *
+     * @return The paths given to this reader.
+     */
+    @NonNull
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(results.keySet());
+    }
+
+    /**
+     * Get the values found for a path, in the order they appear in the document. A path which
+     * has no wildcards finds at most one value.
+     *
+     * @param path The path, exactly as it was given to the constructor.
+     * @return The values found for the path. This is empty if none were found.
+     * @throws IllegalArgumentException When the path was not given to this reader.
+     */
+    @NonNull
+    public List<Object> getValues(@NonNull final String path) {
+        synchronized (results) {
+            final List<Object> values = results.get(path);
+
+            if (values == null) {
+                throw new IllegalArgumentException("The path " + path + " was not given to " +
+                        "this reader.");
+            }
+
+            return Collections.unmodifiableList(new ArrayList<>(values));
+        }
+    }
+
+    /**
+     * Get the first value found for a path.
+     *
+     * @param path The path, exactly as it was given to the constructor.
+     * @return The first value found for the path, or {@code null} if none were found.
+     * @throws IllegalArgumentException When the path was not given to this reader.
+     */
+    @Nullable
+    public Object getValue(@NonNull final String path) {
+        final List<Object> values = getValues(path);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Parse a path and add its steps to the tree of {@link Node}s.
+     *
+     * @param path The path to parse.
+     * @throws IllegalArgumentException When the path is not valid.
+     */
+    private void compile(@NonNull final String path) {
+        final int length = path.length();
+        Node node = root;
+        int i = path.startsWith("$") ? 1 : 0;
+
+        if (i == length) {
+            throw new IllegalArgumentException("The path " + path + " has no steps.");
+        }
+
+        while (i < length) {
+            final char c = path.charAt(i);
+
+            if (c == '[') {
+                final int end = path.indexOf(']', i);
+
+                if (end == -1) {
+                    throw new IllegalArgumentException("Unclosed '[' in path " + path);
+                }
+
+                final String index = path.substring(i + 1, end);
+
+                if ("*".equals(index)) {
+                    node = node.anyElement();
+                } else {
+                    try {
+                        node = node.element(Integer.parseInt(index));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid index '" + index +
+                                "' in path " + path);
+                    }
+                }
+
+                i = end + 1;
+            } else {
+                if (c == '.') {
+                    i++;
+                } else if (i > (path.startsWith("$") ? 1 : 0)) {
+                    throw new IllegalArgumentException("Expected '.' or '[' at " + i +
+                            " in path " + path);
+                }
+
+                int end = i;
+
+                while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+
+                if (end == i) {
+                    throw new IllegalArgumentException("Empty name at " + i + " in path " +
+                            path);
+                }
+
+                final String name = path.substring(i, end);
+                node = "*".equals(name) ? node.anyMember() : node.member(name);
+                i = end;
+            }
+        }
+
+        node.addTarget(path);
+    }
+
+    /**
+     * Read the next value from the tokenizer, collecting the parts of it which match the
+     * {@link Node}.
+     *
+     * @param tokenizer The {@link JSONTokenizer} to read from.
+     * @param node The {@link Node} which matches the position of the next value.
+     * @throws IOException When there was a problem reading the document.
+     */
+    private void read(@NonNull final JSONTokenizer tokenizer, @NonNull final Node node)
+            throws IOException {
+        if (node.targets != null) {
+            final Object value = tokenizer.readValue();
+            addValue(node, value);
+
+            if (node.hasChildren()) {
+                collect(value, node);
+            }
+
+            return;
+        }
+
+        final JSONToken token = tokenizer.peek();
+
+        if (token == JSONToken.BEGIN_OBJECT && node.hasMemberChildren()) {
+            tokenizer.beginObject();
+
+            while (tokenizer.hasNext()) {
+                final int index = tokenizer.selectName(node.memberNames);
+                final Node child = index != -1 ? node.memberNodes[index] : node.anyMember;
+
+                if (child != null) {
+                    read(tokenizer, child);
+                } else {
+                    tokenizer.skipValue();
+                }
+            }
+
+            tokenizer.endObject();
+        } else if (token == JSONToken.BEGIN_ARRAY && node.hasElementChildren()) {
+            tokenizer.beginArray();
+            int index = 0;
+
+            while (tokenizer.hasNext()) {
+                final Node child = node.elementChild(index++);
+
+                if (child != null) {
+                    read(tokenizer, child);
+                } else {
+                    tokenizer.skipValue();
+                }
+            }
+
+            tokenizer.endArray();
+        } else {
+            tokenizer.skipValue();
+        }
+    }
+
+    /**
+     * Collect the parts of a value which has already been read which match the children of the
+     * {@link Node}. This is used when one path ends where another carries on.
+     *
+     * @param value The value which has already been read.
+     * @param node The {@link Node} which matches the value.
+     */
+    private void collect(@NonNull final Object value, @NonNull final Node node) {
+        if (value instanceof JSONObject && node.hasMemberChildren()) {
+            final JSONObject object = (JSONObject) value;
+            final Iterator<String> keys = object.keys();
+
+            while (keys.hasNext()) {
+                final String name = keys.next();
+                final Node child = node.memberChild(name);
+
+                if (child != null) {
+                    collectChild(object.opt(name), child);
+                }
+            }
+        } else if (value instanceof JSONArray && node.hasElementChildren()) {
+            final JSONArray array = (JSONArray) value;
+            final int length = array.length();
+
+            for (int i = 0; i < length; i++) {
+                final Node child = node.elementChild(i);
+
+                if (child != null) {
+                    collectChild(array.opt(i), child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect a child value which has already been read, if it matches the {@link Node}.
+     *
+     * @param value The child value.
+     * @param node The {@link Node} which matches the child value.
+     */
+    private void collectChild(@Nullable final Object value, @NonNull final Node node) {
+        if (value == null) {
+            return;
+        }
+
+        if (node.targets != null) {
+            addValue(node, value);
+        }
+
+        collect(value, node);
+    }
+
+    /**
+     * Add a value to the results of each path which ends at the {@link Node}.
+     *
+     * @param node The {@link Node} the value was found at.
+     * @param value The value.
+     */
+    private void addValue(@NonNull final Node node, @NonNull final Object value) {
+        synchronized (results) {
+            for (String target : node.targets) {
+                results.get(target).add(value);
+            }
+        }
+    }
+
+    /**
+     * A {@code Node} is a step in the tree of paths. The children of a {@code Node} are the next
+     * steps of the paths which pass through it. Paths which share steps share {@code Node}s.
+     */
+    private static class Node {
+
+        private LinkedHashMap<String, Node> members;
+        private HashMap<Integer, Node> elements;
+        private Node anyMember;
+        private Node anyElement;
+        private List<String> targets;
+
+        private String[] memberNames = new String[0];
+        private Node[] memberNodes = new Node[0];
+
+        /**
+         * Get the child for the member with the given name, creating it if needed.
+         *
+         * @param name The name of the member.
+         * @return The child {@link Node}.
+         */
+        @NonNull
+        Node member(@NonNull final String name) {
+            if (members == null) {
+                members = new LinkedHashMap<>();
+            }
+
+            Node child = members.get(name);
+
+            if (child == null) {
+                child = new Node();
+                members.put(name, child);
+            }
+
+            return child;
+        }
+
+        /**
+         * Get the child for every member, creating it if needed.
+         *
+         * @return The child {@link Node}.
+         */
+        @NonNull
+        Node anyMember() {
+            if (anyMember == null) {
+                anyMember = new Node();
+            }
+
+            return anyMember;
+        }
+
+        /**
+         * Get the child for the element at the given index, creating it if needed.
+         *
+         * @param index The index of the element.
+         * @return The child {@link Node}.
+         * @throws IllegalArgumentException When the index is negative.
+         */
+        @NonNull
+        Node element(final int index) {
+            if (index < 0) {
+                throw new IllegalArgumentException("Indices must be 0 or greater.");
+            }
+
+            if (elements == null) {
+                elements = new HashMap<>();
+            }
+
+            Node child = elements.get(index);
+
+            if (child == null) {
+                child = new Node();
+                elements.put(index, child);
+            }
+
+            return child;
+        }
+
+        /**
+         * Get the child for every element, creating it if needed.
+         *
+         * @return The child {@link Node}.
+         */
+        @NonNull
+        Node anyElement() {
+            if (anyElement == null) {
+                anyElement = new Node();
+            }
+
+            return anyElement;
+        }
+
+        /**
+         * Record that a path ends at this {@code Node}.
+         *
+         * @param path The path.
+         */
+        void addTarget(@NonNull final String path) {
+            if (targets == null) {
+                targets = new ArrayList<>();
+            }
+
+            if (!targets.contains(path)) {
+                targets.add(path);
+            }
+        }
+
+        /**
+         * Get the child which matches the member with the given name.
+         *
+         * @param name The name of the member.
+         * @return The child {@link Node}, or {@code null} if there is none.
+         */
+        @Nullable
+        Node memberChild(@NonNull final String name) {
+            final Node child = members != null ? members.get(name) : null;
+            return child != null ? child : anyMember;
+        }
+
+        /**
+         * Get the child which matches the element at the given index.
+         *
+         * @param index The index of the element.
+         * @return The child {@link Node}, or {@code null} if there is none.
+         */
+        @Nullable
+        Node elementChild(final int index) {
+            final Node child = elements != null ? elements.get(index) : null;
+            return child != null ? child : anyElement;
+        }
+
+        /**
+         * Does this {@code Node} have children which match members of an object?
+         *
+         * @return {@code true} if it does, {@code false} if not.
+         */
+        boolean hasMemberChildren() {
+            return members != null || anyMember != null;
+        }
+
+        /**
+         * Does this {@code Node} have children which match elements of an array?
+         *
+         * @return {@code true} if it does, {@code false} if not.
+         */
+        boolean hasElementChildren() {
+            return elements != null || anyElement != null;
+        }
+
+        /**
+         * Does this {@code Node} have any children?
+         *
+         * @return {@code true} if it does, {@code false} if not.
+         */
+        boolean hasChildren() {
+            return hasMemberChildren() || hasElementChildren();
+        }
+
+        /**
+         * Prepare this {@code Node} and its descendants for reading. The steps after a wildcard
+         * are merged in to each sibling with a specific name or index, so that only one
+         * {@code Node} needs to be followed for any value in the document.
+         */
+        void resolve() {
+            if (members != null) {
+                if (anyMember != null) {
+                    for (Node child : members.values()) {
+                        child.merge(anyMember);
+                    }
+                }
+
+                memberNames = members.keySet().toArray(new String[members.size()]);
+                memberNodes = members.values().toArray(new Node[members.size()]);
+
+                for (Node child : memberNodes) {
+                    child.resolve();
+                }
+            }
+
+            if (elements != null) {
+                for (Node child : elements.values()) {
+                    if (anyElement != null) {
+                        child.merge(anyElement);
+                    }
+
+                    child.resolve();
+                }
+            }
+
+            if (anyMember != null) {
+                anyMember.resolve();
+            }
+
+            if (anyElement != null) {
+                anyElement.resolve();
+            }
+        }
+
+        /**
+         * Copy the targets and descendants of another {@code Node} in to this one.
+         *
+         * @param other The {@code Node} to copy from.
+         */
+        private void merge(@NonNull final Node other) {
+            if (other.targets != null) {
+                for (String target : other.targets) {
+                    addTarget(target);
+                }
+            }
+
+            if (other.members != null) {
+                for (Map.Entry<String, Node> entry : other.members.entrySet()) {
+                    member(entry.getKey()).merge(entry.getValue());
+                }
+            }
+
+            if (other.elements != null) {
+                for (Map.Entry<Integer, Node> entry : other.elements.entrySet()) {
+                    element(entry.getKey()).merge(entry.getValue());
+                }
+            }
+
+            if (other.anyMember != null) {
+                anyMember().merge(other.anyMember);
+            }
+
+            if (other.anyElement != null) {
+                anyElement().merge(other.anyElement);
+            }
+        }
+    }
+}
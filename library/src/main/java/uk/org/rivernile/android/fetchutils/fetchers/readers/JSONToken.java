@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+/**
+ * The kinds of token returned by {@link JSONTokenizer#peek()}.
+ *
+ * @author Niall Scott
+ */
+public enum JSONToken {
+
+    /** The start of an array, {@code [}. */
+    BEGIN_ARRAY,
+    /** The end of an array, {@code ]}. */
+    END_ARRAY,
+    /** The start of an object, {@code &#123;}. */
+    BEGIN_OBJECT,
+    /** The end of an object, {@code &#125;}. */
+    END_OBJECT,
+    /** The name of a member of an object. */
+    NAME,
+    /** A string value. */
+    STRING,
+    /** A number value. */
+    NUMBER,
+    /** A {@code true} or {@code false} value. */
+    BOOLEAN,
+    /** A {@code null} value. */
+    NULL,
+    /** The end of the document. */
+    END_DOCUMENT
+}
@@ -0,0 +1,1161 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A {@code JSONTokenizer} reads a JSON document from a {@link Reader} one token at a time, in the
+ * style of a pull parser. Only a small, fixed size buffer of the document is held at once, so a
+ * document of many megabytes can be processed without it ever being held in memory as a whole.
+ *
+ * <p>
+ *     The caller drives the tokenizer. {@link #peek()} returns the kind of the next token without
+ *     consuming it, and the {@code begin}, {@code end} and {@code next} methods consume tokens.
+ *     Values which are not needed can be passed over with {@link #skipValue()}, which does not
+ *     create any objects. A value may also be read as a whole {@code org.json} sub-tree with
+ *     {@link #readValue()}, so that a large document can be dealt with one record at a time.
+ * </p>
+ *
+ * <p>
+ *     The tokenizer is strict. When the document is not valid JSON, or a token other than the one
+ *     asked for comes next, a {@link MalformedJSONException} is thrown which includes the path to
+ *     the problem, as given by {@link #getPath()}.
+ * </p>
+ *
+ * <p>
+ *     Android has had {@code android.util.JsonReader} since API level 11. This class exists so
+ *     that the same approach is available on all supported API levels. It is not thread-safe.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * tokenizer.beginObject();
+ *
+ * while (tokenizer.hasNext()) {
+ *     if ("stops".equals(tokenizer.nextName())) {
+ *         tokenizer.beginArray();
+ *
+ *         while (tokenizer.hasNext()) {
+ *             JSONObject stop = (JSONObject) tokenizer.readValue();
+ *             // Process the stop, then let it be garbage collected.
+ *         }
+ *
+ *         tokenizer.endArray();
+ *     } else {
+ *         tokenizer.skipValue();
+ *     }
+ * }
+ *
+ * tokenizer.endObject();
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see StreamingJSONFetcherStreamReader
+ */
+public class JSONTokenizer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int SCOPE_EMPTY_ARRAY = 1;
+    private static final int SCOPE_NONEMPTY_ARRAY = 2;
+    private static final int SCOPE_EMPTY_OBJECT = 3;
+    private static final int SCOPE_DANGLING_NAME = 4;
+    private static final int SCOPE_NONEMPTY_OBJECT = 5;
+    private static final int SCOPE_EMPTY_DOCUMENT = 6;
+    private static final int SCOPE_NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder builder = new StringBuilder();
+    private int pos;
+    private int limit;
+    private long discarded;
+    private JSONToken peeked;
+
+    private int[] stack = new int[32];
+    private String[] pathNames = new String[32];
+    private int[] pathIndices = new int[32];
+    private int stackSize;
+
+    /**
+     * Create a new {@code JSONTokenizer}. The {@link Reader} does not need to be buffered, as the
+     * tokenizer does its own buffering.
+     *
+     * @param in The {@link Reader} to read the document from.
+     */
+    public JSONTokenizer(@NonNull final Reader in) {
+        this.in = in;
+        stack[stackSize++] = SCOPE_EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Get the kind of the next token, without consuming it.
+     *
+     * @return The kind of the next token.
+     * @throws IOException When there was a problem reading the document, or it is not valid JSON.
+     */
+    @NonNull
+    public JSONToken peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+
+        return peeked;
+    }
+
+    /**
+     * Are there more elements in the current array or object?
+     *
+     * @return {@code true} if there are more elements, {@code false} if the end of the array or
+     *         object is next.
+     * @throws IOException When there was a problem reading the document, or it is not valid JSON.
+     */
+    public boolean hasNext() throws IOException {
+        final JSONToken token = peek();
+        return token != JSONToken.END_ARRAY && token != JSONToken.END_OBJECT &&
+                token != JSONToken.END_DOCUMENT;
+    }
+
+    /**
+     * Consume the start of an array.
+     *
+     * @throws IOException When there was a problem reading the document, or the start of an
+     *                     array is not next.
+     */
+    public void beginArray() throws IOException {
+        expect(JSONToken.BEGIN_ARRAY);
+        push(SCOPE_EMPTY_ARRAY);
+        peeked = null;
+    }
+
+    /**
+     * Consume the end of the current array.
+     *
+     * @throws IOException When there was a problem reading the document, or the end of an array
+     *                     is not next.
+     */
+    public void endArray() throws IOException {
+        expect(JSONToken.END_ARRAY);
+        stackSize--;
+        peeked = null;
+        onValueConsumed();
+    }
+
+    /**
+     * Consume the start of an object.
+     *
+     * @throws IOException When there was a problem reading the document, or the start of an
+     *                     object is not next.
+     */
+    public void beginObject() throws IOException {
+        expect(JSONToken.BEGIN_OBJECT);
+        push(SCOPE_EMPTY_OBJECT);
+        peeked = null;
+    }
+
+    /**
+     * Consume the end of the current object.
+     *
+     * @throws IOException When there was a problem reading the document, or the end of an
+     *                     object is not next.
+     */
+    public void endObject() throws IOException {
+        expect(JSONToken.END_OBJECT);
+        stackSize--;
+        pathNames[stackSize] = null;
+        peeked = null;
+        onValueConsumed();
+    }
+
+    /**
+     * Consume the name of the next member of the current object.
+     *
+     * @return The name.
+     * @throws IOException When there was a problem reading the document, or a name is not next.
+     */
+    @NonNull
+    public String nextName() throws IOException {
+        expect(JSONToken.NAME);
+        final String name = readString();
+        pathNames[stackSize - 1] = name;
+        peeked = null;
+
+        return name;
+    }
+
+    /**
+     * Consume the name of the next member of the current object, and find it in the given array
+     * of names. Unlike {@link #nextName()}, no {@link String} is created for the name when it
+     * does not contain escapes and lies within the buffer, so this is suited to passing over the
+     * members which are not needed. A name which is not found is not recorded in
+     * {@link #getPath()}.
+     *
+     * @param names The names to look for.
+     * @return The index of the name in {@code names}, or {@code -1} if it is not there.
+     * @throws IOException When there was a problem reading the document, or a name is not next.
+     */
+    public int selectName(@NonNull final String[] names) throws IOException {
+        expect(JSONToken.NAME);
+        int end = -1;
+
+        for (int p = pos; p < limit; p++) {
+            final char c = buffer[p];
+
+            if (c == '"') {
+                end = p;
+                break;
+            } else if (c == '\\') {
+                break;
+            }
+        }
+
+        int result = -1;
+
+        if (end != -1) {
+            final int length = end - pos;
+
+            for (int i = 0; i < names.length && result == -1; i++) {
+                if (bufferEquals(names[i], pos, length)) {
+                    result = i;
+                }
+            }
+
+            pos = end + 1;
+        } else {
+            final String name = readString();
+
+            for (int i = 0; i < names.length && result == -1; i++) {
+                if (names[i].equals(name)) {
+                    result = i;
+                }
+            }
+        }
+
+        pathNames[stackSize - 1] = result != -1 ? names[result] : null;
+        peeked = null;
+
+        return result;
+    }
+
+    /**
+     * Consume a string value. A number value is also accepted, and is returned as it was written
+     * in the document.
+     *
+     * @return The string value.
+     * @throws IOException When there was a problem reading the document, or a string or number is
+     *                     not next.
+     */
+    @NonNull
+    public String nextString() throws IOException {
+        final JSONToken token = peek();
+        final String result;
+
+        if (token == JSONToken.STRING) {
+            result = readString();
+        } else if (token == JSONToken.NUMBER) {
+            readLiteral();
+            result = builder.toString();
+        } else {
+            throw unexpected(JSONToken.STRING);
+        }
+
+        peeked = null;
+        onValueConsumed();
+
+        return result;
+    }
+
+    /**
+     * Consume a boolean value.
+     *
+     * @return The boolean value.
+     * @throws IOException When there was a problem reading the document, or a boolean is not
+     *                     next.
+     */
+    public boolean nextBoolean() throws IOException {
+        expect(JSONToken.BOOLEAN);
+        readLiteral();
+        final boolean result;
+
+        if (literalEquals("true")) {
+            result = true;
+        } else if (literalEquals("false")) {
+            result = false;
+        } else {
+            throw syntaxError("Invalid literal \"" + builder + '"');
+        }
+
+        peeked = null;
+        onValueConsumed();
+
+        return result;
+    }
+
+    /**
+     * Consume a {@code null} value.
+     *
+     * @throws IOException When there was a problem reading the document, or {@code null} is not
+     *                     next.
+     */
+    public void nextNull() throws IOException {
+        expect(JSONToken.NULL);
+        readLiteral();
+
+        if (!literalEquals("null")) {
+            throw syntaxError("Invalid literal \"" + builder + '"');
+        }
+
+        peeked = null;
+        onValueConsumed();
+    }
+
+    /**
+     * Consume a number value as a {@code double}. A string holding a number is also accepted.
+     *
+     * @return The number value.
+     * @throws IOException When there was a problem reading the document, or a number is not
+     *                     next.
+     */
+    public double nextDouble() throws IOException {
+        final double result = parseDouble(readNumberText());
+        peeked = null;
+        onValueConsumed();
+
+        return result;
+    }
+
+    /**
+     * Consume a number value as a {@code long}. A string holding a number is also accepted.
+     *
+     * @return The number value.
+     * @throws IOException When there was a problem reading the document, or a number which fits
+     *                     in a {@code long} without losing precision is not next.
+     */
+    public long nextLong() throws IOException {
+        final long result = parseLong(readNumberText());
+        peeked = null;
+        onValueConsumed();
+
+        return result;
+    }
+
+    /**
+     * Consume a number value as an {@code int}. A string holding a number is also accepted.
+     *
+     * @return The number value.
+     * @throws IOException When there was a problem reading the document, or a number which fits
+     *                     in an {@code int} without losing precision is not next.
+     */
+    public int nextInt() throws IOException {
+        final CharSequence text = readNumberText();
+        final long value = parseLong(text);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw syntaxError("Expected an int but was " + text);
+        }
+
+        peeked = null;
+        onValueConsumed();
+
+        return (int) value;
+    }
+
+    /**
+     * Skip the next value, including all of its contents if it is an array or object. If the
+     * next token is the name of a member, the name and its value are skipped. Nothing is created
+     * for the skipped tokens.
+     *
+     * @throws IOException When there was a problem reading the document, it is not valid JSON,
+     *                     or there is no value to skip.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+
+        if (peek() == JSONToken.NAME) {
+            skipString();
+            peeked = null;
+        }
+
+        do {
+            final JSONToken token = peek();
+            peeked = null;
+
+            switch (token) {
+                case BEGIN_ARRAY:
+                    push(SCOPE_EMPTY_ARRAY);
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    push(SCOPE_EMPTY_OBJECT);
+                    depth++;
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    if (depth == 0) {
+                        peeked = token;
+                        throw syntaxError("Expected a value but was " + token);
+                    }
+
+                    stackSize--;
+                    pathNames[stackSize] = null;
+                    depth--;
+                    break;
+                case NAME:
+                case STRING:
+                    skipString();
+                    break;
+                case NUMBER:
+                case BOOLEAN:
+                case NULL:
+                    skipLiteral();
+                    break;
+                default:
+                    peeked = token;
+                    throw syntaxError("Expected a value but was " + token);
+            }
+        } while (depth > 0);
+
+        onValueConsumed();
+    }
+
+    /**
+     * Consume the next value and return it as an {@code org.json} value. An object is returned as
+     * a {@link JSONObject}, an array as a {@link JSONArray}, a string as a {@link String}, a
+     * number as an {@link Integer}, {@link Long} or {@link Double}, a boolean as a
+     * {@link Boolean}, and {@code null} as {@link JSONObject#NULL}. These are the same types
+     * that {@link JSONObject} uses for a parsed document.
+     *
+     * @return The next value.
+     * @throws IOException When there was a problem reading the document, it is not valid JSON,
+     *                     or there is no value to read.
+     */
+    @NonNull
+    public Object readValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT: {
+                final JSONObject object = new JSONObject();
+                beginObject();
+
+                while (hasNext()) {
+                    final String name = nextName();
+
+                    try {
+                        object.put(name, readValue());
+                    } catch (JSONException e) {
+                        throw syntaxError(e.getMessage());
+                    }
+                }
+
+                endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                final JSONArray array = new JSONArray();
+                beginArray();
+
+                while (hasNext()) {
+                    array.put(readValue());
+                }
+
+                endArray();
+                return array;
+            }
+            case STRING:
+                return nextString();
+            case NUMBER: {
+                readLiteral();
+                final Object number = toNumber(builder);
+                peeked = null;
+                onValueConsumed();
+
+                return number;
+            }
+            case BOOLEAN:
+                return nextBoolean() ? Boolean.TRUE : Boolean.FALSE;
+            case NULL:
+                nextNull();
+                return JSONObject.NULL;
+            default:
+                throw syntaxError("Expected a value but was " + peek());
+        }
+    }
+
+    /**
+     * Get the path to the current position in the document, in JSONPath notation, for example
+     * {@code $.services[3].name}. This is useful in error messages.
+     *
+     * @return The path to the current position in the document.
+     */
+    @NonNull
+    public String getPath() {
+        final StringBuilder sb = new StringBuilder("$");
+
+        for (int i = 0; i < stackSize; i++) {
+            switch (stack[i]) {
+                case SCOPE_EMPTY_ARRAY:
+                case SCOPE_NONEMPTY_ARRAY:
+                    sb.append('[').append(pathIndices[i]).append(']');
+                    break;
+                case SCOPE_EMPTY_OBJECT:
+                case SCOPE_DANGLING_NAME:
+                case SCOPE_NONEMPTY_OBJECT:
+                    if (pathNames[i] != null) {
+                        sb.append('.').append(pathNames[i]);
+                    }
+
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Get the number of characters of the document which have been consumed. After
+     * {@link #peek()}, the opening bracket or quote of an array, object, string or name has
+     * already been consumed, but the first character of any other value has not.
+     *
+     * @return The number of characters which have been consumed.
+     */
+    long getPosition() {
+        return discarded + pos;
+    }
+
+    /**
+     * Work out the kind of the next token, consuming any separators before it.
+     *
+     * @return The kind of the next token.
+     * @throws IOException When there was a problem reading the document, or it is not valid JSON.
+     */
+    @NonNull
+    private JSONToken doPeek() throws IOException {
+        final int top = stackSize - 1;
+        final int scope = stack[top];
+        int c;
+
+        switch (scope) {
+            case SCOPE_EMPTY_ARRAY:
+                stack[top] = SCOPE_NONEMPTY_ARRAY;
+
+                if (nextNonWhitespace(true) == ']') {
+                    pos++;
+                    return JSONToken.END_ARRAY;
+                }
+
+                break;
+            case SCOPE_NONEMPTY_ARRAY:
+                c = nextNonWhitespace(true);
+                pos++;
+
+                if (c == ']') {
+                    return JSONToken.END_ARRAY;
+                } else if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+
+                break;
+            case SCOPE_EMPTY_OBJECT:
+            case SCOPE_NONEMPTY_OBJECT:
+                if (scope == SCOPE_NONEMPTY_OBJECT) {
+                    c = nextNonWhitespace(true);
+                    pos++;
+
+                    if (c == '}') {
+                        return JSONToken.END_OBJECT;
+                    } else if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                }
+
+                c = nextNonWhitespace(true);
+                pos++;
+
+                if (c == '}' && scope == SCOPE_EMPTY_OBJECT) {
+                    return JSONToken.END_OBJECT;
+                } else if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+
+                stack[top] = SCOPE_DANGLING_NAME;
+                return JSONToken.NAME;
+            case SCOPE_DANGLING_NAME:
+                stack[top] = SCOPE_NONEMPTY_OBJECT;
+
+                if (nextNonWhitespace(true) != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+
+                pos++;
+                break;
+            case SCOPE_EMPTY_DOCUMENT:
+                stack[top] = SCOPE_NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (nextNonWhitespace(false) == -1) {
+                    return JSONToken.END_DOCUMENT;
+                }
+
+                throw syntaxError("Expected the end of the document");
+        }
+
+        c = nextNonWhitespace(true);
+
+        switch (c) {
+            case '{':
+                pos++;
+                return JSONToken.BEGIN_OBJECT;
+            case '[':
+                pos++;
+                return JSONToken.BEGIN_ARRAY;
+            case '"':
+                pos++;
+                return JSONToken.STRING;
+            case 't':
+            case 'f':
+                return JSONToken.BOOLEAN;
+            case 'n':
+                return JSONToken.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return JSONToken.NUMBER;
+                }
+
+                throw syntaxError("Unexpected character '" + (char) c + '\'');
+        }
+    }
+
+    /**
+     * Push a new scope on to the stack, growing it if needed.
+     *
+     * @param scope The scope to push.
+     */
+    private void push(final int scope) {
+        if (stackSize == stack.length) {
+            final int newLength = stackSize * 2;
+            final int[] newStack = new int[newLength];
+            final String[] newPathNames = new String[newLength];
+            final int[] newPathIndices = new int[newLength];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            System.arraycopy(pathNames, 0, newPathNames, 0, stackSize);
+            System.arraycopy(pathIndices, 0, newPathIndices, 0, stackSize);
+            stack = newStack;
+            pathNames = newPathNames;
+            pathIndices = newPathIndices;
+        }
+
+        stack[stackSize] = scope;
+        pathIndices[stackSize] = 0;
+        pathNames[stackSize] = null;
+        stackSize++;
+    }
+
+    /**
+     * Record that a value has been consumed, moving the index of the enclosing array on.
+     */
+    private void onValueConsumed() {
+        if (stackSize > 0) {
+            pathIndices[stackSize - 1]++;
+        }
+    }
+
+    /**
+     * Throw a {@link MalformedJSONException} if the next token is not the expected one.
+     *
+     * @param expected The expected kind of token.
+     * @throws IOException When there was a problem reading the document, or the next token is
+     *                     not the expected one.
+     */
+    private void expect(@NonNull final JSONToken expected) throws IOException {
+        if (peek() != expected) {
+            throw unexpected(expected);
+        }
+    }
+
+    /**
+     * Create a {@link MalformedJSONException} for when the next token is not the expected one.
+     *
+     * @param expected The expected kind of token.
+     * @return A {@link MalformedJSONException} describing the problem.
+     */
+    @NonNull
+    private MalformedJSONException unexpected(@NonNull final JSONToken expected) {
+        return syntaxError("Expected " + expected + " but was " + peeked);
+    }
+
+    /**
+     * Create a {@link MalformedJSONException} which includes the current path.
+     *
+     * @param message The description of the problem.
+     * @return A {@link MalformedJSONException} describing the problem.
+     */
+    @NonNull
+    private MalformedJSONException syntaxError(final String message) {
+        return new MalformedJSONException(message + " at " + getPath());
+    }
+
+    /**
+     * Find the next character which is not whitespace, without consuming it.
+     *
+     * @param throwOnEnd {@code true} if reaching the end of the document is an error.
+     * @return The next character which is not whitespace, or {@code -1} if the end of the
+     *         document was reached.
+     * @throws IOException When there was a problem reading the document, or the end was reached
+     *                     when it should not have been.
+     */
+    private int nextNonWhitespace(final boolean throwOnEnd) throws IOException {
+        while (true) {
+            if (pos == limit && !fill(1)) {
+                if (throwOnEnd) {
+                    throw syntaxError("Unexpected end of document");
+                }
+
+                return -1;
+            }
+
+            final char c = buffer[pos];
+
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Read from the {@link Reader} until at least the given number of characters are available
+     * after {@link #pos}. Characters before {@link #pos} are discarded.
+     *
+     * @param minimum The number of characters needed.
+     * @return {@code true} if the characters are available, {@code false} if the end of the
+     *         document was reached first.
+     * @throws IOException When there was a problem reading the document.
+     */
+    private boolean fill(final int minimum) throws IOException {
+        if (pos > 0) {
+            discarded += pos;
+            limit -= pos;
+            System.arraycopy(buffer, pos, buffer, 0, limit);
+            pos = 0;
+        }
+
+        while (limit < minimum) {
+            final int read = in.read(buffer, limit, buffer.length - limit);
+
+            if (read == -1) {
+                return false;
+            }
+
+            limit += read;
+        }
+
+        return true;
+    }
+
+    /**
+     * Read a string up to its closing quote, which is consumed. The opening quote must already
+     * have been consumed. Strings without escapes which lie within the buffer are created
+     * straight from it.
+     *
+     * @return The string.
+     * @throws IOException When there was a problem reading the document, or the string is not
+     *                     valid.
+     */
+    @NonNull
+    private String readString() throws IOException {
+        StringBuilder sb = null;
+
+        while (true) {
+            int p = pos;
+            int start = p;
+
+            while (p < limit) {
+                final char c = buffer[p++];
+
+                if (c == '"') {
+                    pos = p;
+
+                    if (sb == null) {
+                        return new String(buffer, start, p - start - 1);
+                    }
+
+                    sb.append(buffer, start, p - start - 1);
+                    return sb.toString();
+                } else if (c == '\\') {
+                    if (sb == null) {
+                        sb = builder;
+                        sb.setLength(0);
+                    }
+
+                    sb.append(buffer, start, p - start - 1);
+                    pos = p;
+                    sb.append(readEscape());
+                    p = pos;
+                    start = p;
+                }
+            }
+
+            if (sb == null) {
+                sb = builder;
+                sb.setLength(0);
+            }
+
+            sb.append(buffer, start, p - start);
+            pos = p;
+
+            if (!fill(1)) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    /**
+     * Skip a string up to its closing quote, which is consumed. The opening quote must already
+     * have been consumed.
+     *
+     * @throws IOException When there was a problem reading the document, or the string is not
+     *                     terminated.
+     */
+    private void skipString() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                final char c = buffer[pos++];
+
+                if (c == '"') {
+                    return;
+                } else if (c == '\\') {
+                    // The escaped character can not end the string. A unicode escape's hex
+                    // digits are skipped as ordinary characters.
+                    if (pos == limit && !fill(1)) {
+                        throw syntaxError("Unterminated string");
+                    }
+
+                    pos++;
+                }
+            }
+
+            if (!fill(1)) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    /**
+     * Read the character of an escape sequence. The backslash must already have been consumed.
+     *
+     * @return The escaped character.
+     * @throws IOException When there was a problem reading the document, or the escape sequence
+     *                     is not valid.
+     */
+    private char readEscape() throws IOException {
+        if (pos == limit && !fill(1)) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+
+        final char escaped = buffer[pos++];
+
+        switch (escaped) {
+            case 'u': {
+                if (limit - pos < 4 && !fill(4)) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+
+                char result = 0;
+
+                for (int i = pos, end = pos + 4; i < end; i++) {
+                    final char c = buffer[i];
+                    final int digit;
+
+                    if (c >= '0' && c <= '9') {
+                        digit = c - '0';
+                    } else if (c >= 'a' && c <= 'f') {
+                        digit = c - 'a' + 10;
+                    } else if (c >= 'A' && c <= 'F') {
+                        digit = c - 'A' + 10;
+                    } else {
+                        throw syntaxError("Invalid unicode escape sequence");
+                    }
+
+                    result = (char) ((result << 4) | digit);
+                }
+
+                pos += 4;
+                return result;
+            }
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case '"':
+            case '\\':
+            case '/':
+                return escaped;
+            default:
+                throw syntaxError("Invalid escape sequence '\\" + escaped + '\'');
+        }
+    }
+
+    /**
+     * Is the given character the end of a literal, such as a number, {@code true}, {@code false}
+     * or {@code null}?
+     *
+     * @param c The character.
+     * @return {@code true} if the character ends a literal, {@code false} if not.
+     */
+    private static boolean isLiteralEnd(final char c) {
+        switch (c) {
+            case ',':
+            case ']':
+            case '}':
+            case ':':
+            case ' ':
+            case '\n':
+            case '\r':
+            case '\t':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read a literal in to {@link #builder}.
+     *
+     * @throws IOException When there was a problem reading the document.
+     */
+    private void readLiteral() throws IOException {
+        builder.setLength(0);
+
+        while (true) {
+            final int start = pos;
+
+            while (pos < limit && !isLiteralEnd(buffer[pos])) {
+                pos++;
+            }
+
+            builder.append(buffer, start, pos - start);
+
+            if (pos < limit || !fill(1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skip a literal without creating anything for it.
+     *
+     * @throws IOException When there was a problem reading the document.
+     */
+    private void skipLiteral() throws IOException {
+        while (true) {
+            while (pos < limit && !isLiteralEnd(buffer[pos])) {
+                pos++;
+            }
+
+            if (pos < limit || !fill(1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Does the literal in {@link #builder} equal the given text?
+     *
+     * @param text The text to compare with.
+     * @return {@code true} if the literal equals the text, {@code false} if not.
+     */
+    private boolean literalEquals(@NonNull final String text) {
+        final int length = text.length();
+
+        if (builder.length() != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (builder.charAt(i) != text.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Does a region of the buffer hold the same characters as the given text?
+     *
+     * @param text The text to compare against.
+     * @param start The index in the buffer of the start of the region.
+     * @param length The length of the region.
+     * @return {@code true} if the region holds the same characters as {@code text},
+     *         {@code false} if not.
+     */
+    private boolean bufferEquals(@NonNull final String text, final int start, final int length) {
+        if (text.length() != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read the text of a number, which may be a number literal or a string holding a number.
+     *
+     * @return The text of the number.
+     * @throws IOException When there was a problem reading the document, or a number is not
+     *                     next.
+     */
+    @NonNull
+    private CharSequence readNumberText() throws IOException {
+        final JSONToken token = peek();
+
+        if (token == JSONToken.NUMBER) {
+            readLiteral();
+            return builder;
+        } else if (token == JSONToken.STRING) {
+            return readString();
+        } else {
+            throw unexpected(JSONToken.NUMBER);
+        }
+    }
+
+    /**
+     * Parse the text of a number as a {@code double}.
+     *
+     * @param text The text of the number.
+     * @return The number.
+     * @throws MalformedJSONException When the text is not a valid number.
+     */
+    private double parseDouble(@NonNull final CharSequence text) throws MalformedJSONException {
+        try {
+            final double result = Double.parseDouble(text.toString());
+
+            if (Double.isNaN(result) || Double.isInfinite(result)) {
+                throw syntaxError("Invalid number " + text);
+            }
+
+            return result;
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + text);
+        }
+    }
+
+    /**
+     * Parse the text of a number as a {@code long}. Integers of up to 18 digits are parsed
+     * without creating any objects.
+     *
+     * @param text The text of the number.
+     * @return The number.
+     * @throws MalformedJSONException When the text is not a valid number, or it can not be held in
+     *                                a {@code long} without losing precision.
+     */
+    private long parseLong(@NonNull final CharSequence text) throws MalformedJSONException {
+        final int length = text.length();
+        final boolean negative = length > 0 && text.charAt(0) == '-';
+        final int start = negative ? 1 : 0;
+
+        if (length > start && length - start <= 18) {
+            long result = 0;
+            int i = start;
+
+            for (; i < length; i++) {
+                final char c = text.charAt(i);
+
+                if (c < '0' || c > '9') {
+                    break;
+                }
+
+                result = result * 10 + (c - '0');
+            }
+
+            if (i == length) {
+                return negative ? -result : result;
+            }
+        }
+
+        // The number has a fraction, an exponent or many digits.
+        final double value = parseDouble(text);
+        final long result = (long) value;
+
+        if (result != value) {
+            throw syntaxError("Expected a long but was " + text);
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert the text of a number literal to the type {@code org.json} would use for it.
+     *
+     * @param text The text of the number.
+     * @return An {@link Integer}, {@link Long} or {@link Double}.
+     * @throws MalformedJSONException When the text is not a valid number.
+     */
+    @NonNull
+    private Object toNumber(@NonNull final CharSequence text) throws MalformedJSONException {
+        boolean integral = true;
+
+        for (int i = 0, length = text.length(); i < length; i++) {
+            final char c = text.charAt(i);
+
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+                break;
+            }
+        }
+
+        if (integral) {
+            try {
+                final long value = Long.parseLong(text.toString());
+
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+
+                return value;
+            } catch (NumberFormatException e) {
+                // Too large for a long, so fall through to a double.
+            }
+        }
+
+        return parseDouble(text);
+    }
+}
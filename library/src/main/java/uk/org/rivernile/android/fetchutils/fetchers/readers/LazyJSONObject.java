@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A {@code LazyJSONObject} is a read-only view of a JSON object held in a {@link String}, where
+ * the values of its members are only parsed when they are asked for. When it is created, the
+ * document is checked in a single pass with a {@link JSONTokenizer}, which records where the
+ * value of each top-level member starts without building anything for it. When a value is first
+ * asked for, only that value is parsed, and the result is kept for later calls.
+ *
+ * <p>
+ *     This suits large documents where only a few members are used. A value is returned as the
+ *     same type a {@link JSONObject} would hold for it, so a nested object is a
+ *     {@link JSONObject} and a nested array is a {@link JSONArray}. As parsed values are shared
+ *     between callers, they should not be changed.
+ * </p>
+ *
+ * <p>
+ *     The getters behave like those of {@link JSONObject}, throwing a {@link JSONException} when
+ *     the member does not exist or can not be converted to the requested type. This class is
+ *     thread-safe.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see JSONFetcherStreamReader#getLazyJSONObject()
+ */
+public class LazyJSONObject {
+
+    private final String data;
+    private final LinkedHashMap<String, Integer> offsets = new LinkedHashMap<>();
+    private final HashMap<String, Object> values = new HashMap<>();
+
+    /**
+     * Create a new {@code LazyJSONObject}, indexing the top-level members of the document.
+     *
+     * @param data The JSON document, which must be an object.
+     * @throws JSONException When the document is not a valid JSON object.
+     */
+    public LazyJSONObject(@NonNull final String data) throws JSONException {
+        this.data = data;
+
+        try {
+            final JSONTokenizer tokenizer = new JSONTokenizer(new StringReader(data));
+            tokenizer.beginObject();
+
+            while (tokenizer.hasNext()) {
+                final String name = tokenizer.nextName();
+                final JSONToken token = tokenizer.peek();
+                long start = tokenizer.getPosition();
+
+                // The opening character of these has already been consumed by peek().
+                if (token == JSONToken.BEGIN_OBJECT || token == JSONToken.BEGIN_ARRAY ||
+                        token == JSONToken.STRING) {
+                    start--;
+                }
+
+                offsets.put(name, (int) start);
+                tokenizer.skipValue();
+            }
+
+            tokenizer.endObject();
+
+            if (tokenizer.peek() != JSONToken.END_DOCUMENT) {
+                throw new JSONException("Expected the end of the document.");
+            }
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of members of the object.
+     *
+     * @return The number of members of the object.
+     */
+    public int length() {
+        return offsets.size();
+    }
+
+    /**
+     * Does the object have a member with the given name?
+     *
+     * @param name The name of the member.
+     * @return {@code true} if the member exists, {@code false} if not.
+     */
+    public boolean has(@Nullable final String name) {
+        return offsets.containsKey(name);
+    }
+
+    /**
+     * Get the names of the members of the object, in the order they appear in the document.
+     *
+     * @return An {@link Iterator} over the names of the members.
+     */
+    @NonNull
+    public Iterator<String> keys() {
+        return Collections.unmodifiableSet(offsets.keySet()).iterator();
+    }
+
+    /**
+     * Get the value of a member, parsing it if this is the first time it has been asked for.
+     *
+     * @param name The name of the member.
+     * @return The value of the member.
+     * @throws JSONException When the member does not exist.
+     */
+    @NonNull
+    public synchronized Object get(@NonNull final String name) throws JSONException {
+        Object value = values.get(name);
+
+        if (value == null) {
+            final Integer offset = offsets.get(name);
+
+            if (offset == null) {
+                throw new JSONException("No value for " + name);
+            }
+
+            value = parse(offset);
+            values.put(name, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Get the value of a member, or {@code null} if it does not exist.
+     *
+     * @param name The name of the member.
+     * @return The value of the member, or {@code null} if it does not exist.
+     */
+    @Nullable
+    public Object opt(@Nullable final String name) {
+        if (name == null || !has(name)) {
+            return null;
+        }
+
+        try {
+            return get(name);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Is the member with the given name missing, or {@code null}?
+     *
+     * @param name The name of the member.
+     * @return {@code true} if the member is missing or {@code null}, {@code false} if not.
+     */
+    public boolean isNull(@Nullable final String name) {
+        final Object value = opt(name);
+        return value == null || value == JSONObject.NULL;
+    }
+
+    /**
+     * Get the value of a member as a {@link String}. Other values are converted to a
+     * {@link String}.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@link String}.
+     * @throws JSONException When the member does not exist.
+     */
+    @NonNull
+    public String getString(@NonNull final String name) throws JSONException {
+        final Object value = get(name);
+        return value instanceof String ? (String) value : String.valueOf(value);
+    }
+
+    /**
+     * Get the value of a member as a {@code boolean}. The strings {@code "true"} and
+     * {@code "false"} are also accepted.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@code boolean}.
+     * @throws JSONException When the member does not exist, or is not a boolean.
+     */
+    public boolean getBoolean(@NonNull final String name) throws JSONException {
+        final Object value = get(name);
+
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if ("true".equalsIgnoreCase(String.valueOf(value))) {
+            return true;
+        } else if ("false".equalsIgnoreCase(String.valueOf(value))) {
+            return false;
+        }
+
+        throw new JSONException("Value at " + name + " is not a boolean.");
+    }
+
+    /**
+     * Get the value of a member as a {@code double}. Strings holding a number are also accepted.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@code double}.
+     * @throws JSONException When the member does not exist, or is not a number.
+     */
+    public double getDouble(@NonNull final String name) throws JSONException {
+        return getNumber(name).doubleValue();
+    }
+
+    /**
+     * Get the value of a member as an {@code int}. Strings holding a number are also accepted.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as an {@code int}.
+     * @throws JSONException When the member does not exist, or is not a number.
+     */
+    public int getInt(@NonNull final String name) throws JSONException {
+        return getNumber(name).intValue();
+    }
+
+    /**
+     * Get the value of a member as a {@code long}. Strings holding a number are also accepted.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@code long}.
+     * @throws JSONException When the member does not exist, or is not a number.
+     */
+    public long getLong(@NonNull final String name) throws JSONException {
+        return getNumber(name).longValue();
+    }
+
+    /**
+     * Get the value of a member as a {@link JSONObject}.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@link JSONObject}.
+     * @throws JSONException When the member does not exist, or is not an object.
+     */
+    @NonNull
+    public JSONObject getJSONObject(@NonNull final String name) throws JSONException {
+        final Object value = get(name);
+
+        if (value instanceof JSONObject) {
+            return (JSONObject) value;
+        }
+
+        throw new JSONException("Value at " + name + " is not a JSONObject.");
+    }
+
+    /**
+     * Get the value of a member as a {@link JSONArray}.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@link JSONArray}.
+     * @throws JSONException When the member does not exist, or is not an array.
+     */
+    @NonNull
+    public JSONArray getJSONArray(@NonNull final String name) throws JSONException {
+        final Object value = get(name);
+
+        if (value instanceof JSONArray) {
+            return (JSONArray) value;
+        }
+
+        throw new JSONException("Value at " + name + " is not a JSONArray.");
+    }
+
+    /**
+     * Parse every member and build a {@link JSONObject} holding them all.
+     *
+     * @return A new {@link JSONObject} holding every member of this object.
+     * @throws JSONException When a value could not be parsed.
+     */
+    @NonNull
+    public JSONObject toJSONObject() throws JSONException {
+        final JSONObject object = new JSONObject();
+
+        for (String name : offsets.keySet()) {
+            object.put(name, get(name));
+        }
+
+        return object;
+    }
+
+    @Override
+    public String toString() {
+        return data;
+    }
+
+    /**
+     * Get the value of a member as a {@link Number}.
+     *
+     * @param name The name of the member.
+     * @return The value of the member as a {@link Number}.
+     * @throws JSONException When the member does not exist, or is not a number.
+     */
+    @NonNull
+    private Number getNumber(@NonNull final String name) throws JSONException {
+        final Object value = get(name);
+
+        if (value instanceof Number) {
+            return (Number) value;
+        } else if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                // Fall through to the exception below.
+            }
+        }
+
+        throw new JSONException("Value at " + name + " is not a number.");
+    }
+
+    /**
+     * Parse the value which starts at the given offset in the document.
+     *
+     * @param offset The offset of the first character of the value.
+     * @return The parsed value.
+     * @throws JSONException When the value could not be parsed.
+     */
+    @NonNull
+    private Object parse(final int offset) throws JSONException {
+        final StringReader reader = new StringReader(data);
+
+        try {
+            // Skipping a StringReader only moves its position, so nothing is copied.
+            reader.skip(offset);
+            return new JSONTokenizer(reader).readValue();
+        } catch (IOException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+}
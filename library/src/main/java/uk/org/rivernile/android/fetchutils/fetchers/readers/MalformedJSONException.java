@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * This {@link Exception} is thrown by a {@link JSONTokenizer} when the document is not valid
+ * JSON, or does not have the structure the caller asked for. As it is an {@link IOException}, it
+ * fails the fetch in the same way as a network error.
+ *
+ * @author Niall Scott
+ */
+public class MalformedJSONException extends IOException {
+
+    /**
+     * Constructs a new {@code MalformedJSONException}, specifying the message.
+     *
+     * @param detailMessage The {@link Exception} message, which should include the path to where
+     *                      the problem was found.
+     */
+    public MalformedJSONException(@Nullable final String detailMessage) {
+        super(detailMessage);
+    }
+}
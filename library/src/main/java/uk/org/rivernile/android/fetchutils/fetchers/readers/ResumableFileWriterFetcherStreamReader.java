@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import uk.org.rivernile.android.fetchutils.fetchers.ResumableFetcherStreamReader;
+
+/**
+ * A {@code ResumableFileWriterFetcherStreamReader} is a {@link FileWriterFetcherStreamReader}
+ * which can resume a download that was interrupted part way through. Rather than downloading the
+ * whole file again, only the missing bytes are requested and appended to the partial file.
+ *
+ * <p>
+ *     To know whether the data on the server is still the same as the partial file, the validator
+ *     of the response ({@code ETag} or {@code Last-Modified}) is stored in a small file next to the
+ *     target file, with the suffix {@code .validator}. This file exists only while the download is
+ *     incomplete. Once the body has been read to the end, it is deleted, and a later fetch with
+ *     this reader downloads the whole file again.
+ * </p>
+ *
+ * <p>
+ *     If the server does not support ranges, or the data has changed, the server sends the whole
+ *     of the data and the partial file is overwritten.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see ResumableFetcherStreamReader
+ */
+public class ResumableFileWriterFetcherStreamReader extends FileWriterFetcherStreamReader
+        implements ResumableFetcherStreamReader {
+
+    private static final String VALIDATOR_SUFFIX = ".validator";
+
+    private final File validatorFile;
+    private boolean partial;
+
+    /**
+     * Create a new {@code ResumableFileWriterFetcherStreamReader}.
+     *
+     * @param file The {@link File} that the data will be written out to. Must not be {@code null}.
+     */
+    public ResumableFileWriterFetcherStreamReader(@NonNull final File file) {
+        super(file, true);
+
+        validatorFile = new File(file.getPath() + VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * Create a new {@code ResumableFileWriterFetcherStreamReader}.
+     *
+     * @param filePath The path to the file that data will be written to. Must not be {@code null}
+     *                 or empty.
+     */
+    public ResumableFileWriterFetcherStreamReader(@NonNull final String filePath) {
+        super(filePath, true);
+
+        validatorFile = new File(filePath + VALIDATOR_SUFFIX);
+    }
+
+    @Override
+    public long getResumeOffset() {
+        final File file = getFile();
+        return validatorFile.isFile() && file.isFile() ? file.length() : 0;
+    }
+
+    @Nullable
+    @Override
+    public String getResumeValidator() {
+        if (!validatorFile.isFile()) {
+            return null;
+        }
+
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(validatorFile), "UTF-8"));
+
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void prepareForResponse(final boolean partial, @Nullable final String validator)
+            throws IOException {
+        this.partial = partial;
+
+        if (!partial) {
+            // Discard the partial file now, so it can never be paired with the new validator.
+            getFile().delete();
+        }
+
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(validatorFile),
+                "UTF-8");
+
+        try {
+            writer.write(validator);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        final boolean append = partial;
+        partial = false;
+        writeToFile(stream, append);
+
+        // The body has been read to the end, so the file is complete.
+        validatorFile.delete();
+    }
+
+    /**
+     * Is there a partial download which can be resumed?
+     *
+     * @return {@code true} if there is a partial download which can be resumed, {@code false} if
+     *         the next fetch will download the whole file.
+     */
+    public boolean isResumable() {
+        return getResumeOffset() > 0;
+    }
+
+    /**
+     * Get a {@link File} object, describing the file that holds the validator of a partial
+     * download.
+     *
+     * @return A {@link File} object, describing the file that holds the validator.
+     */
+    @NonNull
+    public File getValidatorFile() {
+        return validatorFile;
+    }
+}
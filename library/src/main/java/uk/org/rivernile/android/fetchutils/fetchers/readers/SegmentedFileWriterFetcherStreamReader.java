@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import uk.org.rivernile.android.fetchutils.fetchers.SegmentedFetcherStreamReader;
+
+/**
+ * A {@code SegmentedFileWriterFetcherStreamReader} is a {@link FileWriterFetcherStreamReader}
+ * which can accept the body in segments which arrive in parallel. The file is sized to the length
+ * of the body up front, and each segment is written straight to its offset in the file with
+ * positional writes on a shared {@link FileChannel}. No segment is buffered in memory or copied
+ * through a temporary file.
+ *
+ * <p>
+ *     If the body is not fetched in segments, it is written to the file as with a
+ *     {@link FileWriterFetcherStreamReader} which overwrites the file.
+ * </p>
+ *
+ * <p>
+ *     If any segment fails, the file is deleted, as it would otherwise contain holes.
+ * </p>
+ *
+ * @author Niall Scott
+ * @see SegmentedFetcherStreamReader
+ */
+public class SegmentedFileWriterFetcherStreamReader extends FileWriterFetcherStreamReader
+        implements SegmentedFetcherStreamReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    /**
+     * Create a new {@code SegmentedFileWriterFetcherStreamReader}.
+     *
+     * @param file The {@link File} that the data will be written out to. Must not be {@code null}.
+     */
+    public SegmentedFileWriterFetcherStreamReader(@NonNull final File file) {
+        super(file, false);
+    }
+
+    /**
+     * Create a new {@code SegmentedFileWriterFetcherStreamReader}.
+     *
+     * @param filePath The path to the file that data will be written to. Must not be {@code null}
+     *                 or empty.
+     */
+    public SegmentedFileWriterFetcherStreamReader(@NonNull final String filePath) {
+        super(filePath, false);
+    }
+
+    @Override
+    public synchronized void prepareForSegments(final long contentLength) throws IOException {
+        randomAccessFile = new RandomAccessFile(getFile(), "rw");
+
+        try {
+            randomAccessFile.setLength(contentLength);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+            throw e;
+        }
+
+        channel = randomAccessFile.getChannel();
+    }
+
+    @Override
+    public void readSegment(final long offset, final long length,
+            @NonNull final InputStream stream) throws IOException {
+        final FileChannel channel = getChannel();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(buf);
+        long position = offset;
+        int len;
+
+        while ((len = stream.read(buf)) != -1) {
+            buffer.clear();
+            buffer.limit(len);
+
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void finishSegments(final boolean success) throws IOException {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } finally {
+                randomAccessFile = null;
+                channel = null;
+
+                if (!success) {
+                    getFile().delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the {@link FileChannel} that segments are written to.
+     *
+     * @return The {@link FileChannel} that segments are written to.
+     * @throws IOException When {@link #prepareForSegments(long)} has not been called.
+     */
+    @NonNull
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            throw new IOException("prepareForSegments() has not been called.");
+        }
+
+        return channel;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamReader;
+
+/**
+ * A {@code StreamingJSONFetcherStreamReader} parses a JSON document while it is being read from
+ * the {@link InputStream}, and gives it to a {@link Handler} as it arrives. Unlike
+ * {@link JSONFetcherStreamReader}, the document is never held as a whole - not as a
+ * {@link String}, and not as a tree - so the memory used does not grow with the size of the
+ * document. This makes it suited to large documents made up of many records, where each record
+ * can be processed and then forgotten.
+ *
+ * <p>
+ *     The {@link Handler} is given a {@link JSONTokenizer} to pull tokens from, and is free to
+ *     skip the parts of the document it does not need. For the common case of a document holding
+ *     an array of records, a {@link RecordHandler} walks the document and is given each record as
+ *     an {@code org.json} sub-tree in turn.
+ * </p>
+ *
+ * <p>
+ *     The document is decoded as {@code UTF-8}. Errors thrown by the {@link Handler}, including a
+ *     {@link MalformedJSONException} for a document which is not valid, fail the fetch.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * StreamingJSONFetcherStreamReader reader = new StreamingJSONFetcherStreamReader(
+ *         new StreamingJSONFetcherStreamReader.RecordHandler("stops") {
+ *             &#64;Override
+ *             public void onRecord(int index, Object record) throws IOException {
+ *                 database.insertStop((JSONObject) record);
+ *             }
+ *         });
+ * fetcher.executeFetcher(reader);
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ * @see JSONTokenizer
+ */
+public class StreamingJSONFetcherStreamReader implements FetcherStreamReader {
+
+    private final Handler handler;
+
+    /**
+     * Create a new {@code StreamingJSONFetcherStreamReader}.
+     *
+     * @param handler The {@link Handler} which is given the document.
+     */
+    public StreamingJSONFetcherStreamReader(@NonNull final Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void readInputStream(@NonNull final InputStream stream) throws IOException {
+        handler.onDocument(new JSONTokenizer(new InputStreamReader(stream, "UTF-8")));
+    }
+
+    /**
+     * Get the {@link Handler} which is given the document.
+     *
+     * @return The {@link Handler} which is given the document.
+     */
+    @NonNull
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * A {@code Handler} is given the document as it is read, by way of a {@link JSONTokenizer}.
+     * It is called on the thread of the fetch.
+     */
+    public interface Handler {
+
+        /**
+         * This is called when the document is available to read. Tokens should be pulled from
+         * the {@link JSONTokenizer} until the handler has what it needs. It does not need to
+         * read to the end of the document.
+         *
+         * @param tokenizer The {@link JSONTokenizer} to read the document from.
+         * @throws IOException When there was a problem reading the document, or the handler wants
+         *                     to fail the fetch.
+         */
+        void onDocument(@NonNull JSONTokenizer tokenizer) throws IOException;
+    }
+
+    /**
+     * A {@code RecordHandler} is a {@link Handler} for documents holding an array of records.
+     * The array is either the root of the document, or the value of a member of the root object.
+     * Each element of the array is read as an {@code org.json} value with
+     * {@link JSONTokenizer#readValue()} and given to {@link #onRecord(int, Object)}. Only one
+     * record is held at a time. Other members of the root object are skipped.
+     */
+    public abstract static class RecordHandler implements Handler {
+
+        private final String arrayName;
+        private int recordCount;
+
+        /**
+         * Create a new {@code RecordHandler}.
+         *
+         * @param arrayName The name of the member of the root object which holds the array of
+         *                  records, or {@code null} if the root of the document is the array.
+         */
+        public RecordHandler(@Nullable final String arrayName) {
+            this.arrayName = arrayName;
+        }
+
+        @Override
+        public void onDocument(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            recordCount = 0;
+
+            if (arrayName == null) {
+                readRecords(tokenizer);
+                return;
+            }
+
+            tokenizer.beginObject();
+
+            while (tokenizer.hasNext()) {
+                if (arrayName.equals(tokenizer.nextName())) {
+                    readRecords(tokenizer);
+                } else {
+                    tokenizer.skipValue();
+                }
+            }
+
+            tokenizer.endObject();
+        }
+
+        /**
+         * Get the number of records given to {@link #onRecord(int, Object)} from the last
+         * document.
+         *
+         * @return The number of records from the last document.
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * This is called for each record, in the order they appear in the document.
+         *
+         * @param index The index of the record in the array.
+         * @param record The record. This is a {@link org.json.JSONObject},
+         *               {@link org.json.JSONArray}, {@link String}, {@link Number},
+         *               {@link Boolean} or {@link org.json.JSONObject#NULL}.
+         * @throws IOException When the record could not be processed, and the fetch should fail.
+         */
+        public abstract void onRecord(int index, @NonNull Object record) throws IOException;
+
+        /**
+         * Read the array of records, giving each to {@link #onRecord(int, Object)}.
+         *
+         * @param tokenizer The {@link JSONTokenizer} to read from.
+         * @throws IOException When there was a problem reading the document, or processing a
+         *                     record.
+         */
+        private void readRecords(@NonNull final JSONTokenizer tokenizer) throws IOException {
+            tokenizer.beginArray();
+
+            while (tokenizer.hasNext()) {
+                onRecord(recordCount++, tokenizer.readValue());
+            }
+
+            tokenizer.endArray();
+        }
+    }
+}
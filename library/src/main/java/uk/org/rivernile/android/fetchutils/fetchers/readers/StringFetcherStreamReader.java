@@ -18,43 +18,84 @@ package uk.org.rivernile.android.fetchutils.fetchers.readers;
 
 import android.support.annotation.NonNull;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 
-import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamReader;
+import uk.org.rivernile.android.fetchutils.fetchers.ResponseAwareFetcherStreamReader;
+import uk.org.rivernile.android.fetchutils.fetchers.ResponseMetadata;
 
 /**
  * A {@code StringFetcherStreamReader} takes an {@link InputStream} and creates a {@link String}
  * version of this data.
- * 
+ *
+ * <p>
+ *     When the data comes from a HTTP response, the charset is taken from the
+ *     {@code Content-Type}, and the {@code Content-Length} is used to size the decoded text up
+ *     front, so it does not need to be grown and copied while reading. Otherwise, or when the
+ *     response does not give a charset, the default charset given to the constructor is used.
+ *     The default charset is also used when the response gives a charset which is not supported.
+ *     {@code UTF-8}, {@code US-ASCII} and {@code ISO-8859-1} are decoded straight from the bytes,
+ *     without an {@link java.io.InputStreamReader}.
+ * </p>
+ *
  * @author Niall Scott
  */
-public class StringFetcherStreamReader implements FetcherStreamReader {
-    
+public class StringFetcherStreamReader implements ResponseAwareFetcherStreamReader {
+
+    /** The charset used when none is known, which is {@code UTF-8}. */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
+    private final String defaultCharset;
+    private String charset;
+    private long contentLength = -1;
     private String data;
 
+    /**
+     * Create a new {@code StringFetcherStreamReader} which uses {@link #DEFAULT_CHARSET} when
+     * the charset is not known.
+     */
+    public StringFetcherStreamReader() {
+        this(DEFAULT_CHARSET);
+    }
+
+    /**
+     * Create a new {@code StringFetcherStreamReader}.
+     *
+     * @param defaultCharset The charset to use when the response does not give one, or the data
+     *                       does not come from a HTTP response.
+     */
+    public StringFetcherStreamReader(@NonNull final String defaultCharset) {
+        this.defaultCharset = defaultCharset;
+    }
+
+    @Override
+    public void onResponse(@NonNull final ResponseMetadata metadata) throws IOException {
+        final String contentEncoding = metadata.getContentEncoding();
+        final String responseCharset = metadata.getCharset(null);
+        charset = responseCharset != null && isSupported(responseCharset) ? responseCharset : null;
+        // A compressed body is longer once decompressed, so its length is not useful.
+        contentLength = contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)
+                ? metadata.getContentLength() : -1;
+    }
+
     @Override
     public void readInputStream(@NonNull final InputStream stream) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-        final char[] buf = new char[1024];
-        int len;
-        
-        // Use an array buffer rather than reading in to String, otherwise we create lots of String
-        // objects that need garbage collecting.
-        while ((len = reader.read(buf, 0, 1024)) != -1) {
-            sb.append(buf, 0, len);
+        try {
+            data = TextDecoder.decode(stream, charset != null ? charset : defaultCharset,
+                    contentLength);
+        } finally {
+            // The response only describes this stream.
+            charset = null;
+            contentLength = -1;
         }
-        
-        data = sb.toString();
     }
-    
+
     /**
      * Get the data that was read from the stream as a {@link String}. This may be {@code null} if
      * the stream has yet to be read from, or if there was an error while reading the stream.
-     * 
+     *
      * @return The data read from the stream as a {@link String}, or {@code null} if it has not yet
      * been read from or there was an error while reading it.
      */
@@ -62,6 +103,31 @@ public class StringFetcherStreamReader implements FetcherStreamReader {
         return data;
     }
 
+    /**
+     * Get the charset used when the charset of the data is not known.
+     *
+     * @return The charset used when the charset of the data is not known.
+     */
+    @NonNull
+    public String getDefaultCharset() {
+        return defaultCharset;
+    }
+
+    /**
+     * Is the given charset supported by the platform?
+     *
+     * @param charsetName The name of the charset.
+     * @return {@code true} if the charset is supported, {@code false} if it is not supported or
+     *         its name is not legal.
+     */
+    private static boolean isSupported(@NonNull final String charsetName) {
+        try {
+            return Charset.isSupported(charsetName);
+        } catch (IllegalCharsetNameException e) {
+            return false;
+        }
+    }
+
     @Override
     public String toString() {
         return getData();
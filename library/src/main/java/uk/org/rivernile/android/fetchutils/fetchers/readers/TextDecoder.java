@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.readers;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * The {@code TextDecoder} turns an {@link InputStream} in to a {@link String}. {@code UTF-8},
+ * {@code US-ASCII} and {@code ISO-8859-1} are decoded here, straight from a pooled byte buffer in
+ * to a {@code char} array, and runs of ASCII in {@code UTF-8} are copied without further checks.
+ * Other charsets are decoded with an {@link InputStreamReader} in to the same array.
+ *
+ * <p>
+ *     When the length of the text is known in advance, the array is created at that size and
+ *     does not need to grow. As the length comes from the server, it is only trusted up to
+ *     {@link #MAX_PRESIZE} chars, and a longer text grows the array from there. Invalid input is
+ *     replaced with {@code U+FFFD} rather than failing, as {@link InputStreamReader} does.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+final class TextDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int POOL_SIZE = 4;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MAX_PRESIZE = 1024 * 1024;
+    private static final char REPLACEMENT = '\ufffd';
+
+    private static final byte[][] pool = new byte[POOL_SIZE][];
+    private static int pooled;
+
+    private final InputStream in;
+    private char[] chars;
+    private int count;
+
+    /**
+     * Create a new {@code TextDecoder}.
+     *
+     * @param in The {@link InputStream} to decode.
+     * @param expectedLength The expected number of bytes in the stream, or {@code -1} if it is
+     *                       not known. This is used to size the output, up to
+     *                       {@link #MAX_PRESIZE}.
+     */
+    private TextDecoder(@NonNull final InputStream in, final long expectedLength) {
+        this.in = in;
+        chars = new char[expectedLength >= 0
+                ? (int) Math.min(expectedLength, MAX_PRESIZE) : BUFFER_SIZE];
+    }
+
+    /**
+     * Decode the whole of an {@link InputStream} in to a {@link String}.
+     *
+     * @param in The {@link InputStream} to decode. It is not closed.
+     * @param charsetName The name of the charset of the stream.
+     * @param expectedLength The expected number of bytes in the stream, or {@code -1} if it is
+     *                       not known. The stream may be shorter or longer than this.
+     * @return The text of the stream.
+     * @throws IOException When there was a problem reading the stream.
+     * @throws UnsupportedEncodingException When the charset is not supported.
+     */
+    @NonNull
+    static String decode(@NonNull final InputStream in, @NonNull final String charsetName,
+            final long expectedLength) throws IOException {
+        final Charset charset;
+
+        try {
+            charset = Charset.forName(charsetName);
+        } catch (IllegalCharsetNameException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        } catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        }
+
+        final TextDecoder decoder = new TextDecoder(in, expectedLength);
+        final String name = charset.name();
+
+        if ("UTF-8".equals(name)) {
+            decoder.decodeUtf8();
+        } else if ("US-ASCII".equals(name)) {
+            decoder.decodeSingleByte(0x7f);
+        } else if ("ISO-8859-1".equals(name)) {
+            decoder.decodeSingleByte(0xff);
+        } else {
+            decoder.decodeWithReader(charset);
+        }
+
+        return new String(decoder.chars, 0, decoder.count);
+    }
+
+    /**
+     * Decode the stream as {@code UTF-8}. A sequence which is split between reads is moved to
+     * the start of the buffer, and completed by the next read.
+     *
+     * @throws IOException When there was a problem reading the stream.
+     */
+    private void decodeUtf8() throws IOException {
+        final byte[] buffer = acquireBuffer();
+
+        try {
+            int carried = 0;
+            int read;
+
+            while ((read = in.read(buffer, carried, buffer.length - carried)) != -1) {
+                final int limit = carried + read;
+                // Each byte becomes at most one char.
+                ensureCapacity(limit);
+                final char[] out = chars;
+                int c = count;
+                int p = 0;
+
+                while (p < limit) {
+                    // The fast path for runs of ASCII.
+                    while (p < limit && buffer[p] >= 0) {
+                        out[c++] = (char) buffer[p++];
+                    }
+
+                    if (p == limit) {
+                        break;
+                    }
+
+                    if (p + getSequenceLength(buffer[p]) > limit) {
+                        break;
+                    }
+
+                    count = c;
+                    p += decodeSequence(buffer, p, limit - p);
+                    c = count;
+                }
+
+                count = c;
+                carried = limit - p;
+                System.arraycopy(buffer, p, buffer, 0, carried);
+            }
+
+            // Any bytes left over are a sequence which was cut short by the end of the stream.
+            ensureCapacity(carried);
+            int p = 0;
+
+            while (p < carried) {
+                if (buffer[p] >= 0) {
+                    chars[count++] = (char) buffer[p++];
+                } else {
+                    p += decodeSequence(buffer, p, carried - p);
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Decode one {@code UTF-8} sequence which does not start with an ASCII byte, in to
+     * {@link #chars}. There must be room for two chars. When the sequence is not valid, the
+     * longest valid start of it is replaced with one {@code U+FFFD}, or just the first byte if
+     * there is no valid start, and the bytes after are decoded as the start of a new sequence.
+     * This is the practice recommended by the Unicode Standard.
+     *
+     * @param buffer The buffer holding the sequence.
+     * @param p The index of the lead byte.
+     * @param available The number of bytes in the buffer from {@code p}. When this is less than
+     *                  the length of the sequence, the sequence is treated as cut short.
+     * @return The number of bytes consumed.
+     */
+    private int decodeSequence(@NonNull final byte[] buffer, final int p, final int available) {
+        final int lead = buffer[p] & 0xff;
+        final int length = getSequenceLength(buffer[p]);
+        int codePoint = lead & (0xff >> (length + 1));
+        // The second byte has a narrower range for some lead bytes, which rules out overlong
+        // forms, surrogates and values above U+10FFFF.
+        int low = 0x80;
+        int high = 0xbf;
+
+        if (lead == 0xe0) {
+            low = 0xa0;
+        } else if (lead == 0xed) {
+            high = 0x9f;
+        } else if (lead == 0xf0) {
+            low = 0x90;
+        } else if (lead == 0xf4) {
+            high = 0x8f;
+        }
+
+        for (int i = 1; i < length; i++) {
+            final int next = i < available ? buffer[p + i] & 0xff : -1;
+
+            if (next < low || next > high) {
+                chars[count++] = REPLACEMENT;
+                return i;
+            }
+
+            codePoint = (codePoint << 6) | (next & 0x3f);
+            low = 0x80;
+            high = 0xbf;
+        }
+
+        if (length == 1) {
+            chars[count++] = REPLACEMENT;
+        } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            // Character.highSurrogate() and lowSurrogate() are not available on older devices.
+            final int offset = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            chars[count++] = (char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10));
+            chars[count++] = (char) (Character.MIN_LOW_SURROGATE + (offset & 0x3ff));
+        } else {
+            chars[count++] = (char) codePoint;
+        }
+
+        return length;
+    }
+
+    /**
+     * Get the length of a {@code UTF-8} sequence from its lead byte. Bytes which can not start a
+     * sequence have a length of {@code 1}.
+     *
+     * @param lead The lead byte.
+     * @return The length of the sequence.
+     */
+    private static int getSequenceLength(final byte lead) {
+        final int b = lead & 0xff;
+
+        if (b >= 0xc2 && b <= 0xdf) {
+            return 2;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            return 3;
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            return 4;
+        }
+
+        return 1;
+    }
+
+    /**
+     * Decode the stream as a charset where each byte is one char. Bytes above {@code max} are
+     * replaced.
+     *
+     * @param max The highest valid byte value.
+     * @throws IOException When there was a problem reading the stream.
+     */
+    private void decodeSingleByte(final int max) throws IOException {
+        final byte[] buffer = acquireBuffer();
+
+        try {
+            int read;
+
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                ensureCapacity(read);
+                final char[] out = chars;
+                int c = count;
+
+                for (int p = 0; p < read; p++) {
+                    final int b = buffer[p] & 0xff;
+                    out[c++] = b <= max ? (char) b : REPLACEMENT;
+                }
+
+                count = c;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Decode the stream with an {@link InputStreamReader}, for charsets which are not decoded
+     * here.
+     *
+     * @param charset The charset of the stream.
+     * @throws IOException When there was a problem reading the stream.
+     */
+    private void decodeWithReader(@NonNull final Charset charset) throws IOException {
+        final InputStreamReader reader = new InputStreamReader(in, charset);
+        int read;
+
+        do {
+            ensureCapacity(1);
+            read = reader.read(chars, count, chars.length - count);
+
+            if (read > 0) {
+                count += read;
+            }
+        } while (read != -1);
+    }
+
+    /**
+     * Make sure there is room in {@link #chars} for at least the given number of chars after
+     * {@link #count}, growing it by half if there is not.
+     *
+     * @param needed The number of chars needed.
+     * @throws IOException When the text is too long to be held.
+     */
+    private void ensureCapacity(final int needed) throws IOException {
+        if (chars.length - count >= needed) {
+            return;
+        }
+
+        final long minimum = (long) count + needed;
+
+        if (minimum > MAX_ARRAY_SIZE) {
+            throw new IOException("The text is too long to be held in memory.");
+        }
+
+        final long grown = Math.max(minimum, chars.length + (chars.length >> 1));
+        final char[] newChars = new char[(int) Math.min(grown, MAX_ARRAY_SIZE)];
+        System.arraycopy(chars, 0, newChars, 0, count);
+        chars = newChars;
+    }
+
+    /**
+     * Take a buffer from the pool, or create one if the pool is empty.
+     *
+     * @return A buffer of {@link #BUFFER_SIZE} bytes.
+     */
+    @NonNull
+    private static byte[] acquireBuffer() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                final byte[] buffer = pool[--pooled];
+                pool[pooled] = null;
+
+                return buffer;
+            }
+        }
+
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Give a buffer back to the pool. It is dropped if the pool is full.
+     *
+     * @param buffer The buffer to give back.
+     */
+    private static void releaseBuffer(@NonNull final byte[] buffer) {
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.writers;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamWriter;
+
+/**
+ * An {@code AssetFetcherStreamWriter} sends a file from the application assets as the request
+ * body. The asset is read in small blocks and written straight to the connection.
+ *
+ * <p>
+ *     The length of an uncompressed asset is known, so it is sent with a fixed length. The length
+ *     of an asset which has been compressed in the APK is not known until it has been read, so it
+ *     is sent in chunks.
+ * </p>
+ *
+ * @author Niall Scott
+ */
+public class AssetFetcherStreamWriter implements FetcherStreamWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Context context;
+    private final String filePath;
+    private final String contentType;
+
+    /**
+     * Create a new {@code AssetFetcherStreamWriter}.
+     *
+     * @param context A {@link Context} instance. Cannot be {@code null}.
+     * @param filePath The path of the file to send, relative to the assets directory. Must not be
+     *                 {@code null} or empty. If the file is not readable at the time the body is
+     *                 written, then the request will fail with an {@link IOException}.
+     * @param contentType The media type of the file, or {@code null} if it should not be sent.
+     */
+    public AssetFetcherStreamWriter(@NonNull final Context context,
+            @NonNull final String filePath, @Nullable final String contentType) {
+        if (TextUtils.isEmpty(filePath)) {
+            throw new IllegalArgumentException("The filePath must not be null or empty.");
+        }
+
+        this.context = context;
+        this.filePath = filePath;
+        this.contentType = contentType;
+    }
+
+    @Nullable
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public long getContentLength() {
+        try {
+            final AssetFileDescriptor fd = context.getAssets().openFd(filePath);
+
+            try {
+                return fd.getLength();
+            } finally {
+                fd.close();
+            }
+        } catch (IOException e) {
+            // This happens when the asset is compressed.
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeOutputStream(@NonNull final OutputStream stream) throws IOException {
+        final InputStream in = context.getAssets().open(filePath);
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int len;
+
+        try {
+            while ((len = in.read(buf)) != -1) {
+                stream.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the path to the file, as given in the constructor. This path will be relative to the
+     * application's assets directory.
+     *
+     * @return The path to the file that this instance sends.
+     */
+    @NonNull
+    public String getFilePath() {
+        return filePath;
+    }
+}
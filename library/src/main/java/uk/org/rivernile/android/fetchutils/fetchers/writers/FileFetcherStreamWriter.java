@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.writers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamWriter;
+
+/**
+ * A {@code FileFetcherStreamWriter} sends the contents of a file as the request body. The file is
+ * read in small blocks and written straight to the connection, so files of any size can be sent.
+ * As the length of the file is known, the body is sent with a fixed length.
+ *
+ * @author Niall Scott
+ */
+public class FileFetcherStreamWriter implements FetcherStreamWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File file;
+    private final String contentType;
+
+    /**
+     * Create a new {@code FileFetcherStreamWriter}.
+     *
+     * @param file The {@link File} to send. Must not be {@code null}. If the file is not readable
+     *             at the time the body is written, then the request will fail with an
+     *             {@link IOException}.
+     * @param contentType The media type of the file, or {@code null} if it should not be sent.
+     */
+    public FileFetcherStreamWriter(@NonNull final File file, @Nullable final String contentType) {
+        this.file = file;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Create a new {@code FileFetcherStreamWriter}.
+     *
+     * @param filePath The path to the file to send. Must not be {@code null} or empty.
+     * @param contentType The media type of the file, or {@code null} if it should not be sent.
+     */
+    public FileFetcherStreamWriter(@NonNull final String filePath,
+            @Nullable final String contentType) {
+        if (TextUtils.isEmpty(filePath)) {
+            throw new IllegalArgumentException("filePath must not be null or empty.");
+        }
+
+        file = new File(filePath);
+        this.contentType = contentType;
+    }
+
+    @Nullable
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public long getContentLength() {
+        // File.length() returns 0 for a file which does not exist, which would be sent as an
+        // empty body rather than failing.
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public void writeOutputStream(@NonNull final OutputStream stream) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int len;
+
+        try {
+            while ((len = in.read(buf)) != -1) {
+                stream.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get a {@link File} object, describing the file that is sent.
+     *
+     * @return A {@link File} object, describing the file that is sent.
+     */
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+}
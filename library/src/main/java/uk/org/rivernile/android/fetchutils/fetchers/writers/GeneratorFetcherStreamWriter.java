@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Niall Scott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.rivernile.android.fetchutils.fetchers.writers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetcherStreamWriter;
+
+/**
+ * A {@code GeneratorFetcherStreamWriter} sends a request body which is produced while it is being
+ * sent, for example log lines or telemetry events serialised one at a time. Subclasses implement
+ * {@link #generate(OutputStream)} to write the body. Nothing is buffered, so the body can be much
+ * larger than the available memory.
+ *
+ * <p>
+ *     Unless a length is given, the body is sent in chunks. A generator which cannot produce the
+ *     same body a second time should say so, so that a failed request is not retried with a
+ *     different body.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>
+ * FetcherStreamWriter writer = new GeneratorFetcherStreamWriter("text/plain", false) {
+ *     {@literal @}Override
+ *     protected void generate(OutputStream stream) throws IOException {
+ *         for (LogEntry entry : entries) {
+ *             stream.write(entry.toBytes());
+ *         }
+ *     }
+ * };
+ * </code>
+ * </pre>
+ *
+ * @author Niall Scott
+ */
+public abstract class GeneratorFetcherStreamWriter implements FetcherStreamWriter {
+
+    private final String contentType;
+    private final long contentLength;
+    private final boolean repeatable;
+
+    /**
+     * Create a new {@code GeneratorFetcherStreamWriter} for a body of unknown length, which is
+     * sent in chunks.
+     *
+     * @param contentType The media type of the body, or {@code null} if it should not be sent.
+     * @param repeatable {@code true} if {@link #generate(OutputStream)} produces the same body
+     *                   each time it is called, {@code false} if not.
+     */
+    public GeneratorFetcherStreamWriter(@Nullable final String contentType,
+            final boolean repeatable) {
+        this(contentType, -1, repeatable);
+    }
+
+    /**
+     * Create a new {@code GeneratorFetcherStreamWriter}.
+     *
+     * @param contentType The media type of the body, or {@code null} if it should not be sent.
+     * @param contentLength The exact length of the body in bytes, or {@code -1} if it is not
+     *                      known.
+     * @param repeatable {@code true} if {@link #generate(OutputStream)} produces the same body
+     *                   each time it is called, {@code false} if not.
+     */
+    public GeneratorFetcherStreamWriter(@Nullable final String contentType,
+            final long contentLength, final boolean repeatable) {
+        if (contentLength < -1) {
+            throw new IllegalArgumentException("contentLength must be -1 or greater.");
+        }
+
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.repeatable = repeatable;
+    }
+
+    @Nullable
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return repeatable;
+    }
+
+    @Override
+    public void writeOutputStream(@NonNull final OutputStream stream) throws IOException {
+        generate(stream);
+    }
+
+    /**
+     * Write the body to the given {@link OutputStream}. Do not close the stream inside this
+     * method. If a length was given, exactly that many bytes must be written.
+     *
+     * @param stream The {@link OutputStream} to write the body to.
+     * @throws IOException When an {@link IOException} occurs.
+     */
+    protected abstract void generate(@NonNull OutputStream stream) throws IOException;
+}
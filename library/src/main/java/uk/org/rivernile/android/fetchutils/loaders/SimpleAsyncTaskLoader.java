@@ -21,7 +21,11 @@ import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Loader;
+import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import uk.org.rivernile.android.fetchutils.fetchers.FetchCancellationSignal;
 
 /**
  * This class defines an easy to use {@link Loader}, based specifically on the Android framework's
@@ -66,8 +70,9 @@ import android.support.annotation.NonNull;
  *         Result<String, Exception> result;
  *
  *         try {
- *             // Attempt to get the data.
- *             String str = myModel.someBlockingTask();
+ *             // Attempt to get the data. Passing the cancellation signal on allows the task to
+ *             // be stopped when the load is cancelled.
+ *             String str = myModel.someBlockingTask(getCancellationSignal());
  *             // If successful, create a success Result object.
  *             result = new Result(str);
  *         } catch (SomeException e) {
@@ -83,6 +88,15 @@ import android.support.annotation.NonNull;
  * </code>
  * </pre>
  *
+ * <p>
+ *     Each load is given a new {@link FetchCancellationSignal}, available from
+ *     {@link #getCancellationSignal()}. It is cancelled when the load is cancelled, so if it is
+ *     given to the {@code HttpFetcher}s used in {@link #loadInBackground()}, their transfers are
+ *     aborted rather than running to completion for a result which will be thrown away.
+ *     The framework only cancels a load in progress this way on API level 16 (Jelly Bean) and
+ *     above.
+ * </p>
+ *
  * @author Niall Scott
  * @param <D> The type of data that will be returned from this {@link Loader}. For a type that
  *           encapsulates a success or failure result, see {@link Result}.
@@ -95,6 +109,7 @@ import android.support.annotation.NonNull;
 public abstract class SimpleAsyncTaskLoader<D> extends AsyncTaskLoader<D> {
     
     private D result;
+    private volatile FetchCancellationSignal cancellationSignal;
     
     /**
      * Create a new {@code SimpleAsyncTaskLoader}. This must be called through to as
@@ -151,6 +166,45 @@ public abstract class SimpleAsyncTaskLoader<D> extends AsyncTaskLoader<D> {
         }
     }
 
+    @Override
+    protected D onLoadInBackground() {
+        // Each load gets its own signal, as a cancelled signal stays cancelled.
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        cancellationSignal = signal;
+
+        // A cancel which arrived before the signal was set could not reach it, so it is applied
+        // here. cancelLoadInBackground() is only called from API level 16 onwards.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN &&
+                isLoadInBackgroundCanceled()) {
+            signal.cancel();
+        }
+
+        return super.onLoadInBackground();
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        final FetchCancellationSignal signal = cancellationSignal;
+
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
     @Override
     public abstract D loadInBackground();
+
+    /**
+     * Get the {@link FetchCancellationSignal} of the current load. This is only meaningful when
+     * called from {@link #loadInBackground()}. The signal is cancelled when the load is
+     * cancelled, and should be given to any {@code HttpFetcher}s used by the load with
+     * {@code HttpFetcher.Builder.setCancellationSignal()}.
+     *
+     * @return The {@link FetchCancellationSignal} of the current load, or {@code null} if no
+     *         load has been started.
+     */
+    @Nullable
+    protected FetchCancellationSignal getCancellationSignal() {
+        return cancellationSignal;
+    }
 }
\ No newline at end of file
@@ -18,9 +18,11 @@ package uk.org.rivernile.android.fetchutils.loaders.support;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import uk.org.rivernile.android.fetchutils.fetchers.FetchCancellationSignal;
 import uk.org.rivernile.android.fetchutils.loaders.Result;
 
 /**
@@ -61,8 +63,9 @@ import uk.org.rivernile.android.fetchutils.loaders.Result;
  *         Result<String, Exception> result;
  *
  *         try {
- *             // Attempt to get the data.
- *             String str = myModel.someBlockingTask();
+ *             // Attempt to get the data. Passing the cancellation signal on allows the task to
+ *             // be stopped when the load is cancelled.
+ *             String str = myModel.someBlockingTask(getCancellationSignal());
  *             // If successful, create a success Result object.
  *             result = new Result(str);
  *         } catch (SomeException e) {
@@ -78,6 +81,13 @@ import uk.org.rivernile.android.fetchutils.loaders.Result;
  * </code>
  * </pre>
  *
+ * <p>
+ *     Each load is given a new {@link FetchCancellationSignal}, available from
+ *     {@link #getCancellationSignal()}. It is cancelled when the load is cancelled, so if it is
+ *     given to the {@code HttpFetcher}s used in {@link #loadInBackground()}, their transfers are
+ *     aborted rather than running to completion for a result which will be thrown away.
+ * </p>
+ *
  * @author Niall Scott
  * @param <D> The type of data that will be returned from this {@link Loader}. For a type that
  *           encapsulates a success or failure result, see {@link Result}.
@@ -89,6 +99,7 @@ import uk.org.rivernile.android.fetchutils.loaders.Result;
 public abstract class SimpleAsyncTaskLoader<D> extends AsyncTaskLoader<D> {
 
     private D result;
+    private volatile FetchCancellationSignal cancellationSignal;
 
     /**
      * Create a new {@code SimpleAsyncTaskLoader}. This must be called through to as
@@ -145,6 +156,44 @@ public abstract class SimpleAsyncTaskLoader<D> extends AsyncTaskLoader<D> {
         }
     }
 
+    @Override
+    protected D onLoadInBackground() {
+        // Each load gets its own signal, as a cancelled signal stays cancelled.
+        final FetchCancellationSignal signal = new FetchCancellationSignal();
+        cancellationSignal = signal;
+
+        // A cancel which arrived before the signal was set could not reach it, so it is applied
+        // here.
+        if (isLoadInBackgroundCanceled()) {
+            signal.cancel();
+        }
+
+        return super.onLoadInBackground();
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        final FetchCancellationSignal signal = cancellationSignal;
+
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
     @Override
     public abstract D loadInBackground();
+
+    /**
+     * Get the {@link FetchCancellationSignal} of the current load. This is only meaningful when
+     * called from {@link #loadInBackground()}. The signal is cancelled when the load is
+     * cancelled, and should be given to any {@code HttpFetcher}s used by the load with
+     * {@code HttpFetcher.Builder.setCancellationSignal()}.
+     *
+     * @return The {@link FetchCancellationSignal} of the current load, or {@code null} if no
+     *         load has been started.
+     */
+    @Nullable
+    protected FetchCancellationSignal getCancellationSignal() {
+        return cancellationSignal;
+    }
 }